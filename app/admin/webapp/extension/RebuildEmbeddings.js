@@ -18,7 +18,7 @@ sap.ui.define(
                                 model: oController.editFlow.getView().getModel()
                             })
                             .then(() => {
-                                this.refresh();
+                                MessageToast.show("Embeddings are rebuilt in the background. Progress is shown in EmbeddingRebuildJobs.");
                             })
                             .catch(function (error) {
                             var sMessage = error && error.message ? error.message : "Failed to rebuild embeddings.";
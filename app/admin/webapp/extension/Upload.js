@@ -3,6 +3,19 @@ sap.ui.define(
     function (MessageBox, MessageToast) {
         "use strict";
 
+        function _importMessage(mHeaders) {
+            var sMessages = mHeaders && mHeaders["sap-messages"];
+            if (!sMessages) {
+                return undefined;
+            }
+            try {
+                var aMessages = JSON.parse(sMessages);
+                return aMessages.length ? aMessages[0].message : undefined;
+            } catch (e) {
+                return undefined;
+            }
+        }
+
         function _createUploadController(oExtensionAPI) {
             var oUploadDialog;
 
@@ -95,7 +108,7 @@ sap.ui.define(
                         var oRawResponse = JSON.parse(oEvent.getParameter("responseRaw"));
                         showError(oRawResponse && oRawResponse.error && oRawResponse.error.message);
                     } else {
-                        MessageToast.show("Uploaded successfully");
+                        MessageToast.show(_importMessage(oEvent.getParameter("headers")) || "Uploaded successfully");
                         oExtensionAPI.refresh()
                         closeDialog();
                     }
@@ -1,11 +1,11 @@
 sap.ui.define([], function () {
   "use strict";
 
-  async function callChat(message, history) {
-    const payload = {
-      message,
-      history: JSON.stringify(history || [])
-    };
+  async function callChat(message, conversationId) {
+    const payload = { message };
+    if (conversationId) {
+      payload.conversationId = conversationId;
+    }
     const res = await fetch("/api/browse/chat", {
       method: "POST",
       headers: { "Content-Type": "application/json" },
@@ -26,14 +26,15 @@ sap.ui.define([], function () {
         .filter(function (id) { return !!id; });
     }
     const needsVectorSearch = obj && obj.needsVectorSearch === true;
-    return { reply, ids, needsVectorSearch };
+    const nextConversationId = obj && obj.conversationId ? String(obj.conversationId) : conversationId;
+    return { reply, ids, needsVectorSearch, conversationId: nextConversationId };
   }
 
-  async function callChatFT(message, history) {
-    const payload = {
-      message,
-      history: JSON.stringify(history || [])
-    };
+  async function callChatFT(message, conversationId) {
+    const payload = { message };
+    if (conversationId) {
+      payload.conversationId = conversationId;
+    }
     const res = await fetch("/api/browse/chatFt", {
       method: "POST",
       headers: { "Content-Type": "application/json" },
@@ -54,7 +55,8 @@ sap.ui.define([], function () {
         .filter(function (id) { return !!id; });
     }
     const needsVectorSearch = obj && obj.needsVectorSearch === true;
-    return { reply, ids, needsVectorSearch };
+    const nextConversationId = obj && obj.conversationId ? String(obj.conversationId) : conversationId;
+    return { reply, ids, needsVectorSearch, conversationId: nextConversationId };
   }
 
   return {
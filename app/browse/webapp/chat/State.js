@@ -4,6 +4,7 @@ sap.ui.define([], function () {
   return {
     create: function () {
       const history = [];
+      let conversationId = null;
       return {
         getHistory: function () {
           return history;
@@ -17,8 +18,15 @@ sap.ui.define([], function () {
         removeLastMessage: function () {
           history.pop();
         },
+        getConversationId: function () {
+          return conversationId;
+        },
+        setConversationId: function (id) {
+          conversationId = id || null;
+        },
         clear: function () {
           history.length = 0;
+          conversationId = null;
         }
       };
     }
@@ -172,12 +172,14 @@ sap.ui.define([
         let reply, ids, needsVectorSearch;
 
         if (useRaft) {
-          const res = await ChatClient.callChatFT(content, state.getHistory());
+          const res = await ChatClient.callChatFT(content, state.getConversationId());
+          state.setConversationId(res.conversationId);
           reply = res.reply;
           ids = res.ids;
           needsVectorSearch = res.needsVectorSearch;
         } else {
-          const res = await ChatClient.callChat(content, state.getHistory());
+          const res = await ChatClient.callChat(content, state.getConversationId());
+          state.setConversationId(res.conversationId);
           reply = res.reply;
           ids = res.ids;
           needsVectorSearch = res.needsVectorSearch;
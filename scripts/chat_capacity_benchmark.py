@@ -0,0 +1,171 @@
+"""Compares how many concurrent chat requests the bookshop serves with platform and with virtual threads.
+
+The model is replaced by a stub that answers after a fixed delay, so the benchmark measures how the server copes
+with requests that wait on remote I/O, not how fast the model is. See scripts/README.md for the full procedure.
+
+    python scripts/chat_capacity_benchmark.py stub --port 9999 --delay 2
+    python scripts/chat_capacity_benchmark.py load --concurrency 100,200,400,800 --duration 30
+"""
+import argparse
+import base64
+import hashlib
+import json
+import math
+import threading
+import time
+import urllib.error
+import urllib.request
+from http.server import BaseHTTPRequestHandler, ThreadingHTTPServer
+
+
+def stub_embedding(text, dimensions):
+    # deterministic, so a repeated query gets the same vector
+    seed = hashlib.sha256(text.encode('utf-8')).digest()
+    values = [((seed[i % len(seed)] + i) % 251) / 251.0 - 0.5 for i in range(dimensions)]
+    norm = math.sqrt(sum(v * v for v in values)) or 1.0
+    return [v / norm for v in values]
+
+
+def make_stub_handler(delay, dimensions):
+    class StubHandler(BaseHTTPRequestHandler):
+        protocol_version = 'HTTP/1.1'
+
+        def do_POST(self):
+            body = json.loads(self.rfile.read(int(self.headers.get('Content-Length', 0))) or b'{}')
+            if self.path.endswith('/embeddings'):
+                inputs = body.get('input', [])
+                inputs = [inputs] if isinstance(inputs, str) else inputs
+                response = {
+                    'object': 'list',
+                    'model': body.get('model'),
+                    'data': [{'object': 'embedding', 'index': i, 'embedding': stub_embedding(text, dimensions)}
+                             for i, text in enumerate(inputs)],
+                    'usage': {'prompt_tokens': 8 * len(inputs), 'total_tokens': 8 * len(inputs)},
+                }
+            elif self.path.endswith('/chat/completions'):
+                time.sleep(delay)
+                response = {
+                    'id': 'stub',
+                    'object': 'chat.completion',
+                    'created': int(time.time()),
+                    'model': body.get('model'),
+                    'choices': [{'index': 0, 'finish_reason': 'stop',
+                                 'message': {'role': 'assistant', 'content': 'A stubbed answer.'}}],
+                    'usage': {'prompt_tokens': 100, 'completion_tokens': 5, 'total_tokens': 105},
+                }
+            else:
+                self.send_error(404)
+                return
+            payload = json.dumps(response).encode('utf-8')
+            self.send_response(200)
+            self.send_header('Content-Type', 'application/json')
+            self.send_header('Content-Length', str(len(payload)))
+            self.end_headers()
+            self.wfile.write(payload)
+
+        def log_message(self, format, *args):
+            pass
+
+    return StubHandler
+
+
+def run_stub(args):
+    server = ThreadingHTTPServer(('0.0.0.0', args.port), make_stub_handler(args.delay, args.dimensions))
+    server.daemon_threads = True
+    server.request_queue_size = 4096
+    print(f"Stub model listening on http://localhost:{args.port}/v1 (chat delay {args.delay}s)")
+    server.serve_forever()
+
+
+def percentile(sorted_values, fraction):
+    if not sorted_values:
+        return float('nan')
+    index = min(len(sorted_values) - 1, max(0, math.ceil(fraction * len(sorted_values)) - 1))
+    return sorted_values[index]
+
+
+def run_level(args, concurrency):
+    url = args.url.rstrip('/') + '/api/browse/chat'
+    auth = 'Basic ' + base64.b64encode(args.user.encode('utf-8')).decode('ascii')
+    deadline = time.monotonic() + args.duration
+    lock = threading.Lock()
+    latencies, statuses = [], {}
+
+    def worker(number):
+        body = json.dumps({'message': f"Which book would you recommend for reader {number}?"}).encode('utf-8')
+        while time.monotonic() < deadline:
+            request = urllib.request.Request(url, data=body, method='POST', headers={
+                'Content-Type': 'application/json', 'Authorization': auth})
+            start = time.monotonic()
+            try:
+                with urllib.request.urlopen(request, timeout=args.timeout) as response:
+                    response.read()
+                    status = response.status
+            except urllib.error.HTTPError as e:
+                status = e.code
+            except Exception:
+                status = 'error'
+            elapsed = time.monotonic() - start
+            with lock:
+                statuses[status] = statuses.get(status, 0) + 1
+                if status == 200:
+                    latencies.append(elapsed)
+
+    threads = [threading.Thread(target=worker, args=(i,), daemon=True) for i in range(concurrency)]
+    for thread in threads:
+        thread.start()
+    for thread in threads:
+        thread.join()
+
+    latencies.sort()
+    return {
+        'concurrency': concurrency,
+        'throughput': len(latencies) / args.duration,
+        'p50': percentile(latencies, 0.5),
+        'p95': percentile(latencies, 0.95),
+        'rejected': statuses.get(429, 0),
+        'failed': sum(count for status, count in statuses.items() if status not in (200, 429)),
+    }
+
+
+def run_load(args):
+    levels = [int(level) for level in args.concurrency.split(',')]
+    print(f"{'clients':>8} {'ok/s':>8} {'p50 s':>8} {'p95 s':>8} {'429':>6} {'failed':>7}")
+    results = []
+    for concurrency in levels:
+        result = run_level(args, concurrency)
+        results.append(result)
+        print(f"{result['concurrency']:>8} {result['throughput']:>8.1f} {result['p50']:>8.2f} "
+              f"{result['p95']:>8.2f} {result['rejected']:>6} {result['failed']:>7}")
+        time.sleep(args.pause)
+    if args.output:
+        with open(args.output, 'w', encoding='utf-8') as f:
+            json.dump(results, f, indent=2)
+
+
+def main():
+    parser = argparse.ArgumentParser(description="Chat capacity benchmark for platform vs. virtual threads")
+    commands = parser.add_subparsers(dest='command', required=True)
+
+    stub = commands.add_parser('stub', help="serve an OpenAI-compatible stub model")
+    stub.add_argument('--port', type=int, default=9999)
+    stub.add_argument('--delay', type=float, default=2.0, help="seconds before a chat completion is answered")
+    stub.add_argument('--dimensions', type=int, default=1536, help="size of the stub embeddings")
+    stub.set_defaults(run=run_stub)
+
+    load = commands.add_parser('load', help="send concurrent chat requests to the bookshop")
+    load.add_argument('--url', default='http://localhost:8080')
+    load.add_argument('--user', default='user:user', help="mock user as name:password")
+    load.add_argument('--concurrency', default='50,100,200,400,800', help="comma-separated client counts")
+    load.add_argument('--duration', type=float, default=30.0, help="seconds per concurrency level")
+    load.add_argument('--timeout', type=float, default=60.0, help="client timeout per request in seconds")
+    load.add_argument('--pause', type=float, default=5.0, help="seconds between concurrency levels")
+    load.add_argument('--output', help="write the results as JSON to this file")
+    load.set_defaults(run=run_load)
+
+    args = parser.parse_args()
+    args.run(args)
+
+
+if __name__ == '__main__':
+    main()
@@ -1,11 +1,12 @@
 #!/usr/bin/env bash
-# Clean script: Fetch Gutenberg book and ensure author & book exist (create if missing)
+# Clean script: Fetch Gutenberg book and import it through the bulk ingestion endpoint (author is created if missing)
 set -euo pipefail
 
-usage() { echo "Usage: $0 <gutenberg_id> [--admin-base <url>] [--token <token>|--user <user>] [--debug]" >&2; }
+usage() { echo "Usage: $0 <gutenberg_id> [--admin-base <url>] [--seeding-base <url>] [--token <token>|--user <user>] [--debug]" >&2; }
 
 GUTENBERG_ID=""
 ADMIN_BASE="http://localhost:8080/api/admin"
+SEEDING_BASE="http://localhost:8080/api/seeding"
 AUTH_USER=""
 AUTH_TOKEN=""
 DEBUG=0
@@ -14,6 +15,7 @@ declare -a CURL_AUTH_ARGS=()
 while [ $# -gt 0 ]; do
   case "$1" in
     --admin-base) ADMIN_BASE="$2"; shift 2;;
+    --seeding-base) SEEDING_BASE="$2"; shift 2;;
     --user) AUTH_USER="$2"; shift 2;;
     --token) AUTH_TOKEN="$2"; shift 2;;
     --debug|-v) DEBUG=1; shift;;
@@ -47,18 +49,6 @@ TITLE=$(printf '%s' "$TITLE" | tr -d '\r' | sed 's/^[[:space:]]*//;s/[[:space:]]
 AUTHOR_NAME=$(echo "$AUTHOR_RAW" | awk -F",| and " '{print $1}' | sed 's/^\s*//;s/\s*$//' | tr -d '\r')
 [ -z "$AUTHOR_NAME" ] && AUTHOR_NAME="Unknown"
 urlenc() { printf '%s' "$1" | jq -s -R -r @uri; }
-upload_full_text() {
-  local entity_segment="$1"
-  [ -z "$entity_segment" ] && return
-  local upload_url="${ADMIN_BASE}/${entity_segment}/fullText/\$value"
-  local code
-  code=$(curl -sS -o /dev/null -w '%{http_code}' -X PUT "$upload_url" "${CURL_AUTH_ARGS[@]}" \
-    -H 'Content-Type: text/plain; charset=utf-8' --data-binary @"$TMPDIR/book.txt" || echo 0)
-  [ "$DEBUG" -eq 1 ] && echo "[debug] PUT $upload_url (fullText) -> HTTP $code" >&2
-  if ! [[ "$code" =~ ^2 ]]; then
-    echo "Warning: uploading fullText failed for $entity_segment (HTTP $code)" >&2
-  fi
-}
 
 # 1. Book existence check
 ENC_TITLE=$(urlenc "$TITLE")
@@ -70,32 +60,8 @@ if [ "$BOOK_SEARCH_CODE" = "200" ]; then
   if [ -n "$EXISTING_BOOK_ID" ]; then echo "Book already exists (ID=$EXISTING_BOOK_ID) — skipping create" >&2; exit 0; fi
 fi
 
-# 2. Author existence or create
-ENC_AUTHOR=$(urlenc "$AUTHOR_NAME")
-AUTHOR_SEARCH_URL="${ADMIN_BASE}/Authors?\$filter=name%20eq%20%27${ENC_AUTHOR}%27&\$top=5&\$format=json"
-[ "$DEBUG" -eq 1 ] && echo "[debug] GET $AUTHOR_SEARCH_URL" >&2
-AUTHOR_SEARCH_CODE=$(curl -sS --get "$AUTHOR_SEARCH_URL" "${CURL_AUTH_ARGS[@]}" -H 'Accept: application/json' -w '%{http_code}' -o "$TMPDIR/author_search.json" || echo 0)
-AUTHOR_ID=""
-if [ "$AUTHOR_SEARCH_CODE" = "200" ]; then
-  AUTHOR_COUNT=$(jq -r '.value | length' < "$TMPDIR/author_search.json" 2>/dev/null || echo 0)
-  [ "$DEBUG" -eq 1 ] && echo "[debug] Author search HTTP $AUTHOR_SEARCH_CODE, count=$AUTHOR_COUNT" >&2
-  AUTHOR_ID=$(jq -r '.value[0].ID // .value[0].id // empty' < "$TMPDIR/author_search.json" || true)
-  if [ -n "$AUTHOR_ID" ] && [ "$DEBUG" -eq 1 ]; then echo "[debug] Reusing existing author ID=$AUTHOR_ID" >&2; fi
-fi
-if [ -z "$AUTHOR_ID" ]; then
-  [ "$DEBUG" -eq 1 ] && echo "[debug] POST ${ADMIN_BASE}/Authors" >&2
-  AUTHOR_PAYLOAD=$(jq -nc --arg name "$AUTHOR_NAME" '{name: $name}')
-  AUTHOR_CREATE_CODE=$(curl -sS -X POST "${ADMIN_BASE}/Authors" "${CURL_AUTH_ARGS[@]}" -H 'Content-Type: application/json' -H 'Accept: application/json' -d "$AUTHOR_PAYLOAD" -o "$TMPDIR/author_create.json" -w '%{http_code}' || echo 0)
-  [ "$DEBUG" -eq 1 ] && echo "[debug] Author create HTTP $AUTHOR_CREATE_CODE" >&2
-  AUTHOR_ID=$(jq -r '.ID // .id // empty' < "$TMPDIR/author_create.json" || true)
-  [ -n "$AUTHOR_ID" ] && [ "$DEBUG" -eq 1 ] && echo "[debug] New author created ID=$AUTHOR_ID" >&2
-fi
-[ -z "$AUTHOR_ID" ] && { echo "Failed to locate or create Author. Response body:" >&2; sed 's/^/[resp] /' "$TMPDIR/author_create.json" >&2; exit 1; }
-
-echo "Author ID: $AUTHOR_ID" >&2
-
 #############################################
-# 3. Derive description & attempt Gutenberg genre via RDF
+# 2. Derive description & attempt Gutenberg genre via RDF
 #############################################
 # Description: first paragraph (>80 chars) or fallback first long line
 DESCR_RAW=""
@@ -166,57 +132,23 @@ else
   [ "$DEBUG" -eq 1 ] && echo "[debug] RDF fetch failed; skipping genre mapping" >&2
 fi
 
-# 4. Create Book
-BIND_PATH="/Authors('$AUTHOR_ID')"
-# Include author_ID field explicitly for consumers relying on raw foreign key
-# Build payload using files to avoid 'Argument list too long' for large texts
-# Stream payload: avoid huge command-line args by constructing JSON manually with jq escaping title only.
-ESC_TITLE=$(jq -Rn --arg t "$TITLE" '$t')
-ESC_AUTHOR_ID=$(jq -Rn --arg a "$AUTHOR_ID" '$a')
-ESC_BIND=$(jq -Rn --arg b "$BIND_PATH" '$b')
-ESC_DESCR=$(jq -Rn --arg d "$DESCR" '$d')
-BOOK_PAYLOAD_FILE="$TMPDIR/payload.json"
-cat > "$BOOK_PAYLOAD_FILE" <<EOF
-{
-  "title": $ESC_TITLE,
-  "descr": $ESC_DESCR,
-  "author_ID": $ESC_AUTHOR_ID,
-  "author@odata.bind": $ESC_BIND
-}
-EOF
-if [ -n "$GENRE_ID" ]; then
-  jq --arg gid "$GENRE_ID" --arg gbind "/Genres('$GENRE_ID')" '. + {genre_ID:$gid, "genre@odata.bind": $gbind}' "$BOOK_PAYLOAD_FILE" > "$BOOK_PAYLOAD_FILE.tmp" && mv "$BOOK_PAYLOAD_FILE.tmp" "$BOOK_PAYLOAD_FILE"
-fi
-[ "$DEBUG" -eq 1 ] && echo "[debug] POST ${ADMIN_BASE}/Books" >&2
-BOOK_CREATE_CODE=$(curl -sS -X POST "${ADMIN_BASE}/Books" "${CURL_AUTH_ARGS[@]}" -H 'Content-Type: application/json' -H 'Accept: application/json' -d @"$BOOK_PAYLOAD_FILE" -o "$TMPDIR/book_create.json" -w '%{http_code}' || echo 0)
-[ "$DEBUG" -eq 1 ] && echo "[debug] Book create HTTP $BOOK_CREATE_CODE" >&2
-BOOK_ID=$(jq -r '.ID // .id // empty' < "$TMPDIR/book_create.json" || true)
-if [ -z "$BOOK_ID" ]; then
-  echo "Warning: book created (HTTP $BOOK_CREATE_CODE) but ID not found in response" >&2
-  [ "$DEBUG" -eq 1 ] && sed 's/^/[resp] /' "$TMPDIR/book_create.json" >&2
-else
-  echo "Created Book ID: $BOOK_ID" >&2
-  # 4. Activate draft (draftPrepare) if we have a Book ID
-  BOOK_DRAFT_SEGMENT="Books(ID=${BOOK_ID},IsActiveEntity=false)"
-  upload_full_text "$BOOK_DRAFT_SEGMENT"
-  DRAFT_PREPARE_URL="${ADMIN_BASE}/${BOOK_DRAFT_SEGMENT}/AdminService.draftPrepare"
-  [ "$DEBUG" -eq 1 ] && echo "[debug] POST $DRAFT_PREPARE_URL" >&2
-  DRAFT_CODE=$(curl -sS -X POST "$DRAFT_PREPARE_URL" "${CURL_AUTH_ARGS[@]}" -H 'Accept: application/json' -o "$TMPDIR/book_draft_prepare.json" -w '%{http_code}' || echo 0)
-  [ "$DEBUG" -eq 1 ] && echo "[debug] draftPrepare HTTP $DRAFT_CODE" >&2
-  # Optionally show errors if not 2xx
-  if ! [[ "$DRAFT_CODE" =~ ^2 ]]; then
-    echo "Warning: draftPrepare failed (HTTP $DRAFT_CODE)" >&2
-    [ -s "$TMPDIR/book_draft_prepare.json" ] && sed 's/^/[resp] /' "$TMPDIR/book_draft_prepare.json" >&2
-  fi
-  # 5. Activate draft (draftActivate)
-  DRAFT_ACTIVATE_URL="${ADMIN_BASE}/${BOOK_DRAFT_SEGMENT}/AdminService.draftActivate"
-  [ "$DEBUG" -eq 1 ] && echo "[debug] POST $DRAFT_ACTIVATE_URL" >&2
-  ACTIVATE_CODE=$(curl -sS -X POST "$DRAFT_ACTIVATE_URL" "${CURL_AUTH_ARGS[@]}" -H 'Accept: application/json' -o "$TMPDIR/book_draft_activate.json" -w '%{http_code}' || echo 0)
-  [ "$DEBUG" -eq 1 ] && echo "[debug] draftActivate HTTP $ACTIVATE_CODE" >&2
-  if ! [[ "$ACTIVATE_CODE" =~ ^2 ]]; then
-    echo "Warning: draftActivate failed (HTTP $ACTIVATE_CODE)" >&2
-    [ -s "$TMPDIR/book_draft_activate.json" ] && sed 's/^/[resp] /' "$TMPDIR/book_draft_activate.json" >&2
-  fi
+# 3. Import book, the author is resolved by name and created if it is unknown
+# Build the NDJSON line with jq from files to avoid 'Argument list too long' for large texts
+BOOK_PAYLOAD_FILE="$TMPDIR/payload.ndjson"
+jq -nc --arg title "$TITLE" --arg descr "$DESCR" --arg author "$AUTHOR_NAME" --arg gid "$GENRE_ID" \
+  --rawfile text "$TMPDIR/book.txt" \
+  '{title: $title, descr: $descr, author: $author, fullText: $text} + (if $gid == "" then {} else {genre_ID: $gid} end)' \
+  > "$BOOK_PAYLOAD_FILE"
+INGESTION_URL="${SEEDING_BASE}/Ingestion/ndjson"
+[ "$DEBUG" -eq 1 ] && echo "[debug] PUT $INGESTION_URL" >&2
+IMPORT_CODE=$(curl -sS -X PUT "$INGESTION_URL" "${CURL_AUTH_ARGS[@]}" -H 'Content-Type: application/x-ndjson' --data-binary @"$BOOK_PAYLOAD_FILE" -D "$TMPDIR/import_headers.txt" -o "$TMPDIR/import.json" -w '%{http_code}' || echo 0)
+[ "$DEBUG" -eq 1 ] && echo "[debug] Import HTTP $IMPORT_CODE" >&2
+if ! [[ "$IMPORT_CODE" =~ ^2 ]]; then
+  echo "Failed to import book (HTTP $IMPORT_CODE). Response body:" >&2
+  sed 's/^/[resp] /' "$TMPDIR/import.json" >&2
+  exit 1
 fi
+# The import runs in the background, its ID is returned as message
+grep -i '^sap-messages:' "$TMPDIR/import_headers.txt" | sed 's/^[^:]*:[ ]*//' | jq -r '.[].message' >&2 || true
 
 echo "Done." >&2
@@ -7,72 +7,28 @@ import uuid
 import argparse
 
 # 1. Configuration
-CAP_SERVICE_URL = "http://localhost:8080/api/admin" # Using AdminService
+SEEDING_SERVICE_URL = "http://localhost:8080/api/seeding" # Using SeedingService bulk ingestion
 AUTH = ('admin', 'admin') # Basic Auth
 
-def get_or_create_author(name):
-    url = f"{CAP_SERVICE_URL}/Authors"
-    
-    # Check if author exists
-    try:
-        response = requests.get(url, params={"$search": name}, auth=AUTH)
-        if response.status_code == 200:
-            results = response.json().get('value', [])
-            if results:
-                print(f"Author '{name}' found.")
-                return results[0]['ID']
-    except Exception as e:
-        print(f"Error checking author: {e}")
-
-    # Create author
-    print(f"Creating author '{name}'...")
-    payload = {
-        "name": name
-    }
-    response = requests.post(url, json=payload, auth=AUTH)
-    if response.status_code == 201:
-        return response.json()['ID']
-    else:
-        raise Exception(f"Failed to create author (Status {response.status_code}): {response.text}")
-
-def create_book(title, author_id, text):
-    url = f"{CAP_SERVICE_URL}/Books"
+def ingest_book(title, author_name, text):
+    # One NDJSON line; the import resolves the author by name and creates it if it is unknown
+    url = f"{SEEDING_SERVICE_URL}/Ingestion/ndjson"
     payload = {
         "title": title,
-        "author_ID": author_id,
+        "author": author_name,
         "stock": 10,
         "price": 15.00,
         "currency_code": "USD",
         "fullText": text # Upload full text for backend processing
     }
-    response = requests.post(url, json=payload, auth=AUTH)
-    if response.status_code == 201:
-        book_data = response.json()
-        book_id = book_data['ID']
-        print(f"Book draft created with ID: {book_id}")
-
-        # Draft Activation Flow
-        draft_segment = f"Books(ID={book_id},IsActiveEntity=false)"
-        
-        # 1. draftPrepare
-        prepare_url = f"{CAP_SERVICE_URL}/{draft_segment}/AdminService.draftPrepare"
-        print(f"Preparing draft: {prepare_url}")
-        resp_prep = requests.post(prepare_url, json={}, auth=AUTH)
-        if not (200 <= resp_prep.status_code < 300):
-             print(f"Warning: draftPrepare failed: {resp_prep.status_code} {resp_prep.text}")
-
-        # 2. draftActivate
-        activate_url = f"{CAP_SERVICE_URL}/{draft_segment}/AdminService.draftActivate"
-        print(f"Activating draft: {activate_url}")
-        resp_act = requests.post(activate_url, json={}, auth=AUTH)
-        if 200 <= resp_act.status_code < 300:
-            print(f"Book '{title}' activated successfully.")
-            return book_id
-        else:
-             raise Exception(f"Failed to activate book (Status {resp_act.status_code}): {resp_act.text}")
+    body = (json.dumps(payload) + "\n").encode('utf-8')
+    response = requests.put(url, data=body, headers={"Content-Type": "application/x-ndjson"}, auth=AUTH)
+    if not (200 <= response.status_code < 300):
+        raise Exception(f"Failed to ingest book (Status {response.status_code}): {response.text}")
 
-    else:
-        raise Exception(f"Failed to create book (Status {response.status_code}): {response.text}")
+    # The import runs in the background, its ID is returned as message
+    for message in json.loads(response.headers.get('sap-messages', '[]')):
+        print(message.get('message'))
 
 def fetch_gutenberg_data(gutenberg_id):
     print(f"Fetching metadata for Gutenberg ID {gutenberg_id}...")
@@ -157,9 +113,8 @@ def main():
 
     # 4. Create Data
     try:
-        author_id = get_or_create_author(author_name)
-        book_id = create_book(title, author_id, full_text)
-        print("Book created successfully. Backend will handle chunking and embedding.")
+        ingest_book(title, author_name, full_text)
+        print("Book import started. Progress is shown in SeedingService BookImports.")
     except Exception as e:
         print(f"Error: {e}")
 
@@ -0,0 +1,132 @@
+package my.bookshop;
+
+import com.sap.cds.services.runtime.CdsRuntime;
+import jakarta.annotation.PreDestroy;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import my.bookshop.repository.bookshop.BookshopBooksRepository;
+import my.bookshop.rag.TenantContexts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Writes the average review rating of books to {@code Books.rating} once their reviews changed.
+ * <p>
+ * Review changes only mark the book as dirty. After {@code bookshop.ratings.flush-delay}, the averages of all dirty
+ * books of a tenant are recomputed with one grouped aggregate query over their reviews and written with one batched
+ * update, so a burst of reviews on the same book results in a single write. As the averages are read from the
+ * committed reviews, concurrent changes on other instances are never overwritten with stale values.
+ */
+@Component
+public class BookRatingAggregator {
+
+	private static final Logger logger = LoggerFactory.getLogger(BookRatingAggregator.class);
+
+	private final BookshopBooksRepository bookshopBooksRepository;
+	private final CdsRuntime runtime;
+	private final TenantContexts tenants;
+	private final Duration flushDelay;
+	private final Set<BookKey> dirty = ConcurrentHashMap.newKeySet();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "book-rating-flush");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public BookRatingAggregator(BookshopBooksRepository bookshopBooksRepository, CdsRuntime runtime,
+			TenantContexts tenants, @Value("${bookshop.ratings.flush-delay:500ms}") Duration flushDelay) {
+		this.bookshopBooksRepository = bookshopBooksRepository;
+		this.runtime = runtime;
+		this.tenants = tenants;
+		this.flushDelay = flushDelay;
+	}
+
+	public void reviewAdded(String bookId) {
+		markDirty(bookId);
+	}
+
+	public void reviewRemoved(String bookId) {
+		markDirty(bookId);
+	}
+
+	public void reviewChanged(String oldBookId, Integer oldRating, String newBookId, Integer newRating) {
+		if (Objects.equals(oldBookId, newBookId) && Objects.equals(oldRating, newRating)) {
+			return;
+		}
+		markDirty(oldBookId);
+		markDirty(newBookId);
+	}
+
+	/**
+	 * Must be called after the review change has been committed, as the flush reads the committed reviews.
+	 */
+	private void markDirty(String bookId) {
+		if (bookId == null) {
+			return;
+		}
+		dirty.add(new BookKey(tenants.currentTenant(), bookId));
+		scheduleFlush();
+	}
+
+	private void scheduleFlush() {
+		if (flushScheduled.compareAndSet(false, true)) {
+			scheduler.schedule(this::flush, flushDelay.toMillis(), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	void flush() {
+		flushScheduled.set(false);
+		Map<String, Set<String>> bookIdsByTenant = new HashMap<>();
+		for (BookKey key : Set.copyOf(dirty)) {
+			dirty.remove(key);
+			bookIdsByTenant.computeIfAbsent(key.tenant(), t -> new HashSet<>()).add(key.bookId());
+		}
+		bookIdsByTenant.forEach((tenant, bookIds) -> {
+			try {
+				tenants.runAsSystemUser(tenant, () -> {
+					runtime.changeSetContext().run(changeSet -> {
+						Map<String, Double> averages = bookshopBooksRepository.findAverageRatings(bookIds);
+						Map<String, BigDecimal> ratings = new HashMap<>();
+						for (String bookId : bookIds) {
+							Double average = averages.get(bookId);
+							// without average, the last review of the book was removed
+							ratings.put(bookId,
+									average == null ? BigDecimal.ZERO : RatingCalculator.roundRating(average));
+						}
+						bookshopBooksRepository.updateBookRatings(ratings);
+					});
+				});
+				logger.debug("Flushed ratings of {} books for tenant {}", bookIds.size(), tenant);
+			} catch (RuntimeException e) {
+				logger.warn("Failed to write ratings of {} books for tenant {}; retrying with the next flush.",
+						bookIds.size(), tenant, e);
+				bookIds.forEach(bookId -> dirty.add(new BookKey(tenant, bookId)));
+				scheduleFlush();
+			}
+		});
+	}
+
+	@PreDestroy
+	void shutdown() {
+		scheduler.shutdown();
+		if (!dirty.isEmpty()) {
+			flush();
+		}
+	}
+
+	private record BookKey(String tenant, String bookId) {
+	}
+}
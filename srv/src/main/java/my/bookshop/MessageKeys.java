@@ -13,6 +13,10 @@ public class MessageKeys {
 	public static final String REVIEW_ADDED = "review.added";
 	public static final String REVIEW_ADD_FORBIDDEN = "review.add.forbidden";
 	public static final String ORDER_EXCEEDS_STOCK = "order.exceeds.stock";
+	public static final String ORDER_INVALID_QUANTITY = "order.invalid.quantity";
 	public static final String BOOK_IMPORT_FAILED = "book.import.failed";
 	public static final String BOOK_IMPORT_INVALID_CSV = "book.import.invalid.csv";
+	public static final String BOOK_IMPORT_STARTED = "book.import.started";
+	public static final String CHAT_OVERLOADED = "chat.overloaded";
+	public static final String SIMILAR_BOOKS_INVALID_LIMIT = "similar.books.invalid.limit";
 }
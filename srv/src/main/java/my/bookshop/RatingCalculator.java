@@ -1,10 +1,15 @@
 package my.bookshop;
 
+import com.sap.cds.services.changeset.ChangeSetContext;
+import com.sap.cds.services.changeset.ChangeSetListener;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.OptionalDouble;
 import java.util.stream.Stream;
 import my.bookshop.repository.bookshop.BookshopBooksRepository;
+import my.bookshop.repository.bookshop.BookshopBooksRepository.RatingAggregate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
@@ -18,24 +23,73 @@ public class RatingCalculator {
 	@Autowired
 	private BookshopBooksRepository bookshopBooksRepository;
 
+	@Autowired
+	private BookRatingAggregator ratingAggregator;
+
 	/**
 	 * Initializes the ratings for all existing books based on their reviews.
+	 * <p>
+	 * Uses one grouped aggregate query over all reviews and writes the changed ratings with one batched update.
+	 *
+	 * @return number of books whose rating was updated
 	 */
-	public void initBookRatings() {
-		bookshopBooksRepository.findAllBookIds().forEach(this::setBookRating);
+	public int initBookRatings() {
+		Map<String, RatingAggregate> aggregates = bookshopBooksRepository.findRatingAggregates();
+		Map<String, BigDecimal> changed = new HashMap<>();
+		bookshopBooksRepository.findAllBookRatings().forEach((bookId, current) -> {
+			RatingAggregate aggregate = aggregates.get(bookId);
+			BigDecimal rating = aggregate == null ? BigDecimal.ZERO : getAvgRating(aggregate.sum(), aggregate.count());
+			if (current == null || current.compareTo(rating) != 0) {
+				changed.put(bookId, rating);
+			}
+		});
+		bookshopBooksRepository.updateBookRatings(changed);
+		return changed.size();
 	}
 
 	/**
-	 * Sets the average rating for the given book.
+	 * Updates the rating of the reviewed book once the change set has been committed.
 	 *
+	 * @param changeSet the change set the review was created in
 	 * @param bookId
 	 */
-	public void setBookRating(String bookId) {
-		var reviews = bookshopBooksRepository.findReviewsForBook(bookId);
-		Stream<Double> ratings = reviews.stream().map(r -> r.getRating().doubleValue());
-		BigDecimal rating = getAvgRating(ratings);
+	public void reviewAdded(ChangeSetContext changeSet, String bookId) {
+		afterCommit(changeSet, () -> ratingAggregator.reviewAdded(bookId));
+	}
+
+	/**
+	 * Updates the ratings of the books of a changed review once the change set has been committed.
+	 */
+	public void reviewChanged(ChangeSetContext changeSet, String oldBookId, Integer oldRating, String newBookId,
+			Integer newRating) {
+		afterCommit(changeSet, () -> ratingAggregator.reviewChanged(oldBookId, oldRating, newBookId, newRating));
+	}
+
+	/**
+	 * Updates the rating of the book of a deleted review once the change set has been committed.
+	 */
+	public void reviewRemoved(ChangeSetContext changeSet, String bookId) {
+		afterCommit(changeSet, () -> ratingAggregator.reviewRemoved(bookId));
+	}
+
+	private void afterCommit(ChangeSetContext changeSet, Runnable action) {
+		changeSet.register(new ChangeSetListener() {
+
+			@Override
+			public void afterClose(boolean completed) {
+				if (completed) {
+					action.run();
+				}
+			}
 
-		bookshopBooksRepository.updateBookRating(bookId, rating);
+		});
+	}
+
+	static BigDecimal getAvgRating(long sum, long count) {
+		if (count <= 0) {
+			return BigDecimal.ZERO;
+		}
+		return roundRating((double) sum / count);
 	}
 
 	static BigDecimal getAvgRating(Stream<Double> ratings) {
@@ -43,6 +97,13 @@ public class RatingCalculator {
 		if (!avg.isPresent()) {
 			return BigDecimal.ZERO;
 		}
-		return BigDecimal.valueOf(avg.getAsDouble()).setScale(1, RoundingMode.HALF_UP);
+		return roundRating(avg.getAsDouble());
+	}
+
+	/**
+	 * Rounds an average rating to the one decimal stored in {@code Books.rating}.
+	 */
+	static BigDecimal roundRating(double average) {
+		return BigDecimal.valueOf(average).setScale(1, RoundingMode.HALF_UP);
 	}
 }
@@ -3,7 +3,10 @@ package my.bookshop.handlers;
 import cds.gen.adminservice.AdminService_;
 import cds.gen.adminservice.Books;
 import cds.gen.adminservice.Books_;
+import cds.gen.adminservice.ChunkQuantizers;
+import cds.gen.adminservice.EmbeddingRebuildJobs;
 import cds.gen.adminservice.RebuildEmbeddingsContext;
+import cds.gen.adminservice.TrainChunkQuantizerContext;
 import com.sap.cds.services.cds.CqnService;
 import com.sap.cds.services.handler.EventHandler;
 import com.sap.cds.services.handler.annotations.After;
@@ -12,6 +15,8 @@ import com.sap.cds.services.handler.annotations.ServiceName;
 import java.util.List;
 import java.util.function.Consumer;
 import my.bookshop.rag.BookEmbeddingService;
+import my.bookshop.rag.ChunkQuantizerTrainer;
+import my.bookshop.rag.EmbeddingRebuildRunner;
 import org.springframework.stereotype.Component;
 
 @Component
@@ -19,9 +24,14 @@ import org.springframework.stereotype.Component;
 class AdminBookEmbeddingHandler implements EventHandler {
 
 	private final BookEmbeddingService embeddingService;
+	private final EmbeddingRebuildRunner rebuildRunner;
+	private final ChunkQuantizerTrainer quantizerTrainer;
 
-	AdminBookEmbeddingHandler(BookEmbeddingService embeddingService) {
+	AdminBookEmbeddingHandler(BookEmbeddingService embeddingService, EmbeddingRebuildRunner rebuildRunner,
+			ChunkQuantizerTrainer quantizerTrainer) {
 		this.embeddingService = embeddingService;
+		this.rebuildRunner = rebuildRunner;
+		this.quantizerTrainer = quantizerTrainer;
 	}
 
 	@After(event = CqnService.EVENT_CREATE, entity = Books_.CDS_NAME)
@@ -39,11 +49,21 @@ class AdminBookEmbeddingHandler implements EventHandler {
 		deleteEmbeddings(books);
 	}
 
+	/**
+	 * Starts or resumes a rebuild of the index in the background; its progress is readable from the returned job.
+	 */
 	@On(event = RebuildEmbeddingsContext.CDS_NAME)
 	public void rebuildEmbeddings(RebuildEmbeddingsContext context) {
-		embeddingService.deleteAllEmbeddings();
-		embeddingService.rebuildAll();
-		context.setCompleted();
+		context.setResult(EmbeddingRebuildJobs.of(rebuildRunner.start()));
+	}
+
+	/**
+	 * Trains the product-quantization codebook of the active generation in the background; its progress is readable
+	 * from the returned quantizer.
+	 */
+	@On(event = TrainChunkQuantizerContext.CDS_NAME)
+	public void trainChunkQuantizer(TrainChunkQuantizerContext context) {
+		context.setResult(ChunkQuantizers.of(quantizerTrainer.start()));
 	}
 
 	private void reindexBooks(List<Books> books) {
@@ -14,6 +14,7 @@ import cds.gen.adminservice.OrderItems_;
 import cds.gen.adminservice.Orders;
 import cds.gen.adminservice.Upload;
 import cds.gen.adminservice.Upload_;
+import cds.gen.my.bookshop.BookImports;
 import com.sap.cds.ql.Select;
 import com.sap.cds.ql.Update;
 import com.sap.cds.ql.cqn.CqnAnalyzer;
@@ -32,21 +33,23 @@ import com.sap.cds.services.handler.annotations.Before;
 import com.sap.cds.services.handler.annotations.On;
 import com.sap.cds.services.handler.annotations.ServiceName;
 import com.sap.cds.services.messages.Messages;
-import java.io.BufferedReader;
-import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.stream.Stream;
 import jakarta.annotation.PostConstruct;
 import my.bookshop.MessageKeys;
-import my.bookshop.rag.BookEmbeddingService;
 import my.bookshop.repository.bookshop.BookshopBooksRepository;
 import my.bookshop.repository.bookshop.OrderItemsRepository;
+import my.bookshop.repository.bookshop.OrderItemsRepository.OrderItemSnapshot;
+import my.bookshop.service.BookImportService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
@@ -69,7 +72,7 @@ class AdminServiceHandler implements EventHandler {
 	private CdsModel model;
 
 	@Autowired
-	private BookEmbeddingService embeddingService;
+	private BookImportService bookImportService;
 
 	@Autowired
 	private BookshopBooksRepository bookshopBooksRepository;
@@ -89,74 +92,113 @@ class AdminServiceHandler implements EventHandler {
 	 * 1. Check Order quantity for each Item and return a message if quantity is empty or <= 0
 	 * 2. Check Order quantity for each Item is available, return message if the stock is too low
 	 *
+	 * All referenced order items and books are read with one query each. The quantities to take from or return to
+	 * the stock of each book are summed up in memory (the same book may appear on several items) and applied as
+	 * deltas with one batched conditional update, so concurrent orders can never oversell a book.
+	 *
 	 * @param orders
 	 */
 	@Before(event = { CqnService.EVENT_CREATE, CqnService.EVENT_UPSERT, CqnService.EVENT_UPDATE })
 	public void beforeCreateOrder(Stream<Orders> orders, EventContext context) {
-		orders.forEach(order -> {
+		List<Orders> orderList = orders.toList();
+
+		// previous state of items that already exist, to calculate the actual quantity difference
+		Set<String> itemIds = new HashSet<>();
+		orderList.forEach(order -> validItems(order).forEach(item -> {
+			if (item.getId() != null) {
+				itemIds.add(item.getId());
+			}
+		}));
+		Map<String, OrderItemSnapshot> previousItems = orderItemsRepository.findQuantityAndBooks(itemIds);
+
+		Set<String> bookIds = new HashSet<>();
+		orderList.forEach(order -> validItems(order).forEach(item -> {
+			bookIds.add(item.getBookId());
+			OrderItemSnapshot previous = previousItems.get(item.getId());
+			if (previous != null && previous.getBookId() != null) {
+				bookIds.add(previous.getBookId());
+			}
+		}));
+		Map<String, cds.gen.my.bookshop.Books> books = bookshopBooksRepository.findStockAndPrices(bookIds);
+		Map<String, Integer> stocks = new HashMap<>();
+		books.forEach((id, book) -> stocks.put(id, book.getStock() == null ? 0 : book.getStock()));
+		// quantity taken from the stock per book, negative if returned
+		Map<String, Integer> taken = new HashMap<>();
+
+		orderList.forEach(order -> {
 			// reset total
 			order.setTotal(BigDecimal.valueOf(0));
-			if(order.getItems() != null) {
-				order.getItems().forEach(orderItem -> {
-					// validation of the Order creation request
-					Integer quantity = orderItem.getQuantity();
-					String bookId = orderItem.getBookId();
-
-					if(quantity == null || quantity <= 0 || bookId == null) {
-						return; // follow up validations rely on these
-					}
-
-					// calculate the actual quantity difference, taking into account possible book changes
-					int previousQuantity = 0;
-					String previousBookId = null;
-					if (orderItem.getId() != null) {
-						var existingItem = orderItemsRepository.findQuantityAndBook(orderItem.getId());
-						if (existingItem.isPresent()) {
-							var snapshot = existingItem.get();
-							previousQuantity = snapshot.getQuantity() != null ? snapshot.getQuantity() : 0;
-							previousBookId = snapshot.getBookId();
-						}
+			validItems(order).forEach(orderItem -> {
+				Integer quantity = orderItem.getQuantity();
+				String bookId = orderItem.getBookId();
+
+				// calculate the actual quantity difference, taking into account possible book changes
+				int previousQuantity = 0;
+				String previousBookId = null;
+				OrderItemSnapshot snapshot = orderItem.getId() == null ? null : previousItems.get(orderItem.getId());
+				if (snapshot != null) {
+					previousQuantity = snapshot.getQuantity() != null ? snapshot.getQuantity() : 0;
+					previousBookId = snapshot.getBookId();
+				}
+
+				int diffQuantity;
+				if (previousBookId != null && !previousBookId.equals(bookId)) {
+					// book has changed: restore stock on previous book and reserve full quantity on new book
+					if (previousQuantity > 0 && stocks.containsKey(previousBookId)) {
+						stocks.merge(previousBookId, previousQuantity, Integer::sum);
+						taken.merge(previousBookId, -previousQuantity, Integer::sum);
 					}
+					diffQuantity = quantity;
+				} else {
+					// only quantity changed (or new item)
+					diffQuantity = quantity - previousQuantity;
+				}
+
+				// check if enough books are available
+				cds.gen.my.bookshop.Books book = books.get(bookId);
+				if (book == null) {
+					return;
+				}
+				int stock = stocks.get(bookId);
+				if (diffQuantity > 0 && stock < diffQuantity) {
+					// Tip: you can have localized messages and use parameters in your messages
+					messages.error(MessageKeys.BOOK_REQUIRE_STOCK, stock)
+						.target(ORDERS, o -> o.Items(i -> i.ID().eq(orderItem.getId()).and(i.IsActiveEntity().eq(orderItem.getIsActiveEntity()))).quantity());
+					return; // no need to update follow-up values with invalid quantity / stock
+				}
+
+				// reserve the new stock
+				stocks.put(bookId, stock - diffQuantity);
+				taken.merge(bookId, diffQuantity, Integer::sum);
+
+				// update the amount
+				BigDecimal updatedAmount = book.getPrice().multiply(BigDecimal.valueOf(quantity));
+				orderItem.setAmount(updatedAmount);
+
+				// update the total
+				order.setTotal(order.getTotal().add(updatedAmount));
+			});
+		});
 
-					int diffQuantity;
-					if (previousBookId != null && !previousBookId.equals(bookId)) {
-						// book has changed: restore stock on previous book and reserve full quantity on new book
-						int oldQuantity = previousQuantity;
-						if (oldQuantity > 0) {
-							bookshopBooksRepository.findBookStock(previousBookId).ifPresent(oldBook -> {
-								oldBook.setStock(oldBook.getStock() + oldQuantity);
-								bookshopBooksRepository.updateBook(oldBook);
-							});
-						}
-						diffQuantity = quantity;
-					} else {
-						// only quantity changed (or new item)
-						diffQuantity = quantity - previousQuantity;
-					}
+		taken.values().removeIf(quantity -> quantity == 0);
+		Set<String> tooLow = bookshopBooksRepository.takeStocks(taken);
+		if (!tooLow.isEmpty()) {
+			// another order took the stock after it was read
+			throw new ServiceException(ErrorStatuses.CONFLICT, MessageKeys.ORDER_EXCEEDS_STOCK,
+					taken.get(tooLow.iterator().next()));
+		}
+	}
 
-					// check if enough books are available
-					bookshopBooksRepository.findBookStockAndPrice(bookId).ifPresent(book -> {
-						if (diffQuantity > 0 && book.getStock() < diffQuantity) {
-							// Tip: you can have localized messages and use parameters in your messages
-							messages.error(MessageKeys.BOOK_REQUIRE_STOCK, book.getStock())
-								.target(ORDERS, o -> o.Items(i -> i.ID().eq(orderItem.getId()).and(i.IsActiveEntity().eq(orderItem.getIsActiveEntity()))).quantity());
-							return; // no need to update follow-up values with invalid quantity / stock
-						}
-
-						// update the book with the new stock
-						book.setStock(book.getStock() - diffQuantity);
-						bookshopBooksRepository.updateBook(book);
-
-						// update the amount
-						BigDecimal updatedAmount = book.getPrice().multiply(BigDecimal.valueOf(quantity));
-						orderItem.setAmount(updatedAmount);
-
-						// update the total
-						order.setTotal(order.getTotal().add(updatedAmount));
-					});
-				});
-			}
-		});
+	/**
+	 * @return the items of the order that carry enough data for stock validation
+	 */
+	private Stream<OrderItems> validItems(Orders order) {
+		if (order.getItems() == null) {
+			return Stream.empty();
+		}
+		// follow up validations rely on these
+		return order.getItems().stream()
+				.filter(item -> item.getQuantity() != null && item.getQuantity() > 0 && item.getBookId() != null);
 	}
 
 	/*
@@ -279,7 +321,8 @@ class AdminServiceHandler implements EventHandler {
 	}
 
 	/**
-	 * Handles CSV uploads with book data
+	 * Handles CSV uploads with book data. The rows are imported and embedded in the background, the import progress
+	 * can be followed via the BookImports entity.
 	 * @param context
 	 * @param csv
 	 */
@@ -287,31 +330,9 @@ class AdminServiceHandler implements EventHandler {
 	public List<Upload> addBooksViaCsv(CdsUpdateEventContext context, Upload upload) {
 		InputStream is = upload.getCsv();
 		if (is != null) {
-			try (BufferedReader br = new BufferedReader(new InputStreamReader(is))) {
-				br.lines().skip(1).forEach((line) -> {
-					String[] p = line.split(";", -1);
-					cds.gen.my.bookshop.Books book = cds.gen.my.bookshop.Books.create();
-					book.setId(p[0]);
-					book.setTitle(p[1]);
-					book.setDescr(p[2]);
-					book.setAuthorId(p[3]);
-					book.setStock(Integer.valueOf(p[4]).intValue());
-					book.setPrice(BigDecimal.valueOf(Double.valueOf(p[5])));
-					book.setCurrencyCode(p[6]);
-					book.setGenreId(String.valueOf(p[7]));
-					book.setFullText(p[8]);
-
-					// separate transaction per line
-					context.getCdsRuntime().changeSetContext().run(ctx -> {
-						bookshopBooksRepository.upsertBook(book);
-						embeddingService.reindexBook(book.getId());
-					});
-				});
-			} catch (IOException e) {
-				throw new ServiceException(ErrorStatuses.SERVER_ERROR, MessageKeys.BOOK_IMPORT_FAILED, e);
-			} catch (IndexOutOfBoundsException e) {
-				throw new ServiceException(ErrorStatuses.SERVER_ERROR, MessageKeys.BOOK_IMPORT_INVALID_CSV, e);
-			}
+			BookImports bookImport = bookImportService.importCsv(is);
+			upload.setImportId(bookImport.getId());
+			messages.info(MessageKeys.BOOK_IMPORT_STARTED, bookImport.getId());
 		}
 		return Arrays.asList(upload);
 	}
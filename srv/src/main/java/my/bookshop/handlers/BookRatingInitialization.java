@@ -1,31 +1,58 @@
 package my.bookshop.handlers;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
 
+import com.sap.cds.services.EventContext;
 import com.sap.cds.services.application.ApplicationLifecycleService;
 import com.sap.cds.services.handler.EventHandler;
 import com.sap.cds.services.handler.annotations.After;
 import com.sap.cds.services.handler.annotations.ServiceName;
+import com.sap.cds.services.runtime.CdsRuntime;
 
 import my.bookshop.RatingCalculator;
+import my.bookshop.health.RatingInitializationHealthIndicator;
 
 /**
  * Initializes the book ratings based on their review ratings.
+ * <p>
+ * The initialization runs in a background thread so it does not delay startup; readiness is reported through
+ * {@link RatingInitializationHealthIndicator} until it has completed.
  */
 @Component
 @Profile("default")
 @ServiceName(ApplicationLifecycleService.DEFAULT_NAME)
 public class BookRatingInitialization implements EventHandler {
 
+	private static final Logger logger = LoggerFactory.getLogger(BookRatingInitialization.class);
+
 	private RatingCalculator ratingCalculator;
+	private RatingInitializationHealthIndicator readiness;
 
-	BookRatingInitialization(RatingCalculator ratingCalculator) {
+	BookRatingInitialization(RatingCalculator ratingCalculator, RatingInitializationHealthIndicator readiness) {
 		this.ratingCalculator = ratingCalculator;
+		this.readiness = readiness;
 	}
 
 	@After(event = ApplicationLifecycleService.EVENT_APPLICATION_PREPARED)
-	public void initBookRatings() {
-		this.ratingCalculator.initBookRatings();
+	public void initBookRatings(EventContext context) {
+		CdsRuntime runtime = context.getCdsRuntime();
+		readiness.markRunning();
+		Thread.ofPlatform().name("book-rating-init").daemon().start(() -> {
+			try {
+				int updated = runtime.requestContext().systemUserProvider().run(ctx -> {
+					return runtime.changeSetContext().run(changeSet -> {
+						return this.ratingCalculator.initBookRatings();
+					});
+				});
+				logger.info("Initialized ratings, {} books updated", updated);
+				readiness.markCompleted(updated);
+			} catch (RuntimeException e) {
+				logger.error("Failed to initialize book ratings", e);
+				readiness.markFailed(e);
+			}
+		});
 	}
 }
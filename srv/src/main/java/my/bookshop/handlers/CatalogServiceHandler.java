@@ -2,8 +2,10 @@ package my.bookshop.handlers;
 
 import cds.gen.catalogservice.Books;
 import cds.gen.catalogservice.BooksAddReviewContext;
+import cds.gen.catalogservice.BooksSimilarBooksContext;
 import cds.gen.catalogservice.Books_;
 import cds.gen.catalogservice.CatalogService_;
+import cds.gen.catalogservice.ChatAutoContext;
 import cds.gen.catalogservice.ChatContext;
 import cds.gen.catalogservice.ChatFtContext;
 import cds.gen.catalogservice.ChatResult;
@@ -16,9 +18,11 @@ import com.sap.cds.services.handler.annotations.After;
 import com.sap.cds.services.handler.annotations.Before;
 import com.sap.cds.services.handler.annotations.On;
 import com.sap.cds.services.handler.annotations.ServiceName;
+import com.sap.cds.services.request.UserInfo;
 import java.util.List;
 import java.util.stream.Stream;
 import my.bookshop.service.CatalogBusinessService;
+import my.bookshop.service.ChatAdmissionController;
 import org.springframework.stereotype.Component;
 
 @Component
@@ -26,9 +30,11 @@ import org.springframework.stereotype.Component;
 class CatalogServiceHandler implements EventHandler {
 
 	private final CatalogBusinessService catalogService;
+	private final ChatAdmissionController chatAdmission;
 
-	CatalogServiceHandler(CatalogBusinessService catalogService) {
+	CatalogServiceHandler(CatalogBusinessService catalogService, ChatAdmissionController chatAdmission) {
 		this.catalogService = catalogService;
+		this.chatAdmission = chatAdmission;
 	}
 
 	@Before(entity = Books_.CDS_NAME)
@@ -46,6 +52,11 @@ class CatalogServiceHandler implements EventHandler {
 		return catalogService.addReview(ref, context);
 	}
 
+	@On
+	public void onSimilarBooks(BooksSimilarBooksContext context) {
+		context.setResult(catalogService.similarBooks(context));
+	}
+
 	@After(entity = Books_.CDS_NAME)
 	public void afterAddReview(BooksAddReviewContext context) {
 		catalogService.updateRatingAfterReview(context);
@@ -83,13 +94,30 @@ class CatalogServiceHandler implements EventHandler {
 
 	@On
 	public void onChat(ChatContext context) {
-		ChatResult result = catalogService.handleChat(context);
+		ChatResult result = chatAdmission.admit(authenticatedUser(context.getUserInfo()),
+				() -> catalogService.handleChat(context), CatalogServiceHandler::isDegraded);
 		context.setResult(result);
 	}
 
 	@On
 	public void onChatFt(ChatFtContext context) {
-		ChatResult result = catalogService.handleChatFt(context);
+		ChatResult result = chatAdmission.admit(authenticatedUser(context.getUserInfo()),
+				() -> catalogService.handleChatFt(context), CatalogServiceHandler::isDegraded);
 		context.setResult(result);
 	}
+
+	@On
+	public void onChatAuto(ChatAutoContext context) {
+		ChatResult result = chatAdmission.admit(authenticatedUser(context.getUserInfo()),
+				() -> catalogService.handleChatAuto(context), CatalogServiceHandler::isDegraded);
+		context.setResult(result);
+	}
+
+	private static String authenticatedUser(UserInfo user) {
+		return user.isAuthenticated() ? user.getName() : null;
+	}
+
+	private static boolean isDegraded(ChatResult result) {
+		return Boolean.TRUE.equals(result.getDegraded());
+	}
 }
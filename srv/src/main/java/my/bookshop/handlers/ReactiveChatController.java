@@ -0,0 +1,55 @@
+package my.bookshop.handlers;
+
+import cds.gen.catalogservice.ChatResult;
+import com.sap.cds.services.ServiceException;
+import java.security.Principal;
+import java.util.Map;
+import my.bookshop.service.ChatAdmissionController;
+import my.bookshop.service.ChatAdmissionController.Permit;
+import my.bookshop.service.ReactiveChatService;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Mono;
+
+/**
+ * Non-blocking variant of the {@code chat} action of the catalog service. The request thread is released while the
+ * model works, and the reply is written when the pipeline completes.
+ * <p>
+ * Requests are admitted without waiting: if no permit is free, the request is rejected with 429 right away.
+ */
+@RestController
+@RequestMapping("/rest/browse")
+class ReactiveChatController {
+
+	private final ReactiveChatService chatService;
+	private final ChatAdmissionController chatAdmission;
+
+	ReactiveChatController(ReactiveChatService chatService, ChatAdmissionController chatAdmission) {
+		this.chatService = chatService;
+		this.chatAdmission = chatAdmission;
+	}
+
+	@PostMapping("/chat")
+	public Mono<ChatResult> chat(@RequestBody ChatRequest request, Principal principal) {
+		Permit permit = chatAdmission.tryAcquire(principal == null ? null : principal.getName());
+		// deferred, so a pipeline that fails to assemble ends as error and releases the permit as well; Spring MVC
+		// subscribes on the request thread, which the service needs
+		return Mono.defer(() -> chatService.chat(request.message(), request.history(), request.conversationId()))
+				.doOnSuccess(result -> permit.release(result == null || Boolean.TRUE.equals(result.getDegraded())))
+				.doOnError(e -> permit.release(true))
+				.doOnCancel(() -> permit.release(false));
+	}
+
+	@ExceptionHandler(ServiceException.class)
+	ResponseEntity<Map<String, Object>> onServiceException(ServiceException e) {
+		return ResponseEntity.status(e.getErrorStatus().getHttpStatus())
+				.body(Map.of("error", Map.of("code", e.getErrorStatus().getCodeString(), "message", e.getMessage())));
+	}
+
+	record ChatRequest(String message, String history, String conversationId) {
+	}
+}
@@ -0,0 +1,102 @@
+package my.bookshop.handlers;
+
+import cds.gen.my.bookshop.Reviews;
+import cds.gen.reviewservice.ReviewService_;
+import cds.gen.reviewservice.Reviews_;
+import com.sap.cds.ql.Select;
+import com.sap.cds.ql.cqn.CqnAnalyzer;
+import com.sap.cds.ql.cqn.CqnDelete;
+import com.sap.cds.ql.cqn.CqnUpdate;
+import com.sap.cds.services.EventContext;
+import com.sap.cds.services.cds.CdsDeleteEventContext;
+import com.sap.cds.services.cds.CdsUpdateEventContext;
+import com.sap.cds.services.cds.CqnService;
+import com.sap.cds.services.handler.EventHandler;
+import com.sap.cds.services.handler.annotations.After;
+import com.sap.cds.services.handler.annotations.Before;
+import com.sap.cds.services.handler.annotations.ServiceName;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import my.bookshop.RatingCalculator;
+import my.bookshop.repository.bookshop.BookshopBooksRepository;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps book ratings up to date when reviews are created, changed or deleted through the Review Service.
+ */
+@Component
+@ServiceName(ReviewService_.CDS_NAME)
+class ReviewServiceRatingHandler implements EventHandler {
+
+	private static final String PREVIOUS_REVIEWS = "bookshop.previousReviews";
+
+	private final RatingCalculator ratingCalculator;
+	private final BookshopBooksRepository bookshopBooksRepository;
+	private final CqnAnalyzer analyzer;
+
+	ReviewServiceRatingHandler(RatingCalculator ratingCalculator, BookshopBooksRepository bookshopBooksRepository,
+			CqnAnalyzer analyzer) {
+		this.ratingCalculator = ratingCalculator;
+		this.bookshopBooksRepository = bookshopBooksRepository;
+		this.analyzer = analyzer;
+	}
+
+	@Before(event = CqnService.EVENT_UPDATE, entity = Reviews_.CDS_NAME)
+	public void beforeUpdateReviews(CdsUpdateEventContext context, List<cds.gen.reviewservice.Reviews> reviews) {
+		CqnUpdate update = context.getCqn();
+		Set<String> ids = new HashSet<>();
+		reviews.stream().map(cds.gen.reviewservice.Reviews::getId).filter(id -> id != null).forEach(ids::add);
+		Object targetId = analyzer.analyze(update).targetKeys().get(Reviews.ID);
+		if (targetId != null) {
+			ids.add(targetId.toString());
+		}
+		if (!ids.isEmpty()) {
+			context.put(PREVIOUS_REVIEWS, bookshopBooksRepository.findReviews(Select.from(update.ref())
+					.columns(Reviews.ID, Reviews.BOOK_ID, Reviews.RATING)
+					.where(r -> r.get(Reviews.ID).in(List.copyOf(ids)))));
+		}
+	}
+
+	@Before(event = CqnService.EVENT_DELETE, entity = Reviews_.CDS_NAME)
+	public void beforeDeleteReviews(CdsDeleteEventContext context) {
+		CqnDelete delete = context.getCqn();
+		Select<?> select = Select.from(delete.ref()).columns(Reviews.ID, Reviews.BOOK_ID, Reviews.RATING);
+		delete.where().ifPresent(select::where);
+		context.put(PREVIOUS_REVIEWS, bookshopBooksRepository.findReviews(select));
+	}
+
+	@After(event = CqnService.EVENT_CREATE, entity = Reviews_.CDS_NAME)
+	public void afterCreateReviews(EventContext context, List<cds.gen.reviewservice.Reviews> reviews) {
+		reviews.forEach(review -> ratingCalculator.reviewAdded(context.getChangeSetContext(), review.getBookId()));
+	}
+
+	@After(event = CqnService.EVENT_UPDATE, entity = Reviews_.CDS_NAME)
+	public void afterUpdateReviews(EventContext context, List<cds.gen.reviewservice.Reviews> reviews) {
+		Map<String, cds.gen.reviewservice.Reviews> updated = reviews.stream()
+				.filter(review -> review.getId() != null)
+				.collect(Collectors.toMap(cds.gen.reviewservice.Reviews::getId, Function.identity(), (a, b) -> b));
+		previousReviews(context).forEach(previous -> {
+			cds.gen.reviewservice.Reviews current = updated.get(previous.getId());
+			String bookId = current == null || current.getBookId() == null ? previous.getBookId() : current.getBookId();
+			Integer rating = current == null || current.getRating() == null ? previous.getRating() : current.getRating();
+			ratingCalculator.reviewChanged(context.getChangeSetContext(), previous.getBookId(), previous.getRating(),
+					bookId, rating);
+		});
+	}
+
+	@After(event = CqnService.EVENT_DELETE, entity = Reviews_.CDS_NAME)
+	public void afterDeleteReviews(EventContext context) {
+		previousReviews(context).forEach(previous -> ratingCalculator.reviewRemoved(context.getChangeSetContext(),
+				previous.getBookId()));
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<Reviews> previousReviews(EventContext context) {
+		Object previous = context.get(PREVIOUS_REVIEWS);
+		return previous == null ? List.of() : (List<Reviews>) previous;
+	}
+}
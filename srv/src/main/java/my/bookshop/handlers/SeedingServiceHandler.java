@@ -0,0 +1,42 @@
+package my.bookshop.handlers;
+
+import cds.gen.my.bookshop.BookImports;
+import cds.gen.seedingservice.Ingestion;
+import cds.gen.seedingservice.SeedingService_;
+import com.sap.cds.services.cds.CdsUpdateEventContext;
+import com.sap.cds.services.handler.EventHandler;
+import com.sap.cds.services.handler.annotations.On;
+import com.sap.cds.services.handler.annotations.ServiceName;
+import com.sap.cds.services.messages.Messages;
+import java.io.InputStream;
+import java.util.List;
+import my.bookshop.MessageKeys;
+import my.bookshop.service.BookImportService;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bulk ingestion of books and authors from an NDJSON stream, replacing one request per book and author lookup.
+ */
+@Component
+@ServiceName(SeedingService_.CDS_NAME)
+class SeedingServiceHandler implements EventHandler {
+
+	private final BookImportService bookImportService;
+	private final Messages messages;
+
+	SeedingServiceHandler(BookImportService bookImportService, Messages messages) {
+		this.bookImportService = bookImportService;
+		this.messages = messages;
+	}
+
+	@On
+	public List<Ingestion> ingest(CdsUpdateEventContext context, Ingestion ingestion) {
+		InputStream ndjson = ingestion.getNdjson();
+		if (ndjson != null) {
+			BookImports bookImport = bookImportService.importNdjson(ndjson);
+			ingestion.setImportId(bookImport.getId());
+			messages.info(MessageKeys.BOOK_IMPORT_STARTED, bookImport.getId());
+		}
+		return List.of(ingestion);
+	}
+}
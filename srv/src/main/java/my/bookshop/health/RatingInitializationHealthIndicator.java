@@ -0,0 +1,46 @@
+package my.bookshop.health;
+
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+/**
+ * Reports the book rating initialization, which runs in the background after startup.
+ * <p>
+ * Part of the readiness group, so the application only receives traffic once ratings are consistent.
+ */
+@Component("ratings")
+public class RatingInitializationHealthIndicator implements HealthIndicator {
+
+	private enum State {
+		NOT_STARTED, RUNNING, COMPLETED, FAILED
+	}
+
+	private volatile State state = State.NOT_STARTED;
+	private volatile int updatedBooks;
+	private volatile Exception failure;
+
+	public void markRunning() {
+		state = State.RUNNING;
+	}
+
+	public void markCompleted(int updatedBooks) {
+		this.updatedBooks = updatedBooks;
+		state = State.COMPLETED;
+	}
+
+	public void markFailed(Exception failure) {
+		this.failure = failure;
+		state = State.FAILED;
+	}
+
+	@Override
+	public Health health() {
+		return switch (state) {
+			case NOT_STARTED -> Health.up().build();
+			case RUNNING -> Health.outOfService().withDetail("ratings", "initializing").build();
+			case COMPLETED -> Health.up().withDetail("updatedBooks", updatedBooks).build();
+			case FAILED -> Health.down(failure).build();
+		};
+	}
+}
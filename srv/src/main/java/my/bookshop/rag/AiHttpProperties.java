@@ -0,0 +1,117 @@
+package my.bookshop.rag;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Connection pool and timeouts of the HTTP transport shared by all AI clients, see {@link AiHttpTransport}.
+ */
+@Component
+@ConfigurationProperties(prefix = "rag.http")
+public class AiHttpProperties {
+
+	private int maxConnectionsPerHost = 100;
+	private int maxPendingAcquires = 1000;
+	private Duration pendingAcquireTimeout = Duration.ofSeconds(5);
+	private Duration maxIdleTime = Duration.ofSeconds(55);
+	private Duration maxLifeTime = Duration.ofMinutes(10);
+	private Duration connectTimeout = Duration.ofSeconds(5);
+	private Duration readTimeout = Duration.ofSeconds(60);
+	private boolean http2 = true;
+	private boolean compression = true;
+	private boolean metrics = true;
+	private DataSize maxInMemorySize;
+
+	public int getMaxConnectionsPerHost() {
+		return maxConnectionsPerHost;
+	}
+
+	public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+	}
+
+	public int getMaxPendingAcquires() {
+		return maxPendingAcquires;
+	}
+
+	public void setMaxPendingAcquires(int maxPendingAcquires) {
+		this.maxPendingAcquires = maxPendingAcquires;
+	}
+
+	public Duration getPendingAcquireTimeout() {
+		return pendingAcquireTimeout;
+	}
+
+	public void setPendingAcquireTimeout(Duration pendingAcquireTimeout) {
+		this.pendingAcquireTimeout = pendingAcquireTimeout;
+	}
+
+	public Duration getMaxIdleTime() {
+		return maxIdleTime;
+	}
+
+	public void setMaxIdleTime(Duration maxIdleTime) {
+		this.maxIdleTime = maxIdleTime;
+	}
+
+	public Duration getMaxLifeTime() {
+		return maxLifeTime;
+	}
+
+	public void setMaxLifeTime(Duration maxLifeTime) {
+		this.maxLifeTime = maxLifeTime;
+	}
+
+	public Duration getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public void setConnectTimeout(Duration connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public Duration getReadTimeout() {
+		return readTimeout;
+	}
+
+	public void setReadTimeout(Duration readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	public boolean isHttp2() {
+		return http2;
+	}
+
+	public void setHttp2(boolean http2) {
+		this.http2 = http2;
+	}
+
+	public boolean isCompression() {
+		return compression;
+	}
+
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	public boolean isMetrics() {
+		return metrics;
+	}
+
+	public void setMetrics(boolean metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return largest response body decoded in memory, {@code null} to size it for the largest embedding response
+	 */
+	public DataSize getMaxInMemorySize() {
+		return maxInMemorySize;
+	}
+
+	public void setMaxInMemorySize(DataSize maxInMemorySize) {
+		this.maxInMemorySize = maxInMemorySize;
+	}
+}
@@ -0,0 +1,87 @@
+package my.bookshop.rag;
+
+import io.netty.channel.ChannelOption;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+/**
+ * HTTP transport shared by all AI clients, so their requests reuse pooled keep-alive connections instead of opening
+ * a connection, and doing a TLS handshake, per client or per request.
+ * <p>
+ * Reactor Netty keeps one pool per remote host, limited to {@code rag.http.max-connections-per-host}; HTTP/2
+ * connections additionally multiplex concurrent requests. Responses are requested gzip-compressed. With
+ * {@code rag.http.metrics}, the pools publish their total, active, idle and pending connections as
+ * {@code reactor.netty.connection.provider.*} metrics.
+ * <p>
+ * Response bodies are decoded in memory up to {@code rag.http.max-in-memory-size}. Without value, the limit fits an
+ * embedding response of {@code rag.embedding.max-request-inputs} vectors, as the 256 KB default of WebClient
+ * already fails for about eight 1536-dimension embeddings.
+ */
+@Component
+public class AiHttpTransport {
+
+	private static final String DEFAULT_BASE_URL = "https://api.openai.com/v1";
+	private static final Duration EVICTION_INTERVAL = Duration.ofSeconds(30);
+	// JSON of one 1536-dimension embedding is about 30 KB
+	private static final int EMBEDDING_RESPONSE_BYTES = 32 * 1024;
+	private static final int MIN_IN_MEMORY_SIZE = 1024 * 1024;
+
+	private final ConnectionProvider connectionProvider;
+	private final ReactorClientHttpConnector connector;
+	private final int maxInMemorySize;
+
+	public AiHttpTransport(AiHttpProperties properties, EmbeddingProperties embeddingProperties) {
+		this.connectionProvider = ConnectionProvider.builder("rag-ai")
+				.maxConnections(properties.getMaxConnectionsPerHost())
+				.pendingAcquireMaxCount(properties.getMaxPendingAcquires())
+				.pendingAcquireTimeout(properties.getPendingAcquireTimeout())
+				.maxIdleTime(properties.getMaxIdleTime())
+				.maxLifeTime(properties.getMaxLifeTime())
+				.evictInBackground(EVICTION_INTERVAL)
+				.metrics(properties.isMetrics())
+				.build();
+		HttpClient httpClient = HttpClient.create(connectionProvider)
+				.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) properties.getConnectTimeout().toMillis())
+				.responseTimeout(properties.getReadTimeout())
+				.keepAlive(true)
+				.compress(properties.isCompression())
+				.protocol(properties.isHttp2()
+						? new HttpProtocol[] { HttpProtocol.H2, HttpProtocol.HTTP11 }
+						: new HttpProtocol[] { HttpProtocol.HTTP11 });
+		this.connector = new ReactorClientHttpConnector(httpClient);
+		this.maxInMemorySize = maxInMemorySize(properties, embeddingProperties);
+	}
+
+	static int maxInMemorySize(AiHttpProperties properties, EmbeddingProperties embeddingProperties) {
+		if (properties.getMaxInMemorySize() != null) {
+			return (int) Math.min(properties.getMaxInMemorySize().toBytes(), Integer.MAX_VALUE);
+		}
+		long embeddingResponse = (long) embeddingProperties.getMaxRequestInputs() * EMBEDDING_RESPONSE_BYTES;
+		return (int) Math.min(Math.max(embeddingResponse, MIN_IN_MEMORY_SIZE), Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return a client for an OpenAI-compatible API on the shared connections
+	 */
+	public WebClient webClient(String baseUrl, String apiKey) {
+		String url = baseUrl == null || baseUrl.isBlank() ? DEFAULT_BASE_URL : baseUrl;
+		return WebClient.builder()
+				.baseUrl(url.endsWith("/") ? url.substring(0, url.length() - 1) : url)
+				.defaultHeader(HttpHeaders.AUTHORIZATION, "Bearer " + apiKey)
+				.clientConnector(connector)
+				.codecs(codecs -> codecs.defaultCodecs().maxInMemorySize(maxInMemorySize))
+				.build();
+	}
+
+	@PreDestroy
+	void close() {
+		connectionProvider.dispose();
+	}
+}
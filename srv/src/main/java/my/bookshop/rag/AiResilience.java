@@ -0,0 +1,263 @@
+package my.bookshop.rag;
+
+import com.sap.cloud.sdk.cloudplatform.resilience.ResilienceConfiguration;
+import com.sap.cloud.sdk.cloudplatform.resilience.ResilienceConfiguration.CircuitBreakerConfiguration;
+import com.sap.cloud.sdk.cloudplatform.resilience.ResilienceConfiguration.RetryConfiguration;
+import com.sap.cloud.sdk.cloudplatform.resilience.ResilienceConfiguration.TimeLimiterConfiguration;
+import com.sap.cloud.sdk.cloudplatform.resilience.ResilienceDecorator;
+import com.sap.cloud.sdk.cloudplatform.resilience.ResilienceIsolationMode;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs calls to AI models through the Cloud SDK resilience decorators, so a slow or failing model does not hold
+ * request threads indefinitely.
+ * <p>
+ * Every call gets a deadline and a circuit breaker shared by all calls to the same model. Embedding calls are
+ * idempotent and are retried with a jittered delay; chat calls are not retried. Rate-limited responses are left to
+ * {@link EmbeddingRateGovernor} and neither retried nor counted by the circuit breaker. With
+ * {@code rag.resilience.hedging} a second request is sent when the first has not answered within the model's p95
+ * latency, and the first successful response wins. Hedges are limited to {@code hedge-ratio} of the requests and must
+ * get their own quota, so they do not add to an overload.
+ */
+@Component
+public class AiResilience {
+
+	private static final Logger logger = LoggerFactory.getLogger(AiResilience.class);
+
+	private static final double HEDGE_PERCENTILE = 0.95;
+	private static final int LATENCY_SAMPLES = 200;
+
+	private final AiResilienceProperties properties;
+	private final Map<String, ResilienceConfiguration> configurations = new ConcurrentHashMap<>();
+	private final Map<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+	private final Map<String, HedgeBudget> hedgeBudgets = new ConcurrentHashMap<>();
+	private final ExecutorService hedgeExecutor;
+
+	public AiResilience(AiResilienceProperties properties, BlockingExecutors executors) {
+		this.properties = properties;
+		this.hedgeExecutor = executors.perTask("ai-hedge");
+	}
+
+	public <T> T chat(String model, Supplier<T> request) {
+		return call("rag-chat-" + model, properties.getChatTimeout(), 1, () -> true, request);
+	}
+
+	/**
+	 * @param hedgeQuota reserves the rate-limit quota of a hedged request, {@code false} if there is none left
+	 */
+	public <T> T embedding(String model, BooleanSupplier hedgeQuota, Supplier<T> request) {
+		return call("rag-embedding-" + model, properties.getEmbeddingTimeout(), properties.getEmbeddingAttempts(),
+				hedgeQuota, request);
+	}
+
+	private <T> T call(String identifier, Duration timeout, int attempts, BooleanSupplier hedgeQuota,
+			Supplier<T> request) {
+		ResilienceConfiguration configuration = configurations.computeIfAbsent(identifier,
+				id -> configuration(id, timeout, attempts));
+		LatencyWindow window = latencies.computeIfAbsent(identifier, id -> new LatencyWindow(LATENCY_SAMPLES));
+		Supplier<T> resilient = () -> ResilienceDecorator
+				.executeSupplier(withJitter(outcome(timed(request, window))), configuration)
+				.get();
+
+		if (!properties.isHedging()) {
+			return resilient.get();
+		}
+		HedgeBudget budget = hedgeBudgets.computeIfAbsent(identifier, id -> new HedgeBudget());
+		budget.deposit(properties.getHedgeRatio());
+		Optional<Duration> hedgeDelay = window.percentile(HEDGE_PERCENTILE, properties.getHedgeMinSamples());
+		if (hedgeDelay.isEmpty()) {
+			return resilient.get();
+		}
+		Duration delay = hedgeDelay.get().compareTo(properties.getMinHedgeDelay()) < 0
+				? properties.getMinHedgeDelay()
+				: hedgeDelay.get();
+		return hedged(identifier, resilient, delay, () -> budget.withdraw(hedgeQuota));
+	}
+
+	private ResilienceConfiguration configuration(String identifier, Duration timeout, int attempts) {
+		RetryConfiguration retry = attempts > 1
+				? RetryConfiguration.of(attempts, properties.getRetryBackoff())
+				: RetryConfiguration.disabled();
+		return ResilienceConfiguration.of(identifier)
+				.isolationMode(ResilienceIsolationMode.NO_ISOLATION)
+				.timeLimiterConfiguration(TimeLimiterConfiguration.of(timeout))
+				.retryConfiguration(retry)
+				.circuitBreakerConfiguration(CircuitBreakerConfiguration.of()
+						.failureRateThreshold(properties.getFailureRateThreshold())
+						.waitDuration(properties.getCircuitOpenDuration()));
+	}
+
+	private static <T> Supplier<T> timed(Supplier<T> request, LatencyWindow window) {
+		return () -> {
+			long start = System.nanoTime();
+			T result = request.get();
+			window.record(Duration.ofNanos(System.nanoTime() - start));
+			return result;
+		};
+	}
+
+	/**
+	 * Returns rate-limited responses as outcome instead of throwing them, so the circuit breaker counts them as
+	 * successful calls and the retry leaves them to {@link EmbeddingRateGovernor}, which pauses all callers.
+	 */
+	private static <T> Supplier<Outcome<T>> outcome(Supplier<T> request) {
+		return () -> {
+			try {
+				return new Outcome<>(request.get(), null);
+			} catch (RuntimeException e) {
+				if (!EmbeddingRateGovernor.isRateLimited(e)) {
+					throw e;
+				}
+				return new Outcome<>(null, e);
+			}
+		};
+	}
+
+	/**
+	 * Adds a random delay of up to the doubled backoff before each retry, so callers that failed together do not
+	 * retry in lockstep.
+	 */
+	private <T> Supplier<T> withJitter(Supplier<T> request) {
+		AtomicInteger attempt = new AtomicInteger();
+		return () -> {
+			int retry = attempt.getAndIncrement();
+			if (retry > 0) {
+				long bound = properties.getRetryBackoff().toMillis() << Math.min(retry - 1, 10);
+				sleep(ThreadLocalRandom.current().nextLong(bound + 1));
+			}
+			return request.get();
+		};
+	}
+
+	private <T> T hedged(String identifier, Supplier<T> call, Duration delay, BooleanSupplier mayHedge) {
+		CompletableFuture<T> primary = CompletableFuture.supplyAsync(call, hedgeExecutor);
+		try {
+			return primary.get(delay.toNanos(), TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			if (!mayHedge.getAsBoolean()) {
+				logger.debug("No response for {} after {} ms; no budget for a hedged request", identifier,
+						delay.toMillis());
+				return await(identifier, primary);
+			}
+			logger.debug("No response for {} after {} ms; sending a hedged request", identifier, delay.toMillis());
+		} catch (ExecutionException e) {
+			throw unwrap(e.getCause());
+		} catch (InterruptedException e) {
+			primary.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for " + identifier, e);
+		}
+
+		CompletableFuture<T> hedge = CompletableFuture.supplyAsync(call, hedgeExecutor);
+		CompletableFuture<T> winner = new CompletableFuture<>();
+		AtomicInteger failures = new AtomicInteger();
+		List<CompletableFuture<T>> requests = List.of(primary, hedge);
+		requests.forEach(request -> request.whenComplete((result, error) -> {
+			if (error == null) {
+				winner.complete(result);
+			} else if (failures.incrementAndGet() == requests.size()) {
+				winner.completeExceptionally(error);
+			}
+		}));
+		try {
+			return await(identifier, winner);
+		} finally {
+			requests.forEach(request -> request.cancel(true));
+		}
+	}
+
+	private static <T> T await(String identifier, CompletableFuture<T> response) {
+		try {
+			return response.get();
+		} catch (ExecutionException e) {
+			throw unwrap(e.getCause());
+		} catch (InterruptedException e) {
+			response.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for " + identifier, e);
+		}
+	}
+
+	private static RuntimeException unwrap(Throwable error) {
+		Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+		return cause instanceof RuntimeException runtime ? runtime : new IllegalStateException(cause);
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted before retrying", e);
+		}
+	}
+
+	@PreDestroy
+	void shutdown() {
+		hedgeExecutor.shutdownNow();
+	}
+
+	private record Outcome<T>(T value, RuntimeException rateLimited) {
+
+		T get() {
+			if (rateLimited != null) {
+				throw rateLimited;
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * Earns a fraction of a hedge with every request and holds at most one, so hedges stay within the ratio even in
+	 * bursts of slow responses.
+	 */
+	private static final class HedgeBudget {
+
+		// tolerates the rounding of summed ratios such as 20 * 0.05
+		private static final double EPSILON = 1e-9;
+
+		private final ReentrantLock lock = new ReentrantLock();
+		private double available;
+
+		void deposit(double ratio) {
+			lock.lock();
+			try {
+				available = Math.min(1, available + ratio);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		boolean withdraw(BooleanSupplier quota) {
+			lock.lock();
+			try {
+				if (available < 1 - EPSILON || !quota.getAsBoolean()) {
+					return false;
+				}
+				available = 0;
+				return true;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
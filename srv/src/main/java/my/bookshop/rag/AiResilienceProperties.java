@@ -0,0 +1,104 @@
+package my.bookshop.rag;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Deadlines, retries, circuit breakers and hedging applied by {@link AiResilience} to calls to AI models.
+ */
+@Component
+@ConfigurationProperties(prefix = "rag.resilience")
+public class AiResilienceProperties {
+
+	private Duration chatTimeout = Duration.ofSeconds(30);
+	private Duration embeddingTimeout = Duration.ofSeconds(60);
+	private int embeddingAttempts = 3;
+	private Duration retryBackoff = Duration.ofMillis(500);
+	private float failureRateThreshold = 50;
+	private Duration circuitOpenDuration = Duration.ofSeconds(30);
+	private boolean hedging = false;
+	private Duration minHedgeDelay = Duration.ofMillis(200);
+	private int hedgeMinSamples = 20;
+	private double hedgeRatio = 0.05;
+
+	public Duration getChatTimeout() {
+		return chatTimeout;
+	}
+
+	public void setChatTimeout(Duration chatTimeout) {
+		this.chatTimeout = chatTimeout;
+	}
+
+	public Duration getEmbeddingTimeout() {
+		return embeddingTimeout;
+	}
+
+	public void setEmbeddingTimeout(Duration embeddingTimeout) {
+		this.embeddingTimeout = embeddingTimeout;
+	}
+
+	public int getEmbeddingAttempts() {
+		return embeddingAttempts;
+	}
+
+	public void setEmbeddingAttempts(int embeddingAttempts) {
+		this.embeddingAttempts = embeddingAttempts;
+	}
+
+	public Duration getRetryBackoff() {
+		return retryBackoff;
+	}
+
+	public void setRetryBackoff(Duration retryBackoff) {
+		this.retryBackoff = retryBackoff;
+	}
+
+	public float getFailureRateThreshold() {
+		return failureRateThreshold;
+	}
+
+	public void setFailureRateThreshold(float failureRateThreshold) {
+		this.failureRateThreshold = failureRateThreshold;
+	}
+
+	public Duration getCircuitOpenDuration() {
+		return circuitOpenDuration;
+	}
+
+	public void setCircuitOpenDuration(Duration circuitOpenDuration) {
+		this.circuitOpenDuration = circuitOpenDuration;
+	}
+
+	public boolean isHedging() {
+		return hedging;
+	}
+
+	public void setHedging(boolean hedging) {
+		this.hedging = hedging;
+	}
+
+	public Duration getMinHedgeDelay() {
+		return minHedgeDelay;
+	}
+
+	public void setMinHedgeDelay(Duration minHedgeDelay) {
+		this.minHedgeDelay = minHedgeDelay;
+	}
+
+	public int getHedgeMinSamples() {
+		return hedgeMinSamples;
+	}
+
+	public void setHedgeMinSamples(int hedgeMinSamples) {
+		this.hedgeMinSamples = hedgeMinSamples;
+	}
+
+	public double getHedgeRatio() {
+		return hedgeRatio;
+	}
+
+	public void setHedgeRatio(double hedgeRatio) {
+		this.hedgeRatio = hedgeRatio;
+	}
+}
@@ -0,0 +1,62 @@
+package my.bookshop.rag;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * Creates the executors for work that blocks on remote calls, such as model requests and embedding jobs.
+ * <p>
+ * With {@code spring.threads.virtual.enabled} the work runs on virtual threads, like the request handlers in Tomcat,
+ * so a thread waiting seconds for a model no longer occupies a platform thread. Otherwise daemon platform threads
+ * are used.
+ */
+@Component
+public class BlockingExecutors {
+
+	private final boolean virtual;
+
+	@Autowired
+	public BlockingExecutors(Environment environment) {
+		this(Threading.VIRTUAL.isActive(environment));
+	}
+
+	public BlockingExecutors(boolean virtual) {
+		this.virtual = virtual;
+	}
+
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * @return an executor that runs each task on its own thread, reusing idle platform threads
+	 */
+	public ExecutorService perTask(String name) {
+		return virtual
+				? Executors.newThreadPerTaskExecutor(threadFactory(name))
+				: Executors.newCachedThreadPool(threadFactory(name));
+	}
+
+	/**
+	 * @return an executor that runs the tasks one after another in submission order
+	 */
+	public ExecutorService serial(String name) {
+		return Executors.newSingleThreadExecutor(threadFactory(name));
+	}
+
+	private ThreadFactory threadFactory(String name) {
+		if (virtual) {
+			return Thread.ofVirtual().name(name + "-", 0).factory();
+		}
+		return runnable -> {
+			Thread thread = new Thread(runnable, name);
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+}
@@ -0,0 +1,130 @@
+package my.bookshop.rag;
+
+import com.sap.cds.services.runtime.CdsRuntime;
+import jakarta.annotation.PreDestroy;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Computes book embeddings on a background thread, so bulk changes to books do not wait for the embedding model.
+ * <p>
+ * Submitted work runs in submission order as system user of the submitting tenant. Each book is embedded in its own
+ * transaction and reported to the {@link Listener} afterwards.
+ * <p>
+ * Work that is rejected, or dropped or aborted on shutdown, reports its remaining books as failed, so that the
+ * listener is told about every submitted book.
+ */
+@Component
+public class BookEmbeddingQueue {
+
+	private static final Logger logger = LoggerFactory.getLogger(BookEmbeddingQueue.class);
+
+	private final BookEmbeddingService embeddingService;
+	private final CdsRuntime runtime;
+	private final TenantContexts tenants;
+	private final ExecutorService executor;
+
+	public BookEmbeddingQueue(BookEmbeddingService embeddingService, CdsRuntime runtime, TenantContexts tenants,
+			BlockingExecutors executors) {
+		this.embeddingService = embeddingService;
+		this.runtime = runtime;
+		this.tenants = tenants;
+		this.executor = executors.serial("book-embedding");
+	}
+
+	public void submit(List<String> bookIds, Listener listener) {
+		Submission submission = new Submission(tenants.currentTenant(), List.copyOf(bookIds), listener);
+		try {
+			executor.execute(submission);
+		} catch (RejectedExecutionException e) {
+			logger.warn("Background embedding of {} books rejected", submission.bookIds.size(), e);
+			submission.abandon();
+		}
+	}
+
+	@PreDestroy
+	void shutdown() {
+		for (Runnable dropped : executor.shutdownNow()) {
+			if (dropped instanceof Submission submission) {
+				submission.abandon();
+			}
+		}
+	}
+
+	/**
+	 * Books of one {@link #submit} call, processed in order.
+	 */
+	private final class Submission implements Runnable {
+
+		private final String tenant;
+		private final List<String> bookIds;
+		private final Listener listener;
+		private int processed;
+
+		private Submission(String tenant, List<String> bookIds, Listener listener) {
+			this.tenant = tenant;
+			this.bookIds = bookIds;
+			this.listener = listener;
+		}
+
+		@Override
+		public void run() {
+			try {
+				tenants.runAsSystemUser(tenant, this::process);
+			} catch (RuntimeException e) {
+				logger.error("Background embedding of {} books failed for tenant {}", bookIds.size(), tenant, e);
+				abandon();
+			}
+		}
+
+		private void process() {
+			while (processed < bookIds.size()) {
+				String bookId = bookIds.get(processed);
+				boolean success;
+				try {
+					runtime.changeSetContext().run(changeSet -> {
+						embeddingService.reindexBook(bookId);
+					});
+					success = true;
+				} catch (RuntimeException e) {
+					logger.warn("Embedding of book {} failed", bookId, e);
+					success = false;
+				}
+				processed++;
+				listener.bookProcessed(bookId, success);
+			}
+			listener.completed();
+		}
+
+		/**
+		 * Reports the books that were not processed as failed.
+		 */
+		void abandon() {
+			List<String> remaining = bookIds.subList(processed, bookIds.size());
+			processed = bookIds.size();
+			try {
+				tenants.runAsSystemUser(tenant, () -> {
+					remaining.forEach(bookId -> listener.bookProcessed(bookId, false));
+					listener.completed();
+				});
+			} catch (RuntimeException e) {
+				logger.error("Failed to report {} books without embedding for tenant {}", remaining.size(), tenant, e);
+			}
+		}
+	}
+
+	/**
+	 * Receives the progress of submitted work on the background thread.
+	 */
+	public interface Listener {
+
+		void bookProcessed(String bookId, boolean success);
+
+		default void completed() {
+		}
+	}
+}
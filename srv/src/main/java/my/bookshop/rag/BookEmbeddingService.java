@@ -1,14 +1,18 @@
 package my.bookshop.rag;
 
 import cds.gen.my.bookshop.Books;
+import com.sap.cds.services.changeset.ChangeSetContext;
+import com.sap.cds.services.changeset.ChangeSetListener;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
+import my.bookshop.repository.bookshop.BookCentroidRepository;
+import my.bookshop.repository.bookshop.BookCentroidRepository.Centroid;
 import my.bookshop.repository.bookshop.BookContentChunkRepository;
 import my.bookshop.repository.bookshop.BookContentChunkRepository.ChunkPersistRequest;
 import my.bookshop.repository.bookshop.BookshopBooksRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 @Component
@@ -16,28 +20,88 @@ public class BookEmbeddingService {
 
 	private static final Logger logger = LoggerFactory.getLogger(BookEmbeddingService.class);
 
-	@Autowired
-	private BookshopBooksRepository bookshopBooksRepository;
-
-	@Autowired
-	private BookContentChunkRepository chunkRepository;
+	private final BookshopBooksRepository bookshopBooksRepository;
+	private final BookContentChunkRepository chunkRepository;
+	private final BookCentroidRepository centroidRepository;
+	private final SimilarBooksIndex similarBooksIndex;
+	private final IvfChunkIndex ivfChunkIndex;
+	private final PqChunkIndex pqChunkIndex;
+	private final RagAiClient aiClient;
+	private final EmbeddingGenerations generations;
+	private final RagTokenCounter tokenCounter;
+	private final EmbeddingProperties embeddingProperties;
+	private final BookTextChunker chunker = new BookTextChunker();
 
-	@Autowired
-	private RagAiClient aiClient;
+	public BookEmbeddingService(BookshopBooksRepository bookshopBooksRepository,
+			BookContentChunkRepository chunkRepository, BookCentroidRepository centroidRepository,
+			SimilarBooksIndex similarBooksIndex, IvfChunkIndex ivfChunkIndex, PqChunkIndex pqChunkIndex,
+			RagAiClient aiClient, EmbeddingGenerations generations, RagTokenCounter tokenCounter,
+			EmbeddingProperties embeddingProperties) {
+		this.bookshopBooksRepository = bookshopBooksRepository;
+		this.chunkRepository = chunkRepository;
+		this.centroidRepository = centroidRepository;
+		this.similarBooksIndex = similarBooksIndex;
+		this.ivfChunkIndex = ivfChunkIndex;
+		this.pqChunkIndex = pqChunkIndex;
+		this.aiClient = aiClient;
+		this.generations = generations;
+		this.tokenCounter = tokenCounter;
+		this.embeddingProperties = embeddingProperties;
+	}
 
-	private final BookTextChunker chunker = new BookTextChunker();
+	/**
+	 * Indexes a book into the given generation. Batches that fail are reported in the result instead of being
+	 * retried, so the caller can queue them.
+	 */
+	public IndexResult indexBook(Books book, int generation) {
+		return reindex(book, List.of(generation));
+	}
 
-	public void rebuildAll() {
-		bookshopBooksRepository.findAllWithTextFields()
-				.forEach(this::reindex);
+	/**
+	 * Embeds the chunks {@code firstChunk} to {@code firstChunk + chunkCount - 1} of a book again, replacing those
+	 * chunks in the given generation. A book that no longer exists yields an empty result.
+	 */
+	public IndexResult retryBatch(String bookId, int generation, int firstChunk, int chunkCount) {
+		Optional<Books> book = bookshopBooksRepository.findTextHeader(bookId);
+		if (book.isEmpty()) {
+			return IndexResult.EMPTY;
+		}
+		int lastChunk = firstChunk + chunkCount - 1;
+		IndexUpdates indexUpdates = new IndexUpdates();
+		chunkRepository.deleteChunksForBook(bookId, generation, firstChunk, lastChunk);
+		indexUpdates.add(() -> {
+			ivfChunkIndex.removed(bookId, generation, firstChunk, lastChunk);
+			pqChunkIndex.removed(bookId, generation, firstChunk, lastChunk);
+		});
+		Progress progress = new Progress();
+		EmbeddingBatcher batcher = batcher((chunks, tokens) -> embedAndPersist(book.get(), chunks, tokens,
+				List.of(generation), progress, indexUpdates));
+		chunker.chunk(book.get(), bookshopBooksRepository.openFullText(bookId), chunk -> {
+			if (chunk.index() >= firstChunk && chunk.index() <= lastChunk) {
+				batcher.add(chunk);
+			}
+		});
+		batcher.flush();
+		if (progress.chunks > 0) {
+			// from all stored chunks, so chunks that an earlier attempt stored are not counted twice
+			Progress stored = new Progress();
+			chunkRepository.findChunkVectors(bookId, generation)
+					.forEach(chunk -> stored.addToCentroid(chunk.vector()));
+			storeCentroid(bookId, List.of(generation), stored.centroid(), indexUpdates);
+		}
+		indexUpdates.applyAfterCommit();
+		return progress.toResult();
 	}
 
+	/**
+	 * Reindexes a single book in the active generation and in a generation that is currently being built.
+	 */
 	public void reindexBook(String bookId) {
 		if (bookId == null || bookId.isBlank()) {
 			return;
 		}
-		bookshopBooksRepository.findByIdWithTextFields(bookId)
-				.ifPresent(this::reindex);
+		bookshopBooksRepository.findTextHeader(bookId)
+				.ifPresent(book -> reindex(book, generations.writeTargets()));
 	}
 
 	public void deleteEmbedding(String bookId) {
@@ -45,57 +109,193 @@ public class BookEmbeddingService {
 			return;
 		}
 		chunkRepository.deleteChunksForBook(bookId);
+		centroidRepository.deleteForBook(bookId);
+		IndexUpdates indexUpdates = new IndexUpdates();
+		indexUpdates.add(() -> {
+			similarBooksIndex.removed(bookId);
+			ivfChunkIndex.removed(bookId);
+			pqChunkIndex.removed(bookId);
+		});
+		indexUpdates.applyAfterCommit();
 	}
 
-	public void deleteAllEmbeddings() {
-		chunkRepository.deleteAll();
+	/**
+	 * Streams the chunks of the book into token-sized embedding batches and persists each batch as soon as it is
+	 * embedded.
+	 */
+	private IndexResult reindex(Books book, List<Integer> targetGenerations) {
+		IndexUpdates indexUpdates = new IndexUpdates();
+		targetGenerations.forEach(generation -> {
+			chunkRepository.deleteChunksForBook(book.getId(), generation);
+			centroidRepository.deleteForBook(book.getId(), generation);
+			indexUpdates.add(() -> {
+				ivfChunkIndex.removed(book.getId(), generation);
+				pqChunkIndex.removed(book.getId(), generation);
+			});
+		});
+		Progress progress = new Progress();
+		EmbeddingBatcher batcher = batcher((chunks, tokens) -> embedAndPersist(book, chunks, tokens,
+				targetGenerations, progress, indexUpdates));
+		chunker.chunk(book, bookshopBooksRepository.openFullText(book.getId()), batcher::add);
+		batcher.flush();
+		if (progress.chunks > 0) {
+			storeCentroid(book.getId(), targetGenerations, progress.centroid(), indexUpdates);
+		}
+		indexUpdates.applyAfterCommit();
+
+		if (progress.chunks == 0) {
+			logger.warn("No embeddings persisted for book {}", book.getTitle());
+		} else {
+			logger.debug("Persisted {} chunks for book {}", progress.chunks, book.getTitle());
+		}
+		return progress.toResult();
 	}
 
-	private void reindex(Books book) {
-		List<BookTextChunk> chunks = chunker.chunk(book);
-		if (chunks.isEmpty()) {
-			logger.debug("No text found for book {}. Clearing embeddings.", book.getTitle());
-			chunkRepository.deleteChunksForBook(book.getId());
-			return;
+	/**
+	 * Embeds and persists one batch; a failed batch is logged and recorded in the progress, so we save what we can.
+	 */
+	private void embedAndPersist(Books book, List<BookTextChunk> batchChunks, int batchTokens,
+			List<Integer> targetGenerations, Progress progress, IndexUpdates indexUpdates) {
+		List<String> batchTexts = batchChunks.stream().map(BookTextChunk::text).toList();
+		int first = batchChunks.get(0).index();
+		try {
+			List<double[]> batchVectors = aiClient.embed(batchTexts);
+			if (batchVectors.size() != batchChunks.size()) {
+				logger.warn("Mismatch in embedding count for book {} batch starting at chunk {}. Expected {}, got {}",
+						book.getTitle(), first, batchChunks.size(), batchVectors.size());
+				progress.failed.add(new FailedBatch(first, batchChunks.size(),
+						"Expected " + batchChunks.size() + " embeddings, got " + batchVectors.size()));
+				return;
+			}
+			List<ChunkPersistRequest> payloads = new ArrayList<>(batchChunks.size());
+			for (int j = 0; j < batchChunks.size(); j++) {
+				// unit length, so that the in-memory indexes compare chunks by their dot product
+				double[] vector = VectorMath.scaleToUnitLength(batchVectors.get(j));
+				if (vector.length > 0) {
+					payloads.add(new ChunkPersistRequest(batchChunks.get(j), vector));
+				}
+			}
+			targetGenerations.forEach(generation -> {
+				List<String> chunkIds = chunkRepository.insertChunks(book.getId(), generation, payloads);
+				indexUpdates.add(() -> {
+					ivfChunkIndex.added(book.getId(), generation, chunkIds, payloads);
+					pqChunkIndex.added(book.getId(), generation, chunkIds, payloads);
+				});
+			});
+			payloads.forEach(payload -> progress.addToCentroid(payload.embedding()));
+			progress.chunks += payloads.size();
+			progress.tokens += batchTokens;
+		} catch (RuntimeException e) {
+			if (Thread.currentThread().isInterrupted()) {
+				throw e;
+			}
+			logger.error("Batch embedding failed for book {} batch starting at chunk {}: {}",
+					book.getTitle(), first, e.getMessage());
+			progress.failed.add(new FailedBatch(first, batchChunks.size(), String.valueOf(e.getMessage())));
 		}
+	}
 
-		List<ChunkPersistRequest> payloads = new ArrayList<>();
-		int batchSize = 10; // Process in batches to avoid hitting API limits
+	private void storeCentroid(String bookId, List<Integer> targetGenerations, Centroid centroid,
+			IndexUpdates indexUpdates) {
+		targetGenerations.forEach(generation -> {
+			centroidRepository.upsert(bookId, generation, centroid);
+			indexUpdates.add(() -> similarBooksIndex.updated(bookId, generation, centroid.mean()));
+		});
+	}
 
-		for (int i = 0; i < chunks.size(); i += batchSize) {
-			int end = Math.min(chunks.size(), i + batchSize);
-			List<BookTextChunk> batchChunks = chunks.subList(i, end);
-			List<String> batchTexts = batchChunks.stream().map(BookTextChunk::text).toList();
+	private EmbeddingBatcher batcher(EmbeddingBatcher.BatchSink sink) {
+		return new EmbeddingBatcher(tokenCounter::count, embeddingProperties.getMaxRequestTokens(),
+				embeddingProperties.getMaxRequestInputs(), sink);
+	}
 
-			try {
-				List<double[]> batchVectors = aiClient.embed(batchTexts);
+	/**
+	 * Changes of the in-memory indexes, applied only once the change set that persisted them has been committed, so
+	 * the indexes never serve chunks that were rolled back. Without a change set they are applied right away.
+	 */
+	private static class IndexUpdates {
 
-				if (batchVectors.size() != batchChunks.size()) {
-					logger.warn("Mismatch in embedding count for book {} batch {}-{}. Expected {}, got {}",
-							book.getTitle(), i, end, batchChunks.size(), batchVectors.size());
-					continue;
-				}
+		private final List<Runnable> updates = new ArrayList<>();
+
+		void add(Runnable update) {
+			updates.add(update);
+		}
+
+		void applyAfterCommit() {
+			ChangeSetContext changeSet = ChangeSetContext.getCurrent();
+			if (changeSet == null) {
+				updates.forEach(Runnable::run);
+				return;
+			}
+			changeSet.register(new ChangeSetListener() {
 
-				for (int j = 0; j < batchChunks.size(); j++) {
-					double[] vector = batchVectors.get(j);
-					if (vector.length > 0) {
-						payloads.add(new ChunkPersistRequest(batchChunks.get(j), vector));
+				@Override
+				public void afterClose(boolean completed) {
+					if (completed) {
+						updates.forEach(Runnable::run);
 					}
 				}
-			} catch (Exception e) {
-				logger.error("Batch embedding failed for book {} batch {}-{}: {}",
-						book.getTitle(), i, end, e.getMessage());
-				// Continue to next batch? or fail?
-				// Current logic: continue, so we save what we can.
+			});
+		}
+	}
+
+	private static class Progress {
+
+		private int chunks;
+		private long tokens;
+		private final List<FailedBatch> failed = new ArrayList<>();
+		private double[] vectorSum;
+		private int vectorCount;
+
+		void addToCentroid(double[] vector) {
+			if (accepts(vector.length)) {
+				for (int i = 0; i < vector.length; i++) {
+					vectorSum[i] += vector[i];
+				}
+				vectorCount++;
 			}
 		}
 
-		if (payloads.isEmpty()) {
-			logger.warn("Embedding failed for book {}", book.getTitle());
-			chunkRepository.deleteChunksForBook(book.getId());
-			return;
+		void addToCentroid(float[] vector) {
+			if (accepts(vector.length)) {
+				for (int i = 0; i < vector.length; i++) {
+					vectorSum[i] += vector[i];
+				}
+				vectorCount++;
+			}
 		}
-		chunkRepository.replaceChunks(book.getId(), payloads);
-		logger.debug("Persisted {} chunks for book {}", payloads.size(), book.getTitle());
+
+		private boolean accepts(int dimension) {
+			if (vectorSum == null) {
+				vectorSum = new double[dimension];
+			}
+			return vectorSum.length == dimension;
+		}
+
+		Centroid centroid() {
+			float[] mean = new float[vectorSum == null ? 0 : vectorSum.length];
+			for (int i = 0; i < mean.length; i++) {
+				mean[i] = (float) (vectorSum[i] / vectorCount);
+			}
+			return new Centroid(vectorCount, mean);
+		}
+
+		IndexResult toResult() {
+			return new IndexResult(chunks, tokens, List.copyOf(failed));
+		}
+	}
+
+	/**
+	 * Outcome of indexing a book or retrying a batch.
+	 *
+	 * @param chunks number of persisted chunks
+	 * @param tokens number of embedded tokens, counted locally
+	 * @param failedBatches batches whose embedding failed
+	 */
+	public record IndexResult(int chunks, long tokens, List<FailedBatch> failedBatches) {
+
+		static final IndexResult EMPTY = new IndexResult(0, 0, List.of());
+	}
+
+	public record FailedBatch(int firstChunk, int chunkCount, String error) {
 	}
 }
@@ -5,17 +5,22 @@ import cds.gen.my.bookshop.Books;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Splits book texts into overlapping character-based chunks so we can create
  * multiple embeddings per book.
+ * <p>
+ * Texts are read incrementally; at most one chunk plus read-ahead is buffered, independent of the text length.
  */
 public class BookTextChunker {
 
 	private static final int DEFAULT_CHUNK_SIZE = 4000;
 	private static final int DEFAULT_CHUNK_OVERLAP = 400;
+	private static final int READ_BUFFER_SIZE = 8192;
 
 	private final int chunkSize;
 	private final int chunkOverlap;
@@ -34,59 +39,43 @@ public class BookTextChunker {
 			return List.of();
 		}
 		List<BookTextChunk> chunks = new ArrayList<>();
-		int index = 0;
-		index = appendSection(chunks, index, BookChunkSource.TITLE, book.getTitle());
-		index = appendSection(chunks, index, BookChunkSource.DESCRIPTION, book.getDescr());
-		appendSectionReader(chunks, index, BookChunkSource.BODY,
-				book.getFullText() != null ? new StringReader(book.getFullText()) : null);
+		chunk(book, book.getFullText() != null ? new StringReader(book.getFullText()) : null, chunks::add);
 		return chunks;
 	}
 
-	private int appendSection(List<BookTextChunk> accumulator, int index, BookChunkSource source, String raw) {
-		if (raw == null) {
-			return index;
-		}
-		String text = raw.toString();
-		if (text.isEmpty()) {
-			return index;
-		}
-		for (String chunkText : split(text)) {
-			String normalizedChunk = normalize(chunkText);
-			if (normalizedChunk.isEmpty()) {
-				continue;
-			}
-			accumulator.add(new BookTextChunk(index++, source, normalizedChunk));
-		}
-		return index;
+	/**
+	 * Chunks title and description of the book and the body text read from {@code body}, handing each chunk to the
+	 * sink as soon as it is complete.
+	 *
+	 * @param body the full text, closed after reading; may be {@code null}
+	 */
+	public void chunk(Books book, Reader body, Consumer<BookTextChunk> sink) {
+		int index = 0;
+		index = appendSection(sink, index, BookChunkSource.TITLE, reader(book.getTitle()));
+		index = appendSection(sink, index, BookChunkSource.DESCRIPTION, reader(book.getDescr()));
+		appendSection(sink, index, BookChunkSource.BODY, body);
+	}
+
+	private Reader reader(String text) {
+		return text == null ? null : new StringReader(text);
 	}
 
-	private int appendSectionReader(List<BookTextChunk> accumulator, int index, BookChunkSource source, Reader raw) {
+	private int appendSection(Consumer<BookTextChunk> sink, int index, BookChunkSource source, Reader raw) {
 		if (raw == null) {
 			return index;
 		}
-		StringBuilder textBuilder = new StringBuilder();
+		int[] next = { index };
 		try (Reader reader = raw) {
-			char[] buffer = new char[1024];
-			int numChars;
-			while ((numChars = reader.read(buffer)) >= 0) {
-				textBuilder.append(buffer, 0, numChars);
-			}
+			split(reader, piece -> {
+				String normalizedChunk = normalize(piece);
+				if (!normalizedChunk.isEmpty()) {
+					sink.accept(new BookTextChunk(next[0]++, source, normalizedChunk));
+				}
+			});
 		} catch (IOException e) {
-			throw new RuntimeException("Failed to read book text", e);
-		}
-		String text = textBuilder.toString();
-
-		if (text.isEmpty()) {
-			return index;
-		}
-		for (String chunkText : split(text)) {
-			String normalizedChunk = normalize(chunkText);
-			if (normalizedChunk.isEmpty()) {
-				continue;
-			}
-			accumulator.add(new BookTextChunk(index++, source, normalizedChunk));
+			throw new UncheckedIOException("Failed to read book text", e);
 		}
-		return index;
+		return next[0];
 	}
 
 	private String normalize(String text) {
@@ -96,33 +85,39 @@ public class BookTextChunker {
 		return text.replaceAll("\\s+", " ").trim();
 	}
 
-	private List<String> split(String text) {
-		if (text.length() <= chunkSize) {
-			return List.of(text);
-		}
-		List<String> chunks = new ArrayList<>();
-		int start = 0;
-		while (start < text.length()) {
-			int preferredEnd = Math.min(text.length(), start + chunkSize);
-			int end = preferredEnd;
-			if (preferredEnd < text.length()) {
-				end = findBoundary(text, start, preferredEnd);
+	/**
+	 * Emits pieces of at most {@code chunkSize} characters, preferably ending at a sentence boundary, where each
+	 * piece repeats the last {@code chunkOverlap} characters of its predecessor.
+	 */
+	private void split(Reader reader, Consumer<String> pieces) throws IOException {
+		StringBuilder window = new StringBuilder(chunkSize + READ_BUFFER_SIZE);
+		char[] buffer = new char[READ_BUFFER_SIZE];
+		boolean endOfText = false;
+		while (true) {
+			// read until the window holds more than one chunk, so we know whether the text continues
+			while (!endOfText && window.length() <= chunkSize) {
+				int read = reader.read(buffer);
+				if (read < 0) {
+					endOfText = true;
+				} else {
+					window.append(buffer, 0, read);
+				}
+			}
+			if (window.length() == 0) {
+				return;
 			}
-			String piece = text.substring(start, Math.max(start + 1, end));
-			chunks.add(piece);
-			if (end >= text.length()) {
-				break;
+			if (endOfText && window.length() <= chunkSize) {
+				pieces.accept(window.toString());
+				return;
 			}
-			int nextStart = end - chunkOverlap;
-			start = Math.max(nextStart, start + 1);
+			int end = findBoundary(window, 0, chunkSize);
+			pieces.accept(window.substring(0, Math.max(1, end)));
+			int nextStart = Math.max(end - chunkOverlap, 1);
+			window.delete(0, nextStart);
 		}
-		return chunks.stream()
-				.map(this::normalize)
-				.filter(chunk -> !chunk.isEmpty())
-				.toList();
 	}
 
-	private int findBoundary(String text, int start, int preferredEnd) {
+	private int findBoundary(CharSequence text, int start, int preferredEnd) {
 		int boundarySearchStart = Math.max(start, preferredEnd - 200);
 		for (int i = preferredEnd; i > boundarySearchStart; i--) {
 			char ch = text.charAt(i - 1);
@@ -130,9 +125,10 @@ public class BookTextChunker {
 				return i;
 			}
 		}
-		int spaceIndex = text.lastIndexOf(' ', preferredEnd - 1);
-		if (spaceIndex > start + 50) {
-			return spaceIndex;
+		for (int i = preferredEnd - 1; i > start + 50; i--) {
+			if (text.charAt(i) == ' ') {
+				return i;
+			}
 		}
 		return preferredEnd;
 	}
@@ -0,0 +1,141 @@
+package my.bookshop.rag;
+
+import com.sap.cds.services.runtime.CdsRuntime;
+import com.sap.cds.services.runtime.RequestContextRunner;
+import dev.langchain4j.data.message.ChatMessage;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounds the model call of a chat request by what is left of the request's latency budget.
+ * <p>
+ * The call gets the budget that is left as its own timeout, which cancels the HTTP exchange. It runs on a separate
+ * thread in the request's context, so the request also stops waiting when a client does not honor the timeout. Every
+ * answer that has to do without the model is counted in the {@code rag.chat.degraded} metric, tagged with action and
+ * reason.
+ */
+@Component
+public class ChatLatencyGuard {
+
+	private static final Logger logger = LoggerFactory.getLogger(ChatLatencyGuard.class);
+
+	static final String DEGRADED_METRIC = "rag.chat.degraded";
+	public static final String REASON_BUDGET = "budget-exhausted";
+	public static final String REASON_TIMEOUT = "timeout";
+	public static final String REASON_ERROR = "error";
+	public static final String REASON_EMPTY = "empty";
+
+	private final ChatLatencyProperties properties;
+	private final MeterRegistry meterRegistry;
+	private final CdsRuntime runtime;
+	private final ExecutorService executor;
+
+	public ChatLatencyGuard(ChatLatencyProperties properties, MeterRegistry meterRegistry, CdsRuntime runtime,
+			BlockingExecutors executors) {
+		this.properties = properties;
+		this.meterRegistry = meterRegistry;
+		this.runtime = runtime;
+		this.executor = executors.perTask("rag-chat");
+	}
+
+	public LatencyBudget startBudget() {
+		return LatencyBudget.start(properties.getLatencyBudget());
+	}
+
+	/**
+	 * Calls the model with the budget that is left after reserving time for completing the reply.
+	 *
+	 * @return the model's reply, or empty if it failed, answered blank or did not answer in time
+	 */
+	public Optional<String> chat(String action, RagAiClient client, List<ChatMessage> messages,
+			LatencyBudget budget) {
+		Optional<Duration> modelTime = modelTime(budget);
+		if (modelTime.isEmpty()) {
+			recordBudgetExhausted(action, budget);
+			return Optional.empty();
+		}
+		Duration allowed = modelTime.get();
+		RequestContextRunner requestContext = runtime == null ? null : runtime.requestContext();
+		CompletableFuture<String> reply = CompletableFuture.supplyAsync(() -> requestContext == null
+				? client.chat(messages, allowed)
+				: requestContext.run(context -> {
+					return client.chat(messages, allowed);
+				}), executor);
+		try {
+			String raw = reply.get(allowed.toNanos(), TimeUnit.NANOSECONDS);
+			return raw == null || raw.isBlank() ? degraded(action, REASON_EMPTY) : Optional.of(raw);
+		} catch (TimeoutException e) {
+			reply.cancel(true);
+			logger.warn("Chat model did not answer within {} ms; answering without the model", allowed.toMillis());
+			return degraded(action, REASON_TIMEOUT);
+		} catch (ExecutionException e) {
+			if (isTimeout(e.getCause())) {
+				logger.warn("Chat model did not answer within {} ms; answering without the model", allowed.toMillis());
+				return degraded(action, REASON_TIMEOUT);
+			}
+			logger.warn("Chat model failed; answering without the model", e.getCause());
+			return degraded(action, REASON_ERROR);
+		} catch (InterruptedException e) {
+			reply.cancel(true);
+			Thread.currentThread().interrupt();
+			return degraded(action, REASON_TIMEOUT);
+		}
+	}
+
+	/**
+	 * Only queries the budget, so callers may also use it to decide whether another model call is worthwhile. Callers
+	 * that answer without the model because of an empty result report it with {@link #recordBudgetExhausted}.
+	 *
+	 * @return the time the model may take, or empty if too little of the budget is left to call it at all
+	 */
+	public Optional<Duration> modelTime(LatencyBudget budget) {
+		Duration allowed = budget.remaining().minus(properties.getReplyReserve());
+		if (allowed.compareTo(properties.getMinModelTime()) < 0) {
+			return Optional.empty();
+		}
+		return Optional.of(allowed);
+	}
+
+	/**
+	 * Logs and counts an answer without the model because too little of the budget was left.
+	 */
+	public void recordBudgetExhausted(String action, LatencyBudget budget) {
+		logger.warn("Only {} ms of the chat latency budget left; answering without the model",
+				budget.remaining().toMillis());
+		recordDegraded(action, REASON_BUDGET);
+	}
+
+	public void recordDegraded(String action, String reason) {
+		meterRegistry.counter(DEGRADED_METRIC, "action", action, "reason", reason).increment();
+	}
+
+	private static boolean isTimeout(Throwable error) {
+		for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+			if (cause instanceof TimeoutException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private Optional<String> degraded(String action, String reason) {
+		recordDegraded(action, reason);
+		return Optional.empty();
+	}
+
+	@PreDestroy
+	void shutdown() {
+		executor.shutdownNow();
+	}
+}
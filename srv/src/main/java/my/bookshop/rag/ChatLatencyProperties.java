@@ -0,0 +1,41 @@
+package my.bookshop.rag;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Latency budget of a chat request, enforced by {@link ChatLatencyGuard}.
+ */
+@Component
+@ConfigurationProperties(prefix = "rag.chat")
+public class ChatLatencyProperties {
+
+	private Duration latencyBudget = Duration.ofSeconds(8);
+	private Duration replyReserve = Duration.ofMillis(500);
+	private Duration minModelTime = Duration.ofSeconds(1);
+
+	public Duration getLatencyBudget() {
+		return latencyBudget;
+	}
+
+	public void setLatencyBudget(Duration latencyBudget) {
+		this.latencyBudget = latencyBudget;
+	}
+
+	public Duration getReplyReserve() {
+		return replyReserve;
+	}
+
+	public void setReplyReserve(Duration replyReserve) {
+		this.replyReserve = replyReserve;
+	}
+
+	public Duration getMinModelTime() {
+		return minModelTime;
+	}
+
+	public void setMinModelTime(Duration minModelTime) {
+		this.minModelTime = minModelTime;
+	}
+}
@@ -0,0 +1,157 @@
+package my.bookshop.rag;
+
+import dev.langchain4j.data.segment.TextSegment;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * Conversation state kept on the server between chat turns.
+ * <p>
+ * Besides the turn history, a session remembers the query embedding and the retrieved context of its most recent
+ * retrievals, keyed by the user's message, so asking the same question again or escalating it to another answer path
+ * needs neither an embedding call nor a similarity search.
+ * <p>
+ * A session belongs to the user that opened it, see {@link ChatSessionStore}.
+ * <p>
+ * State is guarded by a {@link ReentrantLock} rather than {@code synchronized}, which would pin a virtual thread to
+ * its carrier.
+ */
+public class ChatSession {
+
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+	private final String id;
+	private final String owner;
+	private final int maxTurns;
+	private final int maxCachedSegments;
+	private final List<Map<String, Object>> turns = new ArrayList<>();
+	private final Map<String, Retrieval> retrievals;
+	private final ReentrantLock lock = new ReentrantLock();
+	private volatile long lastAccess = System.currentTimeMillis();
+
+	ChatSession(String id, String owner, int maxTurns, int maxCachedRetrievals, int maxCachedSegments) {
+		this.id = id;
+		this.owner = owner;
+		this.maxTurns = Math.max(2, maxTurns);
+		this.maxCachedSegments = Math.max(1, maxCachedSegments);
+		this.retrievals = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Retrieval> eldest) {
+				return size() > Math.max(1, maxCachedRetrievals);
+			}
+		};
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	String getOwner() {
+		return owner;
+	}
+
+	/**
+	 * @return snapshot of the turns in the format understood by {@link RagPromptBuilder}
+	 */
+	public List<Map<String, Object>> history() {
+		lock.lock();
+		try {
+			return List.copyOf(turns);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void appendTurn(String userMessage, String reply) {
+		lock.lock();
+		try {
+			addTurn("user", userMessage);
+			addTurn("assistant", reply);
+			trimTurns();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void seed(List<Map<String, Object>> history) {
+		lock.lock();
+		try {
+			for (Map<String, Object> turn : history) {
+				Object content = turn.get("content");
+				addTurn(String.valueOf(turn.get("role")), content == null ? null : content.toString());
+			}
+			trimTurns();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public Optional<Retrieval> cachedRetrieval(String message) {
+		if (message == null) {
+			return Optional.empty();
+		}
+		lock.lock();
+		try {
+			return Optional.ofNullable(retrievals.get(key(message)));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void cacheRetrieval(String message, double[] vector, List<TextSegment> contexts) {
+		if (message == null || vector == null || vector.length == 0) {
+			return;
+		}
+		// only the best matches are kept to bound memory; they are ordered by similarity already
+		List<TextSegment> kept = contexts.size() > maxCachedSegments
+				? contexts.subList(0, maxCachedSegments)
+				: contexts;
+		Retrieval retrieval = new Retrieval(vector, List.copyOf(kept));
+		lock.lock();
+		try {
+			retrievals.put(key(message), retrieval);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void touch() {
+		lastAccess = System.currentTimeMillis();
+	}
+
+	long getLastAccess() {
+		return lastAccess;
+	}
+
+	/**
+	 * Messages differing only in case and whitespace share a retrieval.
+	 */
+	private static String key(String message) {
+		return WHITESPACE.matcher(message.trim()).replaceAll(" ").toLowerCase(Locale.ROOT);
+	}
+
+	private void addTurn(String role, String content) {
+		if (content == null || content.isBlank()) {
+			return;
+		}
+		turns.add(Map.of("role", role, "content", content));
+	}
+
+	private void trimTurns() {
+		while (turns.size() > maxTurns) {
+			turns.remove(0);
+		}
+	}
+
+	/**
+	 * Query embedding and retrieved context of one turn.
+	 */
+	public record Retrieval(double[] vector, List<TextSegment> contexts) {
+	}
+}
@@ -0,0 +1,86 @@
+package my.bookshop.rag;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Limits for the server-side chat sessions kept by {@link ChatSessionStore}.
+ */
+@Component
+@ConfigurationProperties(prefix = "rag.session")
+public class ChatSessionProperties {
+
+	private int maxSessions = 1000;
+	private Duration ttl = Duration.ofMinutes(30);
+	private int maxTurns = 20;
+	private int maxCachedRetrievals = 4;
+	private int maxCachedSegments = 100;
+	private boolean persist = false;
+	private Duration persistedTtl = Duration.ofDays(7);
+	private Duration cleanupInterval = Duration.ofHours(1);
+
+	public int getMaxSessions() {
+		return maxSessions;
+	}
+
+	public void setMaxSessions(int maxSessions) {
+		this.maxSessions = maxSessions;
+	}
+
+	public Duration getTtl() {
+		return ttl;
+	}
+
+	public void setTtl(Duration ttl) {
+		this.ttl = ttl;
+	}
+
+	public int getMaxTurns() {
+		return maxTurns;
+	}
+
+	public void setMaxTurns(int maxTurns) {
+		this.maxTurns = maxTurns;
+	}
+
+	public int getMaxCachedRetrievals() {
+		return maxCachedRetrievals;
+	}
+
+	public void setMaxCachedRetrievals(int maxCachedRetrievals) {
+		this.maxCachedRetrievals = maxCachedRetrievals;
+	}
+
+	public int getMaxCachedSegments() {
+		return maxCachedSegments;
+	}
+
+	public void setMaxCachedSegments(int maxCachedSegments) {
+		this.maxCachedSegments = maxCachedSegments;
+	}
+
+	public boolean isPersist() {
+		return persist;
+	}
+
+	public void setPersist(boolean persist) {
+		this.persist = persist;
+	}
+
+	public Duration getPersistedTtl() {
+		return persistedTtl;
+	}
+
+	public void setPersistedTtl(Duration persistedTtl) {
+		this.persistedTtl = persistedTtl;
+	}
+
+	public Duration getCleanupInterval() {
+		return cleanupInterval;
+	}
+
+	public void setCleanupInterval(Duration cleanupInterval) {
+		this.cleanupInterval = cleanupInterval;
+	}
+}
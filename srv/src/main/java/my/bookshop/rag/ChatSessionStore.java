@@ -0,0 +1,216 @@
+package my.bookshop.rag;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sap.cds.services.request.UserInfo;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import my.bookshop.repository.bookshop.ChatSessionRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps chat sessions keyed by conversation ID, bounded in size and evicted by LRU order and idle time.
+ * <p>
+ * Conversation IDs are issued by the server. A client-supplied ID is only continued if it names a session of the same
+ * owner, the tenant and user name of the request; otherwise a new session with a new ID is opened.
+ * <p>
+ * With {@code rag.session.persist} enabled, the turn history is also written to the database so sessions survive
+ * eviction and restarts. Persisted sessions expire after {@code persisted-ttl}; expired rows of a tenant are deleted
+ * at most once per {@code cleanup-interval}. Cached embeddings and retrieval results are never persisted.
+ */
+@Component
+public class ChatSessionStore {
+
+	private static final Logger logger = LoggerFactory.getLogger(ChatSessionStore.class);
+
+	private static final Pattern ISSUED_ID = Pattern
+			.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+	private static final TypeReference<List<Map<String, Object>>> HISTORY_TYPE = new TypeReference<>() {
+	};
+
+	private final ChatSessionProperties properties;
+	private final ChatSessionRepository repository;
+	private final ObjectMapper objectMapper;
+	private final Map<String, ChatSession> sessions = new LinkedHashMap<>(16, 0.75f, true);
+	private final Map<String, Long> lastCleanup = new ConcurrentHashMap<>();
+	private final ReentrantLock lock = new ReentrantLock();
+
+	public ChatSessionStore(ChatSessionProperties properties, ChatSessionRepository repository,
+			ObjectMapper objectMapper) {
+		this.properties = properties;
+		this.repository = repository;
+		this.objectMapper = objectMapper;
+	}
+
+	/**
+	 * Returns the user's session for the given conversation, or a new session if the conversation is unknown, expired
+	 * or belongs to someone else.
+	 *
+	 * @param conversationId ID returned to the client by a previous turn, may be {@code null}
+	 * @param user user of the request, owning the session
+	 * @param legacyHistory history sent by clients that do not use conversation IDs yet; only used for new sessions
+	 */
+	public ChatSession open(String conversationId, UserInfo user,
+			Supplier<List<Map<String, Object>>> legacyHistory) {
+		String owner = owner(user);
+		if (conversationId != null && ISSUED_ID.matcher(conversationId).matches()) {
+			ChatSession session = find(conversationId, owner);
+			if (session == null) {
+				session = load(conversationId, owner)
+						.map(history -> register(conversationId, owner, history))
+						.orElse(null);
+			}
+			if (session != null) {
+				return session;
+			}
+			logger.debug("Opening a new chat session instead of unknown or foreign session {}", conversationId);
+		}
+		List<Map<String, Object>> history = legacyHistory == null ? List.of() : legacyHistory.get();
+		return register(UUID.randomUUID().toString(), owner, history);
+	}
+
+	/**
+	 * Writes the session history to the database if persistence is enabled.
+	 */
+	public void save(ChatSession session) {
+		if (!properties.isPersist() || repository == null || session == null) {
+			return;
+		}
+		try {
+			repository.saveTurns(session.getId(), session.getOwner(),
+					objectMapper.writeValueAsString(session.history()));
+			deleteExpired(session.getOwner());
+		} catch (Exception e) {
+			logger.warn("Failed to persist chat session {}", session.getId(), e);
+		}
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return sessions.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private ChatSession find(String id, String owner) {
+		lock.lock();
+		try {
+			evictExpired();
+			ChatSession session = sessions.get(id);
+			if (session == null || !session.getOwner().equals(owner)) {
+				return null;
+			}
+			session.touch();
+			return session;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private ChatSession register(String id, String owner, List<Map<String, Object>> history) {
+		lock.lock();
+		try {
+			ChatSession session = sessions.get(id);
+			// another request of the owner may have loaded the session meanwhile
+			if (session == null || !session.getOwner().equals(owner)) {
+				session = new ChatSession(id, owner, properties.getMaxTurns(), properties.getMaxCachedRetrievals(),
+						properties.getMaxCachedSegments());
+				session.seed(history);
+				sessions.put(id, session);
+				while (sessions.size() > properties.getMaxSessions()) {
+					Iterator<String> eldest = sessions.keySet().iterator();
+					eldest.next();
+					eldest.remove();
+				}
+			}
+			session.touch();
+			return session;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Optional<List<Map<String, Object>>> load(String id, String owner) {
+		if (!properties.isPersist() || repository == null) {
+			return Optional.empty();
+		}
+		try {
+			Instant cutoff = Instant.now().minus(properties.getPersistedTtl());
+			return repository.find(id, cutoff)
+					.filter(session -> owner.equals(session.getOwner()))
+					.map(session -> readHistory(session.getTurns()));
+		} catch (Exception e) {
+			logger.warn("Failed to load chat session {}; starting a new one.", id, e);
+			return Optional.empty();
+		}
+	}
+
+	private void deleteExpired(String owner) {
+		String tenant = owner.substring(0, owner.indexOf('/'));
+		long now = System.currentTimeMillis();
+		long interval = properties.getCleanupInterval().toMillis();
+		Long last = lastCleanup.get(tenant);
+		if (last != null && now - last < interval) {
+			return;
+		}
+		// only the save that records the cleanup runs it
+		boolean claimed = last == null
+				? lastCleanup.putIfAbsent(tenant, now) == null
+				: lastCleanup.replace(tenant, last, now);
+		if (!claimed) {
+			return;
+		}
+		long deleted = repository.deleteModifiedBefore(Instant.ofEpochMilli(now).minus(properties.getPersistedTtl()));
+		if (deleted > 0) {
+			logger.debug("Deleted {} expired chat sessions", deleted);
+		}
+	}
+
+	private List<Map<String, Object>> readHistory(String json) {
+		if (json == null) {
+			return List.of();
+		}
+		try {
+			return objectMapper.readValue(json, HISTORY_TYPE);
+		} catch (Exception e) {
+			logger.debug("Ignoring unreadable persisted chat history ({} chars).", json.length(), e);
+			return List.of();
+		}
+	}
+
+	private void evictExpired() {
+		long cutoff = System.currentTimeMillis() - properties.getTtl().toMillis();
+		// access order: the least recently used sessions come first
+		Iterator<ChatSession> iterator = sessions.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().getLastAccess() >= cutoff) {
+				break;
+			}
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Tenant and user name, separated by a slash.
+	 */
+	static String owner(UserInfo user) {
+		if (user == null) {
+			return "/";
+		}
+		String tenant = user.getTenant();
+		return (tenant == null ? "" : tenant) + "/" + user.getName();
+	}
+}
@@ -0,0 +1,163 @@
+package my.bookshop.rag;
+
+import static my.bookshop.repository.bookshop.ChunkQuantizerRepository.STATUS_ENCODING;
+import static my.bookshop.repository.bookshop.ChunkQuantizerRepository.STATUS_READY;
+
+import cds.gen.my.bookshop.ChunkQuantizers;
+import com.sap.cds.services.runtime.CdsRuntime;
+import jakarta.annotation.PreDestroy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import my.bookshop.repository.bookshop.BookContentChunkRepository;
+import my.bookshop.repository.bookshop.BookContentChunkRepository.ChunkVector;
+import my.bookshop.repository.bookshop.ChunkQuantizerRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Trains the product-quantization codebook of the active index generation on a background thread and encodes all its
+ * chunks, see {@link PqChunkIndex}.
+ * <p>
+ * The codebook is trained on {@code rag.pq.training-sample-size} normalized embeddings and stored with the generation.
+ * The chunks are then encoded in pages of {@code batch-size}, each page in its own transaction together with the
+ * progress. The {@code pq} backend searches exactly until the generation's codebook is ready.
+ */
+@Component
+public class ChunkQuantizerTrainer {
+
+	private static final Logger logger = LoggerFactory.getLogger(ChunkQuantizerTrainer.class);
+
+	private static final int MAX_MESSAGE_LENGTH = 1000;
+
+	private final ChunkQuantizerRepository quantizerRepository;
+	private final BookContentChunkRepository chunkRepository;
+	private final EmbeddingGenerations generations;
+	private final PqChunkIndex pqChunkIndex;
+	private final PqProperties properties;
+	private final CdsRuntime runtime;
+	private final TenantContexts tenants;
+	private final Set<String> running = ConcurrentHashMap.newKeySet();
+	private final ExecutorService executor;
+
+	public ChunkQuantizerTrainer(ChunkQuantizerRepository quantizerRepository,
+			BookContentChunkRepository chunkRepository, EmbeddingGenerations generations, PqChunkIndex pqChunkIndex,
+			PqProperties properties, CdsRuntime runtime, TenantContexts tenants, BlockingExecutors executors) {
+		this.quantizerRepository = quantizerRepository;
+		this.chunkRepository = chunkRepository;
+		this.generations = generations;
+		this.pqChunkIndex = pqChunkIndex;
+		this.properties = properties;
+		this.runtime = runtime;
+		this.tenants = tenants;
+		this.executor = executors.serial("pq-training");
+	}
+
+	@PreDestroy
+	void stop() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Trains the codebook of the active generation again. A training that is still running on this instance is
+	 * returned without starting another one.
+	 */
+	public ChunkQuantizers start() {
+		int generation = generations.activeGeneration();
+		String tenant = tenants.currentTenant();
+		String key = (tenant == null ? "" : tenant) + "/" + generation;
+		if (!running.add(key)) {
+			return quantizerRepository.find(generation).orElseThrow();
+		}
+		try {
+			ChunkQuantizers quantizer = runtime.changeSetContext().run(changeSet -> {
+				return quantizerRepository.startTraining(generation);
+			});
+			// the previous codebook is gone, searches are exact until the new one is ready
+			pqChunkIndex.invalidate();
+			submit(tenant, key, generation);
+			return quantizer;
+		} catch (RuntimeException e) {
+			running.remove(key);
+			throw e;
+		}
+	}
+
+	private void submit(String tenant, String key, int generation) {
+		executor.execute(() -> {
+			try {
+				tenants.runAsSystemUser(tenant, () -> run(generation));
+			} finally {
+				running.remove(key);
+			}
+		});
+	}
+
+	private void run(int generation) {
+		try {
+			long start = System.nanoTime();
+			List<float[]> sample = chunkRepository
+					.findChunkVectors(generation, null, properties.getTrainingSampleSize(), false).stream()
+					.map(chunk -> VectorMath.normalize(chunk.vector()))
+					.toList();
+			ProductQuantizer quantizer = ProductQuantizer.train(sample, properties.getSubQuantizers(),
+					properties.getBits(), properties.getMaxIterations(), generation, properties.getTrainingThreads());
+			runtime.changeSetContext().run(changeSet -> {
+				quantizerRepository.storeCodebook(generation, quantizer, sample.size());
+			});
+			logger.info("Trained PQ codebook of index generation {} on {} chunks in {} ms", generation, sample.size(),
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+			int encoded = encode(generation, quantizer);
+			runtime.changeSetContext().run(changeSet -> {
+				quantizerRepository.updateProgress(generation, STATUS_READY, encoded);
+			});
+			pqChunkIndex.invalidate();
+			logger.info("Encoded {} chunks of index generation {} with its PQ codebook", encoded, generation);
+		} catch (RuntimeException e) {
+			logger.error("Training the PQ codebook of index generation {} failed", generation, e);
+			runtime.changeSetContext().run(changeSet -> {
+				quantizerRepository.markFailed(generation, truncate(e.getMessage()));
+			});
+		}
+	}
+
+	/**
+	 * Encodes all chunks of the generation, replacing the codes of a previous codebook.
+	 */
+	private int encode(int generation, ProductQuantizer quantizer) {
+		int batchSize = properties.getBatchSize();
+		int encoded = 0;
+		String afterId = null;
+		List<ChunkVector> page;
+		do {
+			page = chunkRepository.findChunkVectors(generation, afterId, batchSize, false);
+			Map<String, byte[]> codes = new HashMap<>();
+			for (ChunkVector chunk : page) {
+				if (chunk.vector().length == quantizer.dimension()) {
+					codes.put(chunk.chunkId(), quantizer.encode(VectorMath.normalize(chunk.vector())));
+				}
+			}
+			int total = encoded + codes.size();
+			runtime.changeSetContext().run(changeSet -> {
+				chunkRepository.updateCodes(codes);
+				quantizerRepository.updateProgress(generation, STATUS_ENCODING, total);
+			});
+			encoded = total;
+			afterId = page.isEmpty() ? afterId : page.get(page.size() - 1).chunkId();
+		} while (page.size() == batchSize);
+		return encoded;
+	}
+
+	private static String truncate(String message) {
+		if (message == null || message.length() <= MAX_MESSAGE_LENGTH) {
+			return message;
+		}
+		return message.substring(0, MAX_MESSAGE_LENGTH);
+	}
+}
@@ -0,0 +1,19 @@
+package my.bookshop.rag;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Searches the chunk embeddings of the active index generation of the current tenant. {@link RagRetrievalService}
+ * picks the backend per tenant by its {@link #name()}, see {@code rag.retrieval.backend}.
+ */
+public interface ChunkSearchBackend {
+
+	String name();
+
+	/**
+	 * @param bookIds the books to search the chunks of, or {@code null} for all books
+	 * @return up to {@code limit} chunks at least {@code minSimilarity} similar to the vector, most similar first
+	 */
+	List<BookChunkMatch> search(double[] vector, int limit, double minSimilarity, Collection<String> bookIds);
+}
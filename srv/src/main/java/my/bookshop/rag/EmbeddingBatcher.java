@@ -0,0 +1,49 @@
+package my.bookshop.rag;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Groups consecutive chunks into embedding requests that stay within the provider's per-request token and input
+ * limits, so short chunks share a request and long ones do not exceed it.
+ */
+class EmbeddingBatcher {
+
+	private final ToIntFunction<String> tokenCounter;
+	private final int maxTokens;
+	private final int maxInputs;
+	private final BatchSink sink;
+	private final List<BookTextChunk> chunks = new ArrayList<>();
+	private int tokens;
+
+	EmbeddingBatcher(ToIntFunction<String> tokenCounter, int maxTokens, int maxInputs, BatchSink sink) {
+		this.tokenCounter = tokenCounter;
+		this.maxTokens = Math.max(1, maxTokens);
+		this.maxInputs = Math.max(1, maxInputs);
+		this.sink = sink;
+	}
+
+	void add(BookTextChunk chunk) {
+		int chunkTokens = tokenCounter.applyAsInt(chunk.text());
+		if (!chunks.isEmpty() && (tokens + chunkTokens > maxTokens || chunks.size() >= maxInputs)) {
+			flush();
+		}
+		chunks.add(chunk);
+		tokens += chunkTokens;
+	}
+
+	void flush() {
+		if (chunks.isEmpty()) {
+			return;
+		}
+		sink.accept(List.copyOf(chunks), tokens);
+		chunks.clear();
+		tokens = 0;
+	}
+
+	interface BatchSink {
+
+		void accept(List<BookTextChunk> chunks, int tokens);
+	}
+}
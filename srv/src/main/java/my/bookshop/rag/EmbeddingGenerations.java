@@ -0,0 +1,150 @@
+package my.bookshop.rag;
+
+import static my.bookshop.repository.bookshop.EmbeddingGenerationRepository.STATUS_BUILDING;
+import static my.bookshop.repository.bookshop.EmbeddingGenerationRepository.STATUS_FAILED;
+
+import com.sap.cds.services.runtime.CdsRuntime;
+import java.util.ArrayList;
+import java.util.List;
+import my.bookshop.repository.bookshop.BookCentroidRepository;
+import my.bookshop.repository.bookshop.BookContentChunkRepository;
+import my.bookshop.repository.bookshop.BookshopBooksRepository;
+import my.bookshop.repository.bookshop.ChunkQuantizerRepository;
+import my.bookshop.repository.bookshop.EmbeddingGenerationRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Blue/green lifecycle of the chunk index.
+ * <p>
+ * A rebuild writes into a new BUILDING generation while retrieval keeps reading the ACTIVE one. Once complete, the
+ * new generation is validated and swapped in within one transaction, and the chunks of all other generations are
+ * deleted. Single-book changes during a rebuild are written to both generations. Chunks stored before generations
+ * existed belong to generation 0, which is active as long as no generation has been activated.
+ */
+@Component
+public class EmbeddingGenerations {
+
+	private static final Logger logger = LoggerFactory.getLogger(EmbeddingGenerations.class);
+
+	static final int INITIAL_GENERATION = 0;
+
+	private final EmbeddingGenerationRepository generationRepository;
+	private final BookContentChunkRepository chunkRepository;
+	private final BookCentroidRepository centroidRepository;
+	private final ChunkQuantizerRepository quantizerRepository;
+	private final BookshopBooksRepository bookshopBooksRepository;
+	private final SimilarBooksIndex similarBooksIndex;
+	private final IvfChunkIndex ivfChunkIndex;
+	private final PqChunkIndex pqChunkIndex;
+	private final CdsRuntime runtime;
+	private final double minCoverage;
+
+	public EmbeddingGenerations(EmbeddingGenerationRepository generationRepository,
+			BookContentChunkRepository chunkRepository, BookCentroidRepository centroidRepository,
+			ChunkQuantizerRepository quantizerRepository, BookshopBooksRepository bookshopBooksRepository,
+			SimilarBooksIndex similarBooksIndex, IvfChunkIndex ivfChunkIndex, PqChunkIndex pqChunkIndex,
+			CdsRuntime runtime, @Value("${rag.index.min-coverage:0.95}") double minCoverage) {
+		this.generationRepository = generationRepository;
+		this.chunkRepository = chunkRepository;
+		this.centroidRepository = centroidRepository;
+		this.quantizerRepository = quantizerRepository;
+		this.bookshopBooksRepository = bookshopBooksRepository;
+		this.similarBooksIndex = similarBooksIndex;
+		this.ivfChunkIndex = ivfChunkIndex;
+		this.pqChunkIndex = pqChunkIndex;
+		this.runtime = runtime;
+		this.minCoverage = minCoverage;
+	}
+
+	public int activeGeneration() {
+		return generationRepository.findActiveId().orElse(INITIAL_GENERATION);
+	}
+
+	public boolean isBuilding(int generation) {
+		return generationRepository.findIds(STATUS_BUILDING).contains(generation);
+	}
+
+	/**
+	 * @return the generations that single-book changes must be written to
+	 */
+	public List<Integer> writeTargets() {
+		List<Integer> targets = new ArrayList<>();
+		targets.add(activeGeneration());
+		generationRepository.findIds(STATUS_BUILDING).forEach(targets::add);
+		return targets;
+	}
+
+	/**
+	 * Registers a new BUILDING generation in its own transaction, so concurrent single-book changes see it.
+	 * Generations left BUILDING by an earlier, interrupted rebuild are abandoned.
+	 */
+	public int startBuild() {
+		return runtime.changeSetContext().run(changeSet -> {
+			generationRepository.findIds(STATUS_BUILDING).forEach(id -> {
+				logger.info("Abandoning unfinished index generation {}", id);
+				generationRepository.updateStatus(id, STATUS_FAILED);
+			});
+			int generation = generationRepository.nextId();
+			generationRepository.insert(generation, STATUS_BUILDING);
+			return generation;
+		});
+	}
+
+	/**
+	 * Validates the generation and, if it covers at least {@code rag.index.min-coverage} of all books, makes it the
+	 * active one. Otherwise the generation is marked as failed and the current one stays active.
+	 *
+	 * @return the validation result
+	 */
+	public Validation activate(int generation) {
+		Validation validation = runtime.changeSetContext().run(changeSet -> {
+			int indexedBooks = chunkRepository.countBooks(generation);
+			int totalBooks = bookshopBooksRepository.countBooks();
+			int chunks = chunkRepository.countChunks(generation);
+			double coverage = totalBooks == 0 ? 1.0 : (double) indexedBooks / totalBooks;
+			if (coverage < minCoverage) {
+				generationRepository.updateStatus(generation, STATUS_FAILED);
+				return new Validation(generation, indexedBooks, totalBooks, chunks, false);
+			}
+			generationRepository.retireActive();
+			generationRepository.activate(generation, indexedBooks, chunks);
+			return new Validation(generation, indexedBooks, totalBooks, chunks, true);
+		});
+		if (validation.activated()) {
+			chunkRepository.invalidateActiveGeneration();
+			similarBooksIndex.invalidate();
+			ivfChunkIndex.invalidate();
+			pqChunkIndex.invalidate();
+			logger.info("Activated index generation {} with {} chunks for {} books", generation, validation.chunks(),
+					validation.indexedBooks());
+		} else {
+			logger.warn("Index generation {} covers only {} of {} books; keeping the active generation", generation,
+					validation.indexedBooks(), validation.totalBooks());
+		}
+		return validation;
+	}
+
+	public void markFailed(int generation) {
+		runtime.changeSetContext().run(changeSet -> {
+			generationRepository.updateStatus(generation, STATUS_FAILED);
+		});
+	}
+
+	/**
+	 * Deletes the chunks, book centroids and PQ codebooks of all generations that are neither active nor being built.
+	 */
+	public void collectGarbage() {
+		runtime.changeSetContext().run(changeSet -> {
+			List<Integer> targets = writeTargets();
+			chunkRepository.deleteGenerationsExcept(targets);
+			centroidRepository.deleteGenerationsExcept(targets);
+			quantizerRepository.deleteGenerationsExcept(targets);
+		});
+	}
+
+	public record Validation(int generation, int indexedBooks, int totalBooks, int chunks, boolean activated) {
+	}
+}
@@ -0,0 +1,78 @@
+package my.bookshop.rag;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Request limits of the embedding provider, shared by all embedding callers through {@link EmbeddingRateGovernor}.
+ * The defaults follow the OpenAI embeddings endpoint; set the per-minute limits to those of the account.
+ */
+@Component
+@ConfigurationProperties(prefix = "rag.embedding")
+public class EmbeddingProperties {
+
+	private int requestsPerMinute = 3000;
+	private int tokensPerMinute = 1_000_000;
+	private int maxRequestTokens = 300_000;
+	private int maxRequestInputs = 2048;
+	private int maxRetries = 5;
+	private Duration initialBackoff = Duration.ofSeconds(1);
+	private Duration maxBackoff = Duration.ofMinutes(1);
+
+	public int getRequestsPerMinute() {
+		return requestsPerMinute;
+	}
+
+	public void setRequestsPerMinute(int requestsPerMinute) {
+		this.requestsPerMinute = requestsPerMinute;
+	}
+
+	public int getTokensPerMinute() {
+		return tokensPerMinute;
+	}
+
+	public void setTokensPerMinute(int tokensPerMinute) {
+		this.tokensPerMinute = tokensPerMinute;
+	}
+
+	public int getMaxRequestTokens() {
+		return maxRequestTokens;
+	}
+
+	public void setMaxRequestTokens(int maxRequestTokens) {
+		this.maxRequestTokens = maxRequestTokens;
+	}
+
+	public int getMaxRequestInputs() {
+		return maxRequestInputs;
+	}
+
+	public void setMaxRequestInputs(int maxRequestInputs) {
+		this.maxRequestInputs = maxRequestInputs;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	public Duration getInitialBackoff() {
+		return initialBackoff;
+	}
+
+	public void setInitialBackoff(Duration initialBackoff) {
+		this.initialBackoff = initialBackoff;
+	}
+
+	public Duration getMaxBackoff() {
+		return maxBackoff;
+	}
+
+	public void setMaxBackoff(Duration maxBackoff) {
+		this.maxBackoff = maxBackoff;
+	}
+}
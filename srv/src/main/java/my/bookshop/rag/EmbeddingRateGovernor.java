@@ -0,0 +1,317 @@
+package my.bookshop.rag;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+
+/**
+ * Keeps all embedding requests of this instance within the provider's requests-per-minute and tokens-per-minute
+ * limits.
+ * <p>
+ * Each request reserves one request and its token count from two token buckets that refill continuously at the
+ * configured rates, and waits until the reservation is covered. A rate-limited response pauses all callers for the
+ * time the provider asks for, or for an exponentially growing, jittered backoff if it gives no hint.
+ * <p>
+ * The wait time is taken from the {@code Retry-After} header, else from the {@code x-ratelimit-reset-*} header of the
+ * exhausted limit, else from the "try again in" hint of the error body.
+ */
+@Component
+public class EmbeddingRateGovernor {
+
+	private static final Logger logger = LoggerFactory.getLogger(EmbeddingRateGovernor.class);
+
+	private static final int TOO_MANY_REQUESTS = 429;
+	private static final Pattern RETRY_HINT = Pattern.compile("try again in (\\d+(?:\\.\\d+)?)\\s*(ms|s)\\b",
+			Pattern.CASE_INSENSITIVE);
+	// reset durations of the OpenAI rate-limit headers, e.g. "20ms", "1.5s" or "6m0s"
+	private static final Pattern RESET_PART = Pattern.compile("(\\d+(?:\\.\\d+)?)(ms|h|m|s)");
+	private static final List<String> LIMITS = List.of("requests", "tokens");
+
+	private final EmbeddingProperties properties;
+	private final RagTokenCounter tokenCounter;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final TokenBucket requestBucket;
+	private final TokenBucket tokenBucket;
+	private long pausedUntil;
+
+	public EmbeddingRateGovernor(EmbeddingProperties properties, RagTokenCounter tokenCounter) {
+		this(properties, tokenCounter, System.nanoTime());
+	}
+
+	EmbeddingRateGovernor(EmbeddingProperties properties, RagTokenCounter tokenCounter, long now) {
+		this.properties = properties;
+		this.tokenCounter = tokenCounter;
+		this.requestBucket = TokenBucket.perMinute(properties.getRequestsPerMinute(), now);
+		this.tokenBucket = TokenBucket.perMinute(properties.getTokensPerMinute(), now);
+		this.pausedUntil = now;
+	}
+
+	/**
+	 * Runs an embedding request for the given texts once the quota allows it, retrying it when it is rate limited.
+	 */
+	public <T> T execute(List<String> texts, Supplier<T> request) {
+		int requestTokens = texts.stream().mapToInt(tokenCounter::count).sum();
+		for (int attempt = 0;; attempt++) {
+			sleep(reserve(requestTokens, System.nanoTime()));
+			try {
+				return request.get();
+			} catch (RuntimeException e) {
+				if (!isRateLimited(e) || attempt >= properties.getMaxRetries()) {
+					throw e;
+				}
+				Duration backoff = rateLimited(e, attempt);
+				logger.warn("Embedding request of {} tokens was rate limited; pausing embeddings for {} ms",
+						requestTokens, backoff.toMillis());
+			}
+		}
+	}
+
+	/**
+	 * Reserves the quota for a request that is sent without blocking a thread, e.g. after a {@code Mono.delay}.
+	 *
+	 * @return time to wait before sending the request
+	 */
+	public Duration reserve(List<String> texts) {
+		int requestTokens = texts.stream().mapToInt(tokenCounter::count).sum();
+		return Duration.ofNanos(Math.max(0, reserve(requestTokens, System.nanoTime())));
+	}
+
+	/**
+	 * Reserves the quota for an optional request, e.g. a hedge, only if it is available right away.
+	 *
+	 * @return whether the quota was reserved
+	 */
+	public boolean tryReserve(List<String> texts) {
+		int requestTokens = texts.stream().mapToInt(tokenCounter::count).sum();
+		return tryReserve(requestTokens, System.nanoTime());
+	}
+
+	/**
+	 * Pauses all callers after a rate-limited response, for the time the provider asks for or else the backoff of the
+	 * given attempt.
+	 *
+	 * @return the length of the pause
+	 */
+	public Duration rateLimited(Throwable e, int attempt) {
+		Duration backoff = retryHint(e).orElse(backoff(attempt));
+		pause(backoff, System.nanoTime());
+		return backoff;
+	}
+
+	/**
+	 * Reserves one request and the tokens.
+	 *
+	 * @return nanoseconds to wait until the reservation is covered and no pause is in effect
+	 */
+	long reserve(int tokens, long now) {
+		lock.lock();
+		try {
+			long wait = Math.max(take(requestBucket, 1, now), take(tokenBucket, tokens, now));
+			return Math.max(wait, pausedUntil - now);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	boolean tryReserve(int tokens, long now) {
+		lock.lock();
+		try {
+			if (pausedUntil > now || !covers(requestBucket, 1, now) || !covers(tokenBucket, tokens, now)) {
+				return false;
+			}
+			take(requestBucket, 1, now);
+			take(tokenBucket, tokens, now);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void pause(Duration duration, long now) {
+		lock.lock();
+		try {
+			pausedUntil = Math.max(pausedUntil, now + duration.toNanos());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static long take(TokenBucket bucket, int amount, long now) {
+		return bucket == null ? 0 : bucket.take(amount, now);
+	}
+
+	private static boolean covers(TokenBucket bucket, int amount, long now) {
+		return bucket == null || bucket.available(now) >= amount;
+	}
+
+	private Duration backoff(int attempt) {
+		long initial = properties.getInitialBackoff().toMillis();
+		long capped = Math.min(properties.getMaxBackoff().toMillis(), initial << Math.min(attempt, 20));
+		// equal jitter: keep half of the backoff, randomize the other half
+		return Duration.ofMillis(capped / 2 + ThreadLocalRandom.current().nextLong(capped / 2 + 1));
+	}
+
+	static boolean isRateLimited(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof WebClientResponseException http && http.getStatusCode().value() == TOO_MANY_REQUESTS) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the wait time the provider states in the response headers or else in the error body, e.g. "Please try
+	 * again in 1.5s".
+	 */
+	static Optional<Duration> retryHint(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof WebClientResponseException http) {
+				Optional<Duration> header = headerHint(http.getHeaders());
+				if (header.isPresent()) {
+					return header;
+				}
+			}
+		}
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			String message = cause instanceof WebClientResponseException http
+					? http.getResponseBodyAsString()
+					: cause.getMessage();
+			Matcher matcher = message == null ? null : RETRY_HINT.matcher(message);
+			if (matcher != null && matcher.find()) {
+				double value = Double.parseDouble(matcher.group(1));
+				double millis = "ms".equalsIgnoreCase(matcher.group(2)) ? value : value * 1000;
+				return Optional.of(Duration.ofMillis((long) Math.ceil(millis)));
+			}
+		}
+		return Optional.empty();
+	}
+
+	static Optional<Duration> headerHint(HttpHeaders headers) {
+		if (headers == null) {
+			return Optional.empty();
+		}
+		Optional<Duration> retryAfter = retryAfter(headers.getFirst(HttpHeaders.RETRY_AFTER));
+		if (retryAfter.isPresent()) {
+			return retryAfter;
+		}
+		// wait for the later reset of the exhausted limits; without remaining counts, both count as exhausted
+		Duration reset = null;
+		for (String limit : LIMITS) {
+			String remaining = headers.getFirst("x-ratelimit-remaining-" + limit);
+			Optional<Duration> limitReset = resetDuration(headers.getFirst("x-ratelimit-reset-" + limit));
+			if (limitReset.isPresent() && (remaining == null || "0".equals(remaining.trim()))
+					&& (reset == null || limitReset.get().compareTo(reset) > 0)) {
+				reset = limitReset.get();
+			}
+		}
+		return Optional.ofNullable(reset);
+	}
+
+	/**
+	 * Parses delay seconds or an HTTP date.
+	 */
+	private static Optional<Duration> retryAfter(String value) {
+		if (value == null || value.isBlank()) {
+			return Optional.empty();
+		}
+		try {
+			return Optional.of(Duration.ofMillis((long) Math.ceil(Double.parseDouble(value.trim()) * 1000)));
+		} catch (NumberFormatException e) {
+			try {
+				ZonedDateTime date = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+				Duration wait = Duration.between(ZonedDateTime.now(date.getZone()), date);
+				return Optional.of(wait.isNegative() ? Duration.ZERO : wait);
+			} catch (DateTimeParseException invalid) {
+				return Optional.empty();
+			}
+		}
+	}
+
+	private static Optional<Duration> resetDuration(String value) {
+		if (value == null || value.isBlank()) {
+			return Optional.empty();
+		}
+		Matcher matcher = RESET_PART.matcher(value.trim());
+		double millis = 0;
+		int end = 0;
+		while (matcher.find() && matcher.start() == end) {
+			double amount = Double.parseDouble(matcher.group(1));
+			millis += switch (matcher.group(2)) {
+				case "h" -> amount * 3_600_000;
+				case "m" -> amount * 60_000;
+				case "s" -> amount * 1000;
+				default -> amount;
+			};
+			end = matcher.end();
+		}
+		return end > 0 && end == value.trim().length()
+				? Optional.of(Duration.ofMillis((long) Math.ceil(millis)))
+				: Optional.empty();
+	}
+
+	private static void sleep(long nanos) {
+		if (nanos <= 0) {
+			return;
+		}
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the embedding quota", e);
+		}
+	}
+
+	/**
+	 * Refills continuously up to one minute's quota. Takes may overdraw it; the caller then waits until the debt is
+	 * refilled, which spaces out requests at the configured rate.
+	 */
+	private static final class TokenBucket {
+
+		private final double capacity;
+		private final double refillPerNano;
+		private double available;
+		private long updatedAt;
+
+		private TokenBucket(int perMinute, long now) {
+			this.capacity = perMinute;
+			this.refillPerNano = perMinute / (double) TimeUnit.MINUTES.toNanos(1);
+			this.available = perMinute;
+			this.updatedAt = now;
+		}
+
+		/**
+		 * @return the bucket, or {@code null} if the limit is disabled
+		 */
+		static TokenBucket perMinute(int perMinute, long now) {
+			return perMinute > 0 ? new TokenBucket(perMinute, now) : null;
+		}
+
+		double available(long now) {
+			if (now > updatedAt) {
+				available = Math.min(capacity, available + (now - updatedAt) * refillPerNano);
+				updatedAt = now;
+			}
+			return available;
+		}
+
+		long take(double amount, long now) {
+			available = available(now) - amount;
+			return available >= 0 ? 0 : (long) Math.ceil(-available / refillPerNano);
+		}
+	}
+}
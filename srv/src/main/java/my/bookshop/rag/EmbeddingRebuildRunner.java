@@ -0,0 +1,297 @@
+package my.bookshop.rag;
+
+import static my.bookshop.repository.bookshop.EmbeddingRebuildJobRepository.RETRY_DONE;
+import static my.bookshop.repository.bookshop.EmbeddingRebuildJobRepository.RETRY_FAILED;
+import static my.bookshop.repository.bookshop.EmbeddingRebuildJobRepository.RETRY_PENDING;
+import static my.bookshop.repository.bookshop.EmbeddingRebuildJobRepository.STATUS_COMPLETED;
+import static my.bookshop.repository.bookshop.EmbeddingRebuildJobRepository.STATUS_FAILED;
+import static my.bookshop.repository.bookshop.EmbeddingRebuildJobRepository.STATUS_INTERRUPTED;
+import static my.bookshop.repository.bookshop.EmbeddingRebuildJobRepository.STATUS_RUNNING;
+
+import cds.gen.my.bookshop.Books;
+import cds.gen.my.bookshop.EmbeddingRebuildJobs;
+import cds.gen.my.bookshop.EmbeddingRebuildRetries;
+import com.sap.cds.services.runtime.CdsRuntime;
+import jakarta.annotation.PreDestroy;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import my.bookshop.rag.BookEmbeddingService.IndexResult;
+import my.bookshop.rag.EmbeddingGenerations.Validation;
+import my.bookshop.repository.bookshop.BookshopBooksRepository;
+import my.bookshop.repository.bookshop.EmbeddingRebuildJobRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs rebuilds of the chunk index as persistent jobs on a background thread.
+ * <p>
+ * Each book is indexed in one transaction together with the job checkpoint, so a rebuild that was interrupted by a
+ * restart or an error resumes after the last indexed book when it is started again. Embedding batches that fail are
+ * queued and retried with exponential backoff before the new generation is validated and activated.
+ */
+@Component
+public class EmbeddingRebuildRunner {
+
+	private static final Logger logger = LoggerFactory.getLogger(EmbeddingRebuildRunner.class);
+
+	private static final int PAGE_SIZE = 100;
+	private static final int MAX_MESSAGE_LENGTH = 1000;
+
+	private final EmbeddingRebuildJobRepository jobRepository;
+	private final BookshopBooksRepository bookshopBooksRepository;
+	private final BookEmbeddingService embeddingService;
+	private final EmbeddingGenerations generations;
+	private final CdsRuntime runtime;
+	private final TenantContexts tenants;
+	private final int maxRetryAttempts;
+	private final Duration retryBackoff;
+	private final Duration staleAfter;
+	private final Set<String> runningJobs = ConcurrentHashMap.newKeySet();
+	private final ExecutorService executor;
+
+	public EmbeddingRebuildRunner(EmbeddingRebuildJobRepository jobRepository,
+			BookshopBooksRepository bookshopBooksRepository, BookEmbeddingService embeddingService,
+			EmbeddingGenerations generations, CdsRuntime runtime, TenantContexts tenants, BlockingExecutors executors,
+			@Value("${rag.index.retry-attempts:3}") int maxRetryAttempts,
+			@Value("${rag.index.retry-backoff:30s}") Duration retryBackoff,
+			@Value("${rag.index.stale-after:10m}") Duration staleAfter) {
+		this.jobRepository = jobRepository;
+		this.bookshopBooksRepository = bookshopBooksRepository;
+		this.embeddingService = embeddingService;
+		this.generations = generations;
+		this.runtime = runtime;
+		this.tenants = tenants;
+		this.maxRetryAttempts = Math.max(1, maxRetryAttempts);
+		this.retryBackoff = retryBackoff;
+		this.staleAfter = staleAfter;
+		this.executor = executors.serial("embedding-rebuild");
+	}
+
+	/**
+	 * Resumes the latest unfinished rebuild or starts a new one. A job that is still making progress, here or on
+	 * another instance, is returned without starting it again.
+	 */
+	public EmbeddingRebuildJobs start() {
+		Launch launch = runtime.changeSetContext().run(changeSet -> {
+			Optional<EmbeddingRebuildJobs> unfinished = jobRepository.findLatestUnfinished();
+			if (unfinished.isPresent()) {
+				EmbeddingRebuildJobs job = unfinished.get();
+				if (isAlive(job)) {
+					return new Launch(job, false);
+				}
+				if (generations.isBuilding(job.getGeneration())) {
+					logger.info("Resuming rebuild job {} after {} of {} books", job.getId(), job.getBooksProcessed(),
+							job.getTotalBooks());
+					jobRepository.updateStatus(job.getId(), STATUS_RUNNING, null);
+					job.setStatus(STATUS_RUNNING);
+					return new Launch(job, true);
+				}
+				// the generation was activated or abandoned after the job's last checkpoint
+				boolean activated = job.getGeneration() == generations.activeGeneration();
+				jobRepository.updateStatus(job.getId(), activated ? STATUS_COMPLETED : STATUS_FAILED,
+						activated ? null : "Index generation " + job.getGeneration() + " is no longer being built");
+			}
+			int generation = generations.startBuild();
+			return new Launch(jobRepository.createJob(generation, bookshopBooksRepository.countBooks()), true);
+		});
+		if (launch.run() && runningJobs.add(launch.job().getId())) {
+			submit(launch.job());
+		}
+		return launch.job();
+	}
+
+	private boolean isAlive(EmbeddingRebuildJobs job) {
+		if (!STATUS_RUNNING.equals(job.getStatus())) {
+			return false;
+		}
+		if (runningJobs.contains(job.getId())) {
+			return true;
+		}
+		Instant lastSignOfLife = job.getLastCheckpointAt() != null ? job.getLastCheckpointAt() : job.getCreatedAt();
+		return lastSignOfLife != null && lastSignOfLife.isAfter(Instant.now().minus(staleAfter));
+	}
+
+	private void submit(EmbeddingRebuildJobs job) {
+		Runnable work = tenants.bindToSystemUser(() -> run(job));
+		executor.execute(() -> {
+			try {
+				work.run();
+			} finally {
+				runningJobs.remove(job.getId());
+			}
+		});
+	}
+
+	private void run(EmbeddingRebuildJobs job) {
+		RunStart runStart = new RunStart(Instant.now(), defaultInt(job.getBooksProcessed()),
+				defaultLong(job.getTokensEmbedded()));
+		try {
+			indexBooks(job, runStart);
+			retryFailedBatches(job);
+			complete(job);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			interrupted(job, "Rebuild was stopped");
+		} catch (RuntimeException e) {
+			logger.error("Rebuild job {} interrupted; it resumes after book {} when started again", job.getId(),
+					job.getLastBookId(), e);
+			interrupted(job, e.getMessage());
+		}
+	}
+
+	/**
+	 * Indexes the books after the checkpoint in ID order, one transaction per book including its checkpoint.
+	 */
+	private void indexBooks(EmbeddingRebuildJobs job, RunStart runStart) {
+		List<Books> page;
+		do {
+			page = bookshopBooksRepository.findTextHeaderPage(job.getLastBookId(), PAGE_SIZE);
+			for (Books book : page) {
+				runtime.changeSetContext().run(changeSet -> {
+					IndexResult result = embeddingService.indexBook(book, job.getGeneration());
+					result.failedBatches().forEach(batch -> jobRepository.addRetry(job.getId(), book.getId(),
+							batch.firstChunk(), batch.chunkCount(), truncate(batch.error())));
+					job.setLastBookId(book.getId());
+					job.setBooksProcessed(defaultInt(job.getBooksProcessed()) + 1);
+					job.setBatchesFailed(defaultInt(job.getBatchesFailed()) + result.failedBatches().size());
+					addEmbedded(job, result);
+					updateRates(job, runStart, Instant.now());
+					jobRepository.updateJob(checkpoint(job));
+				});
+			}
+		} while (page.size() == PAGE_SIZE);
+	}
+
+	/**
+	 * Retries the queued batches in rounds with exponential backoff until each has succeeded or used up its attempts.
+	 */
+	private void retryFailedBatches(EmbeddingRebuildJobs job) throws InterruptedException {
+		List<EmbeddingRebuildRetries> pending;
+		int round = 0;
+		while (!(pending = jobRepository.findRetries(job.getId(), RETRY_PENDING)).isEmpty()) {
+			Thread.sleep(retryBackoff.multipliedBy(1L << Math.min(round++, 10)).toMillis());
+			logger.info("Retrying {} failed embedding batches of rebuild job {}", pending.size(), job.getId());
+			for (EmbeddingRebuildRetries retry : pending) {
+				runtime.changeSetContext().run(changeSet -> {
+					IndexResult result = embeddingService.retryBatch(retry.getBookId(), job.getGeneration(),
+							retry.getFirstChunk(), retry.getChunkCount());
+					retry.setAttempts(defaultInt(retry.getAttempts()) + 1);
+					if (result.failedBatches().isEmpty()) {
+						retry.setStatus(RETRY_DONE);
+						job.setBatchesRecovered(defaultInt(job.getBatchesRecovered()) + 1);
+						addEmbedded(job, result);
+					} else {
+						retry.setLastError(truncate(result.failedBatches().get(0).error()));
+						retry.setStatus(retry.getAttempts() >= maxRetryAttempts ? RETRY_FAILED : RETRY_PENDING);
+					}
+					jobRepository.updateRetry(retry);
+					job.setLastCheckpointAt(Instant.now());
+					jobRepository.updateJob(checkpoint(job));
+				});
+			}
+		}
+	}
+
+	private void complete(EmbeddingRebuildJobs job) {
+		Validation validation = generations.activate(job.getGeneration());
+		generations.collectGarbage();
+		runtime.changeSetContext().run(changeSet -> {
+			job.setStatus(validation.activated() ? STATUS_COMPLETED : STATUS_FAILED);
+			job.setMessage(validation.activated() ? null
+					: "Index covers only " + validation.indexedBooks() + " of " + validation.totalBooks() + " books");
+			job.setEstimatedCompletion(Instant.now());
+			jobRepository.updateJob(checkpoint(job));
+		});
+	}
+
+	private void interrupted(EmbeddingRebuildJobs job, String message) {
+		try {
+			runtime.changeSetContext().run(changeSet -> {
+				jobRepository.updateStatus(job.getId(), STATUS_INTERRUPTED, truncate(message));
+			});
+		} catch (RuntimeException e) {
+			logger.error("Could not mark rebuild job {} as interrupted", job.getId(), e);
+		}
+	}
+
+	private static void addEmbedded(EmbeddingRebuildJobs job, IndexResult result) {
+		job.setChunksEmbedded(defaultInt(job.getChunksEmbedded()) + result.chunks());
+		job.setTokensEmbedded(defaultLong(job.getTokensEmbedded()) + result.tokens());
+	}
+
+	/**
+	 * Sets throughput and ETA from the progress made since the current run started, so time spent before an
+	 * interruption does not distort the rates.
+	 */
+	static void updateRates(EmbeddingRebuildJobs job, RunStart runStart, Instant now) {
+		job.setLastCheckpointAt(now);
+		double minutes = Duration.between(runStart.startedAt(), now).toMillis() / 60_000.0;
+		if (minutes <= 0) {
+			return;
+		}
+		double booksPerMinute = (defaultInt(job.getBooksProcessed()) - runStart.booksProcessed()) / minutes;
+		double tokensPerMinute = (defaultLong(job.getTokensEmbedded()) - runStart.tokensEmbedded()) / minutes;
+		job.setBooksPerMinute(BigDecimal.valueOf(booksPerMinute).setScale(2, RoundingMode.HALF_UP));
+		job.setTokensPerMinute((int) Math.round(tokensPerMinute));
+		if (booksPerMinute > 0) {
+			int remaining = Math.max(0, defaultInt(job.getTotalBooks()) - defaultInt(job.getBooksProcessed()));
+			job.setEstimatedCompletion(now.plusMillis(Math.round(remaining / booksPerMinute * 60_000)));
+		}
+	}
+
+	/**
+	 * @return the progress fields of the job, leaving the managed fields to the runtime
+	 */
+	private static EmbeddingRebuildJobs checkpoint(EmbeddingRebuildJobs job) {
+		EmbeddingRebuildJobs checkpoint = EmbeddingRebuildJobs.create();
+		checkpoint.setId(job.getId());
+		checkpoint.setStatus(job.getStatus());
+		checkpoint.setBooksProcessed(job.getBooksProcessed());
+		checkpoint.setChunksEmbedded(job.getChunksEmbedded());
+		checkpoint.setTokensEmbedded(job.getTokensEmbedded());
+		checkpoint.setBatchesFailed(job.getBatchesFailed());
+		checkpoint.setBatchesRecovered(job.getBatchesRecovered());
+		checkpoint.setLastBookId(job.getLastBookId());
+		checkpoint.setLastCheckpointAt(job.getLastCheckpointAt());
+		checkpoint.setBooksPerMinute(job.getBooksPerMinute());
+		checkpoint.setTokensPerMinute(job.getTokensPerMinute());
+		checkpoint.setEstimatedCompletion(job.getEstimatedCompletion());
+		checkpoint.setMessage(job.getMessage());
+		return checkpoint;
+	}
+
+	private static String truncate(String message) {
+		if (message == null || message.length() <= MAX_MESSAGE_LENGTH) {
+			return message;
+		}
+		return message.substring(0, MAX_MESSAGE_LENGTH);
+	}
+
+	private static int defaultInt(Integer value) {
+		return value == null ? 0 : value;
+	}
+
+	private static long defaultLong(Long value) {
+		return value == null ? 0L : value;
+	}
+
+	@PreDestroy
+	void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private record Launch(EmbeddingRebuildJobs job, boolean run) {
+	}
+
+	record RunStart(Instant startedAt, int booksProcessed, long tokensEmbedded) {
+	}
+}
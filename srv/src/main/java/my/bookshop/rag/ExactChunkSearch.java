@@ -0,0 +1,34 @@
+package my.bookshop.rag;
+
+import java.util.Collection;
+import java.util.List;
+import my.bookshop.repository.bookshop.BookContentChunkRepository;
+import org.springframework.stereotype.Component;
+
+/**
+ * Compares the query with every chunk embedding in the database, which always finds the most similar chunks.
+ */
+@Component
+public class ExactChunkSearch implements ChunkSearchBackend {
+
+	public static final String NAME = "exact";
+
+	private final BookContentChunkRepository chunkRepository;
+
+	public ExactChunkSearch(BookContentChunkRepository chunkRepository) {
+		this.chunkRepository = chunkRepository;
+	}
+
+	@Override
+	public String name() {
+		return NAME;
+	}
+
+	@Override
+	public List<BookChunkMatch> search(double[] vector, int limit, double minSimilarity, Collection<String> bookIds) {
+		if (bookIds == null) {
+			return chunkRepository.findSimilarChunks(vector, limit, minSimilarity);
+		}
+		return chunkRepository.findSimilarChunksOfBooks(vector, limit, minSimilarity, bookIds);
+	}
+}
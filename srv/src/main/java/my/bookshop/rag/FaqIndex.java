@@ -0,0 +1,281 @@
+package my.bookshop.rag;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sap.cds.services.runtime.CdsRuntime;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+/**
+ * Answers frequent questions from the question/answer pairs generated for fine-tuning
+ * ({@code scripts/generate_answers.py}), without calling the chat model.
+ * <p>
+ * The pairs are read from {@code rag.faq.file}, one JSON object per line, either in the training format
+ * ({@code input} ending with {@code QUESTION: ...}, {@code output}) or as {@code question} and {@code answer}. An
+ * optional {@code embedding} array saves embedding the question; otherwise questions are embedded with the
+ * retrieval model on load. The normalized question vectors are kept in one flat array and scanned exactly, which
+ * takes well under a millisecond for some thousand pairs. The file is checked every {@code reload-interval} and
+ * reloaded when it changed; questions that were already loaded keep their vectors, and lookups use the previous
+ * index until the new one is complete.
+ */
+@Component
+public class FaqIndex {
+
+	private static final Logger logger = LoggerFactory.getLogger(FaqIndex.class);
+
+	static final String LOOKUP_METRIC = "rag.faq.lookups";
+	private static final String QUESTION_MARKER = "QUESTION:";
+
+	private final FaqProperties properties;
+	private final RagAiClient aiClient;
+	private final EmbeddingProperties embeddingProperties;
+	private final CdsRuntime runtime;
+	private final MeterRegistry meterRegistry;
+	private final ObjectMapper objectMapper;
+	private ScheduledExecutorService scheduler;
+	private volatile Snapshot snapshot = Snapshot.EMPTY;
+	private FileStamp loadedStamp;
+
+	public FaqIndex(FaqProperties properties, @Qualifier("openAiClient") RagAiClient aiClient,
+			EmbeddingProperties embeddingProperties, CdsRuntime runtime, MeterRegistry meterRegistry,
+			ObjectMapper objectMapper) {
+		this.properties = properties;
+		this.aiClient = aiClient;
+		this.embeddingProperties = embeddingProperties;
+		this.runtime = runtime;
+		this.meterRegistry = meterRegistry;
+		this.objectMapper = objectMapper;
+		Gauge.builder("rag.faq.entries", this, FaqIndex::size).register(meterRegistry);
+	}
+
+	@PostConstruct
+	void start() {
+		if (!properties.isEnabled()) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "rag-faq-reload");
+			thread.setDaemon(true);
+			return thread;
+		});
+		// the first load embeds the questions, so it must not delay the application start
+		scheduler.scheduleWithFixedDelay(this::reloadIfChanged, 0, properties.getReloadInterval().toMillis(),
+				TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	public int size() {
+		return snapshot.entries().size();
+	}
+
+	/**
+	 * @param vector the embedding of the user's question, from the retrieval model
+	 * @return the stored answer of the most similar question, if it is at least {@code rag.faq.min-similarity} similar
+	 */
+	public Optional<Answer> lookup(double[] vector) {
+		Snapshot current = snapshot;
+		if (current.entries().isEmpty() || vector == null || vector.length != current.dimension()) {
+			return Optional.empty();
+		}
+		float[] query = VectorMath.normalize(vector);
+		int best = -1;
+		double bestScore = Double.NEGATIVE_INFINITY;
+		for (int row = 0; row < current.entries().size(); row++) {
+			double score = dot(current.vectors(), row * current.dimension(), query);
+			if (score > bestScore) {
+				bestScore = score;
+				best = row;
+			}
+		}
+		boolean hit = bestScore >= properties.getMinSimilarity();
+		meterRegistry.counter(LOOKUP_METRIC, "result", hit ? "hit" : "miss").increment();
+		if (!hit) {
+			return Optional.empty();
+		}
+		Entry entry = current.entries().get(best);
+		return Optional.of(new Answer(entry.question(), entry.response(), bestScore));
+	}
+
+	/**
+	 * Reloads the file if its size or modification time changed since the last load. Failures keep the current index.
+	 */
+	void reloadIfChanged() {
+		Path file = Path.of(properties.getFile());
+		if (!Files.isRegularFile(file)) {
+			logger.debug("FAQ file {} does not exist; keeping {} loaded answers", file, size());
+			return;
+		}
+		try {
+			FileStamp stamp = FileStamp.of(file);
+			if (stamp.equals(loadedStamp)) {
+				return;
+			}
+			snapshot = load(file);
+			loadedStamp = stamp;
+			logger.info("Loaded {} FAQ answers from {}", snapshot.entries().size(), file);
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Failed to load FAQ answers from {}; keeping {} loaded answers", file, size(), e);
+		}
+	}
+
+	private Snapshot load(Path file) throws IOException {
+		Map<String, PendingEntry> byQuestion = new LinkedHashMap<>();
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.isBlank()) {
+					parse(objectMapper.readTree(line)).ifPresent(entry -> byQuestion.putIfAbsent(entry.key(), entry));
+				}
+			}
+		}
+		List<PendingEntry> pending = new ArrayList<>(byQuestion.values());
+		Snapshot previous = snapshot;
+		List<String> missing = pending.stream()
+				.filter(entry -> entry.vector() == null && previous.vector(entry.key()) == null)
+				.map(PendingEntry::question)
+				.toList();
+		Map<String, float[]> embedded = embed(missing);
+
+		List<Entry> entries = new ArrayList<>(pending.size());
+		List<float[]> vectors = new ArrayList<>(pending.size());
+		for (PendingEntry entry : pending) {
+			float[] vector = entry.vector() != null
+					? VectorMath.normalize(entry.vector())
+					: previous.vector(entry.key());
+			if (vector == null) {
+				vector = embedded.get(entry.question());
+			}
+			if (vector == null || !vectors.isEmpty() && vector.length != vectors.get(0).length) {
+				logger.debug("Skipping FAQ question without a matching embedding: {}", entry.question());
+				continue;
+			}
+			entries.add(new Entry(entry.question(), entry.response()));
+			vectors.add(vector);
+		}
+		return Snapshot.of(entries, vectors);
+	}
+
+	private Map<String, float[]> embed(List<String> questions) {
+		Map<String, float[]> vectors = new HashMap<>();
+		int batchSize = Math.max(1, embeddingProperties.getMaxRequestInputs());
+		for (int from = 0; from < questions.size(); from += batchSize) {
+			List<String> batch = questions.subList(from, Math.min(questions.size(), from + batchSize));
+			List<double[]> embeddings = runtime == null ? aiClient.embed(batch)
+					: runtime.requestContext().systemUserProvider().run(context -> {
+						return aiClient.embed(batch);
+					});
+			for (int i = 0; i < batch.size() && i < embeddings.size(); i++) {
+				if (embeddings.get(i).length > 0) {
+					vectors.put(batch.get(i), VectorMath.normalize(embeddings.get(i)));
+				}
+			}
+		}
+		return vectors;
+	}
+
+	static Optional<PendingEntry> parse(JsonNode node) {
+		String question = node.hasNonNull("question") ? node.get("question").asText()
+				: questionOf(node.path("input").asText(""));
+		JsonNode answer = node.hasNonNull("answer") ? node.get("answer") : node.path("output");
+		String response = answer.isTextual() ? answer.asText() : answer.isMissingNode() ? "" : answer.toString();
+		if (question.isBlank() || response.isBlank()) {
+			return Optional.empty();
+		}
+		JsonNode embedding = node.path("embedding");
+		double[] vector = null;
+		if (embedding.isArray() && !embedding.isEmpty()) {
+			vector = new double[embedding.size()];
+			for (int i = 0; i < vector.length; i++) {
+				vector[i] = embedding.get(i).asDouble();
+			}
+		}
+		return Optional.of(new PendingEntry(question.trim(), response, vector));
+	}
+
+	private static String questionOf(String input) {
+		int marker = input.lastIndexOf(QUESTION_MARKER);
+		return marker < 0 ? "" : input.substring(marker + QUESTION_MARKER.length()).trim();
+	}
+
+	private static double dot(float[] vectors, int offset, float[] query) {
+		return VectorMath.dot(vectors, offset, query, 0, query.length);
+	}
+
+	/**
+	 * @param response the stored answer, usually the JSON payload the chat model would have returned
+	 */
+	public record Answer(String question, String response, double similarity) {
+	}
+
+	private record Entry(String question, String response) {
+	}
+
+	record PendingEntry(String question, String response, double[] vector) {
+
+		String key() {
+			return question.toLowerCase(Locale.ROOT);
+		}
+	}
+
+	private record FileStamp(long lastModified, long size) {
+
+		static FileStamp of(Path file) throws IOException {
+			return new FileStamp(Files.getLastModifiedTime(file).toMillis(), Files.size(file));
+		}
+	}
+
+	/**
+	 * Immutable index state; the vectors of all entries are stored row by row in one array.
+	 */
+	private record Snapshot(List<Entry> entries, float[] vectors, int dimension, Map<String, Integer> rows) {
+
+		static final Snapshot EMPTY = new Snapshot(List.of(), new float[0], 0, Map.of());
+
+		static Snapshot of(List<Entry> entries, List<float[]> vectors) {
+			if (entries.isEmpty()) {
+				return EMPTY;
+			}
+			int dimension = vectors.get(0).length;
+			float[] matrix = new float[entries.size() * dimension];
+			Map<String, Integer> rows = new HashMap<>();
+			for (int row = 0; row < entries.size(); row++) {
+				System.arraycopy(vectors.get(row), 0, matrix, row * dimension, dimension);
+				rows.put(entries.get(row).question().toLowerCase(Locale.ROOT), row);
+			}
+			return new Snapshot(List.copyOf(entries), matrix, dimension, rows);
+		}
+
+		float[] vector(String key) {
+			Integer row = rows.get(key);
+			return row == null ? null : Arrays.copyOfRange(vectors, row * dimension, (row + 1) * dimension);
+		}
+	}
+}
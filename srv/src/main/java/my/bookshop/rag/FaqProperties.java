@@ -0,0 +1,50 @@
+package my.bookshop.rag;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Source file and match threshold of the {@link FaqIndex}.
+ */
+@Component
+@ConfigurationProperties(prefix = "rag.faq")
+public class FaqProperties {
+
+	private boolean enabled = false;
+	private String file = "data/training_dataset.jsonl";
+	private double minSimilarity = 0.92;
+	private Duration reloadInterval = Duration.ofMinutes(1);
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public String getFile() {
+		return file;
+	}
+
+	public void setFile(String file) {
+		this.file = file;
+	}
+
+	public double getMinSimilarity() {
+		return minSimilarity;
+	}
+
+	public void setMinSimilarity(double minSimilarity) {
+		this.minSimilarity = minSimilarity;
+	}
+
+	public Duration getReloadInterval() {
+		return reloadInterval;
+	}
+
+	public void setReloadInterval(Duration reloadInterval) {
+		this.reloadInterval = reloadInterval;
+	}
+}
@@ -0,0 +1,733 @@
+package my.bookshop.rag;
+
+import com.sap.cds.services.request.RequestContext;
+import com.sap.cds.services.runtime.CdsRuntime;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import my.bookshop.repository.bookshop.BookContentChunkRepository;
+import my.bookshop.repository.bookshop.BookContentChunkRepository.ChunkPersistRequest;
+import my.bookshop.repository.bookshop.BookContentChunkRepository.ChunkVector;
+import my.bookshop.repository.bookshop.EmbeddingGenerationRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Inverted-file (IVF) index over the chunk embeddings of the active index generation, an in-memory alternative to the
+ * exact search in the database.
+ * <p>
+ * The normalized embeddings are clustered with spherical k-means into {@code rag.ivf.lists} lists, by default the
+ * square root of the number of chunks. A query is compared with the list centroids and scans only the chunks of the
+ * {@code nprobe} nearest lists. Chunks stored by this instance are appended to the list of their nearest centroid
+ * right away, without retraining; deletions scan the lists.
+ * <p>
+ * The index of a tenant is loaded from the database in pages of {@code batch-size} and trained in the background on
+ * first use; until it is ready, the tenant's searches are exact. It is reloaded and retrained in the background once
+ * the appended chunks drift from the centroids, i.e. their mean distance to their centroid exceeds that of the
+ * trained chunks by {@code drift-threshold}, once it grew by {@code max-growth}, and after {@code refresh-interval}
+ * to pick up the changes of other instances. Searches use the previous index until the new one is trained; chunks
+ * stored or deleted meanwhile are replayed on the new one before it replaces the previous one.
+ */
+@Component
+public class IvfChunkIndex implements ChunkSearchBackend {
+
+	private static final Logger logger = LoggerFactory.getLogger(IvfChunkIndex.class);
+
+	public static final String NAME = "ivf";
+	static final String RETRAINING_METRIC = "rag.ivf.retrainings";
+
+	private final BookContentChunkRepository chunkRepository;
+	private final EmbeddingGenerationRepository generationRepository;
+	private final ExactChunkSearch exactSearch;
+	private final IvfProperties properties;
+	private final CdsRuntime runtime;
+	private final MeterRegistry meterRegistry;
+	private final Map<String, Clusters> tenants = new ConcurrentHashMap<>();
+	private final Map<String, Training> trainings = new ConcurrentHashMap<>();
+	private final ExecutorService trainingExecutor;
+	private ScheduledExecutorService scheduler;
+
+	public IvfChunkIndex(BookContentChunkRepository chunkRepository,
+			EmbeddingGenerationRepository generationRepository, ExactChunkSearch exactSearch, IvfProperties properties,
+			CdsRuntime runtime, MeterRegistry meterRegistry, BlockingExecutors executors) {
+		this.chunkRepository = chunkRepository;
+		this.generationRepository = generationRepository;
+		this.exactSearch = exactSearch;
+		this.properties = properties;
+		this.runtime = runtime;
+		this.meterRegistry = meterRegistry;
+		this.trainingExecutor = executors.perTask("rag-ivf-training");
+		Gauge.builder("rag.ivf.chunks", this, IvfChunkIndex::size).register(meterRegistry);
+	}
+
+	@PostConstruct
+	void start() {
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "rag-ivf-drift");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long interval = properties.getCheckInterval().toMillis();
+		scheduler.scheduleWithFixedDelay(this::checkDrift, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+		trainingExecutor.shutdownNow();
+	}
+
+	@Override
+	public String name() {
+		return NAME;
+	}
+
+	public int size() {
+		return tenants.values().stream().mapToInt(Clusters::size).sum();
+	}
+
+	@Override
+	public List<BookChunkMatch> search(double[] vector, int limit, double minSimilarity, Collection<String> bookIds) {
+		String tenant = tenantKey();
+		Clusters clusters = tenants.get(tenant);
+		if (clusters == null) {
+			train(tenant, null, null);
+			return exactSearch.search(vector, limit, minSimilarity, bookIds);
+		}
+		retrainIfNeeded(tenant, clusters);
+		if (vector == null || vector.length != clusters.dimension) {
+			return List.of();
+		}
+		List<BookChunkMatch> hits = clusters.search(VectorMath.normalize(vector), properties.getNprobe(), limit,
+				minSimilarity, bookIds == null ? null : Set.copyOf(bookIds));
+		if (hits.isEmpty()) {
+			return hits;
+		}
+		Map<String, String> texts = chunkRepository.findTexts(hits.stream().map(BookChunkMatch::chunkId).toList());
+		// chunks appended by a transaction that was rolled back, or deleted by another instance, do not exist
+		return hits.stream()
+				.filter(hit -> texts.containsKey(hit.chunkId()))
+				.map(hit -> new BookChunkMatch(hit.chunkId(), hit.bookId(), hit.chunkIndex(), hit.source(),
+						texts.get(hit.chunkId()), hit.similarity()))
+				.toList();
+	}
+
+	/**
+	 * Appends stored chunks to the index of the current tenant, if it is loaded for the given generation.
+	 *
+	 * @param chunkIds the IDs of the stored chunks, in the order of {@code chunks}
+	 */
+	public void added(String bookId, int generation, List<String> chunkIds, List<ChunkPersistRequest> chunks) {
+		String tenant = tenantKey();
+		if (!tenants.containsKey(tenant) && !trainings.containsKey(tenant)) {
+			return;
+		}
+		List<ChunkVector> vectors = new ArrayList<>(chunkIds.size());
+		for (int i = 0; i < chunkIds.size(); i++) {
+			ChunkPersistRequest chunk = chunks.get(i);
+			vectors.add(new ChunkVector(chunkIds.get(i), bookId, chunk.chunk().index(), chunk.chunk().source(),
+					VectorMath.normalize(chunk.embedding())));
+		}
+		Consumer<Clusters> append = clusters -> {
+			if (clusters.generation == generation) {
+				vectors.forEach(clusters::add);
+			}
+		};
+		apply(tenant, append, clusters -> {
+			// the training may have read some of the chunks already
+			clusters.removeChunks(Set.copyOf(chunkIds));
+			append.accept(clusters);
+		});
+	}
+
+	/**
+	 * Removes the chunks {@code firstChunk} to {@code lastChunk} (inclusive) of a book, if the index of the current
+	 * tenant is loaded for the given generation.
+	 */
+	public void removed(String bookId, int generation, int firstChunk, int lastChunk) {
+		Consumer<Clusters> remove = clusters -> {
+			if (clusters.generation == generation) {
+				clusters.remove(bookId, firstChunk, lastChunk);
+			}
+		};
+		apply(tenantKey(), remove, remove);
+	}
+
+	public void removed(String bookId, int generation) {
+		removed(bookId, generation, 0, Integer.MAX_VALUE);
+	}
+
+	public void removed(String bookId) {
+		Consumer<Clusters> remove = clusters -> clusters.remove(bookId, 0, Integer.MAX_VALUE);
+		apply(tenantKey(), remove, remove);
+	}
+
+	/**
+	 * Drops the index of the current tenant, e.g. after another generation was activated. A training that is still
+	 * running is discarded.
+	 */
+	public void invalidate() {
+		String tenant = tenantKey();
+		Training training = trainings.remove(tenant);
+		if (training != null) {
+			training.cancel();
+		}
+		tenants.remove(tenant);
+	}
+
+	/**
+	 * Applies a change to the current index of the tenant and records it for the training in progress, if any.
+	 *
+	 * @param replay the change to replay on the trained index, which may already contain it
+	 */
+	private void apply(String tenant, Consumer<Clusters> change, Consumer<Clusters> replay) {
+		Runnable applyCurrent = () -> {
+			Clusters clusters = tenants.get(tenant);
+			if (clusters != null) {
+				change.accept(clusters);
+			}
+		};
+		Training training = trainings.get(tenant);
+		// without a training, or once its index replaced the previous one, the change goes to the current index only
+		if (training == null || !training.record(replay, applyCurrent)) {
+			applyCurrent.run();
+		}
+	}
+
+	private void checkDrift() {
+		tenants.forEach(this::retrainIfNeeded);
+	}
+
+	/**
+	 * Reloads and retrains the index of a tenant in the background if it drifted or is due for a refresh.
+	 */
+	private void retrainIfNeeded(String tenant, Clusters clusters) {
+		clusters.retrainingReason(properties).ifPresent(reason -> train(tenant, clusters, reason));
+	}
+
+	/**
+	 * Loads and trains the index of a tenant in the background, unless a training is already running.
+	 *
+	 * @param current the index to replace, or {@code null} if there is none yet
+	 * @param reason the reason to retrain, or {@code null} for the first training
+	 */
+	private void train(String tenant, Clusters current, String reason) {
+		Training training = new Training();
+		if (trainings.putIfAbsent(tenant, training) != null) {
+			return;
+		}
+		try {
+			trainingExecutor.execute(() -> {
+				try {
+					var requestContext = tenant.isEmpty()
+							? runtime.requestContext().systemUserProvider()
+							: runtime.requestContext().systemUser(tenant);
+					Clusters trained = requestContext.run(context -> {
+						return load();
+					});
+					if (training.finish(trained, () -> tenants.put(tenant, trained)) && reason != null) {
+						meterRegistry.counter(RETRAINING_METRIC, "reason", reason).increment();
+					}
+				} catch (RuntimeException e) {
+					if (current == null) {
+						logger.warn("Training the IVF index of tenant '{}' failed; searching exactly", tenant, e);
+					} else {
+						logger.warn("Retraining the IVF index of tenant '{}' failed; keeping the current one", tenant,
+								e);
+					}
+				} finally {
+					trainings.remove(tenant, training);
+				}
+			});
+		} catch (RuntimeException e) {
+			trainings.remove(tenant, training);
+			throw e;
+		}
+	}
+
+	private Clusters load() {
+		int generation = generationRepository.findActiveId().orElse(EmbeddingGenerations.INITIAL_GENERATION);
+		int batchSize = properties.getBatchSize();
+		List<ChunkVector> chunks = new ArrayList<>();
+		String afterId = null;
+		List<ChunkVector> page;
+		do {
+			page = chunkRepository.findChunkVectors(generation, afterId, batchSize, false);
+			for (ChunkVector chunk : page) {
+				chunks.add(new ChunkVector(chunk.chunkId(), chunk.bookId(), chunk.chunkIndex(), chunk.source(),
+						VectorMath.normalize(chunk.vector())));
+			}
+			afterId = page.isEmpty() ? afterId : page.get(page.size() - 1).chunkId();
+		} while (page.size() == batchSize);
+		long start = System.nanoTime();
+		Clusters clusters = Clusters.train(generation, chunks, properties, new Random());
+		logger.info("Trained IVF index of generation {} with {} lists for {} chunks in {} ms", generation,
+				clusters.lists(), clusters.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		return clusters;
+	}
+
+	private String tenantKey() {
+		RequestContext context = RequestContext.getCurrent(runtime);
+		String tenant = context == null ? null : context.getUserInfo().getTenant();
+		return tenant == null ? "" : tenant;
+	}
+
+	private static double dot(float[] a, int offset, float[] b) {
+		return VectorMath.dot(a, offset, b, 0, b.length);
+	}
+
+	/**
+	 * A training in progress for one tenant. It records the changes made while the chunks are read and clustered, so
+	 * that none of them is lost when the trained index replaces the current one.
+	 */
+	static final class Training {
+
+		private final List<Consumer<Clusters>> changes = new ArrayList<>();
+		// not synchronized, which would pin a virtual thread to its carrier while the change is applied
+		private final ReentrantLock lock = new ReentrantLock();
+		private boolean done;
+
+		/**
+		 * Records the change for the replay and applies it to the current index meanwhile, so that the trained index
+		 * cannot replace the current one in between.
+		 *
+		 * @return whether the change was recorded; {@code false} once the trained index replaced the previous one
+		 */
+		boolean record(Consumer<Clusters> replay, Runnable applyCurrent) {
+			lock.lock();
+			try {
+				if (done) {
+					return false;
+				}
+				changes.add(replay);
+				applyCurrent.run();
+				return true;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Replays the recorded changes on the trained index and then swaps it in, unless the training was cancelled.
+		 *
+		 * @return whether the trained index was swapped in
+		 */
+		boolean finish(Clusters trained, Runnable swap) {
+			lock.lock();
+			try {
+				if (done) {
+					return false;
+				}
+				changes.forEach(change -> change.accept(trained));
+				swap.run();
+				done = true;
+				return true;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void cancel() {
+			lock.lock();
+			try {
+				done = true;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Centroids and inverted lists of one tenant's active generation. Appends and removals lock the lists exclusively,
+	 * searches share them.
+	 */
+	static final class Clusters {
+
+		/** appended chunks needed before their distance to the centroids counts as drift */
+		private static final int MIN_DRIFT_SAMPLE = 100;
+
+		final int generation;
+		final int dimension;
+		private final long trainedAt = System.nanoTime();
+		private final float[] centroids;
+		private final InvertedList[] lists;
+		private final int trainedSize;
+		private final double trainedDistance;
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		private int size;
+		private int appended;
+		private double appendedDistance;
+
+		private Clusters(int generation, int dimension, float[] centroids, int trainedSize, double trainedDistance) {
+			this.generation = generation;
+			this.dimension = dimension;
+			this.centroids = centroids;
+			this.lists = new InvertedList[dimension == 0 ? 0 : centroids.length / dimension];
+			for (int i = 0; i < lists.length; i++) {
+				lists[i] = new InvertedList(dimension);
+			}
+			this.trainedSize = trainedSize;
+			this.trainedDistance = trainedDistance;
+		}
+
+		/**
+		 * Clusters normalized chunk vectors and assigns all of them to their nearest centroid.
+		 */
+		static Clusters train(int generation, List<ChunkVector> chunks, IvfProperties properties, Random random) {
+			int dimension = chunks.isEmpty() ? 0 : chunks.get(0).vector().length;
+			List<float[]> vectors = chunks.stream()
+					.map(ChunkVector::vector)
+					.filter(vector -> vector.length == dimension)
+					.toList();
+			if (vectors.isEmpty()) {
+				return new Clusters(generation, dimension, new float[0], 0, 0);
+			}
+			int k = properties.getLists() > 0
+					? properties.getLists()
+					: (int) Math.round(Math.sqrt(vectors.size()));
+			List<float[]> sample = sample(vectors, Math.max(k, properties.getTrainingSampleSize()), random);
+			k = Math.max(1, Math.min(k, sample.size()));
+			float[] centroids = kMeans(sample, k, dimension, properties.getMaxIterations(), random);
+
+			double distance = 0;
+			for (float[] vector : vectors) {
+				distance += 1 - dot(centroids, nearest(centroids, dimension, vector) * dimension, vector);
+			}
+			Clusters clusters = new Clusters(generation, dimension, centroids, vectors.size(),
+					distance / vectors.size());
+			for (ChunkVector chunk : chunks) {
+				if (chunk.vector().length == dimension) {
+					clusters.insert(chunk);
+				}
+			}
+			return clusters;
+		}
+
+		int lists() {
+			return lists.length;
+		}
+
+		int size() {
+			lock.readLock().lock();
+			try {
+				return size;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		void add(ChunkVector chunk) {
+			lock.writeLock().lock();
+			try {
+				if (chunk.vector().length != dimension || lists.length == 0) {
+					// nothing to assign it to before the first training
+					appended++;
+					return;
+				}
+				int list = insert(chunk);
+				appended++;
+				appendedDistance += 1 - dot(centroids, list * dimension, chunk.vector());
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		void remove(String bookId, int firstChunk, int lastChunk) {
+			lock.writeLock().lock();
+			try {
+				for (InvertedList list : lists) {
+					size -= list.remove(bookId, firstChunk, lastChunk);
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		void removeChunks(Set<String> chunkIds) {
+			lock.writeLock().lock();
+			try {
+				for (InvertedList list : lists) {
+					size -= list.removeChunks(chunkIds);
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		/**
+		 * @param bookIds the books to consider, or {@code null} for all
+		 * @return the best matches without text, most similar first
+		 */
+		List<BookChunkMatch> search(float[] query, int nprobe, int limit, double minSimilarity, Set<String> bookIds) {
+			if (limit <= 0 || lists.length == 0) {
+				return List.of();
+			}
+			// keeps the best matches, with the weakest of them at the head
+			PriorityQueue<BookChunkMatch> best = new PriorityQueue<>(
+					Comparator.comparingDouble(BookChunkMatch::similarity));
+			lock.readLock().lock();
+			try {
+				for (int list : probe(query, nprobe)) {
+					lists[list].scan(query, minSimilarity, bookIds, match -> {
+						if (best.size() < limit) {
+							best.add(match);
+						} else if (match.similarity() > best.peek().similarity()) {
+							best.poll();
+							best.add(match);
+						}
+					});
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+			List<BookChunkMatch> sorted = new ArrayList<>(best);
+			sorted.sort(Comparator.comparingDouble(BookChunkMatch::similarity).reversed());
+			return sorted;
+		}
+
+		/**
+		 * @return the reason to retrain, if any: {@code drift}, {@code growth} or {@code refresh}
+		 */
+		Optional<String> retrainingReason(IvfProperties properties) {
+			lock.readLock().lock();
+			try {
+				if (lists.length == 0 ? appended > 0 : size > trainedSize * properties.getMaxGrowth()) {
+					return Optional.of("growth");
+				}
+				if (appended >= MIN_DRIFT_SAMPLE
+						&& appendedDistance / appended > trainedDistance * (1 + properties.getDriftThreshold())) {
+					return Optional.of("drift");
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+			if (System.nanoTime() - trainedAt > properties.getRefreshInterval().toNanos()) {
+				return Optional.of("refresh");
+			}
+			return Optional.empty();
+		}
+
+		private int insert(ChunkVector chunk) {
+			int list = nearest(centroids, dimension, chunk.vector());
+			lists[list].add(chunk);
+			size++;
+			return list;
+		}
+
+		/**
+		 * @return the indexes of the {@code nprobe} lists whose centroids are most similar to the query
+		 */
+		private int[] probe(float[] query, int nprobe) {
+			if (nprobe >= lists.length) {
+				int[] all = new int[lists.length];
+				Arrays.setAll(all, i -> i);
+				return all;
+			}
+			Integer[] order = new Integer[lists.length];
+			double[] scores = new double[lists.length];
+			for (int i = 0; i < lists.length; i++) {
+				order[i] = i;
+				scores[i] = dot(centroids, i * dimension, query);
+			}
+			Arrays.sort(order, (a, b) -> Double.compare(scores[b], scores[a]));
+			int[] probed = new int[Math.max(1, nprobe)];
+			for (int i = 0; i < probed.length; i++) {
+				probed[i] = order[i];
+			}
+			return probed;
+		}
+
+		private static List<float[]> sample(List<float[]> vectors, int size, Random random) {
+			if (vectors.size() <= size) {
+				return vectors;
+			}
+			List<float[]> shuffled = new ArrayList<>(vectors);
+			for (int i = 0; i < size; i++) {
+				int other = i + random.nextInt(shuffled.size() - i);
+				float[] swap = shuffled.get(i);
+				shuffled.set(i, shuffled.get(other));
+				shuffled.set(other, swap);
+			}
+			return shuffled.subList(0, size);
+		}
+
+		/**
+		 * Spherical k-means: centroids are normalized means, and vectors are assigned by cosine similarity.
+		 *
+		 * @return the {@code k} centroids, one after another
+		 */
+		static float[] kMeans(List<float[]> sample, int k, int dimension, int maxIterations, Random random) {
+			float[] centroids = new float[k * dimension];
+			List<float[]> seeds = sample(sample, k, random);
+			for (int c = 0; c < k; c++) {
+				System.arraycopy(seeds.get(c), 0, centroids, c * dimension, dimension);
+			}
+			int[] assignment = new int[sample.size()];
+			Arrays.fill(assignment, -1);
+			for (int iteration = 0; iteration < maxIterations; iteration++) {
+				boolean changed = false;
+				for (int i = 0; i < sample.size(); i++) {
+					int nearest = nearest(centroids, dimension, sample.get(i));
+					if (nearest != assignment[i]) {
+						assignment[i] = nearest;
+						changed = true;
+					}
+				}
+				if (!changed) {
+					break;
+				}
+				double[] sums = new double[k * dimension];
+				int[] counts = new int[k];
+				for (int i = 0; i < sample.size(); i++) {
+					float[] vector = sample.get(i);
+					int offset = assignment[i] * dimension;
+					for (int d = 0; d < dimension; d++) {
+						sums[offset + d] += vector[d];
+					}
+					counts[assignment[i]]++;
+				}
+				for (int c = 0; c < k; c++) {
+					float[] centroid = new float[dimension];
+					if (counts[c] == 0) {
+						// an empty cluster restarts from a random vector
+						centroid = sample.get(random.nextInt(sample.size()));
+					} else {
+						for (int d = 0; d < dimension; d++) {
+							centroid[d] = (float) sums[c * dimension + d];
+						}
+						centroid = VectorMath.normalize(centroid);
+					}
+					System.arraycopy(centroid, 0, centroids, c * dimension, dimension);
+				}
+			}
+			return centroids;
+		}
+
+		static int nearest(float[] centroids, int dimension, float[] vector) {
+			int best = 0;
+			double bestScore = Double.NEGATIVE_INFINITY;
+			for (int c = 0; c < centroids.length / dimension; c++) {
+				double score = dot(centroids, c * dimension, vector);
+				if (score > bestScore) {
+					bestScore = score;
+					best = c;
+				}
+			}
+			return best;
+		}
+	}
+
+	/**
+	 * The chunks assigned to one centroid, with their vectors in one flat array that grows by doubling, so appends
+	 * are amortized O(1).
+	 */
+	static final class InvertedList {
+
+		private final int dimension;
+		private float[] vectors = new float[0];
+		private String[] chunkIds = new String[0];
+		private String[] bookIds = new String[0];
+		private int[] chunkIndexes = new int[0];
+		private BookChunkSource[] sources = new BookChunkSource[0];
+		private int size;
+
+		InvertedList(int dimension) {
+			this.dimension = dimension;
+		}
+
+		void add(ChunkVector chunk) {
+			if (size == chunkIds.length) {
+				int capacity = Math.max(16, size * 2);
+				vectors = Arrays.copyOf(vectors, capacity * dimension);
+				chunkIds = Arrays.copyOf(chunkIds, capacity);
+				bookIds = Arrays.copyOf(bookIds, capacity);
+				chunkIndexes = Arrays.copyOf(chunkIndexes, capacity);
+				sources = Arrays.copyOf(sources, capacity);
+			}
+			System.arraycopy(chunk.vector(), 0, vectors, size * dimension, dimension);
+			chunkIds[size] = chunk.chunkId();
+			bookIds[size] = chunk.bookId();
+			chunkIndexes[size] = chunk.chunkIndex();
+			sources[size] = chunk.source();
+			size++;
+		}
+
+		/**
+		 * Removes the chunks {@code firstChunk} to {@code lastChunk} of a book.
+		 *
+		 * @return the number of removed chunks
+		 */
+		int remove(String bookId, int firstChunk, int lastChunk) {
+			return removeIf(i -> bookId.equals(bookIds[i]) && chunkIndexes[i] >= firstChunk
+					&& chunkIndexes[i] <= lastChunk);
+		}
+
+		/**
+		 * @return the number of removed chunks
+		 */
+		int removeChunks(Set<String> chunkIds) {
+			return removeIf(i -> chunkIds.contains(this.chunkIds[i]));
+		}
+
+		/**
+		 * Removes matching chunks by moving the last chunk into their place.
+		 */
+		private int removeIf(IntPredicate matches) {
+			int removed = 0;
+			int i = 0;
+			while (i < size) {
+				if (matches.test(i)) {
+					int last = --size;
+					System.arraycopy(vectors, last * dimension, vectors, i * dimension, dimension);
+					chunkIds[i] = chunkIds[last];
+					bookIds[i] = bookIds[last];
+					chunkIndexes[i] = chunkIndexes[last];
+					sources[i] = sources[last];
+					chunkIds[last] = null;
+					bookIds[last] = null;
+					removed++;
+				} else {
+					i++;
+				}
+			}
+			return removed;
+		}
+
+		void scan(float[] query, double minSimilarity, Set<String> bookIds,
+				Consumer<BookChunkMatch> sink) {
+			for (int i = 0; i < size; i++) {
+				if (bookIds != null && !bookIds.contains(this.bookIds[i])) {
+					continue;
+				}
+				double similarity = dot(vectors, i * dimension, query);
+				if (similarity >= minSimilarity) {
+					sink.accept(new BookChunkMatch(chunkIds[i], this.bookIds[i], chunkIndexes[i], sources[i], null,
+							similarity));
+				}
+			}
+		}
+	}
+}
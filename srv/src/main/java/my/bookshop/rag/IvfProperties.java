@@ -0,0 +1,95 @@
+package my.bookshop.rag;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Clustering, probing and retraining of the {@link IvfChunkIndex}.
+ */
+@Component
+@ConfigurationProperties(prefix = "rag.ivf")
+public class IvfProperties {
+
+	private int lists = 0;
+	private int nprobe = 8;
+	private int trainingSampleSize = 20000;
+	private int maxIterations = 20;
+	private int batchSize = 1000;
+	private double driftThreshold = 0.2;
+	private double maxGrowth = 2.0;
+	private Duration checkInterval = Duration.ofMinutes(1);
+	private Duration refreshInterval = Duration.ofMinutes(30);
+
+	public int getLists() {
+		return lists;
+	}
+
+	public void setLists(int lists) {
+		this.lists = lists;
+	}
+
+	public int getNprobe() {
+		return nprobe;
+	}
+
+	public void setNprobe(int nprobe) {
+		this.nprobe = nprobe;
+	}
+
+	public int getTrainingSampleSize() {
+		return trainingSampleSize;
+	}
+
+	public void setTrainingSampleSize(int trainingSampleSize) {
+		this.trainingSampleSize = trainingSampleSize;
+	}
+
+	public int getMaxIterations() {
+		return maxIterations;
+	}
+
+	public void setMaxIterations(int maxIterations) {
+		this.maxIterations = maxIterations;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public double getDriftThreshold() {
+		return driftThreshold;
+	}
+
+	public void setDriftThreshold(double driftThreshold) {
+		this.driftThreshold = driftThreshold;
+	}
+
+	public double getMaxGrowth() {
+		return maxGrowth;
+	}
+
+	public void setMaxGrowth(double maxGrowth) {
+		this.maxGrowth = maxGrowth;
+	}
+
+	public Duration getCheckInterval() {
+		return checkInterval;
+	}
+
+	public void setCheckInterval(Duration checkInterval) {
+		this.checkInterval = checkInterval;
+	}
+
+	public Duration getRefreshInterval() {
+		return refreshInterval;
+	}
+
+	public void setRefreshInterval(Duration refreshInterval) {
+		this.refreshInterval = refreshInterval;
+	}
+}
@@ -1,122 +0,0 @@
-package my.bookshop.rag;
-
-import java.time.Duration;
-import java.util.List;
-
-import dev.langchain4j.data.embedding.Embedding;
-import dev.langchain4j.data.message.AiMessage;
-import dev.langchain4j.data.message.ChatMessage;
-import dev.langchain4j.model.chat.ChatLanguageModel;
-import dev.langchain4j.model.embedding.EmbeddingModel;
-import dev.langchain4j.model.openai.OpenAiChatModel;
-import dev.langchain4j.model.openai.OpenAiEmbeddingModel;
-import dev.langchain4j.model.output.Response;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-// Removed @Component to allow manual configuration via RagConfiguration
-public class LangChainAiClient implements RagAiClient {
-
-	private static final Logger logger = LoggerFactory.getLogger(LangChainAiClient.class);
-
-	private final ChatLanguageModel chatModel;
-	private final EmbeddingModel embeddingModel;
-	private final AiUsageTracker usageTracker;
-	private final String chatModelName;
-	private final String embeddingModelName;
-
-	public LangChainAiClient(String baseUrl, String apiKey, String chatModelName, String embeddingModelName,
-			AiUsageTracker usageTracker) {
-		this.usageTracker = usageTracker;
-		this.chatModelName = chatModelName;
-		this.embeddingModelName = embeddingModelName;
-
-		if (chatModelName != null && !chatModelName.isBlank()) {
-			this.chatModel = OpenAiChatModel.builder()
-					.apiKey(apiKey)
-					.baseUrl(baseUrl)
-					.modelName(chatModelName)
-					.temperature(1.0)
-					.responseFormat("json_object")
-					.build();
-		} else {
-			this.chatModel = null;
-		}
-
-		if (embeddingModelName != null && !embeddingModelName.isBlank()) {
-			this.embeddingModel = OpenAiEmbeddingModel.builder()
-					.apiKey(apiKey)
-					.baseUrl(baseUrl)
-					.modelName(embeddingModelName)
-					.timeout(Duration.ofSeconds(120))
-					.build();
-		} else {
-			this.embeddingModel = null;
-		}
-	}
-
-	@Override
-	public double[] embed(String text) {
-		if (text == null || text.isBlank() || embeddingModel == null) {
-			return new double[0];
-		}
-		Response<Embedding> response = embeddingModel.embed(text);
-		trackUsage(embeddingModelName, response);
-		Embedding embedding = response == null ? null : response.content();
-		if (embedding == null) {
-			return new double[0];
-		}
-		return toDoubleArray(embedding.vector());
-	}
-
-	@Override
-	public List<double[]> embed(List<String> texts) {
-		if (texts == null || texts.isEmpty() || embeddingModel == null) {
-			return List.of();
-		}
-		List<dev.langchain4j.data.segment.TextSegment> segments = texts.stream()
-				.map(dev.langchain4j.data.segment.TextSegment::from)
-				.toList();
-
-		Response<List<Embedding>> response = embeddingModel.embedAll(segments);
-		trackUsage(embeddingModelName, response);
-
-		if (response == null || response.content() == null) {
-			return List.of();
-		}
-
-		return response.content().stream()
-				.map(Embedding::vector)
-				.map(this::toDoubleArray)
-				.toList();
-	}
-
-	private double[] toDoubleArray(float[] vector) {
-		double[] result = new double[vector.length];
-		for (int i = 0; i < vector.length; i++) {
-			result[i] = vector[i];
-		}
-		return result;
-	}
-
-	@Override
-	public String chat(List<ChatMessage> messages) {
-		if (chatModel == null) {
-			return "";
-		}
-		Response<AiMessage> response = chatModel.generate(messages);
-		trackUsage(chatModelName, response);
-		if (response == null || response.content() == null) {
-			return "";
-		}
-		AiMessage message = response.content();
-		return message == null ? "" : message.text();
-	}
-
-	private void trackUsage(String modelName, Response<?> response) {
-		if (usageTracker == null || response == null) {
-			return;
-		}
-		usageTracker.recordUsage(modelName, response.tokenUsage());
-	}
-}
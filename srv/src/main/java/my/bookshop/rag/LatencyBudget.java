@@ -0,0 +1,27 @@
+package my.bookshop.rag;
+
+import java.time.Duration;
+
+/**
+ * The time left for a request, measured from its start.
+ */
+public class LatencyBudget {
+
+	private final long deadline;
+
+	LatencyBudget(Duration budget, long startNanos) {
+		this.deadline = startNanos + budget.toNanos();
+	}
+
+	public static LatencyBudget start(Duration budget) {
+		return new LatencyBudget(budget, System.nanoTime());
+	}
+
+	public Duration remaining() {
+		return remaining(System.nanoTime());
+	}
+
+	Duration remaining(long nowNanos) {
+		return Duration.ofNanos(Math.max(0, deadline - nowNanos));
+	}
+}
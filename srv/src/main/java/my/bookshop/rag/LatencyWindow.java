@@ -0,0 +1,52 @@
+package my.bookshop.rag;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the latencies of the most recent successful calls to estimate a percentile.
+ */
+class LatencyWindow {
+
+	private final long[] samples;
+	private final ReentrantLock lock = new ReentrantLock();
+	private int next;
+	private int size;
+
+	LatencyWindow(int capacity) {
+		this.samples = new long[Math.max(1, capacity)];
+	}
+
+	void record(Duration latency) {
+		lock.lock();
+		try {
+			samples[next] = latency.toNanos();
+			next = (next + 1) % samples.length;
+			size = Math.min(size + 1, samples.length);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the latency below which the given fraction of the recorded calls finished, or empty if fewer than
+	 *         {@code minSamples} calls were recorded
+	 */
+	Optional<Duration> percentile(double fraction, int minSamples) {
+		long[] sorted;
+		lock.lock();
+		try {
+			if (size == 0 || size < minSamples) {
+				return Optional.empty();
+			}
+			sorted = Arrays.copyOf(samples, size);
+		} finally {
+			lock.unlock();
+		}
+		Arrays.sort(sorted);
+		int index = Math.min(sorted.length - 1, (int) Math.ceil(fraction * sorted.length) - 1);
+		return Optional.of(Duration.ofNanos(sorted[Math.max(0, index)]));
+	}
+}
@@ -0,0 +1,407 @@
+package my.bookshop.rag;
+
+import com.sap.cds.services.request.RequestContext;
+import com.sap.cds.services.runtime.CdsRuntime;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import my.bookshop.repository.bookshop.BookContentChunkRepository;
+import my.bookshop.repository.bookshop.BookContentChunkRepository.ChunkCode;
+import my.bookshop.repository.bookshop.BookContentChunkRepository.ChunkPersistRequest;
+import my.bookshop.repository.bookshop.BookContentChunkRepository.ChunkVector;
+import my.bookshop.repository.bookshop.ChunkQuantizerRepository;
+import my.bookshop.repository.bookshop.EmbeddingGenerationRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Chunk search over product-quantized embeddings, for catalogs whose embeddings do not fit into memory even as int8.
+ * Only the codes are held in memory per tenant, {@code rag.pq.sub-quantizers} bytes per chunk, see
+ * {@link ProductQuantizer}.
+ * <p>
+ * A query computes one inner-product table and scores all codes with it. The best {@code rescore-candidates}, or
+ * {@code limit} if more, are rescored exactly against their embeddings in the database, which also reads their texts,
+ * so the returned similarities are exact. Candidates scoring below the minimum similarity by more than
+ * {@code rescore-margin} are skipped.
+ * <p>
+ * The codebook is trained offline by {@link ChunkQuantizerTrainer}. Until it is ready for the active generation,
+ * searches are exact. Chunks stored by this instance are encoded and appended right away; chunks without code are
+ * encoded when the index is loaded. The index of a tenant is loaded in the background on first use, with exact
+ * searches until it is loaded, and again after {@code refresh-interval}.
+ */
+@Component
+public class PqChunkIndex implements ChunkSearchBackend {
+
+	private static final Logger logger = LoggerFactory.getLogger(PqChunkIndex.class);
+
+	public static final String NAME = "pq";
+
+	private final BookContentChunkRepository chunkRepository;
+	private final ChunkQuantizerRepository quantizerRepository;
+	private final EmbeddingGenerationRepository generationRepository;
+	private final ExactChunkSearch exactSearch;
+	private final PqProperties properties;
+	private final CdsRuntime runtime;
+	private final Map<String, Codes> tenants = new ConcurrentHashMap<>();
+	private final Map<String, Reload> reloads = new ConcurrentHashMap<>();
+	private final ExecutorService reloadExecutor;
+
+	public PqChunkIndex(BookContentChunkRepository chunkRepository, ChunkQuantizerRepository quantizerRepository,
+			EmbeddingGenerationRepository generationRepository, ExactChunkSearch exactSearch, PqProperties properties,
+			CdsRuntime runtime, MeterRegistry meterRegistry, BlockingExecutors executors) {
+		this.chunkRepository = chunkRepository;
+		this.quantizerRepository = quantizerRepository;
+		this.generationRepository = generationRepository;
+		this.exactSearch = exactSearch;
+		this.properties = properties;
+		this.runtime = runtime;
+		this.reloadExecutor = executors.serial("pq-reload");
+		Gauge.builder("rag.pq.chunks", this, PqChunkIndex::size).register(meterRegistry);
+	}
+
+	@PreDestroy
+	void stop() {
+		reloadExecutor.shutdownNow();
+	}
+
+	@Override
+	public String name() {
+		return NAME;
+	}
+
+	public int size() {
+		return tenants.values().stream().mapToInt(Codes::size).sum();
+	}
+
+	@Override
+	public List<BookChunkMatch> search(double[] vector, int limit, double minSimilarity, Collection<String> bookIds) {
+		Codes codes = codes();
+		// searches are exact until the index is loaded with a codebook
+		if (codes == null || codes.quantizer == null || vector == null
+				|| vector.length != codes.quantizer.dimension()) {
+			return exactSearch.search(vector, limit, minSimilarity, bookIds);
+		}
+		List<String> candidates = codes.candidates(VectorMath.normalize(vector),
+				Math.max(limit, properties.getRescoreCandidates()), minSimilarity - properties.getRescoreMargin(),
+				bookIds == null ? null : Set.copyOf(bookIds));
+		return chunkRepository.findSimilarChunksByIds(vector, limit, minSimilarity, candidates);
+	}
+
+	/**
+	 * Encodes stored chunks, persists their codes and appends them to the index of the current tenant, if it is
+	 * loaded for the given generation with a codebook. As this runs once the chunks were committed, the codes are
+	 * persisted in a change set of their own.
+	 *
+	 * @param chunkIds the IDs of the stored chunks, in the order of {@code chunks}
+	 */
+	public void added(String bookId, int generation, List<String> chunkIds, List<ChunkPersistRequest> chunks) {
+		Codes codes = tenants.get(tenantKey());
+		if (codes == null || codes.generation != generation || codes.quantizer == null) {
+			return;
+		}
+		Map<String, byte[]> encoded = new HashMap<>();
+		for (int i = 0; i < chunkIds.size(); i++) {
+			ChunkPersistRequest chunk = chunks.get(i);
+			if (chunk.embedding().length != codes.quantizer.dimension()) {
+				continue;
+			}
+			byte[] code = codes.quantizer.encode(VectorMath.normalize(chunk.embedding()));
+			codes.add(new ChunkCode(chunkIds.get(i), bookId, chunk.chunk().index(), code));
+			encoded.put(chunkIds.get(i), code);
+		}
+		runtime.changeSetContext().run(changeSet -> {
+			chunkRepository.updateCodes(encoded);
+		});
+	}
+
+	/**
+	 * Removes the chunks {@code firstChunk} to {@code lastChunk} (inclusive) of a book, if the index of the current
+	 * tenant is loaded for the given generation.
+	 */
+	public void removed(String bookId, int generation, int firstChunk, int lastChunk) {
+		Codes codes = tenants.get(tenantKey());
+		if (codes != null && codes.generation == generation) {
+			codes.remove(bookId, firstChunk, lastChunk);
+		}
+	}
+
+	public void removed(String bookId, int generation) {
+		removed(bookId, generation, 0, Integer.MAX_VALUE);
+	}
+
+	public void removed(String bookId) {
+		Codes codes = tenants.get(tenantKey());
+		if (codes != null) {
+			codes.remove(bookId, 0, Integer.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Drops the index of the current tenant, e.g. after a codebook was trained or another generation was activated.
+	 * A load that is still running is discarded.
+	 */
+	public void invalidate() {
+		String tenant = tenantKey();
+		Reload reload = reloads.remove(tenant);
+		if (reload != null) {
+			reload.cancel();
+		}
+		tenants.remove(tenant);
+	}
+
+	/**
+	 * @return the index of the current tenant, or {@code null} while it is loaded for the first time
+	 */
+	private Codes codes() {
+		String tenant = tenantKey();
+		Codes current = tenants.get(tenant);
+		if (current == null || current.isStale(properties.getRefreshInterval())) {
+			reloadInBackground(tenant);
+		}
+		return current;
+	}
+
+	private void reloadInBackground(String tenant) {
+		Reload reload = new Reload();
+		if (reloads.putIfAbsent(tenant, reload) != null) {
+			return;
+		}
+		try {
+			reloadExecutor.execute(() -> {
+				try {
+					var requestContext = tenant.isEmpty()
+							? runtime.requestContext().systemUserProvider()
+							: runtime.requestContext().systemUser(tenant);
+					Codes reloaded = requestContext.run(context -> {
+						return load();
+					});
+					reload.finish(() -> tenants.put(tenant, reloaded));
+				} catch (RuntimeException e) {
+					logger.warn("Loading the PQ index of tenant '{}' failed; keeping the current one", tenant, e);
+				} finally {
+					reloads.remove(tenant, reload);
+				}
+			});
+		} catch (RuntimeException e) {
+			reloads.remove(tenant, reload);
+			throw e;
+		}
+	}
+
+	private Codes load() {
+		int generation = generationRepository.findActiveId().orElse(EmbeddingGenerations.INITIAL_GENERATION);
+		ProductQuantizer quantizer = quantizerRepository.findCodebook(generation).orElse(null);
+		Codes codes = new Codes(generation, quantizer);
+		if (quantizer == null) {
+			return codes;
+		}
+		int batchSize = properties.getBatchSize();
+		String afterId = null;
+		List<ChunkCode> page;
+		do {
+			page = chunkRepository.findChunkCodes(generation, afterId, batchSize);
+			page.stream().filter(chunk -> chunk.code().length == quantizer.subQuantizers()).forEach(codes::add);
+			afterId = page.isEmpty() ? afterId : page.get(page.size() - 1).chunkId();
+		} while (page.size() == batchSize);
+
+		int encoded = encodeMissing(codes, quantizer, generation, batchSize);
+		logger.info("Loaded {} PQ codes of index generation {}, {} of them newly encoded", codes.size(), generation,
+				encoded);
+		return codes;
+	}
+
+	/**
+	 * Encodes the chunks stored without code, e.g. while the codebook was trained.
+	 */
+	private int encodeMissing(Codes codes, ProductQuantizer quantizer, int generation, int batchSize) {
+		int encoded = 0;
+		String afterId = null;
+		List<ChunkVector> page;
+		do {
+			page = chunkRepository.findChunkVectors(generation, afterId, batchSize, true);
+			Map<String, byte[]> pageCodes = new HashMap<>();
+			for (ChunkVector chunk : page) {
+				if (chunk.vector().length == quantizer.dimension()) {
+					byte[] code = quantizer.encode(VectorMath.normalize(chunk.vector()));
+					codes.add(new ChunkCode(chunk.chunkId(), chunk.bookId(), chunk.chunkIndex(), code));
+					pageCodes.put(chunk.chunkId(), code);
+				}
+			}
+			runtime.changeSetContext().run(changeSet -> {
+				chunkRepository.updateCodes(pageCodes);
+			});
+			encoded += pageCodes.size();
+			afterId = page.isEmpty() ? afterId : page.get(page.size() - 1).chunkId();
+		} while (page.size() == batchSize);
+		return encoded;
+	}
+
+	private String tenantKey() {
+		RequestContext context = RequestContext.getCurrent(runtime);
+		String tenant = context == null ? null : context.getUserInfo().getTenant();
+		return tenant == null ? "" : tenant;
+	}
+
+	/**
+	 * The codes of one tenant's active generation, in one flat array that grows by doubling. Appends and removals lock
+	 * it exclusively, searches share it.
+	 */
+	static final class Codes {
+
+		final int generation;
+		final ProductQuantizer quantizer;
+		private final long loadedAt = System.nanoTime();
+		private final int codeLength;
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		private byte[] codes = new byte[0];
+		private String[] chunkIds = new String[0];
+		private String[] bookIds = new String[0];
+		private int[] chunkIndexes = new int[0];
+		private int size;
+
+		Codes(int generation, ProductQuantizer quantizer) {
+			this.generation = generation;
+			this.quantizer = quantizer;
+			this.codeLength = quantizer == null ? 0 : quantizer.subQuantizers();
+		}
+
+		boolean isStale(Duration refreshInterval) {
+			return System.nanoTime() - loadedAt > refreshInterval.toNanos();
+		}
+
+		int size() {
+			lock.readLock().lock();
+			try {
+				return size;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		void add(ChunkCode chunk) {
+			lock.writeLock().lock();
+			try {
+				if (size == chunkIds.length) {
+					int capacity = Math.max(1024, size * 2);
+					codes = Arrays.copyOf(codes, capacity * codeLength);
+					chunkIds = Arrays.copyOf(chunkIds, capacity);
+					bookIds = Arrays.copyOf(bookIds, capacity);
+					chunkIndexes = Arrays.copyOf(chunkIndexes, capacity);
+				}
+				System.arraycopy(chunk.code(), 0, codes, size * codeLength, codeLength);
+				chunkIds[size] = chunk.chunkId();
+				bookIds[size] = chunk.bookId();
+				chunkIndexes[size] = chunk.chunkIndex();
+				size++;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		/**
+		 * Removes matching chunks by moving the last chunk into their place.
+		 */
+		void remove(String bookId, int firstChunk, int lastChunk) {
+			lock.writeLock().lock();
+			try {
+				int i = 0;
+				while (i < size) {
+					if (bookId.equals(bookIds[i]) && chunkIndexes[i] >= firstChunk && chunkIndexes[i] <= lastChunk) {
+						int last = --size;
+						System.arraycopy(codes, last * codeLength, codes, i * codeLength, codeLength);
+						chunkIds[i] = chunkIds[last];
+						bookIds[i] = bookIds[last];
+						chunkIndexes[i] = chunkIndexes[last];
+						chunkIds[last] = null;
+						bookIds[last] = null;
+					} else {
+						i++;
+					}
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		/**
+		 * @param query the normalized query vector
+		 * @param bookIds the books to consider, or {@code null} for all
+		 * @return the IDs of up to {@code count} chunks with the best approximate similarity, best first
+		 */
+		List<String> candidates(float[] query, int count, double minScore, Set<String> bookIds) {
+			float[] table = quantizer.innerProductTable(query);
+			// keeps the best candidates, with the weakest of them at the head
+			PriorityQueue<Candidate> best = new PriorityQueue<>(Comparator.comparingDouble(Candidate::score));
+			lock.readLock().lock();
+			try {
+				for (int row = 0; row < size; row++) {
+					if (bookIds != null && !bookIds.contains(this.bookIds[row])) {
+						continue;
+					}
+					double score = quantizer.score(table, codes, row * codeLength);
+					if (score < minScore) {
+						continue;
+					}
+					if (best.size() < count) {
+						best.add(new Candidate(chunkIds[row], score));
+					} else if (score > best.peek().score()) {
+						best.poll();
+						best.add(new Candidate(chunkIds[row], score));
+					}
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+			List<Candidate> sorted = new ArrayList<>(best);
+			sorted.sort(Comparator.comparingDouble(Candidate::score).reversed());
+			return sorted.stream().map(Candidate::chunkId).toList();
+		}
+
+		private record Candidate(String chunkId, double score) {
+		}
+	}
+
+	/**
+	 * A load in progress for one tenant, cancelled if the index is invalidated meanwhile.
+	 */
+	private static final class Reload {
+
+		private final ReentrantLock lock = new ReentrantLock();
+		private boolean cancelled;
+
+		void finish(Runnable swap) {
+			lock.lock();
+			try {
+				if (!cancelled) {
+					swap.run();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void cancel() {
+			lock.lock();
+			try {
+				cancelled = true;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
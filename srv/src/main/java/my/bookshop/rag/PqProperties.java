@@ -0,0 +1,95 @@
+package my.bookshop.rag;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Codec, training and rescoring of the {@link PqChunkIndex}, see {@link ProductQuantizer}.
+ */
+@Component
+@ConfigurationProperties(prefix = "rag.pq")
+public class PqProperties {
+
+	private int subQuantizers = 96;
+	private int bits = 8;
+	private int trainingSampleSize = 20000;
+	private int maxIterations = 15;
+	private int trainingThreads = 2;
+	private int batchSize = 1000;
+	private int rescoreCandidates = 1000;
+	private double rescoreMargin = 0.05;
+	private Duration refreshInterval = Duration.ofMinutes(10);
+
+	public int getSubQuantizers() {
+		return subQuantizers;
+	}
+
+	public void setSubQuantizers(int subQuantizers) {
+		this.subQuantizers = subQuantizers;
+	}
+
+	public int getBits() {
+		return bits;
+	}
+
+	public void setBits(int bits) {
+		this.bits = bits;
+	}
+
+	public int getTrainingSampleSize() {
+		return trainingSampleSize;
+	}
+
+	public void setTrainingSampleSize(int trainingSampleSize) {
+		this.trainingSampleSize = trainingSampleSize;
+	}
+
+	public int getMaxIterations() {
+		return maxIterations;
+	}
+
+	public void setMaxIterations(int maxIterations) {
+		this.maxIterations = maxIterations;
+	}
+
+	public int getTrainingThreads() {
+		return trainingThreads;
+	}
+
+	public void setTrainingThreads(int trainingThreads) {
+		this.trainingThreads = trainingThreads;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public int getRescoreCandidates() {
+		return rescoreCandidates;
+	}
+
+	public void setRescoreCandidates(int rescoreCandidates) {
+		this.rescoreCandidates = rescoreCandidates;
+	}
+
+	public double getRescoreMargin() {
+		return rescoreMargin;
+	}
+
+	public void setRescoreMargin(double rescoreMargin) {
+		this.rescoreMargin = rescoreMargin;
+	}
+
+	public Duration getRefreshInterval() {
+		return refreshInterval;
+	}
+
+	public void setRefreshInterval(Duration refreshInterval) {
+		this.refreshInterval = refreshInterval;
+	}
+}
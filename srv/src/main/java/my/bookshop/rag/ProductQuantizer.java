@@ -0,0 +1,279 @@
+package my.bookshop.rag;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+/**
+ * Product-quantization codec for embeddings: a vector is split into {@code subQuantizers} equal sub-vectors, and each
+ * sub-vector is replaced by the index of its nearest centroid in that subspace's codebook of {@code 2^bits}
+ * centroids. With 96 sub-quantizers of 8 bits, a 1536-dimensional float vector of 6 KB becomes a 96-byte code.
+ * <p>
+ * Queries are not quantized (asymmetric distance computation): {@link #innerProductTable(float[])} computes the inner
+ * product of each query sub-vector with every centroid once, after which the approximate similarity of a code is the
+ * sum of one table entry per sub-quantizer.
+ */
+public final class ProductQuantizer {
+
+	private final int dimension;
+	private final int subQuantizers;
+	private final int bits;
+	private final int centroids;
+	private final int subDimension;
+	/** the centroids of sub-quantizer {@code s}, one after another, start at {@code s * centroids * subDimension} */
+	private final float[] codebook;
+
+	ProductQuantizer(int dimension, int subQuantizers, int bits, float[] codebook) {
+		validate(dimension, subQuantizers, bits);
+		this.dimension = dimension;
+		this.subQuantizers = subQuantizers;
+		this.bits = bits;
+		this.centroids = 1 << bits;
+		this.subDimension = dimension / subQuantizers;
+		if (codebook.length != subQuantizers * centroids * subDimension) {
+			throw new IllegalArgumentException("Codebook has " + codebook.length + " values, expected "
+					+ subQuantizers * centroids * subDimension);
+		}
+		this.codebook = codebook;
+	}
+
+	/**
+	 * Trains the codebooks with k-means per subspace; the subspaces are trained in parallel on a pool of
+	 * {@code threads} threads of its own, so the training does not occupy the common pool.
+	 *
+	 * @param sample training vectors, all of the same dimension
+	 */
+	public static ProductQuantizer train(List<float[]> sample, int subQuantizers, int bits, int maxIterations,
+			long seed, int threads) {
+		if (sample.isEmpty()) {
+			throw new IllegalArgumentException("No vectors to train the quantizer on");
+		}
+		int dimension = sample.get(0).length;
+		validate(dimension, subQuantizers, bits);
+		int centroids = 1 << bits;
+		int subDimension = dimension / subQuantizers;
+		float[] codebook = new float[subQuantizers * centroids * subDimension];
+		List<Callable<Void>> subspaces = new ArrayList<>(subQuantizers);
+		for (int s = 0; s < subQuantizers; s++) {
+			int subspace = s;
+			subspaces.add(() -> {
+				List<float[]> subVectors = new ArrayList<>(sample.size());
+				for (float[] vector : sample) {
+					float[] sub = new float[subDimension];
+					System.arraycopy(vector, subspace * subDimension, sub, 0, subDimension);
+					subVectors.add(sub);
+				}
+				float[] trained = kMeans(subVectors, centroids, subDimension, maxIterations,
+						new Random(seed + subspace));
+				System.arraycopy(trained, 0, codebook, subspace * centroids * subDimension, trained.length);
+				return null;
+			});
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, subQuantizers)),
+				runnable -> {
+					Thread thread = new Thread(runnable, "pq-codebook");
+					thread.setDaemon(true);
+					return thread;
+				});
+		try {
+			for (Future<Void> subspace : executor.invokeAll(subspaces)) {
+				subspace.get();
+			}
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof RuntimeException runtime ? runtime : new IllegalStateException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while training the codebooks", e);
+		} finally {
+			executor.shutdownNow();
+		}
+		return new ProductQuantizer(dimension, subQuantizers, bits, codebook);
+	}
+
+	private static void validate(int dimension, int subQuantizers, int bits) {
+		if (bits < 1 || bits > 8) {
+			throw new IllegalArgumentException("Sub-quantizers must have 1 to 8 bits, not " + bits);
+		}
+		if (subQuantizers < 1 || dimension % subQuantizers != 0) {
+			throw new IllegalArgumentException(
+					"Dimension " + dimension + " is not divisible into " + subQuantizers + " sub-quantizers");
+		}
+	}
+
+	public int dimension() {
+		return dimension;
+	}
+
+	public int subQuantizers() {
+		return subQuantizers;
+	}
+
+	public int bits() {
+		return bits;
+	}
+
+	/**
+	 * @return the code of the vector, one byte per sub-quantizer
+	 */
+	public byte[] encode(float[] vector) {
+		if (vector.length != dimension) {
+			throw new IllegalArgumentException("Vector has dimension " + vector.length + ", expected " + dimension);
+		}
+		byte[] code = new byte[subQuantizers];
+		for (int s = 0; s < subQuantizers; s++) {
+			int base = s * centroids * subDimension;
+			int best = 0;
+			double bestDistance = Double.POSITIVE_INFINITY;
+			for (int c = 0; c < centroids; c++) {
+				double distance = squaredDistance(codebook, base + c * subDimension, vector, s * subDimension,
+						subDimension);
+				if (distance < bestDistance) {
+					bestDistance = distance;
+					best = c;
+				}
+			}
+			code[s] = (byte) best;
+		}
+		return code;
+	}
+
+	/**
+	 * @return the vector the code stands for, i.e. the concatenated centroids
+	 */
+	public float[] decode(byte[] code, int offset) {
+		float[] vector = new float[dimension];
+		for (int s = 0; s < subQuantizers; s++) {
+			int centroid = code[offset + s] & 0xFF;
+			System.arraycopy(codebook, (s * centroids + centroid) * subDimension, vector, s * subDimension,
+					subDimension);
+		}
+		return vector;
+	}
+
+	/**
+	 * @return the inner products of the query's sub-vectors with all centroids, for {@link #score}
+	 */
+	public float[] innerProductTable(float[] query) {
+		if (query.length != dimension) {
+			throw new IllegalArgumentException("Query has dimension " + query.length + ", expected " + dimension);
+		}
+		float[] table = new float[subQuantizers * centroids];
+		for (int s = 0; s < subQuantizers; s++) {
+			for (int c = 0; c < centroids; c++) {
+				table[s * centroids + c] = (float) VectorMath.dot(codebook, (s * centroids + c) * subDimension, query,
+						s * subDimension, subDimension);
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * @return the approximate inner product of the query the table was computed for with the vector of the code at
+	 *         {@code offset}
+	 */
+	public double score(float[] table, byte[] codes, int offset) {
+		double sum = 0;
+		for (int s = 0; s < subQuantizers; s++) {
+			sum += table[s * centroids + (codes[offset + s] & 0xFF)];
+		}
+		return sum;
+	}
+
+	/**
+	 * @return the codebook as little-endian float32 values, see {@link #fromBytes}
+	 */
+	public byte[] toBytes() {
+		ByteBuffer buffer = ByteBuffer.allocate(codebook.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.asFloatBuffer().put(codebook);
+		return buffer.array();
+	}
+
+	public static ProductQuantizer fromBytes(int dimension, int subQuantizers, int bits, byte[] bytes) {
+		float[] codebook = new float[bytes.length / Float.BYTES];
+		ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(codebook);
+		return new ProductQuantizer(dimension, subQuantizers, bits, codebook);
+	}
+
+	/**
+	 * Lloyd's k-means with centroids seeded from distinct random vectors. With fewer vectors than centroids, the
+	 * remaining centroids repeat vectors and are never the nearest.
+	 *
+	 * @return the {@code k} centroids, one after another
+	 */
+	static float[] kMeans(List<float[]> vectors, int k, int dimension, int maxIterations, Random random) {
+		float[] centroids = new float[k * dimension];
+		int[] order = IntStream.range(0, vectors.size()).toArray();
+		for (int i = 0; i < Math.min(k, order.length); i++) {
+			int other = i + random.nextInt(order.length - i);
+			int swap = order[i];
+			order[i] = order[other];
+			order[other] = swap;
+		}
+		for (int c = 0; c < k; c++) {
+			System.arraycopy(vectors.get(order[c % order.length]), 0, centroids, c * dimension, dimension);
+		}
+		int[] assignment = new int[vectors.size()];
+		Arrays.fill(assignment, -1);
+		for (int iteration = 0; iteration < maxIterations; iteration++) {
+			boolean changed = false;
+			for (int i = 0; i < vectors.size(); i++) {
+				int nearest = nearest(centroids, k, dimension, vectors.get(i));
+				if (nearest != assignment[i]) {
+					assignment[i] = nearest;
+					changed = true;
+				}
+			}
+			if (!changed) {
+				break;
+			}
+			double[] sums = new double[k * dimension];
+			int[] counts = new int[k];
+			for (int i = 0; i < vectors.size(); i++) {
+				float[] vector = vectors.get(i);
+				int base = assignment[i] * dimension;
+				for (int d = 0; d < dimension; d++) {
+					sums[base + d] += vector[d];
+				}
+				counts[assignment[i]]++;
+			}
+			for (int c = 0; c < k; c++) {
+				if (counts[c] == 0) {
+					// an empty cluster restarts from a random vector
+					System.arraycopy(vectors.get(random.nextInt(vectors.size())), 0, centroids, c * dimension,
+							dimension);
+					continue;
+				}
+				for (int d = 0; d < dimension; d++) {
+					centroids[c * dimension + d] = (float) (sums[c * dimension + d] / counts[c]);
+				}
+			}
+		}
+		return centroids;
+	}
+
+	private static int nearest(float[] centroids, int k, int dimension, float[] vector) {
+		int best = 0;
+		double bestDistance = Double.POSITIVE_INFINITY;
+		for (int c = 0; c < k; c++) {
+			double distance = squaredDistance(centroids, c * dimension, vector, 0, dimension);
+			if (distance < bestDistance) {
+				bestDistance = distance;
+				best = c;
+			}
+		}
+		return best;
+	}
+
+	private static double squaredDistance(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		return VectorMath.squaredDistance(a, aOffset, b, bOffset, length);
+	}
+}
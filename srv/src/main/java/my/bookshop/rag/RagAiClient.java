@@ -1,5 +1,6 @@
 package my.bookshop.rag;
 
+import java.time.Duration;
 import java.util.List;
 
 import dev.langchain4j.data.message.ChatMessage;
@@ -7,7 +8,7 @@ import dev.langchain4j.data.message.ChatMessage;
 /**
  * Abstraction for RAG-related AI operations (embeddings + chat).
  * <p>
- * Currently backed by LangChain4j / OpenAI via {@link LangChainAiClient}.
+ * Currently backed by OpenAI-compatible APIs via {@link WebClientAiClient}.
  */
 public interface RagAiClient {
 
@@ -16,4 +17,11 @@ public interface RagAiClient {
 	List<double[]> embed(List<String> texts);
 
 	String chat(List<ChatMessage> messages);
+
+	/**
+	 * Calls the chat model and abandons the call after the timeout.
+	 */
+	default String chat(List<ChatMessage> messages, Duration timeout) {
+		return chat(messages);
+	}
 }
@@ -9,33 +9,56 @@ public class RagConfiguration {
 
     private final OpenAIProperties openAIProperties;
     private final GoogleColabProperties googleColabProperties;
+    private final AiHttpTransport transport;
     private final AiUsageTracker usageTracker;
+    private final AiResilience resilience;
+    private final AiResilienceProperties resilienceProperties;
 
     public RagConfiguration(OpenAIProperties openAIProperties, GoogleColabProperties googleColabProperties,
-            AiUsageTracker usageTracker) {
+            AiHttpTransport transport, AiUsageTracker usageTracker, AiResilience resilience,
+            AiResilienceProperties resilienceProperties) {
         this.openAIProperties = openAIProperties;
         this.googleColabProperties = googleColabProperties;
+        this.transport = transport;
         this.usageTracker = usageTracker;
+        this.resilience = resilience;
+        this.resilienceProperties = resilienceProperties;
     }
 
+    /**
+     * Client for the OpenAI models, used blocking by the catalog service and non-blocking by the reactive chat.
+     */
     @Bean("openAiClient")
     @Primary
-    public RagAiClient openAiClient() {
-        return new LangChainAiClient(
+    public WebClientAiClient openAiClient(EmbeddingRateGovernor embeddingGovernor) {
+        return new WebClientAiClient(
                 openAIProperties.getBaseUrl(),
                 openAIProperties.getApiKey(),
                 openAIProperties.getChatModel(),
                 openAIProperties.getEmbeddingModel(),
-                usageTracker);
+                transport,
+                usageTracker,
+                embeddingGovernor,
+                resilience,
+                resilienceProperties);
+    }
+
+    @Bean
+    public RagTokenCounter ragTokenCounter(RagPromptProperties promptProperties) {
+        return new RagTokenCounter(promptProperties.getTokenizerModel());
     }
 
     @Bean("raftClient")
     public RagAiClient raftClient() {
-        return new LangChainAiClient(
+        return new WebClientAiClient(
                 googleColabProperties.getBaseUrl(),
                 googleColabProperties.getApiKey(),
                 googleColabProperties.getChatModel(),
                 null, // No embedding model for RAFT client
-                usageTracker);
+                transport,
+                usageTracker,
+                null,
+                resilience,
+                resilienceProperties);
     }
 }
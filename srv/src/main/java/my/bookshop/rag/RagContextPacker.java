@@ -0,0 +1,213 @@
+package my.bookshop.rag;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.segment.TextSegment;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Fills a fixed prompt token budget with chat history and retrieved context.
+ * <p>
+ * Recent history is kept first and older turns are truncated once the history share is used up. The remaining
+ * budget is filled with context segments in descending similarity order; text repeated from the overlap with an
+ * adjacent chunk of the same book is dropped, and the last segment that does not fit is cut at a sentence boundary.
+ */
+public class RagContextPacker {
+
+	private static final Pattern SENTENCE_BREAK = Pattern.compile("(?<=[.!?;:])\\s+");
+	private static final int MESSAGE_OVERHEAD_TOKENS = 4;
+	private static final int OVERLAP_ANCHOR_LENGTH = 32;
+	private static final int MAX_OVERLAP_SEARCH = 1000;
+	private static final String ELLIPSIS = " ...";
+
+	private final RagPromptProperties properties;
+	private final RagTokenCounter tokenCounter;
+
+	public RagContextPacker(RagPromptProperties properties, RagTokenCounter tokenCounter) {
+		this.properties = properties;
+		this.tokenCounter = tokenCounter;
+	}
+
+	public PackedPrompt pack(String systemPrompt, List<Map<String, Object>> history, String message,
+			List<TextSegment> context) {
+		int fixed = tokenCounter.count(systemPrompt) + tokenCounter.count(message) + 2 * MESSAGE_OVERHEAD_TOKENS;
+		int remaining = Math.max(0, properties.getMaxPromptTokens() - fixed);
+
+		int historyBudget = Math.min(properties.getMaxHistoryTokens(), remaining);
+		List<HistoryTurn> turns = packHistory(history, historyBudget);
+		int historyUsed = turns.stream().mapToInt(t -> tokenCounter.count(t.content()) + MESSAGE_OVERHEAD_TOKENS).sum();
+
+		List<String> segments = packContext(context, remaining - historyUsed);
+		return new PackedPrompt(turns, segments);
+	}
+
+	private List<HistoryTurn> packHistory(List<Map<String, Object>> history, int budget) {
+		if (history == null || history.isEmpty() || budget <= 0) {
+			return List.of();
+		}
+		List<HistoryTurn> candidates = new ArrayList<>();
+		for (Map<String, Object> turn : history) {
+			String role = String.valueOf(turn.get("role"));
+			Object contentRaw = turn.get("content");
+			String content = contentRaw == null ? null : contentRaw.toString();
+			if (content == null || content.isBlank()) {
+				continue;
+			}
+			if ("user".equals(role) || "assistant".equals(role)) {
+				candidates.add(new HistoryTurn(role, content));
+			}
+		}
+		int start = Math.max(0, candidates.size() - properties.getMaxHistoryTurns());
+
+		// newest turns first, so older turns are the ones that get truncated or dropped
+		List<HistoryTurn> packed = new ArrayList<>();
+		int left = budget;
+		for (int i = candidates.size() - 1; i >= start; i--) {
+			HistoryTurn turn = candidates.get(i);
+			int cost = tokenCounter.count(turn.content()) + MESSAGE_OVERHEAD_TOKENS;
+			if (cost <= left) {
+				packed.add(turn);
+				left -= cost;
+				continue;
+			}
+			String truncated = trimToSentences(turn.content(), left - MESSAGE_OVERHEAD_TOKENS);
+			if (!truncated.isEmpty()) {
+				packed.add(new HistoryTurn(turn.role(), truncated + ELLIPSIS));
+			}
+			break;
+		}
+		Collections.reverse(packed);
+		return packed;
+	}
+
+	private List<String> packContext(List<TextSegment> context, int budget) {
+		if (context == null || context.isEmpty() || budget <= 0) {
+			return List.of();
+		}
+		List<TextSegment> ranked = new ArrayList<>(context);
+		ranked.sort(Comparator.comparingDouble(RagContextPacker::similarity).reversed());
+
+		Map<String, Map<Integer, String>> acceptedChunks = new HashMap<>();
+		List<String> packed = new ArrayList<>();
+		int left = budget;
+		for (TextSegment segment : ranked) {
+			if (packed.size() >= properties.getMaxContextSegments() || left < properties.getMinSegmentTokens()) {
+				break;
+			}
+			Metadata metadata = segment.metadata();
+			String chunk = metadata.getString("chunk");
+			String bookId = metadata.getString("bookId");
+			Integer chunkIndex = metadata.getInteger("chunkIndex");
+			if (chunk == null || bookId == null || chunkIndex == null) {
+				String text = fit(segment.text(), left);
+				if (!text.isEmpty()) {
+					packed.add(text);
+					left -= tokenCounter.count(text);
+				}
+				continue;
+			}
+
+			Map<Integer, String> neighbours = acceptedChunks.computeIfAbsent(bookId, id -> new HashMap<>());
+			String body = dropOverlap(chunk, neighbours.get(chunkIndex - 1), neighbours.get(chunkIndex + 1));
+			if (body.isBlank()) {
+				continue;
+			}
+			String title = metadata.getString("title");
+			String prefix = title == null || title.isBlank() ? "" : title.trim() + " - ";
+			String text = fit(prefix + body, left);
+			if (text.length() <= prefix.length()) {
+				continue;
+			}
+			packed.add(text);
+			neighbours.put(chunkIndex, chunk);
+			left -= tokenCounter.count(text);
+		}
+		return packed;
+	}
+
+	private String fit(String text, int budget) {
+		if (text == null || text.isBlank()) {
+			return "";
+		}
+		if (tokenCounter.count(text) <= budget) {
+			return text;
+		}
+		String trimmed = trimToSentences(text, budget);
+		return tokenCounter.count(trimmed) < properties.getMinSegmentTokens() ? "" : trimmed;
+	}
+
+	/**
+	 * Keeps as many leading sentences of the text as fit into the given number of tokens.
+	 */
+	String trimToSentences(String text, int budget) {
+		if (text == null || budget <= 0) {
+			return "";
+		}
+		StringBuilder kept = new StringBuilder();
+		int used = 0;
+		for (String sentence : SENTENCE_BREAK.split(text)) {
+			int cost = tokenCounter.count(sentence) + (kept.isEmpty() ? 0 : 1);
+			if (used + cost > budget) {
+				break;
+			}
+			if (!kept.isEmpty()) {
+				kept.append(' ');
+			}
+			kept.append(sentence);
+			used += cost;
+		}
+		return kept.toString().trim();
+	}
+
+	/**
+	 * Removes the text that the chunker duplicated from the previous and next chunk of the same book.
+	 */
+	String dropOverlap(String chunk, String previous, String next) {
+		String body = chunk;
+		if (previous != null) {
+			int overlap = overlapLength(previous, body);
+			body = body.substring(overlap);
+		}
+		if (next != null) {
+			int overlap = overlapLength(body, next);
+			body = body.substring(0, body.length() - overlap);
+		}
+		return body.trim();
+	}
+
+	/**
+	 * @return length of the longest suffix of {@code head} that is also a prefix of {@code tail}
+	 */
+	private int overlapLength(String head, String tail) {
+		if (head.length() < OVERLAP_ANCHOR_LENGTH || tail.length() < OVERLAP_ANCHOR_LENGTH) {
+			return 0;
+		}
+		String anchor = tail.substring(0, OVERLAP_ANCHOR_LENGTH);
+		int from = Math.max(0, head.length() - MAX_OVERLAP_SEARCH);
+		int position = head.indexOf(anchor, from);
+		while (position >= 0) {
+			int length = head.length() - position;
+			if (length <= tail.length() && tail.startsWith(head.substring(position))) {
+				return length;
+			}
+			position = head.indexOf(anchor, position + 1);
+		}
+		return 0;
+	}
+
+	private static double similarity(TextSegment segment) {
+		Double similarity = segment.metadata().getDouble("similarity");
+		return similarity == null ? 0.0 : similarity;
+	}
+
+	public record HistoryTurn(String role, String content) {
+	}
+
+	public record PackedPrompt(List<HistoryTurn> history, List<String> context) {
+	}
+}
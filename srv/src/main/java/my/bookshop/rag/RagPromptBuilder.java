@@ -5,9 +5,12 @@ import java.util.List;
 import java.util.Map;
 import dev.langchain4j.data.message.AiMessage;
 import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
 import dev.langchain4j.data.message.UserMessage;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.model.input.Prompt;
+import my.bookshop.rag.RagContextPacker.HistoryTurn;
+import my.bookshop.rag.RagContextPacker.PackedPrompt;
 
 import org.springframework.stereotype.Component;
 
@@ -20,22 +23,31 @@ public class RagPromptBuilder {
 					Answer the customer's question based strictly on the provided context.
 					Keep your response short and concise. Do not offer to place holds, check live stock, or mention real-time availability.
 					Determine if a database search is needed to find relevant books (e.g. if the user asks to find, show, or recommend books).
-					Output your response as a JSON object with keys "reply" (string) and "vectorSearch" (boolean).
+					Output your response as a JSON object with keys "reply" (string), "vectorSearch" (boolean) and "confidence" (number from 0 to 1, how sure you are that the reply answers the question).
 					If "vectorSearch" is true, explicitly state in the reply that you have searched for relevant books.
 					""");
 
+	private final RagContextPacker contextPacker;
+
+	public RagPromptBuilder(RagPromptProperties properties, RagTokenCounter tokenCounter) {
+		this.contextPacker = new RagContextPacker(properties, tokenCounter);
+	}
+
 	public List<ChatMessage> buildMessages(List<Map<String, Object>> history, String message,
 			List<TextSegment> context) {
+		SystemMessage systemMessage = SYSTEM_PROMPT.toSystemMessage();
+		PackedPrompt packed = contextPacker.pack(systemMessage.text(), history, message, context);
+
 		List<ChatMessage> messages = new ArrayList<>();
-		messages.add(SYSTEM_PROMPT.toSystemMessage());
-		messages.addAll(toMessages(history));
+		messages.add(systemMessage);
+		messages.addAll(toMessages(packed.history()));
 
 		String userMessageText = message;
-		if (context != null && !context.isEmpty()) {
+		if (!packed.context().isEmpty()) {
 			StringBuilder contextBuilder = new StringBuilder();
 			contextBuilder.append("CONTEXT: ");
-			for (TextSegment segment : context) {
-				contextBuilder.append(segment.text()).append("\n\n");
+			for (String segment : packed.context()) {
+				contextBuilder.append(segment).append("\n\n");
 			}
 			contextBuilder.append("QUESTION: ").append(message);
 			userMessageText = contextBuilder.toString();
@@ -61,24 +73,13 @@ public class RagPromptBuilder {
 		return builder.toString().trim();
 	}
 
-	private List<ChatMessage> toMessages(List<Map<String, Object>> history) {
-		if (history.isEmpty()) {
-			return List.of();
-		}
-		List<ChatMessage> messages = new ArrayList<>();
-		int start = Math.max(0, history.size() - 6);
-		for (int i = start; i < history.size(); i++) {
-			Map<String, Object> turn = history.get(i);
-			String role = String.valueOf(turn.get("role"));
-			Object contentRaw = turn.get("content");
-			String content = contentRaw == null ? null : contentRaw.toString();
-			if (content == null || content.isBlank()) {
-				continue;
-			}
-			if ("user".equals(role)) {
-				messages.add(UserMessage.from(content));
-			} else if ("assistant".equals(role)) {
-				messages.add(AiMessage.from(content));
+	private List<ChatMessage> toMessages(List<HistoryTurn> history) {
+		List<ChatMessage> messages = new ArrayList<>(history.size());
+		for (HistoryTurn turn : history) {
+			if ("user".equals(turn.role())) {
+				messages.add(UserMessage.from(turn.content()));
+			} else if ("assistant".equals(turn.role())) {
+				messages.add(AiMessage.from(turn.content()));
 			}
 		}
 		return messages;
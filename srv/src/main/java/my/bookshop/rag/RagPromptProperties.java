@@ -0,0 +1,67 @@
+package my.bookshop.rag;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Token budget used when packing retrieved context and chat history into a prompt.
+ */
+@Component
+@ConfigurationProperties(prefix = "rag.prompt")
+public class RagPromptProperties {
+
+	private String tokenizerModel = "gpt-4o-mini";
+	private int maxPromptTokens = 3000;
+	private int maxHistoryTokens = 600;
+	private int maxHistoryTurns = 6;
+	private int maxContextSegments = 5;
+	private int minSegmentTokens = 40;
+
+	public String getTokenizerModel() {
+		return tokenizerModel;
+	}
+
+	public void setTokenizerModel(String tokenizerModel) {
+		this.tokenizerModel = tokenizerModel;
+	}
+
+	public int getMaxPromptTokens() {
+		return maxPromptTokens;
+	}
+
+	public void setMaxPromptTokens(int maxPromptTokens) {
+		this.maxPromptTokens = maxPromptTokens;
+	}
+
+	public int getMaxHistoryTokens() {
+		return maxHistoryTokens;
+	}
+
+	public void setMaxHistoryTokens(int maxHistoryTokens) {
+		this.maxHistoryTokens = maxHistoryTokens;
+	}
+
+	public int getMaxHistoryTurns() {
+		return maxHistoryTurns;
+	}
+
+	public void setMaxHistoryTurns(int maxHistoryTurns) {
+		this.maxHistoryTurns = maxHistoryTurns;
+	}
+
+	public int getMaxContextSegments() {
+		return maxContextSegments;
+	}
+
+	public void setMaxContextSegments(int maxContextSegments) {
+		this.maxContextSegments = maxContextSegments;
+	}
+
+	public int getMinSegmentTokens() {
+		return minSegmentTokens;
+	}
+
+	public void setMinSegmentTokens(int minSegmentTokens) {
+		this.minSegmentTokens = minSegmentTokens;
+	}
+}
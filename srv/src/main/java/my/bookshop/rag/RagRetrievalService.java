@@ -1,29 +1,101 @@
 package my.bookshop.rag;
 
+import com.sap.cds.services.request.RequestContext;
+import com.sap.cds.services.request.UserInfo;
+import com.sap.cds.services.runtime.CdsRuntime;
 import dev.langchain4j.data.document.Metadata;
 import dev.langchain4j.data.segment.TextSegment;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import my.bookshop.rag.RetrievalProperties.BookRanking;
+import my.bookshop.rag.RetrievalProperties.Mode;
 import my.bookshop.repository.bookshop.BookContentChunkRepository;
 import my.bookshop.repository.bookshop.BookshopBooksRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+/**
+ * Finds the book chunks most similar to a query vector.
+ * <p>
+ * The chunks are searched by the {@link ChunkSearchBackend} named by {@code rag.retrieval.backend}, or by
+ * {@code tenant-backends} for a tenant: {@code exact} compares the query with all chunks in the database, {@code ivf}
+ * with the chunks of the nearest clusters in memory.
+ * <p>
+ * In {@code rag.retrieval.mode: two-stage}, books are ranked first, by their centroids or by their title and
+ * description chunks, and only the chunks of the best {@code candidate-books} are searched, so the cost of a search
+ * grows with the number of relevant books rather than with all chunks. It falls back to the flat search while no book
+ * vectors exist. A {@code recall-sample-rate} share of two-stage or non-exact searches is repeated flat and exact in
+ * the background, and the share of the exact top {@code recall-top-k} chunks that the search found is recorded as
+ * {@code rag.retrieval.recall}.
+ */
 @Service
 public class RagRetrievalService {
 
+	private static final Logger logger = LoggerFactory.getLogger(RagRetrievalService.class);
+
+	private static final int MAX_CHUNKS = 1000;
+	private static final List<BookChunkSource> SUMMARY_SOURCES = List.of(BookChunkSource.TITLE,
+			BookChunkSource.DESCRIPTION);
+
 	private final RagAiClient aiClient;
 	private final BookshopBooksRepository bookshopBooksRepository;
 	private final BookContentChunkRepository chunkRepository;
+	private final Map<String, ChunkSearchBackend> backends;
+	private final SimilarBooksIndex similarBooksIndex;
+	private final RetrievalProperties properties;
+	private final CdsRuntime runtime;
+	private final MeterRegistry meterRegistry;
+	private final ExecutorService recallExecutor;
+	private final AtomicBoolean recallCheckRunning = new AtomicBoolean();
 
 	public RagRetrievalService(RagAiClient aiClient,
 			BookshopBooksRepository bookshopBooksRepository,
 			BookContentChunkRepository chunkRepository) {
+		this(aiClient, bookshopBooksRepository, chunkRepository, List.of(new ExactChunkSearch(chunkRepository)), null,
+				new RetrievalProperties(), null, null, null);
+	}
+
+	@Autowired
+	public RagRetrievalService(RagAiClient aiClient,
+			BookshopBooksRepository bookshopBooksRepository,
+			BookContentChunkRepository chunkRepository,
+			List<ChunkSearchBackend> backends,
+			SimilarBooksIndex similarBooksIndex,
+			RetrievalProperties properties,
+			CdsRuntime runtime,
+			MeterRegistry meterRegistry,
+			BlockingExecutors executors) {
 		this.aiClient = aiClient;
 		this.bookshopBooksRepository = bookshopBooksRepository;
 		this.chunkRepository = chunkRepository;
+		this.backends = backends.stream().collect(Collectors.toMap(ChunkSearchBackend::name, Function.identity()));
+		Set<String> configured = new HashSet<>(properties.getTenantBackends().values());
+		configured.add(properties.getBackend());
+		configured.removeAll(this.backends.keySet());
+		if (!configured.isEmpty()) {
+			throw new IllegalStateException("Unknown retrieval backends " + configured + ", available are "
+					+ this.backends.keySet());
+		}
+		this.similarBooksIndex = similarBooksIndex;
+		this.properties = properties;
+		this.runtime = runtime;
+		this.meterRegistry = meterRegistry;
+		this.recallExecutor = executors == null ? null : executors.serial("rag-recall");
 	}
 
 	public double[] embedForQuery(String text) {
@@ -38,9 +110,24 @@ public class RagRetrievalService {
 		if (chunkRepository == null || bookshopBooksRepository == null) {
 			return List.of();
 		}
-		// Use a high limit (e.g., 100) to get "all" relevant chunks above the threshold
-		List<BookChunkMatch> matches = chunkRepository.findSimilarChunks(vector, 1000,
-				minSimilarity > 0 ? minSimilarity : 0.3);
+		double threshold = minSimilarity > 0 ? minSimilarity : 0.3;
+		ChunkSearchBackend backend = backend();
+		long start = System.nanoTime();
+		List<String> candidates = properties.getMode() == Mode.TWO_STAGE ? timedCandidates(vector) : List.of();
+		// without book vectors, e.g. before the first rebuild, all chunks are searched
+		Mode mode = candidates.isEmpty() ? Mode.FLAT : Mode.TWO_STAGE;
+		List<BookChunkMatch> matches;
+		try {
+			matches = backend.search(vector, MAX_CHUNKS, threshold, mode == Mode.FLAT ? null : candidates);
+		} finally {
+			// the search time includes the ranking of the candidate books
+			recordSearch(mode, backend, System.nanoTime() - start);
+		}
+		boolean approximate = mode == Mode.TWO_STAGE || !ExactChunkSearch.NAME.equals(backend.name());
+		if (approximate && properties.getRecallSampleRate() > 0
+				&& ThreadLocalRandom.current().nextDouble() < properties.getRecallSampleRate()) {
+			checkRecall(vector, threshold, matches, mode, backend);
+		}
 		if (matches.isEmpty()) {
 			return List.of();
 		}
@@ -57,6 +144,124 @@ public class RagRetrievalService {
 		return contexts;
 	}
 
+	private ChunkSearchBackend backend() {
+		String tenant = currentTenant();
+		String name = tenant == null ? null : properties.getTenantBackends().get(tenant);
+		return backends.get(name == null ? properties.getBackend() : name);
+	}
+
+	private List<String> candidateBooks(double[] vector) {
+		int limit = properties.getCandidateBooks();
+		if (properties.getBookRanking() == BookRanking.SUMMARY) {
+			return chunkRepository.findSimilarBooks(vector, limit, SUMMARY_SOURCES);
+		}
+		if (similarBooksIndex == null) {
+			return List.of();
+		}
+		return similarBooksIndex.nearestBooks(vector, limit).stream()
+				.map(SimilarBooksIndex.Neighbour::bookId)
+				.toList();
+	}
+
+	/**
+	 * Repeats the search flat and exact in the background and records the recall of the approximate search. Only one
+	 * check runs at a time; samples taken meanwhile are dropped.
+	 */
+	private void checkRecall(double[] vector, double threshold, List<BookChunkMatch> matches, Mode mode,
+			ChunkSearchBackend backend) {
+		ChunkSearchBackend exactBackend = backends.get(ExactChunkSearch.NAME);
+		if (recallExecutor == null || meterRegistry == null || exactBackend == null
+				|| !recallCheckRunning.compareAndSet(false, true)) {
+			return;
+		}
+		UserInfo user = currentUser();
+		try {
+			recallExecutor.execute(() -> {
+				try {
+					var requestContext = user == null
+							? runtime.requestContext().systemUserProvider()
+							: runtime.requestContext().user(user);
+					List<BookChunkMatch> exact = requestContext.run(context -> {
+						return exactBackend.search(vector, MAX_CHUNKS, threshold, null);
+					});
+					if (!exact.isEmpty()) {
+						DistributionSummary.builder("rag.retrieval.recall")
+								.baseUnit("ratio")
+								.tag("mode", tagValue(mode))
+								.tag("backend", backend.name())
+								.register(meterRegistry)
+								.record(recall(exact, matches, properties.getRecallTopK()));
+					}
+				} catch (RuntimeException e) {
+					logger.warn("Recall check of the {} retrieval failed", backend.name(), e);
+				} finally {
+					recallCheckRunning.set(false);
+				}
+			});
+		} catch (RuntimeException e) {
+			recallCheckRunning.set(false);
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the share of the first {@code k} exact matches that are among the first {@code k} approximate ones
+	 */
+	static double recall(List<BookChunkMatch> exact, List<BookChunkMatch> approximate, int k) {
+		List<BookChunkMatch> expected = exact.subList(0, Math.min(k, exact.size()));
+		if (expected.isEmpty()) {
+			return 1.0;
+		}
+		Set<String> found = approximate.stream()
+				.limit(k)
+				.map(BookChunkMatch::chunkId)
+				.collect(Collectors.toSet());
+		long hits = expected.stream().filter(match -> found.contains(match.chunkId())).count();
+		return (double) hits / expected.size();
+	}
+
+	private List<String> timedCandidates(double[] vector) {
+		if (meterRegistry == null) {
+			return candidateBooks(vector);
+		}
+		return Timer.builder("rag.retrieval.candidates")
+				.tag("ranking", properties.getBookRanking().name().toLowerCase())
+				.register(meterRegistry)
+				.record(() -> candidateBooks(vector));
+	}
+
+	private void recordSearch(Mode mode, ChunkSearchBackend backend, long nanos) {
+		if (meterRegistry == null) {
+			return;
+		}
+		Timer.builder("rag.retrieval.search")
+				.tag("mode", tagValue(mode))
+				.tag("backend", backend.name())
+				.register(meterRegistry)
+				.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	private static String tagValue(Mode mode) {
+		return mode.name().toLowerCase().replace('_', '-');
+	}
+
+	private UserInfo currentUser() {
+		RequestContext current = runtime == null ? null : RequestContext.getCurrent(runtime);
+		return current == null ? null : current.getUserInfo();
+	}
+
+	private String currentTenant() {
+		UserInfo user = currentUser();
+		return user == null ? null : user.getTenant();
+	}
+
+	@PreDestroy
+	void shutdown() {
+		if (recallExecutor != null) {
+			recallExecutor.shutdownNow();
+		}
+	}
+
 	private TextSegment toSegment(BookChunkMatch match, cds.gen.my.bookshop.Books book) {
 		StringBuilder text = new StringBuilder();
 		String title = book == null ? null : book.getTitle();
@@ -71,6 +276,9 @@ public class RagRetrievalService {
 			text.append("No description available.");
 		}
 		Metadata metadata = new Metadata();
+		if (match.chunkId() != null) {
+			metadata.put("chunkId", match.chunkId());
+		}
 		if (match.bookId() != null) {
 			metadata.put("bookId", match.bookId());
 		}
@@ -0,0 +1,55 @@
+package my.bookshop.rag;
+
+import dev.langchain4j.model.Tokenizer;
+import dev.langchain4j.model.openai.OpenAiTokenizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts tokens locally so prompts can be sized without a round-trip to the model provider.
+ * <p>
+ * Falls back to a characters-per-token estimate when no encoding is known for the configured model.
+ */
+public class RagTokenCounter {
+
+	private static final Logger logger = LoggerFactory.getLogger(RagTokenCounter.class);
+
+	private static final String FALLBACK_MODEL = "gpt-4o";
+	private static final int CHARS_PER_TOKEN = 4;
+
+	private final Tokenizer tokenizer;
+
+	public RagTokenCounter(String modelName) {
+		Tokenizer resolved = tryTokenizer(modelName);
+		if (resolved == null) {
+			resolved = tryTokenizer(FALLBACK_MODEL);
+		}
+		if (resolved == null) {
+			logger.info("No local tokenizer available for model '{}'; estimating tokens from text length.", modelName);
+		}
+		this.tokenizer = resolved;
+	}
+
+	public int count(String text) {
+		if (text == null || text.isEmpty()) {
+			return 0;
+		}
+		if (tokenizer == null) {
+			return (text.length() + CHARS_PER_TOKEN - 1) / CHARS_PER_TOKEN;
+		}
+		return tokenizer.estimateTokenCountInText(text);
+	}
+
+	private static Tokenizer tryTokenizer(String modelName) {
+		if (modelName == null || modelName.isBlank()) {
+			return null;
+		}
+		try {
+			Tokenizer candidate = new OpenAiTokenizer(modelName);
+			candidate.estimateTokenCountInText("probe");
+			return candidate;
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package my.bookshop.rag;
+
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.model.output.TokenUsage;
+import java.util.List;
+import reactor.core.publisher.Mono;
+
+/**
+ * Non-blocking counterpart of {@link RagAiClient} for pipelines that must not hold a thread while the model works.
+ * <p>
+ * Replies carry their token usage instead of recording it, because {@link AiUsageTracker} writes to the database,
+ * which must not happen on an event-loop thread.
+ */
+public interface ReactiveRagAiClient {
+
+	Mono<AiReply<double[]>> embedReactive(String text);
+
+	Mono<AiReply<String>> chatReactive(List<ChatMessage> messages);
+
+	record AiReply<T>(T content, String model, TokenUsage usage) {
+	}
+}
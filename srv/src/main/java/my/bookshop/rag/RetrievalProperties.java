@@ -0,0 +1,95 @@
+package my.bookshop.rag;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Search mode and backend of the {@link RagRetrievalService}.
+ */
+@Component
+@ConfigurationProperties(prefix = "rag.retrieval")
+public class RetrievalProperties {
+
+	private String backend = ExactChunkSearch.NAME;
+	private Map<String, String> tenantBackends = new HashMap<>();
+	private Mode mode = Mode.FLAT;
+	private BookRanking bookRanking = BookRanking.CENTROID;
+	private int candidateBooks = 20;
+	private double recallSampleRate = 0.0;
+	private int recallTopK = 10;
+
+	public String getBackend() {
+		return backend;
+	}
+
+	public void setBackend(String backend) {
+		this.backend = backend;
+	}
+
+	/**
+	 * @return backend names by tenant, overriding {@link #getBackend()}
+	 */
+	public Map<String, String> getTenantBackends() {
+		return tenantBackends;
+	}
+
+	public void setTenantBackends(Map<String, String> tenantBackends) {
+		this.tenantBackends = tenantBackends;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public void setMode(Mode mode) {
+		this.mode = mode;
+	}
+
+	public BookRanking getBookRanking() {
+		return bookRanking;
+	}
+
+	public void setBookRanking(BookRanking bookRanking) {
+		this.bookRanking = bookRanking;
+	}
+
+	public int getCandidateBooks() {
+		return candidateBooks;
+	}
+
+	public void setCandidateBooks(int candidateBooks) {
+		this.candidateBooks = candidateBooks;
+	}
+
+	public double getRecallSampleRate() {
+		return recallSampleRate;
+	}
+
+	public void setRecallSampleRate(double recallSampleRate) {
+		this.recallSampleRate = recallSampleRate;
+	}
+
+	public int getRecallTopK() {
+		return recallTopK;
+	}
+
+	public void setRecallTopK(int recallTopK) {
+		this.recallTopK = recallTopK;
+	}
+
+	public enum Mode {
+		/** searches all chunks */
+		FLAT,
+		/** ranks books first and searches only the chunks of the best {@code candidate-books} */
+		TWO_STAGE
+	}
+
+	public enum BookRanking {
+		/** by the book centroids held by the {@link SimilarBooksIndex} */
+		CENTROID,
+		/** by the embeddings of the title and description chunks */
+		SUMMARY
+	}
+}
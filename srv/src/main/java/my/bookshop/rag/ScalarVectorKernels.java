@@ -0,0 +1,67 @@
+package my.bookshop.rag;
+
+/**
+ * Plain loops, used when the {@code jdk.incubator.vector} module is not enabled. Float products are summed as
+ * doubles.
+ */
+final class ScalarVectorKernels implements VectorKernels {
+
+	static final String NAME = "scalar";
+
+	@Override
+	public String name() {
+		return NAME;
+	}
+
+	@Override
+	public double dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		double sum = 0;
+		for (int i = 0; i < length; i++) {
+			sum += a[aOffset + i] * b[bOffset + i];
+		}
+		return sum;
+	}
+
+	@Override
+	public double cosine(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		double dot = 0;
+		double aNorm = 0;
+		double bNorm = 0;
+		for (int i = 0; i < length; i++) {
+			float x = a[aOffset + i];
+			float y = b[bOffset + i];
+			dot += x * y;
+			aNorm += x * x;
+			bNorm += y * y;
+		}
+		return aNorm == 0 || bNorm == 0 ? 0 : dot / Math.sqrt(aNorm * bNorm);
+	}
+
+	@Override
+	public double squaredDistance(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		double sum = 0;
+		for (int i = 0; i < length; i++) {
+			double diff = a[aOffset + i] - b[bOffset + i];
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	@Override
+	public int dot(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+		int sum = 0;
+		for (int i = 0; i < length; i++) {
+			sum += a[aOffset + i] * b[bOffset + i];
+		}
+		return sum;
+	}
+
+	@Override
+	public int hamming(long[] a, int aOffset, long[] b, int bOffset, int length) {
+		int distance = 0;
+		for (int i = 0; i < length; i++) {
+			distance += Long.bitCount(a[aOffset + i] ^ b[bOffset + i]);
+		}
+		return distance;
+	}
+}
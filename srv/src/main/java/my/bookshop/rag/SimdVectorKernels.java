@@ -0,0 +1,129 @@
+package my.bookshop.rag;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Loops on the widest vectors of the CPU, e.g. 8 floats with AVX2 or 16 with AVX-512, with the remainder done
+ * lane by lane. Float products are summed per lane as floats, so results differ from {@link ScalarVectorKernels} in
+ * the last digits.
+ * <p>
+ * Only loaded by {@link VectorMath} if the {@code jdk.incubator.vector} module is enabled.
+ */
+final class SimdVectorKernels implements VectorKernels {
+
+	static final String NAME = "simd";
+
+	private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+	/** at least 8, as byte vectors have at least 64 bits */
+	private static final int INT_LANES = Math.max(8, IntVector.SPECIES_PREFERRED.length());
+	private static final VectorSpecies<Integer> INTS = VectorSpecies.of(int.class,
+			VectorShape.forBitSize(INT_LANES * Integer.SIZE));
+	/** as many bytes as {@link #INTS} has lanes, so they widen into one int vector */
+	private static final VectorSpecies<Byte> BYTES = VectorSpecies.of(byte.class,
+			VectorShape.forBitSize(INT_LANES * Byte.SIZE));
+	private static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+
+	@Override
+	public String name() {
+		return NAME + "-" + FLOATS.vectorBitSize();
+	}
+
+	@Override
+	public double dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		FloatVector sums = FloatVector.zero(FLOATS);
+		int i = 0;
+		for (int bound = FLOATS.loopBound(length); i < bound; i += FLOATS.length()) {
+			FloatVector x = FloatVector.fromArray(FLOATS, a, aOffset + i);
+			FloatVector y = FloatVector.fromArray(FLOATS, b, bOffset + i);
+			sums = x.fma(y, sums);
+		}
+		double sum = sums.reduceLanes(VectorOperators.ADD);
+		for (; i < length; i++) {
+			sum += a[aOffset + i] * b[bOffset + i];
+		}
+		return sum;
+	}
+
+	@Override
+	public double cosine(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		FloatVector dots = FloatVector.zero(FLOATS);
+		FloatVector aNorms = FloatVector.zero(FLOATS);
+		FloatVector bNorms = FloatVector.zero(FLOATS);
+		int i = 0;
+		for (int bound = FLOATS.loopBound(length); i < bound; i += FLOATS.length()) {
+			FloatVector x = FloatVector.fromArray(FLOATS, a, aOffset + i);
+			FloatVector y = FloatVector.fromArray(FLOATS, b, bOffset + i);
+			dots = x.fma(y, dots);
+			aNorms = x.fma(x, aNorms);
+			bNorms = y.fma(y, bNorms);
+		}
+		double dot = dots.reduceLanes(VectorOperators.ADD);
+		double aNorm = aNorms.reduceLanes(VectorOperators.ADD);
+		double bNorm = bNorms.reduceLanes(VectorOperators.ADD);
+		for (; i < length; i++) {
+			float x = a[aOffset + i];
+			float y = b[bOffset + i];
+			dot += x * y;
+			aNorm += x * x;
+			bNorm += y * y;
+		}
+		return aNorm == 0 || bNorm == 0 ? 0 : dot / Math.sqrt(aNorm * bNorm);
+	}
+
+	@Override
+	public double squaredDistance(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		FloatVector sums = FloatVector.zero(FLOATS);
+		int i = 0;
+		for (int bound = FLOATS.loopBound(length); i < bound; i += FLOATS.length()) {
+			FloatVector diff = FloatVector.fromArray(FLOATS, a, aOffset + i)
+					.sub(FloatVector.fromArray(FLOATS, b, bOffset + i));
+			sums = diff.fma(diff, sums);
+		}
+		double sum = sums.reduceLanes(VectorOperators.ADD);
+		for (; i < length; i++) {
+			double diff = a[aOffset + i] - b[bOffset + i];
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	@Override
+	public int dot(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+		IntVector sums = IntVector.zero(INTS);
+		int i = 0;
+		for (int bound = BYTES.loopBound(length); i < bound; i += BYTES.length()) {
+			IntVector x = (IntVector) ByteVector.fromArray(BYTES, a, aOffset + i)
+					.convertShape(VectorOperators.B2I, INTS, 0);
+			IntVector y = (IntVector) ByteVector.fromArray(BYTES, b, bOffset + i)
+					.convertShape(VectorOperators.B2I, INTS, 0);
+			sums = sums.add(x.mul(y));
+		}
+		int sum = sums.reduceLanes(VectorOperators.ADD);
+		for (; i < length; i++) {
+			sum += a[aOffset + i] * b[bOffset + i];
+		}
+		return sum;
+	}
+
+	@Override
+	public int hamming(long[] a, int aOffset, long[] b, int bOffset, int length) {
+		LongVector counts = LongVector.zero(LONGS);
+		int i = 0;
+		for (int bound = LONGS.loopBound(length); i < bound; i += LONGS.length()) {
+			counts = counts.add(LongVector.fromArray(LONGS, a, aOffset + i)
+					.lanewise(VectorOperators.XOR, LongVector.fromArray(LONGS, b, bOffset + i))
+					.lanewise(VectorOperators.BIT_COUNT));
+		}
+		int distance = (int) counts.reduceLanes(VectorOperators.ADD);
+		for (; i < length; i++) {
+			distance += Long.bitCount(a[aOffset + i] ^ b[bOffset + i]);
+		}
+		return distance;
+	}
+}
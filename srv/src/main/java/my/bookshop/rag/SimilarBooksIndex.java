@@ -0,0 +1,224 @@
+package my.bookshop.rag;
+
+import com.sap.cds.services.request.RequestContext;
+import com.sap.cds.services.runtime.CdsRuntime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import my.bookshop.repository.bookshop.BookCentroidRepository;
+import my.bookshop.repository.bookshop.EmbeddingGenerationRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Finds the books most similar to a given book by the cosine similarity of their centroids, the mean of their chunk
+ * embeddings, without calling a model or searching the chunks.
+ * <p>
+ * The normalized centroids of the active index generation are held in memory per tenant and loaded on first use.
+ * Each book's {@code rag.similar.max-limit} nearest books are computed on first request and cached until a centroid
+ * changes. Changes made by this instance are applied right away; the index is reloaded after
+ * {@code refresh-interval} to pick up those of other instances, and when another generation is activated.
+ * <p>
+ * The same centroids rank books against a query vector for the coarse stage of two-stage retrieval, see
+ * {@link RagRetrievalService}.
+ */
+@Component
+public class SimilarBooksIndex {
+
+	private static final Logger logger = LoggerFactory.getLogger(SimilarBooksIndex.class);
+
+	private final BookCentroidRepository centroidRepository;
+	private final EmbeddingGenerationRepository generationRepository;
+	private final CdsRuntime runtime;
+	private final int maxLimit;
+	private final Duration refreshInterval;
+	private final Map<String, TenantIndex> tenants = new ConcurrentHashMap<>();
+	private final ReentrantLock loadLock = new ReentrantLock();
+
+	public SimilarBooksIndex(BookCentroidRepository centroidRepository,
+			EmbeddingGenerationRepository generationRepository, CdsRuntime runtime,
+			@Value("${rag.similar.max-limit:20}") int maxLimit,
+			@Value("${rag.similar.refresh-interval:10m}") Duration refreshInterval) {
+		this.centroidRepository = centroidRepository;
+		this.generationRepository = generationRepository;
+		this.runtime = runtime;
+		this.maxLimit = maxLimit;
+		this.refreshInterval = refreshInterval;
+	}
+
+	public int maxLimit() {
+		return maxLimit;
+	}
+
+	/**
+	 * @return up to {@code limit} books most similar to the given one, most similar first, or none if the book has no
+	 *         centroid yet
+	 */
+	public List<Neighbour> similarBooks(String bookId, int limit) {
+		List<Neighbour> neighbours = index().neighbours(bookId, maxLimit);
+		return neighbours.size() <= limit ? neighbours : neighbours.subList(0, limit);
+	}
+
+	/**
+	 * @return up to {@code limit} books whose centroids are most similar to the given query vector, most similar
+	 *         first, or none if no centroids are stored yet
+	 */
+	public List<Neighbour> nearestBooks(double[] vector, int limit) {
+		return index().nearest(VectorMath.normalize(vector), null, limit);
+	}
+
+	/**
+	 * Applies a book's new centroid, if the index of the current tenant is loaded for the given generation.
+	 */
+	public void updated(String bookId, int generation, float[] mean) {
+		TenantIndex index = tenants.get(tenantKey());
+		if (index != null && index.generation == generation) {
+			index.put(bookId, VectorMath.normalize(mean));
+		}
+	}
+
+	public void removed(String bookId) {
+		TenantIndex index = tenants.get(tenantKey());
+		if (index != null) {
+			index.remove(bookId);
+		}
+	}
+
+	/**
+	 * Drops the index of the current tenant, e.g. after another generation was activated.
+	 */
+	public void invalidate() {
+		tenants.remove(tenantKey());
+	}
+
+	private TenantIndex index() {
+		String tenant = tenantKey();
+		TenantIndex current = tenants.get(tenant);
+		if (current != null && !current.isStale(refreshInterval)) {
+			return current;
+		}
+		// while one request reloads a stale index, the others keep using it
+		if (current != null && !loadLock.tryLock()) {
+			return current;
+		}
+		if (current == null) {
+			loadLock.lock();
+		}
+		try {
+			TenantIndex loaded = tenants.get(tenant);
+			if (loaded != null && loaded != current) {
+				return loaded;
+			}
+			loaded = load();
+			tenants.put(tenant, loaded);
+			return loaded;
+		} finally {
+			loadLock.unlock();
+		}
+	}
+
+	private TenantIndex load() {
+		int generation = generationRepository.findActiveId().orElse(EmbeddingGenerations.INITIAL_GENERATION);
+		TenantIndex index = new TenantIndex(generation);
+		centroidRepository.findAll(generation).forEach((bookId, centroid) -> index.put(bookId,
+				VectorMath.normalize(centroid.mean())));
+		logger.debug("Loaded {} book centroids of index generation {}", index.vectors.size(), generation);
+		return index;
+	}
+
+	private String tenantKey() {
+		RequestContext context = runtime == null ? null : RequestContext.getCurrent(runtime);
+		String tenant = context == null ? null : context.getUserInfo().getTenant();
+		return tenant == null ? "" : tenant;
+	}
+
+	/**
+	 * @param similarity cosine similarity of the two books' centroids
+	 */
+	public record Neighbour(String bookId, double similarity) {
+	}
+
+	/**
+	 * Centroids of one tenant's active generation and the neighbours computed from them.
+	 * <p>
+	 * Every change of a centroid starts a new version. Cached neighbours are only used in the version they were
+	 * computed in, so a computation that overlaps a change cannot leave outdated neighbours behind.
+	 */
+	static final class TenantIndex {
+
+		private final int generation;
+		private final long loadedAt = System.nanoTime();
+		private final Map<String, float[]> vectors = new ConcurrentHashMap<>();
+		private final Map<String, CachedNeighbours> neighbours = new ConcurrentHashMap<>();
+		private final AtomicLong version = new AtomicLong();
+
+		TenantIndex(int generation) {
+			this.generation = generation;
+		}
+
+		boolean isStale(Duration refreshInterval) {
+			return System.nanoTime() - loadedAt > refreshInterval.toNanos();
+		}
+
+		void put(String bookId, float[] vector) {
+			vectors.put(bookId, vector);
+			version.incrementAndGet();
+			neighbours.clear();
+		}
+
+		void remove(String bookId) {
+			vectors.remove(bookId);
+			version.incrementAndGet();
+			neighbours.clear();
+		}
+
+		List<Neighbour> neighbours(String bookId, int limit) {
+			long current = version.get();
+			CachedNeighbours cached = neighbours.get(bookId);
+			if (cached != null && cached.version() == current) {
+				return cached.neighbours();
+			}
+			float[] query = vectors.get(bookId);
+			List<Neighbour> computed = query == null ? List.of() : nearest(query, bookId, limit);
+			neighbours.put(bookId, new CachedNeighbours(current, computed));
+			return computed;
+		}
+
+		/**
+		 * @param excludedId book to leave out, or {@code null}
+		 */
+		List<Neighbour> nearest(float[] query, String excludedId, int limit) {
+			if (limit <= 0) {
+				return List.of();
+			}
+			// keeps the best matches, with the weakest of them at the head
+			PriorityQueue<Neighbour> best = new PriorityQueue<>(Comparator.comparingDouble(Neighbour::similarity));
+			vectors.forEach((otherId, vector) -> {
+				if (otherId.equals(excludedId) || vector.length != query.length) {
+					return;
+				}
+				double similarity = VectorMath.dot(query, vector);
+				if (best.size() < limit) {
+					best.add(new Neighbour(otherId, similarity));
+				} else if (similarity > best.peek().similarity()) {
+					best.poll();
+					best.add(new Neighbour(otherId, similarity));
+				}
+			});
+			List<Neighbour> sorted = new ArrayList<>(best);
+			sorted.sort(Comparator.comparingDouble(Neighbour::similarity).reversed());
+			return List.copyOf(sorted);
+		}
+
+		private record CachedNeighbours(long version, List<Neighbour> neighbours) {
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package my.bookshop.rag;
+
+import com.sap.cds.services.request.RequestContext;
+import com.sap.cds.services.runtime.CdsRuntime;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs background work as system user of the tenant that submitted it.
+ * <p>
+ * Without a tenant, as in single-tenant deployments or outside of a request, the work runs as system user of the
+ * provider.
+ */
+@Component
+public class TenantContexts {
+
+	private final CdsRuntime runtime;
+
+	public TenantContexts(CdsRuntime runtime) {
+		this.runtime = runtime;
+	}
+
+	/**
+	 * @return tenant of the current request context, {@code null} outside of a request or without tenant
+	 */
+	public String currentTenant() {
+		RequestContext context = RequestContext.getCurrent(runtime);
+		return context == null ? null : context.getUserInfo().getTenant();
+	}
+
+	/**
+	 * Runs the work in a request context of the tenant's system user.
+	 */
+	public void runAsSystemUser(String tenant, Runnable work) {
+		var requestContext = tenant == null
+				? runtime.requestContext().systemUserProvider()
+				: runtime.requestContext().systemUser(tenant);
+		requestContext.run(ctx -> {
+			work.run();
+		});
+	}
+
+	/**
+	 * @return the work bound to the system user of the current tenant, to be run on another thread
+	 */
+	public Runnable bindToSystemUser(Runnable work) {
+		String tenant = currentTenant();
+		return () -> runAsSystemUser(tenant, work);
+	}
+}
@@ -0,0 +1,19 @@
+package my.bookshop.rag;
+
+/**
+ * The loops behind {@link VectorMath}, implemented once with plain Java and once with the Vector API.
+ */
+interface VectorKernels {
+
+	String name();
+
+	double dot(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+	double cosine(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+	double squaredDistance(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+	int dot(byte[] a, int aOffset, byte[] b, int bOffset, int length);
+
+	int hamming(long[] a, int aOffset, long[] b, int bOffset, int length);
+}
@@ -0,0 +1,151 @@
+package my.bookshop.rag;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Similarity and distance functions for embeddings, used by all in-memory indexes.
+ * <p>
+ * If the JVM runs with {@code --add-modules jdk.incubator.vector}, the loops use the Vector API (SIMD). Otherwise
+ * plain loops are used, which the JIT does not vectorize for floating-point sums. Embeddings are stored with unit
+ * length, so their cosine similarity is their dot product.
+ */
+public final class VectorMath {
+
+	private static final Logger logger = LoggerFactory.getLogger(VectorMath.class);
+
+	static final String VECTOR_MODULE = "jdk.incubator.vector";
+
+	static final VectorKernels SCALAR = new ScalarVectorKernels();
+	private static final VectorKernels KERNELS = load();
+
+	private VectorMath() {
+	}
+
+	/**
+	 * @return {@code scalar}, or {@code simd-} followed by the vector size in bits
+	 */
+	public static String kernels() {
+		return KERNELS.name();
+	}
+
+	public static double dot(float[] a, float[] b) {
+		checkLengths(a.length, b.length);
+		return KERNELS.dot(a, 0, b, 0, a.length);
+	}
+
+	/**
+	 * Dot product of {@code length} values of {@code a} and {@code b}, e.g. of a row of a flat matrix with a query.
+	 */
+	public static double dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		return KERNELS.dot(a, aOffset, b, bOffset, length);
+	}
+
+	/**
+	 * @return the cosine similarity, or 0 if one of the vectors is zero
+	 */
+	public static double cosine(float[] a, float[] b) {
+		checkLengths(a.length, b.length);
+		return KERNELS.cosine(a, 0, b, 0, a.length);
+	}
+
+	/**
+	 * @return the squared Euclidean (L2) distance
+	 */
+	public static double squaredDistance(float[] a, float[] b) {
+		checkLengths(a.length, b.length);
+		return KERNELS.squaredDistance(a, 0, b, 0, a.length);
+	}
+
+	public static double squaredDistance(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		return KERNELS.squaredDistance(a, aOffset, b, bOffset, length);
+	}
+
+	/**
+	 * Dot product of int8-quantized vectors.
+	 */
+	public static int dot(byte[] a, byte[] b) {
+		checkLengths(a.length, b.length);
+		return KERNELS.dot(a, 0, b, 0, a.length);
+	}
+
+	/**
+	 * @return the number of differing bits of binary-quantized vectors, 64 dimensions per {@code long}
+	 */
+	public static int hamming(long[] a, long[] b) {
+		checkLengths(a.length, b.length);
+		return KERNELS.hamming(a, 0, b, 0, a.length);
+	}
+
+	/**
+	 * @return a copy of the vector with unit length, or a zero vector for a zero vector
+	 */
+	public static float[] normalize(float[] vector) {
+		double norm = Math.sqrt(KERNELS.dot(vector, 0, vector, 0, vector.length));
+		float[] normalized = new float[vector.length];
+		if (norm > 0) {
+			for (int i = 0; i < vector.length; i++) {
+				normalized[i] = (float) (vector[i] / norm);
+			}
+		}
+		return normalized;
+	}
+
+	/**
+	 * @return the vector as floats with unit length, or a zero vector for a zero vector
+	 */
+	public static float[] normalize(double[] vector) {
+		double[] unit = scaleToUnitLength(vector.clone());
+		float[] floats = new float[unit.length];
+		for (int i = 0; i < unit.length; i++) {
+			floats[i] = (float) unit[i];
+		}
+		return floats;
+	}
+
+	/**
+	 * Scales the vector to unit length in place; a zero vector stays zero.
+	 *
+	 * @return the given vector
+	 */
+	public static double[] scaleToUnitLength(double[] vector) {
+		double norm = 0;
+		for (double value : vector) {
+			norm += value * value;
+		}
+		norm = Math.sqrt(norm);
+		if (norm > 0) {
+			for (int i = 0; i < vector.length; i++) {
+				vector[i] /= norm;
+			}
+		}
+		return vector;
+	}
+
+	private static void checkLengths(int a, int b) {
+		if (a != b) {
+			throw new IllegalArgumentException("Vectors have different dimensions: " + a + " and " + b);
+		}
+	}
+
+	/**
+	 * @return the Vector API kernels if the module is enabled and they can be loaded, the scalar ones otherwise
+	 */
+	static VectorKernels load() {
+		if (ModuleLayer.boot().findModule(VECTOR_MODULE).isEmpty()) {
+			logger.info("Using scalar vector kernels; start the JVM with --add-modules {} to use SIMD",
+					VECTOR_MODULE);
+			return SCALAR;
+		}
+		try {
+			// loaded by name, as the class cannot be linked without the module
+			VectorKernels kernels = (VectorKernels) Class.forName(VectorMath.class.getPackageName()
+					+ ".SimdVectorKernels").getDeclaredConstructor().newInstance();
+			logger.info("Using {} vector kernels", kernels.name());
+			return kernels;
+		} catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+			logger.warn("Loading the SIMD vector kernels failed; using scalar ones", e);
+			return SCALAR;
+		}
+	}
+}
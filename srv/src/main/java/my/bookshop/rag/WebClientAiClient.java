@@ -0,0 +1,238 @@
+package my.bookshop.rag;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.TextContent;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.output.TokenUsage;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+/**
+ * {@link RagAiClient} for OpenAI-compatible APIs, such as OpenAI and the fine-tuned model served from Colab, on the
+ * connections of the shared {@link AiHttpTransport}.
+ * <p>
+ * The blocking methods run through {@link AiResilience} and, for embeddings, the {@link EmbeddingRateGovernor}; they
+ * must not be called on an event-loop thread. The reactive methods wait on the model without holding a thread: they
+ * take their embedding quota from the governor without sleeping and retry embeddings with jittered backoff, while chat
+ * requests are not retried.
+ */
+public class WebClientAiClient implements RagAiClient, ReactiveRagAiClient {
+
+	private final WebClient webClient;
+	private final String chatModelName;
+	private final String embeddingModelName;
+	private final AiUsageTracker usageTracker;
+	private final EmbeddingRateGovernor embeddingGovernor;
+	private final AiResilience resilience;
+	private final AiResilienceProperties resilienceProperties;
+
+	public WebClientAiClient(String baseUrl, String apiKey, String chatModelName, String embeddingModelName,
+			AiHttpTransport transport, AiUsageTracker usageTracker, EmbeddingRateGovernor embeddingGovernor,
+			AiResilience resilience, AiResilienceProperties resilienceProperties) {
+		this.webClient = transport.webClient(baseUrl, apiKey);
+		this.chatModelName = chatModelName == null || chatModelName.isBlank() ? null : chatModelName;
+		this.embeddingModelName = embeddingModelName == null || embeddingModelName.isBlank() ? null
+				: embeddingModelName;
+		this.usageTracker = usageTracker;
+		this.embeddingGovernor = embeddingGovernor;
+		this.resilience = resilience;
+		this.resilienceProperties = resilienceProperties;
+	}
+
+	@Override
+	public Mono<AiReply<double[]>> embedReactive(String text) {
+		if (text == null || text.isBlank() || embeddingModelName == null) {
+			return Mono.just(new AiReply<>(new double[0], embeddingModelName, null));
+		}
+		return embeddings(List.of(text)).map(reply -> new AiReply<>(
+				reply.content().isEmpty() ? new double[0] : reply.content().get(0), reply.model(), reply.usage()));
+	}
+
+	@Override
+	public Mono<AiReply<String>> chatReactive(List<ChatMessage> messages) {
+		if (chatModelName == null) {
+			return Mono.just(new AiReply<>("", null, null));
+		}
+		return chatRequest(messages).timeout(resilienceProperties.getChatTimeout());
+	}
+
+	@Override
+	public double[] embed(String text) {
+		if (text == null || text.isBlank() || embeddingModelName == null) {
+			return new double[0];
+		}
+		List<double[]> vectors = embed(List.of(text));
+		return vectors.isEmpty() ? new double[0] : vectors.get(0);
+	}
+
+	@Override
+	public List<double[]> embed(List<String> texts) {
+		if (texts == null || texts.isEmpty() || embeddingModelName == null) {
+			return List.of();
+		}
+		AiReply<List<double[]>> reply = governed(texts,
+				() -> resilience.embedding(embeddingModelName, () -> hedgeQuota(texts),
+						() -> embeddingRequest(texts).block()));
+		return recorded(reply, List.of());
+	}
+
+	@Override
+	public String chat(List<ChatMessage> messages) {
+		if (chatModelName == null) {
+			return "";
+		}
+		return recorded(resilience.chat(chatModelName, () -> chatRequest(messages).block()), "");
+	}
+
+	@Override
+	public String chat(List<ChatMessage> messages, Duration timeout) {
+		if (chatModelName == null) {
+			return "";
+		}
+		// the timeout cancels the exchange, which closes the connection of the call
+		return recorded(resilience.chat(chatModelName, () -> chatRequest(messages).timeout(timeout).block()), "");
+	}
+
+	private Mono<AiReply<String>> chatRequest(List<ChatMessage> messages) {
+		Map<String, Object> body = Map.of(
+				"model", chatModelName,
+				"temperature", 1.0,
+				"response_format", Map.of("type", "json_object"),
+				"messages", toOpenAiMessages(messages));
+		return post("/chat/completions", body)
+				.map(response -> new AiReply<>(parseChat(response), chatModelName, parseUsage(response)));
+	}
+
+	private Mono<AiReply<List<double[]>>> embeddingRequest(List<String> texts) {
+		return post("/embeddings", Map.of("model", embeddingModelName, "input", texts))
+				.map(response -> new AiReply<>(parseEmbeddings(response), embeddingModelName, parseUsage(response)));
+	}
+
+	private boolean hedgeQuota(List<String> texts) {
+		return embeddingGovernor == null || embeddingGovernor.tryReserve(texts);
+	}
+
+	private <T> T governed(List<String> texts, Supplier<T> request) {
+		return embeddingGovernor == null ? request.get() : embeddingGovernor.execute(texts, request);
+	}
+
+	private Mono<AiReply<List<double[]>>> embeddings(List<String> texts) {
+		Duration timeout = resilienceProperties.getEmbeddingTimeout();
+		return Mono.defer(() -> Mono.delay(quotaWait(texts)).then(embeddingRequest(texts).timeout(timeout)))
+				.retryWhen(Retry.backoff(Math.max(0, resilienceProperties.getEmbeddingAttempts() - 1),
+						resilienceProperties.getRetryBackoff())
+						.filter(WebClientAiClient::isRetryable)
+						.doBeforeRetry(signal -> pauseIfRateLimited(signal.failure(), signal.totalRetries()))
+						.onRetryExhaustedThrow((spec, signal) -> signal.failure()));
+	}
+
+	private void pauseIfRateLimited(Throwable failure, long attempt) {
+		if (embeddingGovernor != null && EmbeddingRateGovernor.isRateLimited(failure)) {
+			embeddingGovernor.rateLimited(failure, (int) attempt);
+		}
+	}
+
+	private Duration quotaWait(List<String> texts) {
+		return embeddingGovernor == null ? Duration.ZERO : embeddingGovernor.reserve(texts);
+	}
+
+	private Mono<JsonNode> post(String path, Map<String, Object> body) {
+		return webClient.post()
+				.uri(path)
+				.contentType(MediaType.APPLICATION_JSON)
+				.bodyValue(body)
+				.retrieve()
+				.bodyToMono(JsonNode.class);
+	}
+
+	private <T> T recorded(AiReply<T> reply, T empty) {
+		if (reply == null) {
+			return empty;
+		}
+		if (usageTracker != null && reply.usage() != null) {
+			usageTracker.recordUsage(reply.model(), reply.usage());
+		}
+		return reply.content() == null ? empty : reply.content();
+	}
+
+	private static boolean isRetryable(Throwable e) {
+		return EmbeddingRateGovernor.isRateLimited(e)
+				|| e instanceof TimeoutException
+				|| e instanceof WebClientRequestException
+				|| e instanceof WebClientResponseException response && response.getStatusCode().is5xxServerError();
+	}
+
+	static List<Map<String, String>> toOpenAiMessages(List<ChatMessage> messages) {
+		return messages.stream()
+				.map(message -> Map.of("role", role(message), "content", Objects.toString(text(message), "")))
+				.toList();
+	}
+
+	private static String role(ChatMessage message) {
+		return switch (message.type()) {
+			case SYSTEM -> "system";
+			case AI -> "assistant";
+			default -> "user";
+		};
+	}
+
+	private static String text(ChatMessage message) {
+		if (message instanceof SystemMessage system) {
+			return system.text();
+		}
+		if (message instanceof UserMessage user) {
+			return user.contents().stream()
+					.filter(TextContent.class::isInstance)
+					.map(content -> ((TextContent) content).text())
+					.collect(Collectors.joining("\n"));
+		}
+		if (message instanceof AiMessage ai) {
+			return ai.text();
+		}
+		return message.text();
+	}
+
+	static List<double[]> parseEmbeddings(JsonNode response) {
+		List<JsonNode> items = new ArrayList<>();
+		response.path("data").forEach(items::add);
+		items.sort(Comparator.comparingInt(item -> item.path("index").asInt()));
+		return items.stream().map(item -> {
+			JsonNode values = item.path("embedding");
+			double[] vector = new double[values.size()];
+			for (int i = 0; i < vector.length; i++) {
+				vector[i] = values.get(i).asDouble();
+			}
+			return vector;
+		}).toList();
+	}
+
+	static String parseChat(JsonNode response) {
+		JsonNode content = response.path("choices").path(0).path("message").path("content");
+		return content.isTextual() ? content.asText() : "";
+	}
+
+	static TokenUsage parseUsage(JsonNode response) {
+		JsonNode usage = response.path("usage");
+		if (!usage.isObject()) {
+			return null;
+		}
+		return new TokenUsage(usage.path("prompt_tokens").asInt(), usage.path("completion_tokens").asInt(),
+				usage.path("total_tokens").asInt());
+	}
+}
@@ -13,6 +13,7 @@ import com.sap.cds.ql.Insert;
 import com.sap.cds.ql.Select;
 import com.sap.cds.ql.Update;
 import com.sap.cds.ql.cqn.CqnSelect;
+import com.sap.cds.ql.cqn.CqnUpdate;
 import com.sap.cds.services.persistence.PersistenceService;
 import java.util.Collections;
 import java.util.Comparator;
@@ -57,8 +58,16 @@ public class CatalogRepository {
 		return db.run(select).single(Books.class);
 	}
 
-	public void updateBookStock(String bookId, int newStock) {
-		db.run(Update.entity(BOOKS).byId(bookId).data(Books.STOCK, newStock));
+	/**
+	 * Decrements the stock in a single conditional update, so concurrent orders can never oversell a book.
+	 *
+	 * @return {@code true} if enough stock was available and has been reserved
+	 */
+	public boolean reserveStock(String bookId, int quantity) {
+		CqnUpdate update = Update.entity(BOOKS)
+				.set(b -> b.stock(), stock -> stock.minus(quantity))
+				.where(b -> b.ID().eq(bookId).and(b.stock().ge(quantity)));
+		return db.run(update).rowCount() > 0;
 	}
 
 	public Reviews insertReview(cds.gen.reviewservice.Reviews review) {
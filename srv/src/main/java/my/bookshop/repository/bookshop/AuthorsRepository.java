@@ -0,0 +1,40 @@
+package my.bookshop.repository.bookshop;
+
+import static cds.gen.my.bookshop.Bookshop_.AUTHORS;
+
+import cds.gen.my.bookshop.Authors;
+import com.sap.cds.ql.Select;
+import com.sap.cds.ql.Upsert;
+import com.sap.cds.ql.cqn.CqnSelect;
+import com.sap.cds.services.persistence.PersistenceService;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public class AuthorsRepository {
+
+	@Autowired
+	private PersistenceService db;
+
+	/**
+	 * @return ID of an author with the given name, ignoring case
+	 */
+	public Optional<String> findIdByName(String name) {
+		CqnSelect select = Select.from(AUTHORS).columns(a -> a.ID())
+				.where(a -> a.name().toLower().eq(name.trim().toLowerCase(Locale.ROOT))).limit(1);
+		return db.run(select).first(Authors.class).map(Authors::getId);
+	}
+
+	/**
+	 * Inserts new authors and updates the existing ones, so imports can be repeated.
+	 */
+	public void upsertAuthors(List<Authors> authors) {
+		if (authors.isEmpty()) {
+			return;
+		}
+		db.run(Upsert.into(AUTHORS).entries(authors));
+	}
+}
@@ -0,0 +1,135 @@
+package my.bookshop.repository.bookshop;
+
+import static cds.gen.my.bookshop.Bookshop_.BOOK_CENTROIDS;
+
+import cds.gen.my.bookshop.BookCentroids;
+import com.sap.cds.Row;
+import com.sap.cds.ql.CQL;
+import com.sap.cds.ql.Delete;
+import com.sap.cds.ql.Select;
+import com.sap.cds.ql.Upsert;
+import com.sap.cds.ql.cqn.CqnSelect;
+import com.sap.cds.services.persistence.PersistenceService;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Persists the per-book centroids of the chunk embeddings.
+ */
+@Repository
+public class BookCentroidRepository {
+
+	@Autowired
+	private PersistenceService db;
+
+	public void upsert(String bookId, int generation, Centroid centroid) {
+		Map<String, Object> row = new HashMap<>();
+		row.put(BookCentroids.BOOK_ID, bookId);
+		row.put(BookCentroids.GENERATION, generation);
+		row.put(BookCentroids.CHUNK_COUNT, centroid.chunkCount());
+		row.put(BookCentroids.VECTOR, encode(centroid.mean()));
+		db.run(Upsert.into(BOOK_CENTROIDS).entry(row));
+	}
+
+	public Optional<Centroid> find(String bookId, int generation) {
+		CqnSelect select = Select.from(BOOK_CENTROIDS)
+				.where(c -> c.book_ID().eq(bookId).and(c.generation().eq(generation)));
+		return db.run(select).first().map(BookCentroidRepository::toCentroid);
+	}
+
+	/**
+	 * @return the centroids of all books in the given generation, by book ID
+	 */
+	public Map<String, Centroid> findAll(int generation) {
+		CqnSelect select = Select.from(BOOK_CENTROIDS)
+				.where(c -> c.generation().eq(generation));
+		Map<String, Centroid> centroids = new HashMap<>();
+		for (Row row : db.run(select)) {
+			Centroid centroid = toCentroid(row);
+			if (centroid.mean().length > 0) {
+				centroids.put((String) row.get(BookCentroids.BOOK_ID), centroid);
+			}
+		}
+		return centroids;
+	}
+
+	public void deleteForBook(String bookId) {
+		db.run(Delete.from(BOOK_CENTROIDS)
+				.where(c -> c.book_ID().eq(bookId)));
+	}
+
+	public void deleteForBook(String bookId, int generation) {
+		db.run(Delete.from(BOOK_CENTROIDS)
+				.where(c -> c.book_ID().eq(bookId).and(c.generation().eq(generation))));
+	}
+
+	public void deleteGenerationsExcept(Collection<Integer> generations) {
+		if (generations.isEmpty()) {
+			return;
+		}
+		db.run(Delete.from(BOOK_CENTROIDS)
+				.where(c -> CQL.not(c.generation().in(List.copyOf(generations)))));
+	}
+
+	private static Centroid toCentroid(Row row) {
+		Number chunkCount = (Number) row.get(BookCentroids.CHUNK_COUNT);
+		return new Centroid(chunkCount == null ? 0 : chunkCount.intValue(), decode(row.get(BookCentroids.VECTOR)));
+	}
+
+	static byte[] encode(float[] vector) {
+		ByteBuffer buffer = ByteBuffer.allocate(vector.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.asFloatBuffer().put(vector);
+		return buffer.array();
+	}
+
+	static float[] decode(Object value) {
+		byte[] bytes;
+		try {
+			bytes = value instanceof InputStream stream ? stream.readAllBytes() : (byte[]) value;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		if (bytes == null) {
+			return new float[0];
+		}
+		float[] vector = new float[bytes.length / Float.BYTES];
+		ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(vector);
+		return vector;
+	}
+
+	/**
+	 * @param chunkCount number of chunks the mean was taken over, needed to add further chunks to it
+	 * @param mean the mean of the chunk embeddings, not normalized
+	 */
+	public record Centroid(int chunkCount, float[] mean) {
+
+		/**
+		 * @return the mean over the chunks of both centroids
+		 */
+		public Centroid merge(Centroid other) {
+			if (other.chunkCount() == 0) {
+				return this;
+			}
+			if (chunkCount == 0 || mean.length != other.mean().length) {
+				return other;
+			}
+			int total = chunkCount + other.chunkCount();
+			float[] merged = new float[mean.length];
+			for (int i = 0; i < mean.length; i++) {
+				merged[i] = (float) (((double) mean[i] * chunkCount + (double) other.mean()[i] * other.chunkCount())
+						/ total);
+			}
+			return new Centroid(total, merged);
+		}
+	}
+}
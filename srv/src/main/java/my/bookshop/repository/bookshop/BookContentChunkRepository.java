@@ -3,25 +3,38 @@ package my.bookshop.repository.bookshop;
 import static cds.gen.my.bookshop.Bookshop_.BOOK_CHUNKS;
 
 import cds.gen.my.bookshop.BookChunks;
+import cds.gen.my.bookshop.BookChunks_;
 import com.sap.cds.CdsVector;
 import com.sap.cds.Result;
 import com.sap.cds.Row;
 import com.sap.cds.ql.CQL;
 import com.sap.cds.ql.Delete;
 import com.sap.cds.ql.Insert;
+import com.sap.cds.ql.Predicate;
 import com.sap.cds.ql.Select;
+import com.sap.cds.ql.Update;
 import com.sap.cds.ql.cqn.CqnSelect;
 import com.sap.cds.services.persistence.PersistenceService;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 import my.bookshop.rag.BookChunkMatch;
 import my.bookshop.rag.BookChunkSource;
 import my.bookshop.rag.BookTextChunk;
+import my.bookshop.rag.TenantContexts;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
 
 /**
@@ -33,30 +46,56 @@ public class BookContentChunkRepository {
 	@Autowired
 	private PersistenceService db;
 
-	public void replaceChunks(String bookId, List<ChunkPersistRequest> chunks) {
-		deleteChunksForBook(bookId);
+	@Autowired
+	private EmbeddingGenerationRepository generationRepository;
+
+	@Autowired
+	private TenantContexts tenants;
+
+	@Value("${rag.index.active-generation-ttl:30s}")
+	private Duration activeGenerationTtl;
+
+	// active generation per tenant, read by every search
+	private final Map<String, ActiveGeneration> activeGenerations = new ConcurrentHashMap<>();
+
+	/**
+	 * Adds chunks to a book in the given index generation without removing existing ones, used to persist a book's
+	 * chunks batch by batch.
+	 *
+	 * @return the IDs of the stored chunks, in the order of the given ones; chunks without embedding are skipped
+	 */
+	public List<String> insertChunks(String bookId, int generation, List<ChunkPersistRequest> chunks) {
 		if (chunks == null || chunks.isEmpty()) {
-			return;
+			return List.of();
 		}
 		List<Map<String, Object>> entries = new ArrayList<>(chunks.size());
+		List<String> ids = new ArrayList<>(chunks.size());
 		for (ChunkPersistRequest request : chunks) {
 			if (request == null || request.chunk() == null || request.embedding() == null
 					|| request.embedding().length == 0) {
 				continue;
 			}
+			String id = UUID.randomUUID().toString();
 			Map<String, Object> row = new HashMap<>();
+			row.put(BookChunks.ID, id);
 			row.put(BookChunks.BOOK_ID, bookId);
+			row.put(BookChunks.GENERATION, generation);
 			row.put(BookChunks.CHUNK_INDEX, request.chunk().index());
 			row.put(BookChunks.SOURCE, request.chunk().source().name());
 			row.put(BookChunks.TEXT, request.chunk().text());
 			row.put(BookChunks.EMBEDDING, toBigDecimals(request.embedding()));
 			entries.add(row);
+			ids.add(id);
 		}
 		if (!entries.isEmpty()) {
 			db.run(Insert.into(BOOK_CHUNKS).entries(entries));
 		}
+		return ids;
 	}
 
+	/**
+	 * Deletes the chunks of a book in all index generations.
+	 */
 	public void deleteChunksForBook(String bookId) {
 		if (bookId == null || bookId.isBlank()) {
 			return;
@@ -65,11 +104,272 @@ public class BookContentChunkRepository {
 				.where(chunk -> chunk.book_ID().eq(bookId)));
 	}
 
-	public void deleteAll() {
-		db.run(Delete.from(BOOK_CHUNKS));
+	public void deleteChunksForBook(String bookId, int generation) {
+		if (bookId == null || bookId.isBlank()) {
+			return;
+		}
+		db.run(Delete.from(BOOK_CHUNKS)
+				.where(chunk -> chunk.book_ID().eq(bookId).and(chunk.generation().eq(generation))));
+	}
+
+	/**
+	 * Deletes the chunks {@code firstChunk} to {@code lastChunk} (inclusive) of a book in the given generation.
+	 */
+	public void deleteChunksForBook(String bookId, int generation, int firstChunk, int lastChunk) {
+		db.run(Delete.from(BOOK_CHUNKS)
+				.where(chunk -> chunk.book_ID().eq(bookId)
+						.and(chunk.generation().eq(generation))
+						.and(chunk.chunkIndex().ge(firstChunk))
+						.and(chunk.chunkIndex().le(lastChunk))));
+	}
+
+	/**
+	 * Deletes the chunks of all index generations except the given ones.
+	 */
+	public void deleteGenerationsExcept(Collection<Integer> generations) {
+		if (generations.isEmpty()) {
+			return;
+		}
+		db.run(Delete.from(BOOK_CHUNKS)
+				.where(chunk -> CQL.not(chunk.generation().in(List.copyOf(generations)))));
+	}
+
+	public int countChunks(int generation) {
+		CqnSelect select = Select.from(BOOK_CHUNKS)
+				.columns(chunk -> CQL.count().as("count"))
+				.where(chunk -> chunk.generation().eq(generation));
+		return db.run(select).first()
+				.map(row -> ((Number) row.get("count")).intValue())
+				.orElse(0);
+	}
+
+	public int countBooks(int generation) {
+		CqnSelect select = Select.from(BOOK_CHUNKS)
+				.columns(chunk -> CQL.countDistinct(chunk.book_ID()).as("count"))
+				.where(chunk -> chunk.generation().eq(generation));
+		return db.run(select).first()
+				.map(row -> ((Number) row.get("count")).intValue())
+				.orElse(0);
+	}
+
+	/**
+	 * Reads the embeddings of all chunks of an index generation, e.g. to build an in-memory index.
+	 */
+	public List<ChunkVector> findChunkVectors(int generation) {
+		return findChunkVectors(Select.from(BOOK_CHUNKS)
+				.where(chunk -> chunk.generation().eq(generation).and(chunk.embedding().isNotNull())));
+	}
+
+	/**
+	 * Reads the embeddings of all chunks of a book in an index generation.
+	 */
+	public List<ChunkVector> findChunkVectors(String bookId, int generation) {
+		return findChunkVectors(Select.from(BOOK_CHUNKS)
+				.where(chunk -> chunk.book_ID().eq(bookId).and(chunk.generation().eq(generation))
+						.and(chunk.embedding().isNotNull())));
+	}
+
+	/**
+	 * Reads the embeddings of an index generation page by page, ordered by chunk ID. Chunk IDs are random, so the
+	 * first page is a random sample.
+	 *
+	 * @param afterId the last chunk ID of the previous page, or {@code null} for the first page
+	 * @param withoutCode whether to read only chunks that have no product-quantization code yet
+	 */
+	public List<ChunkVector> findChunkVectors(int generation, String afterId, int limit, boolean withoutCode) {
+		return findChunkVectors(Select.from(BOOK_CHUNKS)
+				.where(chunk -> {
+					Predicate predicate = chunk.generation().eq(generation).and(chunk.embedding().isNotNull());
+					if (afterId != null) {
+						predicate = predicate.and(chunk.ID().gt(afterId));
+					}
+					return withoutCode ? predicate.and(chunk.pqCode().isNull()) : predicate;
+				})
+				.orderBy(chunk -> chunk.ID().asc())
+				.limit(limit));
+	}
+
+	private List<ChunkVector> findChunkVectors(Select<BookChunks_> select) {
+		select.columns(chunk -> chunk.ID(),
+				chunk -> chunk.book_ID(),
+				chunk -> chunk.chunkIndex(),
+				chunk -> chunk.source(),
+				chunk -> chunk.embedding());
+		List<ChunkVector> vectors = new ArrayList<>();
+		for (Row row : db.run(select)) {
+			float[] vector = toFloats(row.get(BookChunks.EMBEDDING));
+			if (vector.length > 0) {
+				vectors.add(new ChunkVector(
+						asString(row, BookChunks.ID),
+						asString(row, BookChunks.BOOK_ID),
+						defaultInt((Number) row.get(BookChunks.CHUNK_INDEX)),
+						BookChunkSource.from(asString(row, BookChunks.SOURCE)),
+						vector));
+			}
+		}
+		return vectors;
+	}
+
+	/**
+	 * Reads the product-quantization codes of an index generation page by page, ordered by chunk ID.
+	 *
+	 * @param afterId the last chunk ID of the previous page, or {@code null} for the first page
+	 */
+	public List<ChunkCode> findChunkCodes(int generation, String afterId, int limit) {
+		CqnSelect select = Select.from(BOOK_CHUNKS)
+				.columns(chunk -> chunk.ID(),
+						chunk -> chunk.book_ID(),
+						chunk -> chunk.chunkIndex(),
+						chunk -> chunk.pqCode())
+				.where(chunk -> {
+					Predicate predicate = chunk.generation().eq(generation).and(chunk.pqCode().isNotNull());
+					return afterId == null ? predicate : predicate.and(chunk.ID().gt(afterId));
+				})
+				.orderBy(chunk -> chunk.ID().asc())
+				.limit(limit);
+		List<ChunkCode> codes = new ArrayList<>();
+		for (Row row : db.run(select)) {
+			codes.add(new ChunkCode(
+					asString(row, BookChunks.ID),
+					asString(row, BookChunks.BOOK_ID),
+					defaultInt((Number) row.get(BookChunks.CHUNK_INDEX)),
+					toBytes(row.get(BookChunks.PQ_CODE))));
+		}
+		return codes;
+	}
+
+	/**
+	 * Stores product-quantization codes, by chunk ID.
+	 */
+	public void updateCodes(Map<String, byte[]> codes) {
+		if (codes.isEmpty()) {
+			return;
+		}
+		List<Map<String, Object>> entries = new ArrayList<>(codes.size());
+		codes.forEach((id, code) -> {
+			Map<String, Object> row = new HashMap<>();
+			row.put(BookChunks.ID, id);
+			row.put(BookChunks.PQ_CODE, code);
+			entries.add(row);
+		});
+		db.run(Update.entity(BOOK_CHUNKS).entries(entries));
+	}
+
+	/**
+	 * @return the texts of those of the given chunks that exist, by chunk ID
+	 */
+	public Map<String, String> findTexts(Collection<String> chunkIds) {
+		if (chunkIds.isEmpty()) {
+			return Map.of();
+		}
+		CqnSelect select = Select.from(BOOK_CHUNKS)
+				.columns(chunk -> chunk.ID(), chunk -> chunk.text())
+				.where(chunk -> chunk.ID().in(List.copyOf(chunkIds)));
+		Map<String, String> texts = new HashMap<>();
+		for (Row row : db.run(select)) {
+			texts.put(asString(row, BookChunks.ID), asString(row, BookChunks.TEXT));
+		}
+		return texts;
+	}
+
+	/**
+	 * Drops the cached active generation of the current tenant, to be called once another generation was activated.
+	 * Other instances read the new generation when their cache entry expires after
+	 * {@code rag.index.active-generation-ttl}.
+	 */
+	public void invalidateActiveGeneration() {
+		activeGenerations.remove(tenantKey());
+	}
+
+	private int activeGeneration() {
+		String tenant = tenantKey();
+		ActiveGeneration cached = activeGenerations.get(tenant);
+		if (cached != null && !cached.isExpired(activeGenerationTtl)) {
+			return cached.id();
+		}
+		// loads under the entry's lock, so an invalidation waits for a load that may have read the old generation
+		return activeGenerations.compute(tenant, (key, current) -> {
+			if (current != null && !current.isExpired(activeGenerationTtl)) {
+				return current;
+			}
+			return new ActiveGeneration(generationRepository.findActiveId().orElse(0), System.nanoTime());
+		}).id();
 	}
 
+	private String tenantKey() {
+		String tenant = tenants.currentTenant();
+		return tenant == null ? "" : tenant;
+	}
+
+	/**
+	 * Searches the active index generation.
+	 */
 	public List<BookChunkMatch> findSimilarChunks(double[] vector, int limit, double minSimilarity) {
+		return findSimilarChunks(vector, limit, minSimilarity, activeGeneration());
+	}
+
+	public List<BookChunkMatch> findSimilarChunks(double[] vector, int limit, double minSimilarity, int generation) {
+		return findSimilarChunks(vector, limit, minSimilarity, generation, null);
+	}
+
+	/**
+	 * Searches only the chunks of the given books in the active index generation.
+	 */
+	public List<BookChunkMatch> findSimilarChunksOfBooks(double[] vector, int limit, double minSimilarity,
+			Collection<String> bookIds) {
+		if (bookIds.isEmpty()) {
+			return List.of();
+		}
+		return findSimilarChunks(vector, limit, minSimilarity, activeGeneration(),
+				chunk -> chunk.book_ID().in(List.copyOf(bookIds)));
+	}
+
+	/**
+	 * Compares the query with the stored embeddings of the given chunks of the active index generation, e.g. to
+	 * rescore the candidates of an approximate search exactly.
+	 */
+	public List<BookChunkMatch> findSimilarChunksByIds(double[] vector, int limit, double minSimilarity,
+			Collection<String> chunkIds) {
+		if (chunkIds.isEmpty()) {
+			return List.of();
+		}
+		return findSimilarChunks(vector, limit, minSimilarity, activeGeneration(),
+				chunk -> chunk.ID().in(List.copyOf(chunkIds)));
+	}
+
+	/**
+	 * Ranks the books of the active index generation by their most similar chunk from the given sources, e.g. title
+	 * and description.
+	 *
+	 * @return the IDs of at most {@code limit} books, most similar first
+	 */
+	public List<String> findSimilarBooks(double[] vector, int limit, Collection<BookChunkSource> sources) {
+		CdsVector cdsVector = toVector(vector);
+		if (cdsVector == null) {
+			return List.of();
+		}
+		List<String> sourceNames = sources.stream().map(BookChunkSource::name).toList();
+		int generation = activeGeneration();
+		var similarity = CQL.cosineSimilarity(CQL.get(BookChunks.EMBEDDING), CQL.val(cdsVector));
+		// long descriptions are split into several chunks, so the books are ranked by their best one
+		CqnSelect select = Select.from(BOOK_CHUNKS)
+				.columns(chunk -> chunk.book_ID(),
+						chunk -> CQL.max(similarity).as("similarity"))
+				.where(chunk -> chunk.generation().eq(generation)
+						.and(chunk.embedding().isNotNull())
+						.and(chunk.source().in(sourceNames)))
+				.groupBy(chunk -> chunk.book_ID())
+				.orderBy(chunk -> chunk.get("similarity").desc())
+				.limit(limit);
+		List<String> bookIds = new ArrayList<>();
+		for (Row row : db.run(select)) {
+			bookIds.add(asString(row, BookChunks.BOOK_ID));
+		}
+		return bookIds;
+	}
+
+	private List<BookChunkMatch> findSimilarChunks(double[] vector, int limit, double minSimilarity, int generation,
+			Function<BookChunks_, Predicate> restriction) {
 		CdsVector cdsVector = toVector(vector);
 		if (cdsVector == null) {
 			return List.of();
@@ -82,7 +382,12 @@ public class BookContentChunkRepository {
 						chunk -> chunk.source(),
 						chunk -> chunk.text(),
 						chunk -> similarity.as("similarity"))
-				.where(chunk -> chunk.embedding().isNotNull().and(similarity.ge(minSimilarity)))
+				.where(chunk -> {
+					Predicate predicate = chunk.generation().eq(generation)
+							.and(chunk.embedding().isNotNull())
+							.and(similarity.ge(minSimilarity));
+					return restriction == null ? predicate : predicate.and(restriction.apply(chunk));
+				})
 				.orderBy(chunk -> chunk.get("similarity").desc())
 				.limit(limit);
 		Result result = db.run(select);
@@ -121,6 +426,43 @@ public class BookContentChunkRepository {
 		return CdsVector.of(values);
 	}
 
+	/**
+	 * Reads a vector column, which the database returns as {@link CdsVector} in its text form {@code [1.0,2.0]}.
+	 */
+	private static float[] toFloats(Object value) {
+		if (value instanceof float[] floats) {
+			return floats;
+		}
+		if (value instanceof List<?> list) {
+			float[] floats = new float[list.size()];
+			for (int i = 0; i < floats.length; i++) {
+				floats[i] = ((Number) list.get(i)).floatValue();
+			}
+			return floats;
+		}
+		String text = value == null ? "" : value.toString().trim();
+		if (text.startsWith("[")) {
+			text = text.substring(1, text.endsWith("]") ? text.length() - 1 : text.length());
+		}
+		if (text.isBlank()) {
+			return new float[0];
+		}
+		String[] parts = text.split(",");
+		float[] floats = new float[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			floats[i] = Float.parseFloat(parts[i].trim());
+		}
+		return floats;
+	}
+
+	private static byte[] toBytes(Object value) {
+		try {
+			return value instanceof InputStream stream ? stream.readAllBytes() : (byte[]) value;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
 	private String asString(Map<String, Object> row, String key) {
 		Object value = row.get(key);
 		return value == null ? null : value.toString();
@@ -136,4 +478,17 @@ public class BookContentChunkRepository {
 
 	public record ChunkPersistRequest(BookTextChunk chunk, double[] embedding) {
 	}
+
+	private record ActiveGeneration(int id, long loadedAt) {
+
+		boolean isExpired(Duration ttl) {
+			return System.nanoTime() - loadedAt > ttl.toNanos();
+		}
+	}
+
+	public record ChunkVector(String chunkId, String bookId, int chunkIndex, BookChunkSource source, float[] vector) {
+	}
+
+	public record ChunkCode(String chunkId, String bookId, int chunkIndex, byte[] code) {
+	}
 }
@@ -0,0 +1,64 @@
+package my.bookshop.repository.bookshop;
+
+import static cds.gen.my.bookshop.Bookshop_.BOOK_IMPORTS;
+import static cds.gen.my.bookshop.Bookshop_.BOOK_IMPORT_ERRORS;
+
+import cds.gen.my.bookshop.BookImportErrors;
+import cds.gen.my.bookshop.BookImports;
+import com.sap.cds.ql.Insert;
+import com.sap.cds.ql.Update;
+import com.sap.cds.services.persistence.PersistenceService;
+import java.util.List;
+import java.util.UUID;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Persists the progress and row errors of CSV book imports.
+ */
+@Repository
+public class BookImportRepository {
+
+	@Autowired
+	private PersistenceService db;
+
+	public String createImport(String status) {
+		BookImports bookImport = BookImports.create();
+		bookImport.setId(UUID.randomUUID().toString());
+		bookImport.setStatus(status);
+		db.run(Insert.into(BOOK_IMPORTS).entry(bookImport));
+		return bookImport.getId();
+	}
+
+	public void updateImport(BookImports bookImport) {
+		db.run(Update.entity(BOOK_IMPORTS).data(bookImport));
+	}
+
+	public void updateStatus(String importId, String status) {
+		db.run(Update.entity(BOOK_IMPORTS).byId(importId).data(BookImports.STATUS, status));
+	}
+
+	public void incrementBooksEmbedded(String importId) {
+		db.run(Update.entity(BOOK_IMPORTS)
+				.set(i -> i.booksEmbedded(), embedded -> embedded.plus(1))
+				.where(i -> i.ID().eq(importId)));
+	}
+
+	public void addErrors(String importId, List<ImportError> errors) {
+		if (errors.isEmpty()) {
+			return;
+		}
+		List<BookImportErrors> entries = errors.stream().map(error -> {
+			BookImportErrors entry = BookImportErrors.create();
+			entry.setId(UUID.randomUUID().toString());
+			entry.setParentId(importId);
+			entry.setLine(error.line());
+			entry.setMessage(error.message());
+			return entry;
+		}).toList();
+		db.run(Insert.into(BOOK_IMPORT_ERRORS).entries(entries));
+	}
+
+	public record ImportError(Integer line, String message) {
+	}
+}
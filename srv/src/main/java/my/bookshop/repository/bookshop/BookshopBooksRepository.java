@@ -1,20 +1,34 @@
 package my.bookshop.repository.bookshop;
 
 import static cds.gen.my.bookshop.Bookshop_.BOOKS;
+import static cds.gen.my.bookshop.Bookshop_.REVIEWS;
 
 import cds.gen.my.bookshop.Books;
+import cds.gen.my.bookshop.Books_;
 import cds.gen.my.bookshop.Reviews;
+import com.sap.cds.Result;
+import com.sap.cds.Row;
+import com.sap.cds.ql.CQL;
 import com.sap.cds.ql.Select;
 import com.sap.cds.ql.Update;
 import com.sap.cds.ql.Upsert;
 import com.sap.cds.ql.cqn.CqnSelect;
+import com.sap.cds.ql.cqn.CqnUpdate;
 import com.sap.cds.services.persistence.PersistenceService;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -23,50 +37,188 @@ import org.springframework.stereotype.Repository;
 @Repository
 public class BookshopBooksRepository {
 
+	private static final int FULL_TEXT_WINDOW = 64 * 1024;
+
 	@Autowired
 	private PersistenceService db;
 
-	public List<String> findAllBookIds() {
-		CqnSelect select = Select.from(BOOKS).columns(b -> b.ID());
-		return db.run(select)
-				.streamOf(Books.class)
-				.map(Books::getId)
-				.collect(Collectors.toList());
+	public int countBooks() {
+		CqnSelect select = Select.from(BOOKS).columns(b -> CQL.count().as("count"));
+		return db.run(select).first()
+				.map(row -> ((Number) row.get("count")).intValue())
+				.orElse(0);
 	}
 
-	public List<Reviews> findReviewsForBook(String bookId) {
-		CqnSelect select = Select.from(BOOKS, b -> b.filter(b.ID().eq(bookId)).reviews());
+	public List<Reviews> findReviews(CqnSelect select) {
 		return db.run(select).listOf(Reviews.class);
 	}
 
-	public List<Books> findAllWithTextFields() {
-		CqnSelect select = Select.from(BOOKS)
-				.columns(b -> b.ID(), b -> b.title(), b -> b.descr(), b -> b.fullText());
+	/**
+	 * Aggregates the review ratings of all books in a single grouped query.
+	 *
+	 * @return rating sum and count per book ID, books without reviews are absent
+	 */
+	public Map<String, RatingAggregate> findRatingAggregates() {
+		CqnSelect select = Select.from(REVIEWS)
+				.columns(r -> r.book_ID(),
+						r -> CQL.func("SUM", r.rating()).as("ratingSum"),
+						r -> CQL.func("COUNT", r.rating()).as("ratingCount"))
+				.where(r -> r.book_ID().isNotNull().and(r.rating().isNotNull()))
+				.groupBy(r -> r.book_ID());
+		Map<String, RatingAggregate> aggregates = new HashMap<>();
+		for (Row row : db.run(select)) {
+			String bookId = (String) row.get(Reviews.BOOK_ID);
+			aggregates.put(bookId, new RatingAggregate(bookId,
+					((Number) row.get("ratingSum")).longValue(),
+					((Number) row.get("ratingCount")).longValue()));
+		}
+		return aggregates;
+	}
+
+	/**
+	 * Averages the review ratings of the given books in a single grouped query.
+	 *
+	 * @return average rating per book ID, books without reviews are absent
+	 */
+	public Map<String, Double> findAverageRatings(Collection<String> bookIds) {
+		Map<String, Double> ratings = new HashMap<>();
+		if (bookIds.isEmpty()) {
+			return ratings;
+		}
+		CqnSelect select = Select.from(REVIEWS)
+				.columns(r -> r.book_ID(), r -> CQL.func("AVG", r.rating()).as("ratingAvg"))
+				.where(r -> r.book_ID().in(List.copyOf(bookIds)).and(r.rating().isNotNull()))
+				.groupBy(r -> r.book_ID());
+		for (Row row : db.run(select)) {
+			ratings.put((String) row.get(Reviews.BOOK_ID), ((Number) row.get("ratingAvg")).doubleValue());
+		}
+		return ratings;
+	}
+
+	/**
+	 * @return the currently stored rating per book ID
+	 */
+	public Map<String, BigDecimal> findAllBookRatings() {
+		CqnSelect select = Select.from(BOOKS).columns(b -> b.ID(), b -> b.rating());
+		Map<String, BigDecimal> ratings = new HashMap<>();
+		db.run(select).streamOf(Books.class).forEach(book -> ratings.put(book.getId(), book.getRating()));
+		return ratings;
+	}
+
+	/**
+	 * Writes the given ratings with one batched update.
+	 */
+	public void updateBookRatings(Map<String, BigDecimal> ratings) {
+		if (ratings == null || ratings.isEmpty()) {
+			return;
+		}
+		List<Books> entries = new ArrayList<>(ratings.size());
+		ratings.forEach((bookId, rating) -> {
+			Books book = Books.create();
+			book.setId(bookId);
+			book.setRating(rating);
+			entries.add(book);
+		});
+		db.run(Update.entity(BOOKS).entries(entries));
+	}
+
+	/**
+	 * Reads ID, title and description of the next books after {@code afterId} in ID order, without the full text.
+	 *
+	 * @param afterId last ID of the previous page, {@code null} for the first page
+	 */
+	public List<Books> findTextHeaderPage(String afterId, int limit) {
+		Select<Books_> select = Select.from(BOOKS)
+				.columns(b -> b.ID(), b -> b.title(), b -> b.descr())
+				.orderBy(b -> b.ID().asc())
+				.limit(limit);
+		if (afterId != null) {
+			select.where(b -> b.ID().gt(afterId));
+		}
 		return db.run(select).listOf(Books.class);
 	}
 
-	public Optional<Books> findByIdWithTextFields(String bookId) {
+	public Optional<Books> findTextHeader(String bookId) {
 		if (bookId == null || bookId.isBlank()) {
 			return Optional.empty();
 		}
 		CqnSelect select = Select.from(BOOKS)
-				.columns(b -> b.ID(), b -> b.title(), b -> b.descr(), b -> b.fullText())
+				.columns(b -> b.ID(), b -> b.title(), b -> b.descr())
 				.byId(bookId);
 		return db.run(select).first(Books.class);
 	}
 
-	public void updateBookRating(String bookId, BigDecimal rating) {
-		db.run(Update.entity(BOOKS).byId(bookId).data(Books.RATING, rating));
+	/**
+	 * Opens the full text of a book as a reader that fetches it in windows of {@code FULL_TEXT_WINDOW} characters,
+	 * so the text is never held in memory as a whole.
+	 */
+	public Reader openFullText(String bookId) {
+		return new FullTextReader(bookId);
 	}
 
-	public Optional<Books> findBookStock(String bookId) {
-		CqnSelect select = Select.from(BOOKS).columns(b -> b.ID(), b -> b.stock()).byId(bookId);
-		return db.run(select).first(Books.class);
+	private String findFullTextWindow(String bookId, long offset, int length) {
+		CqnSelect select = Select.from(BOOKS)
+				.columns(b -> CQL.func("SUBSTRING", b.fullText(), CQL.val(offset + 1), CQL.val(length)).as("textPart"))
+				.byId(bookId);
+		return db.run(select).first()
+				.map(row -> row.get("textPart"))
+				.map(BookshopBooksRepository::asText)
+				.orElse("");
 	}
 
-	public Optional<Books> findBookStockAndPrice(String bookId) {
-		CqnSelect select = Select.from(BOOKS).columns(b -> b.ID(), b -> b.stock(), b -> b.price()).byId(bookId);
-		return db.run(select).first(Books.class);
+	private static String asText(Object value) {
+		if (value instanceof Reader reader) {
+			try (reader) {
+				StringWriter writer = new StringWriter();
+				reader.transferTo(writer);
+				return writer.toString();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return value.toString();
+	}
+
+	/**
+	 * Reads stock and price of all given books with a single query.
+	 */
+	public Map<String, Books> findStockAndPrices(Collection<String> bookIds) {
+		if (bookIds == null || bookIds.isEmpty()) {
+			return Map.of();
+		}
+		CqnSelect select = Select.from(BOOKS)
+				.columns(b -> b.ID(), b -> b.stock(), b -> b.price())
+				.where(b -> b.ID().in(List.copyOf(bookIds)));
+		return db.run(select)
+				.streamOf(Books.class)
+				.collect(Collectors.toMap(Books::getId, Function.identity()));
+	}
+
+	/**
+	 * Takes the given quantities from the stock of the books with one batched conditional update,
+	 * {@code stock = stock - quantity} where the stock covers the quantity. Negative quantities are returned to the
+	 * stock.
+	 *
+	 * @return IDs of the books whose stock did not cover the quantity and were left unchanged
+	 */
+	public Set<String> takeStocks(Map<String, Integer> quantities) {
+		if (quantities == null || quantities.isEmpty()) {
+			return Set.of();
+		}
+		CqnUpdate update = Update.entity(BOOKS)
+				.set(b -> b.stock(), stock -> stock.minus(CQL.<Integer>param("quantity")))
+				.where(b -> b.ID().eq(CQL.<String>param("id")).and(b.stock().ge(CQL.<Integer>param("quantity"))));
+		List<String> bookIds = List.copyOf(quantities.keySet());
+		List<Map<String, Object>> parameters = new ArrayList<>(bookIds.size());
+		bookIds.forEach(bookId -> parameters.add(Map.of("id", bookId, "quantity", quantities.get(bookId))));
+		Result result = db.run(update, parameters);
+		Set<String> tooLow = new HashSet<>();
+		for (int i = 0; i < bookIds.size(); i++) {
+			if (result.rowCount(i) == 0) {
+				tooLow.add(bookIds.get(i));
+			}
+		}
+		return tooLow;
 	}
 
 	public Optional<BigDecimal> findBookPrice(String bookId) {
@@ -74,14 +226,17 @@ public class BookshopBooksRepository {
 		return db.run(select).first(Books.class).map(Books::getPrice);
 	}
 
-	public void updateBook(Books book) {
-		db.run(Update.entity(BOOKS).data(book));
-	}
-
 	public void upsertBook(Books book) {
 		db.run(Upsert.into(BOOKS).entry(book));
 	}
 
+	public void upsertBooks(List<Books> books) {
+		if (books.isEmpty()) {
+			return;
+		}
+		db.run(Upsert.into(BOOKS).entries(books));
+	}
+
 	public Map<String, Books> findSummariesByIds(Collection<String> ids) {
 		if (ids == null || ids.isEmpty()) {
 			return Map.of();
@@ -102,4 +257,52 @@ public class BookshopBooksRepository {
 				.streamOf(Books.class)
 				.collect(Collectors.toMap(Books::getId, Function.identity(), (left, right) -> left));
 	}
+
+	public record RatingAggregate(String bookId, long sum, long count) {
+	}
+
+	/**
+	 * Reads a book's full text window by window; a window shorter than requested marks the end of the text.
+	 */
+	private class FullTextReader extends Reader {
+
+		private final String bookId;
+		private String window = "";
+		private int position;
+		private long offset;
+		private boolean endOfText;
+
+		FullTextReader(String bookId) {
+			this.bookId = bookId;
+		}
+
+		@Override
+		public int read(char[] buffer, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (position >= window.length()) {
+				if (endOfText) {
+					return -1;
+				}
+				window = findFullTextWindow(bookId, offset, FULL_TEXT_WINDOW);
+				position = 0;
+				offset += window.length();
+				endOfText = window.length() < FULL_TEXT_WINDOW;
+				if (window.isEmpty()) {
+					return -1;
+				}
+			}
+			int count = Math.min(len, window.length() - position);
+			window.getChars(position, position + count, buffer, off);
+			position += count;
+			return count;
+		}
+
+		@Override
+		public void close() {
+			window = "";
+			endOfText = true;
+		}
+	}
 }
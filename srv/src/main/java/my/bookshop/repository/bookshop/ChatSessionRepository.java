@@ -0,0 +1,49 @@
+package my.bookshop.repository.bookshop;
+
+import static cds.gen.my.bookshop.Bookshop_.CHAT_SESSIONS;
+
+import cds.gen.my.bookshop.ChatSessions;
+import com.sap.cds.ql.Delete;
+import com.sap.cds.ql.Select;
+import com.sap.cds.ql.Upsert;
+import com.sap.cds.ql.cqn.CqnSelect;
+import com.sap.cds.services.persistence.PersistenceService;
+import java.time.Instant;
+import java.util.Optional;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Persists the turn history of server-side chat sessions.
+ */
+@Repository
+public class ChatSessionRepository {
+
+	@Autowired
+	private PersistenceService db;
+
+	/**
+	 * @return owner and turns of the session, if it was written after {@code modifiedAfter}
+	 */
+	public Optional<ChatSessions> find(String sessionId, Instant modifiedAfter) {
+		CqnSelect select = Select.from(CHAT_SESSIONS)
+				.columns(s -> s.owner(), s -> s.turns())
+				.where(s -> s.ID().eq(sessionId).and(s.modifiedAt().ge(modifiedAfter)));
+		return db.run(select).first(ChatSessions.class);
+	}
+
+	public void saveTurns(String sessionId, String owner, String turns) {
+		ChatSessions session = ChatSessions.create();
+		session.setId(sessionId);
+		session.setOwner(owner);
+		session.setTurns(turns);
+		db.run(Upsert.into(CHAT_SESSIONS).entry(session));
+	}
+
+	/**
+	 * @return number of deleted sessions
+	 */
+	public long deleteModifiedBefore(Instant cutoff) {
+		return db.run(Delete.from(CHAT_SESSIONS).where(s -> s.modifiedAt().lt(cutoff))).rowCount();
+	}
+}
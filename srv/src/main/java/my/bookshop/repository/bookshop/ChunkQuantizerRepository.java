@@ -0,0 +1,113 @@
+package my.bookshop.repository.bookshop;
+
+import static cds.gen.my.bookshop.Bookshop_.CHUNK_QUANTIZERS;
+
+import cds.gen.my.bookshop.ChunkQuantizers;
+import com.sap.cds.ql.CQL;
+import com.sap.cds.ql.Delete;
+import com.sap.cds.ql.Select;
+import com.sap.cds.ql.Update;
+import com.sap.cds.ql.Upsert;
+import com.sap.cds.services.persistence.PersistenceService;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import my.bookshop.rag.ProductQuantizer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Persists the product-quantization codebooks of the index generations.
+ */
+@Repository
+public class ChunkQuantizerRepository {
+
+	public static final String STATUS_TRAINING = "TRAINING";
+	public static final String STATUS_ENCODING = "ENCODING";
+	public static final String STATUS_READY = "READY";
+	public static final String STATUS_FAILED = "FAILED";
+
+	@Autowired
+	private PersistenceService db;
+
+	/**
+	 * Replaces the quantizer of the generation with one that is being trained.
+	 */
+	public ChunkQuantizers startTraining(int generation) {
+		ChunkQuantizers quantizer = ChunkQuantizers.create();
+		quantizer.setGeneration(generation);
+		quantizer.setStatus(STATUS_TRAINING);
+		quantizer.setEncodedChunks(0);
+		quantizer.put(ChunkQuantizers.CODEBOOK, null);
+		quantizer.setMessage(null);
+		db.run(Upsert.into(CHUNK_QUANTIZERS).entry(quantizer));
+		return find(generation).orElseThrow();
+	}
+
+	public void storeCodebook(int generation, ProductQuantizer quantizer, int trainingChunks) {
+		ChunkQuantizers data = ChunkQuantizers.create();
+		data.setStatus(STATUS_ENCODING);
+		data.setDimension(quantizer.dimension());
+		data.setSubQuantizers(quantizer.subQuantizers());
+		data.setBits(quantizer.bits());
+		data.setTrainingChunks(trainingChunks);
+		data.put(ChunkQuantizers.CODEBOOK, quantizer.toBytes());
+		db.run(Update.entity(CHUNK_QUANTIZERS).byId(generation).data(data));
+	}
+
+	public void updateProgress(int generation, String status, int encodedChunks) {
+		ChunkQuantizers data = ChunkQuantizers.create();
+		data.setStatus(status);
+		data.setEncodedChunks(encodedChunks);
+		db.run(Update.entity(CHUNK_QUANTIZERS).byId(generation).data(data));
+	}
+
+	public void markFailed(int generation, String message) {
+		ChunkQuantizers data = ChunkQuantizers.create();
+		data.setStatus(STATUS_FAILED);
+		data.setMessage(message);
+		db.run(Update.entity(CHUNK_QUANTIZERS).byId(generation).data(data));
+	}
+
+	/**
+	 * @return the quantizer of the generation, without codebook
+	 */
+	public Optional<ChunkQuantizers> find(int generation) {
+		return db.run(Select.from(CHUNK_QUANTIZERS)
+				.columns(q -> q.generation(), q -> q.status(), q -> q.dimension(), q -> q.subQuantizers(),
+						q -> q.bits(), q -> q.trainingChunks(), q -> q.encodedChunks(), q -> q.message(),
+						q -> q.createdAt(), q -> q.modifiedAt())
+				.where(q -> q.generation().eq(generation)))
+				.first(ChunkQuantizers.class);
+	}
+
+	/**
+	 * @return the codebook of the generation, once all its chunks are encoded with it
+	 */
+	public Optional<ProductQuantizer> findCodebook(int generation) {
+		return db.run(Select.from(CHUNK_QUANTIZERS)
+				.where(q -> q.generation().eq(generation).and(q.status().eq(STATUS_READY))))
+				.first(ChunkQuantizers.class)
+				.map(q -> ProductQuantizer.fromBytes(q.getDimension(), q.getSubQuantizers(), q.getBits(),
+						bytes(q.get(ChunkQuantizers.CODEBOOK))));
+	}
+
+	public void deleteGenerationsExcept(Collection<Integer> generations) {
+		if (generations.isEmpty()) {
+			return;
+		}
+		db.run(Delete.from(CHUNK_QUANTIZERS)
+				.where(q -> CQL.not(q.generation().in(List.copyOf(generations)))));
+	}
+
+	static byte[] bytes(Object value) {
+		try {
+			return value instanceof InputStream stream ? stream.readAllBytes() : (byte[]) value;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package my.bookshop.repository.bookshop;
+
+import static cds.gen.my.bookshop.Bookshop_.EMBEDDING_GENERATIONS;
+
+import cds.gen.my.bookshop.EmbeddingGenerations;
+import com.sap.cds.ql.Insert;
+import com.sap.cds.ql.Select;
+import com.sap.cds.ql.Update;
+import com.sap.cds.ql.cqn.CqnSelect;
+import com.sap.cds.services.persistence.PersistenceService;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Persists the generations of the chunk index and which of them is active.
+ */
+@Repository
+public class EmbeddingGenerationRepository {
+
+	public static final String STATUS_BUILDING = "BUILDING";
+	public static final String STATUS_ACTIVE = "ACTIVE";
+	public static final String STATUS_RETIRED = "RETIRED";
+	public static final String STATUS_FAILED = "FAILED";
+
+	@Autowired
+	private PersistenceService db;
+
+	public Optional<Integer> findActiveId() {
+		CqnSelect select = Select.from(EMBEDDING_GENERATIONS)
+				.columns(g -> g.ID())
+				.where(g -> g.status().eq(STATUS_ACTIVE))
+				.orderBy(g -> g.ID().desc())
+				.limit(1);
+		return db.run(select).first(EmbeddingGenerations.class).map(EmbeddingGenerations::getId);
+	}
+
+	public List<Integer> findIds(String status) {
+		CqnSelect select = Select.from(EMBEDDING_GENERATIONS)
+				.columns(g -> g.ID())
+				.where(g -> g.status().eq(status));
+		return db.run(select).streamOf(EmbeddingGenerations.class).map(EmbeddingGenerations::getId).toList();
+	}
+
+	public int nextId() {
+		CqnSelect select = Select.from(EMBEDDING_GENERATIONS)
+				.columns(g -> g.ID())
+				.orderBy(g -> g.ID().desc())
+				.limit(1);
+		return db.run(select).first(EmbeddingGenerations.class).map(g -> g.getId() + 1).orElse(1);
+	}
+
+	public void insert(int id, String status) {
+		EmbeddingGenerations generation = EmbeddingGenerations.create();
+		generation.setId(id);
+		generation.setStatus(status);
+		db.run(Insert.into(EMBEDDING_GENERATIONS).entry(generation));
+	}
+
+	public void updateStatus(int id, String status) {
+		db.run(Update.entity(EMBEDDING_GENERATIONS).byId(id).data(EmbeddingGenerations.STATUS, status));
+	}
+
+	public void retireActive() {
+		db.run(Update.entity(EMBEDDING_GENERATIONS)
+				.data(EmbeddingGenerations.STATUS, STATUS_RETIRED)
+				.where(g -> g.status().eq(STATUS_ACTIVE)));
+	}
+
+	public void activate(int id, int bookCount, int chunkCount) {
+		EmbeddingGenerations generation = EmbeddingGenerations.create();
+		generation.setId(id);
+		generation.setStatus(STATUS_ACTIVE);
+		generation.setBookCount(bookCount);
+		generation.setChunkCount(chunkCount);
+		generation.setActivatedAt(Instant.now());
+		db.run(Update.entity(EMBEDDING_GENERATIONS).data(generation));
+	}
+}
@@ -0,0 +1,95 @@
+package my.bookshop.repository.bookshop;
+
+import static cds.gen.my.bookshop.Bookshop_.EMBEDDING_REBUILD_JOBS;
+import static cds.gen.my.bookshop.Bookshop_.EMBEDDING_REBUILD_RETRIES;
+
+import cds.gen.my.bookshop.EmbeddingRebuildJobs;
+import cds.gen.my.bookshop.EmbeddingRebuildRetries;
+import com.sap.cds.ql.Insert;
+import com.sap.cds.ql.Select;
+import com.sap.cds.ql.Update;
+import com.sap.cds.ql.cqn.CqnSelect;
+import com.sap.cds.services.persistence.PersistenceService;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Persists the checkpoints and retry queue of embedding index rebuilds.
+ */
+@Repository
+public class EmbeddingRebuildJobRepository {
+
+	public static final String STATUS_RUNNING = "RUNNING";
+	public static final String STATUS_INTERRUPTED = "INTERRUPTED";
+	public static final String STATUS_COMPLETED = "COMPLETED";
+	public static final String STATUS_FAILED = "FAILED";
+
+	public static final String RETRY_PENDING = "PENDING";
+	public static final String RETRY_DONE = "DONE";
+	public static final String RETRY_FAILED = "FAILED";
+
+	@Autowired
+	private PersistenceService db;
+
+	public EmbeddingRebuildJobs createJob(int generation, int totalBooks) {
+		EmbeddingRebuildJobs job = EmbeddingRebuildJobs.create();
+		job.setId(UUID.randomUUID().toString());
+		job.setGeneration(generation);
+		job.setStatus(STATUS_RUNNING);
+		job.setTotalBooks(totalBooks);
+		db.run(Insert.into(EMBEDDING_REBUILD_JOBS).entry(job));
+		return findJob(job.getId()).orElseThrow();
+	}
+
+	public Optional<EmbeddingRebuildJobs> findJob(String jobId) {
+		return db.run(Select.from(EMBEDDING_REBUILD_JOBS).byId(jobId)).first(EmbeddingRebuildJobs.class);
+	}
+
+	/**
+	 * @return the latest job that is running or was interrupted before it completed
+	 */
+	public Optional<EmbeddingRebuildJobs> findLatestUnfinished() {
+		CqnSelect select = Select.from(EMBEDDING_REBUILD_JOBS)
+				.where(j -> j.status().in(List.of(STATUS_RUNNING, STATUS_INTERRUPTED)))
+				.orderBy(j -> j.createdAt().desc())
+				.limit(1);
+		return db.run(select).first(EmbeddingRebuildJobs.class);
+	}
+
+	public void updateJob(EmbeddingRebuildJobs job) {
+		db.run(Update.entity(EMBEDDING_REBUILD_JOBS).data(job));
+	}
+
+	public void updateStatus(String jobId, String status, String message) {
+		EmbeddingRebuildJobs job = EmbeddingRebuildJobs.create();
+		job.setStatus(status);
+		job.setMessage(message);
+		db.run(Update.entity(EMBEDDING_REBUILD_JOBS).byId(jobId).data(job));
+	}
+
+	public void addRetry(String jobId, String bookId, int firstChunk, int chunkCount, String error) {
+		EmbeddingRebuildRetries retry = EmbeddingRebuildRetries.create();
+		retry.setId(UUID.randomUUID().toString());
+		retry.setJobId(jobId);
+		retry.setBookId(bookId);
+		retry.setFirstChunk(firstChunk);
+		retry.setChunkCount(chunkCount);
+		retry.setAttempts(0);
+		retry.setStatus(RETRY_PENDING);
+		retry.setLastError(error);
+		db.run(Insert.into(EMBEDDING_REBUILD_RETRIES).entry(retry));
+	}
+
+	public List<EmbeddingRebuildRetries> findRetries(String jobId, String status) {
+		CqnSelect select = Select.from(EMBEDDING_REBUILD_RETRIES)
+				.where(r -> r.job_ID().eq(jobId).and(r.status().eq(status)));
+		return db.run(select).listOf(EmbeddingRebuildRetries.class);
+	}
+
+	public void updateRetry(EmbeddingRebuildRetries retry) {
+		db.run(Update.entity(EMBEDDING_REBUILD_RETRIES).data(retry));
+	}
+}
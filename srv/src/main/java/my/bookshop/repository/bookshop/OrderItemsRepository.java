@@ -6,7 +6,10 @@ import com.sap.cds.Result;
 import com.sap.cds.ql.Select;
 import com.sap.cds.ql.cqn.CqnSelect;
 import com.sap.cds.services.persistence.PersistenceService;
-import java.util.Optional;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
@@ -16,16 +19,23 @@ public class OrderItemsRepository {
 	@Autowired
 	private PersistenceService db;
 
-	public Optional<OrderItemSnapshot> findQuantityAndBook(String orderItemId) {
-		if (orderItemId == null) {
-			return Optional.empty();
+	/**
+	 * Reads quantity and book of all given order items with a single query.
+	 *
+	 * @return snapshot per order item ID, unknown IDs are absent
+	 */
+	public Map<String, OrderItemSnapshot> findQuantityAndBooks(Collection<String> orderItemIds) {
+		if (orderItemIds == null || orderItemIds.isEmpty()) {
+			return Map.of();
 		}
 		CqnSelect select = Select.from(Bookshop_.ORDER_ITEMS)
-				.columns(i -> i.quantity(), i -> i.book_ID())
-				.byId(orderItemId);
+				.columns(i -> i.ID(), i -> i.quantity(), i -> i.book_ID())
+				.where(i -> i.ID().in(List.copyOf(orderItemIds)));
 		Result result = db.run(select);
-		return result.first(OrderItems.class)
-				.map(item -> new OrderItemSnapshot(item.getQuantity(), item.getBookId()));
+		Map<String, OrderItemSnapshot> snapshots = new HashMap<>();
+		result.streamOf(OrderItems.class)
+				.forEach(item -> snapshots.put(item.getId(), new OrderItemSnapshot(item.getQuantity(), item.getBookId())));
+		return snapshots;
 	}
 
 	public static class OrderItemSnapshot {
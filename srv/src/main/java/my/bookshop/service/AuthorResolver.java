@@ -0,0 +1,65 @@
+package my.bookshop.service;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import cds.gen.my.bookshop.Authors;
+import my.bookshop.repository.bookshop.AuthorsRepository;
+
+/**
+ * Resolves the author names of an import to author IDs, ignoring case.
+ * <p>
+ * Each name is looked up once among the existing authors, unknown names become new authors that are passed to the
+ * consumer to be stored with the current batch.
+ */
+class AuthorResolver {
+
+	private final AuthorsRepository authorsRepository;
+	private final Consumer<Authors> created;
+	private final Map<String, String> idsByName = new HashMap<>();
+
+	AuthorResolver(AuthorsRepository authorsRepository, Consumer<Authors> created) {
+		this.authorsRepository = authorsRepository;
+		this.created = created;
+	}
+
+	/**
+	 * @return ID of the author with the name, which is created if it is unknown
+	 */
+	String resolve(String name) {
+		String id = find(name);
+		if (id == null) {
+			Authors author = Authors.create();
+			author.setId(UUID.randomUUID().toString());
+			author.setName(name);
+			created.accept(author);
+			idsByName.put(key(name), author.getId());
+			id = author.getId();
+		}
+		return id;
+	}
+
+	/**
+	 * Registers an imported author. Without an ID, it gets the ID of an existing author with the same name, so the
+	 * existing author is updated instead of duplicated.
+	 */
+	Authors add(Authors author) {
+		if (author.getId() == null) {
+			String id = find(author.getName());
+			author.setId(id != null ? id : UUID.randomUUID().toString());
+		}
+		idsByName.put(key(author.getName()), author.getId());
+		return author;
+	}
+
+	private String find(String name) {
+		return idsByName.computeIfAbsent(key(name), key -> authorsRepository.findIdByName(name).orElse(null));
+	}
+
+	private static String key(String name) {
+		return name.trim().toLowerCase(Locale.ROOT);
+	}
+}
@@ -0,0 +1,528 @@
+package my.bookshop.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import jakarta.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sap.cds.services.ErrorStatuses;
+import com.sap.cds.services.ServiceException;
+import com.sap.cds.services.runtime.CdsRuntime;
+
+import cds.gen.my.bookshop.Authors;
+import cds.gen.my.bookshop.BookImports;
+import cds.gen.my.bookshop.Books;
+import my.bookshop.MessageKeys;
+import my.bookshop.rag.BlockingExecutors;
+import my.bookshop.rag.BookEmbeddingQueue;
+import my.bookshop.rag.TenantContexts;
+import my.bookshop.repository.bookshop.AuthorsRepository;
+import my.bookshop.repository.bookshop.BookImportRepository;
+import my.bookshop.repository.bookshop.BookImportRepository.ImportError;
+import my.bookshop.repository.bookshop.BookshopBooksRepository;
+
+/**
+ * Imports books from a {@code ;} separated CSV upload or from newline delimited JSON (NDJSON).
+ * <p>
+ * The upload is spooled to a temporary file and imported by a background job, so the request returns the ID of the
+ * {@link BookImports} entry right away. The input is parsed as a stream and stored in batches of
+ * {@code bookshop.import.batch-size} records, each batch in its own transaction. If a batch is rejected, its books are
+ * retried one by one so only the failing records are reported. Progress and record errors are recorded on the
+ * {@link BookImports} entry, and the embeddings of the imported books are computed afterwards by the
+ * {@link BookEmbeddingQueue}. The import is completed once the last of its books has been embedded.
+ */
+@Service
+public class BookImportService {
+
+	private static final Logger logger = LoggerFactory.getLogger(BookImportService.class);
+
+	public static final String STATUS_IMPORTING = "IMPORTING";
+	public static final String STATUS_EMBEDDING = "EMBEDDING";
+	public static final String STATUS_COMPLETED = "COMPLETED";
+	public static final String STATUS_FAILED = "FAILED";
+
+	private static final char DELIMITER = ';';
+	private static final int FIELD_COUNT = 9;
+	private static final String TYPE_AUTHOR = "author";
+
+	private final BookshopBooksRepository bookshopBooksRepository;
+	private final AuthorsRepository authorsRepository;
+	private final BookImportRepository importRepository;
+	private final BookEmbeddingQueue embeddingQueue;
+	private final CdsRuntime runtime;
+	private final TenantContexts tenants;
+	private final ExecutorService executor;
+	private final ObjectMapper objectMapper;
+	private final int batchSize;
+	private final int maxStoredErrors;
+
+	public BookImportService(BookshopBooksRepository bookshopBooksRepository, AuthorsRepository authorsRepository,
+			BookImportRepository importRepository, BookEmbeddingQueue embeddingQueue, CdsRuntime runtime,
+			TenantContexts tenants, BlockingExecutors executors, ObjectMapper objectMapper,
+			@Value("${bookshop.import.batch-size:500}") int batchSize,
+			@Value("${bookshop.import.max-stored-errors:1000}") int maxStoredErrors) {
+		this.bookshopBooksRepository = bookshopBooksRepository;
+		this.authorsRepository = authorsRepository;
+		this.importRepository = importRepository;
+		this.embeddingQueue = embeddingQueue;
+		this.runtime = runtime;
+		this.tenants = tenants;
+		this.executor = executors.serial("book-import");
+		this.objectMapper = objectMapper;
+		this.batchSize = Math.max(1, batchSize);
+		this.maxStoredErrors = maxStoredErrors;
+	}
+
+	@PreDestroy
+	void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Starts a background import of all valid rows of the CSV. The first row is a header.
+	 *
+	 * @return the import entry, whose progress is updated by the import
+	 */
+	public BookImports importCsv(InputStream csv) {
+		return startImport(csv, (input, run) -> {
+			try (CsvRecordReader reader = new CsvRecordReader(input, DELIMITER)) {
+				reader.next(); // header
+				List<String> fields;
+				while ((fields = reader.next()) != null) {
+					if (fields.size() == 1 && fields.get(0).isBlank()) {
+						continue;
+					}
+					List<String> record = fields;
+					run.addBook(reader.getRecordLine(), () -> toBook(record));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Starts a background import of all valid books and authors of an NDJSON stream.
+	 * <p>
+	 * Each line is a JSON object. Lines with {@code "type": "author"} create an author; all other lines are books,
+	 * whose author is given either as {@code author_ID} or by name as {@code author}. Unknown author names are created.
+	 *
+	 * @return the import entry, whose progress is updated by the import
+	 */
+	public BookImports importNdjson(InputStream ndjson) {
+		return startImport(ndjson, (input, run) -> {
+			AuthorResolver authors = new AuthorResolver(authorsRepository, run.pendingAuthors::add);
+			try (BufferedReader reader = new BufferedReader(input)) {
+				String line;
+				int lineNumber = 0;
+				while ((line = reader.readLine()) != null) {
+					lineNumber++;
+					if (line.isBlank()) {
+						continue;
+					}
+					JsonNode node;
+					try {
+						node = objectMapper.readTree(line);
+					} catch (JsonProcessingException e) {
+						run.addBook(lineNumber, () -> {
+							throw new IllegalArgumentException("Invalid JSON: " + e.getOriginalMessage());
+						});
+						continue;
+					}
+					if (TYPE_AUTHOR.equals(node.path("type").asText())) {
+						run.addAuthor(lineNumber, () -> authors.add(toAuthor(node)));
+					} else {
+						run.addBook(lineNumber, () -> toBook(node, authors));
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Spools the input, as the request stream is closed with the request, and imports it on the import thread as
+	 * system user of the current tenant.
+	 */
+	private BookImports startImport(InputStream input, ImportReader importReader) {
+		Path file;
+		try {
+			file = Files.createTempFile("book-import-", ".tmp");
+			try {
+				Files.copy(input, file, StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				delete(file);
+				throw e;
+			}
+		} catch (IOException e) {
+			throw new ServiceException(ErrorStatuses.SERVER_ERROR, MessageKeys.BOOK_IMPORT_FAILED, e);
+		}
+		String importId = runtime.changeSetContext().run(changeSet -> {
+			return importRepository.createImport(STATUS_IMPORTING);
+		});
+		Runnable work = tenants.bindToSystemUser(() -> runImport(importId, file, importReader));
+		try {
+			executor.execute(() -> {
+				try {
+					work.run();
+				} finally {
+					delete(file);
+				}
+			});
+		} catch (RuntimeException e) {
+			delete(file);
+			throw e;
+		}
+		BookImports bookImport = BookImports.create();
+		bookImport.setId(importId);
+		bookImport.setStatus(STATUS_IMPORTING);
+		return bookImport;
+	}
+
+	private void runImport(String importId, Path file, ImportReader importReader) {
+		ImportRun run = new ImportRun(importId);
+		try (Reader input = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			importReader.read(input, run);
+			run.flush(STATUS_EMBEDDING);
+		} catch (CsvRecordReader.MalformedCsvException e) {
+			logger.warn("Import {} failed on invalid CSV structure", importId, e);
+			run.fail("Invalid CSV structure: " + e.getMessage());
+			return;
+		} catch (IOException | RuntimeException e) {
+			logger.error("Import {} failed", importId, e);
+			run.fail(e.getMessage());
+			return;
+		}
+		run.readingCompleted();
+		logger.info("Imported {} of {} records ({} failed), import {}", run.progress.getRowsImported(),
+				run.progress.getRowsRead(), run.progress.getRowsFailed(), importId);
+	}
+
+	private static void delete(Path file) {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			logger.warn("Failed to delete the import file {}", file, e);
+		}
+	}
+
+	/**
+	 * Converts a CSV record with the columns ID, title, descr, author_ID, stock, price, currency_code, genre_ID,
+	 * fullText into a book.
+	 *
+	 * @throws IllegalArgumentException if the record cannot be converted
+	 */
+	static Books toBook(List<String> fields) {
+		if (fields.size() < FIELD_COUNT) {
+			throw new IllegalArgumentException("Expected " + FIELD_COUNT + " fields but found " + fields.size());
+		}
+		String id = fields.get(0).trim();
+		if (id.isEmpty()) {
+			throw new IllegalArgumentException("Missing book ID");
+		}
+		Books book = Books.create();
+		book.setId(id);
+		book.setTitle(fields.get(1));
+		book.setDescr(fields.get(2));
+		book.setAuthorId(emptyToNull(fields.get(3)));
+		book.setStock(parse("stock", fields.get(4), Integer::valueOf));
+		book.setPrice(parse("price", fields.get(5), BigDecimal::new));
+		book.setCurrencyCode(emptyToNull(fields.get(6)));
+		book.setGenreId(emptyToNull(fields.get(7)));
+		book.setFullText(fields.get(8));
+		return book;
+	}
+
+	/**
+	 * Converts an NDJSON book object; a missing {@code ID} is generated.
+	 *
+	 * @throws IllegalArgumentException if the object cannot be converted
+	 */
+	static Books toBook(JsonNode node, AuthorResolver authors) {
+		String title = text(node, "title");
+		if (title == null) {
+			throw new IllegalArgumentException("Missing book title");
+		}
+		Books book = Books.create();
+		String id = text(node, "ID");
+		book.setId(id != null ? id : UUID.randomUUID().toString());
+		book.setTitle(title);
+		book.setDescr(text(node, "descr"));
+		String authorId = text(node, "author_ID");
+		String authorName = text(node, "author");
+		book.setAuthorId(authorId != null || authorName == null ? authorId : authors.resolve(authorName));
+		book.setStock(parse("stock", text(node, "stock"), Integer::valueOf));
+		book.setPrice(parse("price", text(node, "price"), BigDecimal::new));
+		book.setCurrencyCode(text(node, "currency_code"));
+		book.setGenreId(text(node, "genre_ID"));
+		book.setFullText(text(node, "fullText"));
+		return book;
+	}
+
+	/**
+	 * Converts an NDJSON author object; a missing {@code ID} is left to the {@link AuthorResolver}.
+	 *
+	 * @throws IllegalArgumentException if the object cannot be converted
+	 */
+	static Authors toAuthor(JsonNode node) {
+		String name = text(node, "name");
+		if (name == null) {
+			throw new IllegalArgumentException("Missing author name");
+		}
+		Authors author = Authors.create();
+		author.setId(text(node, "ID"));
+		author.setName(name);
+		author.setDateOfBirth(parse("dateOfBirth", text(node, "dateOfBirth"), LocalDate::parse));
+		author.setDateOfDeath(parse("dateOfDeath", text(node, "dateOfDeath"), LocalDate::parse));
+		author.setPlaceOfBirth(text(node, "placeOfBirth"));
+		author.setPlaceOfDeath(text(node, "placeOfDeath"));
+		return author;
+	}
+
+	private static String text(JsonNode node, String field) {
+		JsonNode value = node.get(field);
+		return value == null || value.isNull() ? null : emptyToNull(value.asText());
+	}
+
+	private static <T> T parse(String column, String value, Function<String, T> parser) {
+		if (value == null || value.isBlank()) {
+			return null;
+		}
+		String trimmed = value.trim();
+		try {
+			return parser.apply(trimmed);
+		} catch (NumberFormatException | DateTimeParseException e) {
+			throw new IllegalArgumentException("Invalid " + column + " '" + trimmed + "'");
+		}
+	}
+
+	private static String emptyToNull(String value) {
+		return value == null || value.isBlank() ? null : value.trim();
+	}
+
+	private void inChangeSet(Runnable action) {
+		runtime.changeSetContext().run(changeSet -> {
+			action.run();
+		});
+	}
+
+	@FunctionalInterface
+	private interface ImportReader {
+
+		void read(Reader input, ImportRun run) throws IOException;
+	}
+
+	/**
+	 * State of a single import while the input is read.
+	 */
+	private class ImportRun {
+
+		private final String importId;
+		private final BookImports progress = BookImports.create();
+		private final List<Books> batch = new ArrayList<>();
+		private final List<Integer> batchLines = new ArrayList<>();
+		private final List<Authors> pendingAuthors = new ArrayList<>();
+		private final List<ImportError> errors = new ArrayList<>();
+		// books submitted for embedding but not processed yet, plus one while the input is read
+		private final AtomicInteger pending = new AtomicInteger(1);
+		private int storedErrors;
+
+		ImportRun(String importId) {
+			this.importId = importId;
+			progress.setId(importId);
+			progress.setStatus(STATUS_IMPORTING);
+			progress.setRowsRead(0);
+			progress.setRowsImported(0);
+			progress.setRowsFailed(0);
+			// booksEmbedded is maintained by the embedding queue and must not be overwritten here
+			progress.setBooksToEmbed(0);
+		}
+
+		void addBook(int line, Supplier<Books> parser) {
+			progress.setRowsRead(progress.getRowsRead() + 1);
+			try {
+				batch.add(parser.get());
+				batchLines.add(line);
+			} catch (IllegalArgumentException e) {
+				rowFailed(line, e.getMessage());
+			}
+			flushIfFull();
+		}
+
+		void addAuthor(int line, Supplier<Authors> parser) {
+			progress.setRowsRead(progress.getRowsRead() + 1);
+			try {
+				pendingAuthors.add(parser.get());
+			} catch (IllegalArgumentException e) {
+				rowFailed(line, e.getMessage());
+			}
+			flushIfFull();
+		}
+
+		private void flushIfFull() {
+			if (batch.size() + pendingAuthors.size() >= batchSize) {
+				flush(STATUS_IMPORTING);
+			}
+		}
+
+		void flush(String status) {
+			int authors = storeAuthors();
+			List<String> stored = storeBooks();
+			progress.setRowsImported(progress.getRowsImported() + authors + stored.size());
+			progress.setBooksToEmbed(progress.getBooksToEmbed() + stored.size());
+			progress.setStatus(status);
+			List<ImportError> batchErrors = List.copyOf(errors);
+			errors.clear();
+			inChangeSet(() -> {
+				importRepository.updateImport(progress);
+				importRepository.addErrors(importId, batchErrors);
+			});
+			if (!stored.isEmpty()) {
+				pending.addAndGet(stored.size());
+				embeddingQueue.submit(stored, new EmbeddingProgress(this));
+			}
+		}
+
+		void readingCompleted() {
+			countDown();
+		}
+
+		/**
+		 * Completes the import when the input has been read and the last of its books has been embedded.
+		 */
+		void countDown() {
+			if (pending.decrementAndGet() == 0) {
+				inChangeSet(() -> importRepository.updateStatus(importId, STATUS_COMPLETED));
+			}
+		}
+
+		/**
+		 * Marks the import as failed. It is never completed, as the input is not counted down.
+		 */
+		void fail(String message) {
+			progress.setStatus(STATUS_FAILED);
+			errors.add(new ImportError(null, truncate(message)));
+			List<ImportError> batchErrors = List.copyOf(errors);
+			try {
+				inChangeSet(() -> {
+					importRepository.updateImport(progress);
+					importRepository.addErrors(importId, batchErrors);
+				});
+			} catch (RuntimeException e) {
+				logger.warn("Failed to record the failure of import {}", importId, e);
+			}
+		}
+
+		/**
+		 * Authors are stored before the books of the same batch, as those may reference them.
+		 *
+		 * @return number of stored authors
+		 */
+		private int storeAuthors() {
+			if (pendingAuthors.isEmpty()) {
+				return 0;
+			}
+			List<Authors> authors = List.copyOf(pendingAuthors);
+			pendingAuthors.clear();
+			inChangeSet(() -> authorsRepository.upsertAuthors(authors));
+			return authors.size();
+		}
+
+		/**
+		 * @return IDs of the stored books
+		 */
+		private List<String> storeBooks() {
+			if (batch.isEmpty()) {
+				return List.of();
+			}
+			List<Books> books = List.copyOf(batch);
+			List<Integer> lines = List.copyOf(batchLines);
+			batch.clear();
+			batchLines.clear();
+			try {
+				inChangeSet(() -> bookshopBooksRepository.upsertBooks(books));
+				return books.stream().map(Books::getId).toList();
+			} catch (RuntimeException e) {
+				logger.debug("Batch of import {} rejected, retrying books individually", importId, e);
+			}
+			List<String> stored = new ArrayList<>();
+			for (int i = 0; i < books.size(); i++) {
+				Books book = books.get(i);
+				try {
+					inChangeSet(() -> bookshopBooksRepository.upsertBook(book));
+					stored.add(book.getId());
+				} catch (RuntimeException e) {
+					rowFailed(lines.get(i), e.getMessage());
+				}
+			}
+			return stored;
+		}
+
+		private void rowFailed(int line, String message) {
+			progress.setRowsFailed(progress.getRowsFailed() + 1);
+			if (storedErrors < maxStoredErrors) {
+				storedErrors++;
+				errors.add(new ImportError(line, truncate(message)));
+			}
+		}
+	}
+
+	/**
+	 * Counts embedded books on the import entry; embedding failures are recorded as errors without a line.
+	 */
+	private class EmbeddingProgress implements BookEmbeddingQueue.Listener {
+
+		private final ImportRun run;
+
+		EmbeddingProgress(ImportRun run) {
+			this.run = run;
+		}
+
+		@Override
+		public void bookProcessed(String bookId, boolean success) {
+			String importId = run.importId;
+			try {
+				inChangeSet(() -> {
+					if (success) {
+						importRepository.incrementBooksEmbedded(importId);
+					} else {
+						importRepository.addErrors(importId,
+								List.of(new ImportError(null, "Embedding failed for book " + bookId)));
+					}
+				});
+			} catch (RuntimeException e) {
+				logger.warn("Failed to record the embedding of book {} for import {}", bookId, importId, e);
+			}
+			run.countDown();
+		}
+	}
+
+	private static String truncate(String message) {
+		if (message == null) {
+			return null;
+		}
+		return message.length() <= 1000 ? message : message.substring(0, 1000);
+	}
+}
@@ -2,6 +2,7 @@ package my.bookshop.service;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Stream;
 
@@ -24,10 +25,13 @@ import com.sap.cds.services.ServiceException;
 import com.sap.cds.services.cds.CdsReadEventContext;
 import com.sap.cds.services.messages.Messages;
 import com.sap.cds.services.request.FeatureTogglesInfo;
+import com.sap.cds.services.request.UserInfo;
 
 import cds.gen.catalogservice.Books;
 import cds.gen.catalogservice.BooksAddReviewContext;
+import cds.gen.catalogservice.BooksSimilarBooksContext;
 import cds.gen.catalogservice.Books_;
+import cds.gen.catalogservice.ChatAutoContext;
 import cds.gen.catalogservice.ChatContext;
 import cds.gen.catalogservice.ChatFtContext;
 import cds.gen.catalogservice.ChatResult;
@@ -38,18 +42,24 @@ import dev.langchain4j.data.segment.TextSegment;
 import my.bookshop.MessageKeys;
 import my.bookshop.RatingCalculator;
 import my.bookshop.rag.BookEmbeddingService;
+import my.bookshop.rag.ChatLatencyGuard;
+import my.bookshop.rag.ChatSession;
+import my.bookshop.rag.ChatSessionStore;
+import my.bookshop.rag.FaqIndex;
+import my.bookshop.rag.LatencyBudget;
 import my.bookshop.rag.RagAiClient;
 import my.bookshop.rag.RagPromptBuilder;
 import my.bookshop.rag.RagRetrievalService;
+import my.bookshop.rag.SimilarBooksIndex;
 import my.bookshop.repository.CatalogRepository;
-import my.bookshop.repository.bookshop.BookContentChunkRepository;
-import my.bookshop.repository.bookshop.BookshopBooksRepository;
 
 @Service
 public class CatalogBusinessService {
 
 	private static final Logger logger = LoggerFactory.getLogger(CatalogBusinessService.class);
 
+	private static final double MIN_SIMILARITY = 0.3;
+	private static final int DEFAULT_SIMILAR_BOOKS = 5;
 	private static final TypeReference<List<Map<String, Object>>> HISTORY_TYPE = new TypeReference<>() {
 	};
 
@@ -64,13 +74,20 @@ public class CatalogBusinessService {
 	private final CqnAnalyzer analyzer;
 	private final RagRetrievalService ragRetrievalService;
 	private final RagPromptBuilder ragPromptBuilder;
+	private final ChatSessionStore chatSessionStore;
+	private final ChatLatencyGuard chatLatencyGuard;
+	private final ChatRouter chatRouter;
+	private final FaqIndex faqIndex;
+	private final SimilarBooksIndex similarBooksIndex;
 
 	@Autowired
 	public CatalogBusinessService(CatalogRepository repository, Messages messages,
 			FeatureTogglesInfo featureToggles, RatingCalculator ratingCalculator, CqnAnalyzer analyzer,
 			BookEmbeddingService embeddingService, @Qualifier("openAiClient") RagAiClient aiClient,
 			@Qualifier("raftClient") RagAiClient raftClient, ObjectMapper objectMapper,
-			RagRetrievalService ragRetrievalService, RagPromptBuilder ragPromptBuilder) {
+			RagRetrievalService ragRetrievalService, RagPromptBuilder ragPromptBuilder,
+			ChatSessionStore chatSessionStore, ChatLatencyGuard chatLatencyGuard, ChatRouter chatRouter,
+			FaqIndex faqIndex, SimilarBooksIndex similarBooksIndex) {
 		this.repository = repository;
 		this.messages = messages;
 		this.featureToggles = featureToggles;
@@ -82,15 +99,11 @@ public class CatalogBusinessService {
 		this.analyzer = analyzer;
 		this.ragRetrievalService = ragRetrievalService;
 		this.ragPromptBuilder = ragPromptBuilder;
-	}
-
-	public CatalogBusinessService(CatalogRepository repository, Messages messages,
-			FeatureTogglesInfo featureToggles, RatingCalculator ratingCalculator, CqnAnalyzer analyzer,
-			BookEmbeddingService embeddingService, RagAiClient aiClient, ObjectMapper objectMapper,
-			BookshopBooksRepository bookshopBooksRepository, BookContentChunkRepository chunkRepository) {
-		this(repository, messages, featureToggles, ratingCalculator, analyzer, embeddingService, aiClient, aiClient,
-				objectMapper,
-				new RagRetrievalService(aiClient, bookshopBooksRepository, chunkRepository), new RagPromptBuilder());
+		this.chatSessionStore = chatSessionStore;
+		this.chatLatencyGuard = chatLatencyGuard;
+		this.chatRouter = chatRouter;
+		this.faqIndex = faqIndex;
+		this.similarBooksIndex = similarBooksIndex;
 	}
 
 	public void ensureStockColumn(CdsReadEventContext context) {
@@ -127,8 +140,25 @@ public class CatalogBusinessService {
 		return result;
 	}
 
+	/**
+	 * Answers from the precomputed book centroids, without calling a model.
+	 */
+	public List<ChatResultBook> similarBooks(BooksSimilarBooksContext context) {
+		int limit = context.getLimit() == null ? DEFAULT_SIMILAR_BOOKS : context.getLimit();
+		if (limit < 1 || limit > similarBooksIndex.maxLimit()) {
+			throw new ServiceException(ErrorStatuses.BAD_REQUEST, MessageKeys.SIMILAR_BOOKS_INVALID_LIMIT, limit,
+					similarBooksIndex.maxLimit());
+		}
+		String bookId = (String) analyzer().analyze(context.getCqn()).targetKeys().get(Books.ID);
+		List<String> bookIds = similarBooksIndex.similarBooks(bookId, limit).stream()
+				.map(SimilarBooksIndex.Neighbour::bookId)
+				.toList();
+		return bookIds.isEmpty() ? List.of() : repository.getChatResultBooks(bookIds);
+	}
+
 	public void updateRatingAfterReview(BooksAddReviewContext context) {
-		ratingCalculator.setBookRating(context.getResult().getBookId());
+		Reviews review = context.getResult();
+		ratingCalculator.reviewAdded(context.getChangeSetContext(), review.getBookId());
 	}
 
 	public void applyDiscounts(Stream<Books> books) {
@@ -170,65 +200,159 @@ public class CatalogBusinessService {
 		Integer quantity = context.getQuantity();
 		String bookId = context.getBook();
 
-		Books book = repository.fetchBook(bookId);
-		int stock = book.getStock();
-
-		if (stock >= quantity) {
-			int updated = stock - quantity;
-			repository.updateBookStock(bookId, updated);
+		if (quantity == null || quantity <= 0) {
+			throw new ServiceException(ErrorStatuses.BAD_REQUEST, MessageKeys.ORDER_INVALID_QUANTITY, quantity);
+		}
 
+		if (repository.reserveStock(bookId, quantity)) {
 			SubmitOrderContext.ReturnType result = SubmitOrderContext.ReturnType.create();
-			result.setStock(updated);
+			result.setStock(repository.fetchBook(bookId).getStock());
 			return result;
 		}
+		// fails for unknown books, otherwise the stock was too low
+		repository.fetchBook(bookId);
 		throw new ServiceException(ErrorStatuses.CONFLICT, MessageKeys.ORDER_EXCEEDS_STOCK, quantity);
 	}
 
 	public ChatResult handleChat(ChatContext context) {
 		String message = context.getMessage();
 		if (message == null || message.isBlank()) {
-			logger.debug("Chat request rejected because message was empty.");
-			return chatResult("Please enter a question about the catalog.", List.of(), false);
+			return emptyChatMessageResult();
+		}
+		LatencyBudget budget = chatLatencyGuard.startBudget();
+
+		ChatSession session = openSession(context.getUserInfo(), context.getConversationId(), context.getHistory());
+		return finish(session, message, ragAttempt(ChatContext.CDS_NAME, session, message, budget));
+	}
+
+	/**
+	 * Answers on the path chosen by {@link ChatRouter}, and hands the question to the other path if the answer is
+	 * missing, malformed or not confident. Only the kept answer is added to the session.
+	 */
+	public ChatResult handleChatAuto(ChatAutoContext context) {
+		String message = context.getMessage();
+		if (message == null || message.isBlank()) {
+			return emptyChatMessageResult();
+		}
+		LatencyBudget budget = chatLatencyGuard.startBudget();
+		ChatSession session = openSession(context.getUserInfo(), context.getConversationId(), context.getHistory());
+
+		ChatRouter.Route route = chatRouter.route(message);
+		ChatAttempt first = attempt(route, session, message, budget);
+		Optional<String> escalation = chatRouter.escalation(route, first.payload());
+		// a second call with the budget used up would only degrade again
+		if (escalation.isEmpty() || chatLatencyGuard.modelTime(budget).isEmpty()) {
+			chatRouter.record(route, route, escalation.isEmpty() ? ChatRouter.REASON_NONE : escalation.get());
+			return finish(session, message, first);
 		}
 
-		List<Map<String, Object>> historyTurns = parseHistory(context.getHistory());
+		logger.debug("Escalating chat request from {} ({})", route, escalation.get());
+		ChatRouter.Route other = ChatRouter.other(route);
+		ChatAttempt second = attempt(other, session, message, budget);
+		boolean keepFirst = second.payload() == null && first.payload() != null;
+		chatRouter.record(route, keepFirst ? route : other, escalation.get());
+		return finish(session, message, keepFirst ? first : second);
+	}
+
+	private ChatAttempt attempt(ChatRouter.Route route, ChatSession session, String message, LatencyBudget budget) {
+		return route == ChatRouter.Route.RAG
+				? ragAttempt(ChatAutoContext.CDS_NAME, session, message, budget)
+				: raftAttempt(ChatAutoContext.CDS_NAME, session, message, budget);
+	}
 
-		// 1. Retrieve relevant chunks first
+	/**
+	 * Answers from the FAQ index without retrieval if it knows the message, otherwise retrieves the relevant chunks
+	 * and calls the model with as much of the best-scoring context as fits the prompt budget, within the latency
+	 * budget.
+	 */
+	private ChatAttempt ragAttempt(String action, ChatSession session, String message, LatencyBudget budget) {
+		List<Map<String, Object>> historyTurns = session.history();
 		String queryText = ragPromptBuilder.buildQueryText(message, historyTurns);
-		double[] vector = ragRetrievalService.embedForQuery(queryText.isBlank() ? message : queryText);
-		List<TextSegment> allContexts = ragRetrievalService.similaritySearch(vector, 0.3); // Threshold 0.3
-
-		// 2. Select top 5 for LLM context
-		List<TextSegment> llmContext = allContexts.stream().limit(5).toList();
-
-		// 3. Call LLM with context
-		var messages = ragPromptBuilder.buildMessages(historyTurns, message, llmContext);
-		String raw = aiClient.chat(messages);
-		if (raw == null || raw.isBlank()) {
-			logger.warn("RAG chat returned empty response; sending fallback to client.");
-			return chatResult("RAG is currently unavailable. Please try again later or refine your question.",
-					List.of(), false);
+		double[] messageVector = hasFaq() ? embedMessage(session, message, queryText) : null;
+		Optional<String> faqAnswer = faqAnswer(messageVector);
+		if (faqAnswer.isPresent()) {
+			return ragAnswer(session, faqAnswer.get(), List.of());
 		}
+		List<TextSegment> allContexts = retrieve(session, message, queryText, messageVector);
+		// a slow retrieval may have used up the budget, then the prompt is not worth building
+		if (chatLatencyGuard.modelTime(budget).isEmpty()) {
+			chatLatencyGuard.recordBudgetExhausted(action, budget);
+			return new ChatAttempt(retrievalOnlyResult(allContexts, session), null);
+		}
+
+		var messages = ragPromptBuilder.buildMessages(historyTurns, message, allContexts);
+		Optional<String> answer = chatLatencyGuard.chat(action, aiClient, messages, budget);
+		if (answer.isEmpty()) {
+			return new ChatAttempt(retrievalOnlyResult(allContexts, session), null);
+		}
+		return ragAnswer(session, answer.get(), allContexts);
+	}
+
+	boolean hasFaq() {
+		return faqIndex.size() > 0;
+	}
+
+	/**
+	 * Embeds the message without the history for the FAQ lookup. Without history the message is the query text, so
+	 * the embedding of a cached retrieval is reused.
+	 */
+	private double[] embedMessage(ChatSession session, String message, String queryText) {
+		if (isQueryText(message, queryText)) {
+			Optional<ChatSession.Retrieval> cached = session.cachedRetrieval(message);
+			if (cached.isPresent()) {
+				return cached.get().vector();
+			}
+		}
+		return ragRetrievalService.embedForQuery(message.trim());
+	}
+
+	/**
+	 * @return whether the query text is the message alone, so the message's embedding also serves the retrieval
+	 */
+	static boolean isQueryText(String message, String queryText) {
+		return message.trim().equals(queryText);
+	}
+
+	/**
+	 * Looks up a stored answer for the message.
+	 *
+	 * @param messageVector embedding of the message without history, {@code null} if it was not embedded
+	 */
+	Optional<String> faqAnswer(double[] messageVector) {
+		Optional<FaqIndex.Answer> answer = messageVector == null ? Optional.empty() : faqIndex.lookup(messageVector);
+		answer.ifPresent(faq -> logger.debug("Answering from FAQ question '{}' ({})", faq.question(),
+				faq.similarity()));
+		return answer.map(FaqIndex.Answer::response);
+	}
 
+	ChatResult emptyChatMessageResult() {
+		logger.debug("Chat request rejected because message was empty.");
+		return chatResult("Please enter a question about the catalog.", List.of(), false);
+	}
+
+	ChatSession openSession(UserInfo user, String conversationId, String history) {
+		return chatSessionStore.open(conversationId, user, () -> parseHistory(history));
+	}
+
+	/**
+	 * Completes a chat turn with the model's raw answer and adds it to the session.
+	 */
+	ChatResult completeChat(ChatSession session, String message, String raw, List<TextSegment> contexts) {
+		return finish(session, message, ragAnswer(session, raw, contexts));
+	}
+
+	private ChatAttempt ragAnswer(ChatSession session, String raw, List<TextSegment> contexts) {
 		ChatPayload payload = parsePayload(raw);
 		String reply = payload.reply().isBlank() ? raw : payload.reply();
 		boolean needsVectorSearch = payload.vectorSearch();
 		List<ChatResultBook> resultBooks = List.of();
 
-		// 4. If vectorSearch is true, use the FULL list of contexts for the table
-		if (needsVectorSearch && !allContexts.isEmpty()) {
-			List<String> bookIds = allContexts.stream()
-					.map(s -> s.metadata().getString("bookId"))
-					.filter(id -> id != null && !id.isBlank())
-					.distinct()
-					.toList();
-
-			if (!bookIds.isEmpty()) {
-				resultBooks = repository.getChatResultBooks(bookIds);
-			}
+		// If vectorSearch is true, use the FULL list of contexts for the table
+		if (needsVectorSearch && !contexts.isEmpty()) {
+			resultBooks = findResultBooks(contexts);
 		}
 
-		return chatResult(reply, resultBooks, needsVectorSearch);
+		return new ChatAttempt(chatResult(reply, resultBooks, needsVectorSearch, session), payload);
 	}
 
 	public ChatResult handleChatFt(ChatFtContext context) {
@@ -238,16 +362,25 @@ public class CatalogBusinessService {
 			return chatResult("Please enter a question.", List.of(), false);
 		}
 
-		List<Map<String, Object>> historyTurns = parseHistory(context.getHistory());
+		LatencyBudget budget = chatLatencyGuard.startBudget();
+
+		ChatSession session = openSession(context.getUserInfo(), context.getConversationId(), context.getHistory());
+		return finish(session, message, raftAttempt(ChatFtContext.CDS_NAME, session, message, budget));
+	}
+
+	private ChatAttempt raftAttempt(String action, ChatSession session, String message, LatencyBudget budget) {
+		List<Map<String, Object>> historyTurns = session.history();
 
 		// RAFT Mode: No vector retrieval, just direct LLM call
 		var messages = ragPromptBuilder.buildMessages(historyTurns, message, List.of());
-		String raw = raftClient.chat(messages);
-
-		if (raw == null || raw.isBlank()) {
-			return chatResult("Assistant is currently unavailable.", List.of(), false);
+		Optional<String> answer = chatLatencyGuard.chat(action, raftClient, messages, budget);
+		if (answer.isEmpty()) {
+			ChatResult result = chatResult("Assistant is currently unavailable.", List.of(), false, session);
+			result.setDegraded(true);
+			return new ChatAttempt(result, null);
 		}
 
+		String raw = answer.get();
 		ChatPayload payload = parsePayload(raw);
 		String reply = payload.reply().isBlank() ? raw : payload.reply();
 		boolean needsVectorSearch = payload.vectorSearch();
@@ -257,23 +390,73 @@ public class CatalogBusinessService {
 			// RAFT Mode with search: Perform vector search to find relevant books for the
 			// UI
 			String queryText = ragPromptBuilder.buildQueryText(message, historyTurns);
-			double[] vector = ragRetrievalService.embedForQuery(queryText.isBlank() ? message : queryText);
-			List<TextSegment> allContexts = ragRetrievalService.similaritySearch(vector, 0.3);
+			List<TextSegment> allContexts = retrieve(session, message, queryText, null);
 
 			if (!allContexts.isEmpty()) {
-				List<String> bookIds = allContexts.stream()
-						.map(s -> s.metadata().getString("bookId"))
-						.filter(id -> id != null && !id.isBlank())
-						.distinct()
-						.toList();
-
-				if (!bookIds.isEmpty()) {
-					resultBooks = repository.getChatResultBooks(bookIds);
-				}
+				resultBooks = findResultBooks(allContexts);
 			}
 		}
 
-		return chatResult(reply, resultBooks, needsVectorSearch);
+		return new ChatAttempt(chatResult(reply, resultBooks, needsVectorSearch, session), payload);
+	}
+
+	/**
+	 * Adds the answered turn to the session; degraded answers are not added.
+	 */
+	private ChatResult finish(ChatSession session, String message, ChatAttempt attempt) {
+		return attempt.payload() == null ? attempt.result() : completeTurn(session, message, attempt.result());
+	}
+
+	/**
+	 * Embeds the query text and searches similar chunks, unless the session already did so for the same message.
+	 *
+	 * @param messageVector embedding of the message without history, if it was embedded for the FAQ lookup
+	 */
+	private List<TextSegment> retrieve(ChatSession session, String message, String queryText,
+			double[] messageVector) {
+		return session.cachedRetrieval(message)
+				.map(ChatSession.Retrieval::contexts)
+				.orElseGet(() -> search(session, message, messageVector != null && isQueryText(message, queryText)
+						? messageVector
+						: ragRetrievalService.embedForQuery(queryText)));
+	}
+
+	/**
+	 * Searches the chunks similar to the query embedding and caches them in the session under the message.
+	 */
+	List<TextSegment> search(ChatSession session, String message, double[] vector) {
+		List<TextSegment> contexts = ragRetrievalService.similaritySearch(vector, MIN_SIMILARITY);
+		session.cacheRetrieval(message, vector, contexts);
+		return contexts;
+	}
+
+	private List<ChatResultBook> findResultBooks(List<TextSegment> contexts) {
+		List<String> bookIds = contexts.stream()
+				.map(s -> s.metadata().getString("bookId"))
+				.filter(id -> id != null && !id.isBlank())
+				.distinct()
+				.toList();
+		return bookIds.isEmpty() ? List.of() : repository.getChatResultBooks(bookIds);
+	}
+
+	/**
+	 * Answers from the vector hits alone when the model is unavailable or too slow. The turn is not added to the
+	 * session, so the templated reply does not end up in the model's history.
+	 */
+	ChatResult retrievalOnlyResult(List<TextSegment> contexts, ChatSession session) {
+		List<ChatResultBook> books = findResultBooks(contexts);
+		String reply = books.isEmpty()
+				? "The assistant is currently unavailable. Please try again later or refine your question."
+				: "The assistant is currently unavailable, but these books match your question.";
+		ChatResult result = chatResult(reply, books, !books.isEmpty(), session);
+		result.setDegraded(true);
+		return result;
+	}
+
+	private ChatResult completeTurn(ChatSession session, String message, ChatResult result) {
+		session.appendTurn(message, result.getReply());
+		chatSessionStore.save(session);
+		return result;
 	}
 
 	private List<Map<String, Object>> parseHistory(String rawHistory) {
@@ -304,21 +487,42 @@ public class CatalogBusinessService {
 			JsonNode node = objectMapper.readTree(json);
 			String reply = node.path("reply").asText();
 			boolean vectorSearch = node.path("vectorSearch").asBoolean(false);
-			return new ChatPayload(reply, vectorSearch);
+			JsonNode confidence = node.path("confidence");
+			return new ChatPayload(reply, vectorSearch, node.path("reply").isTextual(),
+					confidence.isNumber() ? confidence.asDouble() : null);
 		} catch (Exception e) {
 			logger.warn("Failed to parse chat payload returned by RAG; sending raw text instead.", e);
-			return new ChatPayload(raw, false);
+			return new ChatPayload(raw, false, false, null);
 		}
 	}
 
-	private record ChatPayload(String reply, boolean vectorSearch) {
+	/**
+	 * @param wellFormed whether the answer was a JSON object with a text reply
+	 * @param confidence the confidence the model stated, if any
+	 */
+	record ChatPayload(String reply, boolean vectorSearch, boolean wellFormed, Double confidence) {
+	}
+
+	/**
+	 * @param payload the parsed answer of the model, or {@code null} if the result was produced without it
+	 */
+	private record ChatAttempt(ChatResult result, ChatPayload payload) {
 	}
 
 	private ChatResult chatResult(String reply, List<ChatResultBook> resultBooks, boolean needsVectorSearch) {
+		return chatResult(reply, resultBooks, needsVectorSearch, null);
+	}
+
+	private ChatResult chatResult(String reply, List<ChatResultBook> resultBooks, boolean needsVectorSearch,
+			ChatSession session) {
 		ChatResult result = ChatResult.create();
 		result.setReply(reply);
 		result.setBooks(resultBooks == null ? List.of() : resultBooks);
 		result.setNeedsVectorSearch(needsVectorSearch);
+		result.setDegraded(false);
+		if (session != null) {
+			result.setConversationId(session.getId());
+		}
 		return result;
 	}
 
@@ -0,0 +1,340 @@
+package my.bookshop.service;
+
+import com.sap.cds.services.ErrorStatus;
+import com.sap.cds.services.ServiceException;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpSession;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import my.bookshop.MessageKeys;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+/**
+ * Limits how many chat requests run at the same time, so a burst of chat traffic cannot take the request threads
+ * and database connections the catalog needs.
+ * <p>
+ * The limit adapts like TCP congestion control (AIMD): it grows by one permit per limit's worth of requests that
+ * finished within {@code rag.admission.latency-target} while the limit was used up, and shrinks by
+ * {@code backoff-ratio} when a request was slow, degraded or failed. It shrinks at most once per latency window:
+ * requests that were already running at the last decrease are not counted again. Requests over the limit wait briefly
+ * in a queue per caller, and the callers are served in turn, so one caller cannot crowd out the others. Anonymous
+ * callers are told apart by their HTTP session or client address. Requests that find the queue full or wait longer
+ * than {@code max-wait} are rejected right away with 429 and a {@code Retry-After} header.
+ */
+@Component
+public class ChatAdmissionController {
+
+	private static final Logger logger = LoggerFactory.getLogger(ChatAdmissionController.class);
+
+	static final String REJECTED_METRIC = "rag.chat.admission.rejected";
+	static final ErrorStatus TOO_MANY_REQUESTS = new ErrorStatus() {
+
+		@Override
+		public String getCodeString() {
+			return "429";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Too Many Requests";
+		}
+
+		@Override
+		public int getHttpStatus() {
+			return 429;
+		}
+	};
+
+	private static final String ANONYMOUS = "anonymous";
+	private static final String FORWARDED_FOR = "X-Forwarded-For";
+	private static final double LATENCY_SMOOTHING = 0.2;
+	private static final long NEVER = Long.MIN_VALUE;
+
+	private final ChatAdmissionProperties properties;
+	private final MeterRegistry meterRegistry;
+	private final ReentrantLock lock = new ReentrantLock();
+	// users with waiting requests, in the order in which they are served next
+	private final Map<String, ArrayDeque<Waiter>> queues = new LinkedHashMap<>();
+	private double limit;
+	private int inFlight;
+	private int queued;
+	private double averageLatencyMillis;
+	private long decreasedAt = NEVER;
+
+	public ChatAdmissionController(ChatAdmissionProperties properties, MeterRegistry meterRegistry) {
+		this.properties = properties;
+		this.meterRegistry = meterRegistry;
+		this.limit = Math.min(properties.getMaxLimit(), Math.max(properties.getMinLimit(), properties.getInitialLimit()));
+		this.averageLatencyMillis = properties.getLatencyTarget().toMillis() / 2.0;
+		Gauge.builder("rag.chat.admission.limit", this, ChatAdmissionController::limit).register(meterRegistry);
+		Gauge.builder("rag.chat.admission.in-flight", this, ChatAdmissionController::inFlight).register(meterRegistry);
+		Gauge.builder("rag.chat.admission.queued", this, ChatAdmissionController::queued).register(meterRegistry);
+	}
+
+	/**
+	 * Runs the action once a permit is free and feeds its outcome back into the limit.
+	 *
+	 * @param user name of the authenticated user, {@code null} for anonymous callers
+	 * @param degraded tells whether a result was answered without the model, which counts as overload
+	 * @throws ServiceException with status 429 if the request is not admitted
+	 * @throws IllegalStateException if interrupted while waiting, with the interrupt flag restored
+	 */
+	public <T> T admit(String user, Supplier<T> action, Predicate<T> degraded) {
+		acquire(callerKey(user));
+		long start = System.nanoTime();
+		boolean overloaded = true;
+		try {
+			T result = action.get();
+			overloaded = degraded.test(result);
+			return result;
+		} catch (ServiceException e) {
+			// client errors say nothing about the load
+			overloaded = e.getErrorStatus().getHttpStatus() >= 500;
+			throw e;
+		} finally {
+			release(Duration.ofNanos(System.nanoTime() - start), overloaded);
+		}
+	}
+
+	/**
+	 * Takes a permit without waiting, for callers that must not block their thread. Queued requests keep their turn.
+	 *
+	 * @param user name of the authenticated user, {@code null} for anonymous callers
+	 * @throws ServiceException with status 429 if no permit is free
+	 */
+	public Permit tryAcquire(String user) {
+		lock.lock();
+		try {
+			if (queued > 0 || inFlight >= permits()) {
+				throw reject(callerKey(user));
+			}
+			inFlight++;
+			return new Permit(System.nanoTime());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void acquire(String user) {
+		Waiter waiter;
+		lock.lock();
+		try {
+			if (queued == 0 && inFlight < permits()) {
+				inFlight++;
+				return;
+			}
+			ArrayDeque<Waiter> queue = queues.get(user);
+			int waiting = queue == null ? 0 : queue.size();
+			if (queued >= properties.getMaxQueued() || waiting >= properties.getMaxQueuedPerUser()) {
+				throw reject(user);
+			}
+			waiter = new Waiter();
+			queues.computeIfAbsent(user, u -> new ArrayDeque<>()).add(waiter);
+			queued++;
+		} finally {
+			lock.unlock();
+		}
+
+		InterruptedException interruption = null;
+		try {
+			if (waiter.admission.await(properties.getMaxWait().toNanos(), TimeUnit.NANOSECONDS)) {
+				return;
+			}
+		} catch (InterruptedException e) {
+			interruption = e;
+		}
+		lock.lock();
+		try {
+			if (waiter.admitted && interruption == null) {
+				// admitted just as the wait ended
+				return;
+			}
+			if (waiter.admitted) {
+				// hand the permit on without feeding back a latency
+				inFlight--;
+				while (queued > 0 && inFlight < permits()) {
+					admitNext();
+				}
+			} else {
+				ArrayDeque<Waiter> queue = queues.get(user);
+				queue.remove(waiter);
+				if (queue.isEmpty()) {
+					queues.remove(user);
+				}
+				queued--;
+				if (interruption == null) {
+					throw reject(user);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		// the caller was interrupted, which says nothing about the load
+		Thread.currentThread().interrupt();
+		throw new IllegalStateException("Interrupted while waiting for a chat permit", interruption);
+	}
+
+	/**
+	 * Queues the requests of an authenticated user under the name, those of anonymous callers under their HTTP session
+	 * or client address. Behind {@code rag.admission.trusted-proxies} proxies, the client address is the
+	 * {@code X-Forwarded-For} entry the outermost of them appended; entries before it may be set by the client.
+	 */
+	String callerKey(String user) {
+		if (user != null) {
+			return user;
+		}
+		if (!(RequestContextHolder.getRequestAttributes() instanceof ServletRequestAttributes attributes)) {
+			return ANONYMOUS;
+		}
+		HttpServletRequest request = attributes.getRequest();
+		HttpSession session = request.getSession(false);
+		if (session != null) {
+			return "session:" + session.getId();
+		}
+		String forwardedFor = request.getHeader(FORWARDED_FOR);
+		int proxies = properties.getTrustedProxies();
+		if (proxies <= 0 || forwardedFor == null || forwardedFor.isBlank()) {
+			return "address:" + request.getRemoteAddr();
+		}
+		String[] addresses = forwardedFor.split(",");
+		return "address:" + addresses[Math.max(0, addresses.length - proxies)].trim();
+	}
+
+	void release(Duration latency, boolean overloaded) {
+		long now = System.nanoTime();
+		long start = now - latency.toNanos();
+		lock.lock();
+		try {
+			boolean saturated = inFlight >= permits() || queued > 0;
+			inFlight--;
+			averageLatencyMillis += LATENCY_SMOOTHING * (latency.toMillis() - averageLatencyMillis);
+			if (overloaded || latency.compareTo(properties.getLatencyTarget()) > 0) {
+				// requests running at the last decrease saw the same overload, it is counted once
+				if (decreasedAt == NEVER || start - decreasedAt >= 0) {
+					limit = Math.max(properties.getMinLimit(), limit * properties.getBackoffRatio());
+					decreasedAt = now;
+				}
+			} else if (saturated) {
+				limit = Math.min(properties.getMaxLimit(), limit + 1 / limit);
+			}
+			while (queued > 0 && inFlight < permits()) {
+				admitNext();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void admitNext() {
+		Iterator<Map.Entry<String, ArrayDeque<Waiter>>> users = queues.entrySet().iterator();
+		Map.Entry<String, ArrayDeque<Waiter>> next = users.next();
+		users.remove();
+		Waiter waiter = next.getValue().poll();
+		if (!next.getValue().isEmpty()) {
+			// back of the line, so every waiting user gets a turn before anyone's second request
+			queues.put(next.getKey(), next.getValue());
+		}
+		queued--;
+		inFlight++;
+		waiter.admitted = true;
+		waiter.admission.countDown();
+	}
+
+	private ServiceException reject(String user) {
+		long retryAfter = retryAfterSeconds();
+		meterRegistry.counter(REJECTED_METRIC).increment();
+		logger.debug("Rejected chat request of user {}: {} in flight, {} queued, limit {}", user, inFlight, queued,
+				permits());
+		if (RequestContextHolder.getRequestAttributes() instanceof ServletRequestAttributes attributes
+				&& attributes.getResponse() != null) {
+			attributes.getResponse().setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfter));
+		}
+		return new ServiceException(TOO_MANY_REQUESTS, MessageKeys.CHAT_OVERLOADED, retryAfter);
+	}
+
+	/**
+	 * @return the time the queued requests need to drain at the current limit, in whole seconds
+	 */
+	long retryAfterSeconds() {
+		lock.lock();
+		try {
+			double seconds = averageLatencyMillis / 1000 * (queued + 1) / permits();
+			return Math.max(1, (long) Math.ceil(seconds));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private int permits() {
+		return Math.max(1, (int) limit);
+	}
+
+	double limit() {
+		lock.lock();
+		try {
+			return limit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int inFlight() {
+		lock.lock();
+		try {
+			return inFlight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int queued() {
+		lock.lock();
+		try {
+			return queued;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * A permit taken with {@link #tryAcquire(String)}. Releasing it more than once has no effect.
+	 */
+	public final class Permit {
+
+		private final long start;
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		private Permit(long start) {
+			this.start = start;
+		}
+
+		public void release(boolean overloaded) {
+			if (released.compareAndSet(false, true)) {
+				ChatAdmissionController.this.release(Duration.ofNanos(System.nanoTime() - start), overloaded);
+			}
+		}
+	}
+
+	private static final class Waiter {
+
+		private final CountDownLatch admission = new CountDownLatch(1);
+		// guarded by the controller's lock
+		private boolean admitted;
+	}
+}
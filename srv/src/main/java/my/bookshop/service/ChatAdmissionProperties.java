@@ -0,0 +1,99 @@
+package my.bookshop.service;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Concurrency limit and wait queue applied by {@link ChatAdmissionController} to the chat actions.
+ */
+@Component
+@ConfigurationProperties(prefix = "rag.admission")
+public class ChatAdmissionProperties {
+
+	private int initialLimit = 8;
+	private int minLimit = 2;
+	private int maxLimit = 64;
+	private double backoffRatio = 0.9;
+	private Duration latencyTarget = Duration.ofSeconds(6);
+	private int maxQueued = 32;
+	private int maxQueuedPerUser = 2;
+	private Duration maxWait = Duration.ofSeconds(2);
+	private int trustedProxies;
+
+	public int getInitialLimit() {
+		return initialLimit;
+	}
+
+	public void setInitialLimit(int initialLimit) {
+		this.initialLimit = initialLimit;
+	}
+
+	public int getMinLimit() {
+		return minLimit;
+	}
+
+	public void setMinLimit(int minLimit) {
+		this.minLimit = minLimit;
+	}
+
+	public int getMaxLimit() {
+		return maxLimit;
+	}
+
+	public void setMaxLimit(int maxLimit) {
+		this.maxLimit = maxLimit;
+	}
+
+	public double getBackoffRatio() {
+		return backoffRatio;
+	}
+
+	public void setBackoffRatio(double backoffRatio) {
+		this.backoffRatio = backoffRatio;
+	}
+
+	public Duration getLatencyTarget() {
+		return latencyTarget;
+	}
+
+	public void setLatencyTarget(Duration latencyTarget) {
+		this.latencyTarget = latencyTarget;
+	}
+
+	public int getMaxQueued() {
+		return maxQueued;
+	}
+
+	public void setMaxQueued(int maxQueued) {
+		this.maxQueued = maxQueued;
+	}
+
+	public int getMaxQueuedPerUser() {
+		return maxQueuedPerUser;
+	}
+
+	public void setMaxQueuedPerUser(int maxQueuedPerUser) {
+		this.maxQueuedPerUser = maxQueuedPerUser;
+	}
+
+	public Duration getMaxWait() {
+		return maxWait;
+	}
+
+	public void setMaxWait(Duration maxWait) {
+		this.maxWait = maxWait;
+	}
+
+	/**
+	 * @return number of trusted proxies in front of the application that append the address they were called from to
+	 *         {@code X-Forwarded-For}; with {@code 0}, the header is ignored, as any client could set it
+	 */
+	public int getTrustedProxies() {
+		return trustedProxies;
+	}
+
+	public void setTrustedProxies(int trustedProxies) {
+		this.trustedProxies = trustedProxies;
+	}
+}
@@ -0,0 +1,105 @@
+package my.bookshop.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import org.springframework.stereotype.Component;
+
+/**
+ * Decides which chat path answers a {@code chatAuto} request first, and when its answer is handed to the other path.
+ * <p>
+ * Questions that mention one of {@code rag.routing.catalog-terms} or a quoted title need the catalog and go to the
+ * retrieval path with the OpenAI model; all others go to the {@code preferred} path, by default the fine-tuned model,
+ * which needs neither an embedding nor a similarity search. An answer is escalated to the other path if the model
+ * did not answer, returned no valid JSON payload, stated a confidence below {@code min-confidence}, hedged with one of
+ * the {@code uncertain-phrases}, or, on the fine-tuned path, asked for a catalog search. Every decision is counted in
+ * {@code rag.chat.routed}, tagged with the first route, the route that answered and the escalation reason.
+ */
+@Component
+public class ChatRouter {
+
+	static final String ROUTED_METRIC = "rag.chat.routed";
+	static final String REASON_NONE = "none";
+	static final String REASON_UNAVAILABLE = "unavailable";
+	static final String REASON_MALFORMED = "malformed";
+	static final String REASON_LOW_CONFIDENCE = "low-confidence";
+	static final String REASON_NEEDS_CATALOG = "needs-catalog";
+
+	private static final Pattern QUOTED_TITLE = Pattern.compile("[\"\u201C\u00AB][^\"\u201D\u00BB]{2,}[\"\u201D\u00BB]");
+
+	public enum Route {
+		RAG, RAFT;
+
+		String tag() {
+			return name().toLowerCase(Locale.ROOT);
+		}
+	}
+
+	private final ChatRoutingProperties properties;
+	private final MeterRegistry meterRegistry;
+	private final Pattern catalogTerms;
+
+	public ChatRouter(ChatRoutingProperties properties, MeterRegistry meterRegistry) {
+		this.properties = properties;
+		this.meterRegistry = meterRegistry;
+		this.catalogTerms = wordPattern(properties.getCatalogTerms());
+	}
+
+	/**
+	 * @return the path that answers the message first
+	 */
+	public Route route(String message) {
+		if (catalogTerms != null && catalogTerms.matcher(message).find() || QUOTED_TITLE.matcher(message).find()) {
+			return Route.RAG;
+		}
+		return properties.getPreferred();
+	}
+
+	static Route other(Route route) {
+		return route == Route.RAG ? Route.RAFT : Route.RAG;
+	}
+
+	/**
+	 * @param payload the parsed answer of the model, or {@code null} if it did not answer
+	 * @return why the answer should be handed to the other path, or empty to keep it
+	 */
+	Optional<String> escalation(Route route, CatalogBusinessService.ChatPayload payload) {
+		if (payload == null) {
+			return Optional.of(REASON_UNAVAILABLE);
+		}
+		if (!payload.wellFormed()) {
+			return Optional.of(REASON_MALFORMED);
+		}
+		if (payload.confidence() != null && payload.confidence() < properties.getMinConfidence()
+				|| isUncertain(payload.reply())) {
+			return Optional.of(REASON_LOW_CONFIDENCE);
+		}
+		if (route == Route.RAFT && payload.vectorSearch() && properties.isEscalateOnVectorSearch()) {
+			return Optional.of(REASON_NEEDS_CATALOG);
+		}
+		return Optional.empty();
+	}
+
+	void record(Route first, Route answeredBy, String escalation) {
+		meterRegistry.counter(ROUTED_METRIC, "route", first.tag(), "answered-by", answeredBy.tag(), "escalation",
+				escalation).increment();
+	}
+
+	private boolean isUncertain(String reply) {
+		String text = reply.toLowerCase(Locale.ROOT).replace('\u2019', '\'');
+		return properties.getUncertainPhrases().stream()
+				.anyMatch(phrase -> text.contains(phrase.toLowerCase(Locale.ROOT)));
+	}
+
+	private static Pattern wordPattern(List<String> terms) {
+		if (terms == null || terms.isEmpty()) {
+			return null;
+		}
+		return Pattern.compile(terms.stream()
+				.map(Pattern::quote)
+				.collect(Collectors.joining("|", "\\b(?:", ")\\b")), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+	}
+}
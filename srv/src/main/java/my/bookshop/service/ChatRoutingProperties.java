@@ -0,0 +1,61 @@
+package my.bookshop.service;
+
+import java.util.List;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Classification and escalation rules of {@link ChatRouter} for the {@code chatAuto} action.
+ */
+@Component
+@ConfigurationProperties(prefix = "rag.routing")
+public class ChatRoutingProperties {
+
+	private ChatRouter.Route preferred = ChatRouter.Route.RAFT;
+	private List<String> catalogTerms = List.of("find", "search", "show", "list", "recommend", "suggest", "similar",
+			"available", "in stock", "price", "cost", "cheap", "expensive", "genre", "written by", "books by");
+	private List<String> uncertainPhrases = List.of("i don't know", "i do not know", "i'm not sure", "i am not sure",
+			"cannot answer", "can't answer", "no information");
+	private double minConfidence = 0.5;
+	private boolean escalateOnVectorSearch = true;
+
+	public ChatRouter.Route getPreferred() {
+		return preferred;
+	}
+
+	public void setPreferred(ChatRouter.Route preferred) {
+		this.preferred = preferred;
+	}
+
+	public List<String> getCatalogTerms() {
+		return catalogTerms;
+	}
+
+	public void setCatalogTerms(List<String> catalogTerms) {
+		this.catalogTerms = catalogTerms;
+	}
+
+	public List<String> getUncertainPhrases() {
+		return uncertainPhrases;
+	}
+
+	public void setUncertainPhrases(List<String> uncertainPhrases) {
+		this.uncertainPhrases = uncertainPhrases;
+	}
+
+	public double getMinConfidence() {
+		return minConfidence;
+	}
+
+	public void setMinConfidence(double minConfidence) {
+		this.minConfidence = minConfidence;
+	}
+
+	public boolean isEscalateOnVectorSearch() {
+		return escalateOnVectorSearch;
+	}
+
+	public void setEscalateOnVectorSearch(boolean escalateOnVectorSearch) {
+		this.escalateOnVectorSearch = escalateOnVectorSearch;
+	}
+}
@@ -0,0 +1,122 @@
+package my.bookshop.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads delimiter separated records one at a time, without loading the whole input.
+ * <p>
+ * Fields may be enclosed in double quotes; quoted fields can contain the delimiter, line breaks and doubled quotes
+ * ({@code ""}). Both {@code \n} and {@code \r\n} terminate a record.
+ */
+public class CsvRecordReader implements Closeable {
+
+	private static final char QUOTE = '"';
+	private static final int BYTE_ORDER_MARK = '\uFEFF';
+
+	private final PushbackReader reader;
+	private final char delimiter;
+	private int line = 1;
+	private int recordLine;
+	private boolean started;
+
+	public CsvRecordReader(Reader reader, char delimiter) {
+		this.reader = new PushbackReader(reader, 1);
+		this.delimiter = delimiter;
+	}
+
+	/**
+	 * @return the fields of the next record or {@code null} at the end of the input
+	 * @throws MalformedCsvException if the input ends within a quoted field
+	 */
+	public List<String> next() throws IOException {
+		skipByteOrderMark();
+		recordLine = line;
+		List<String> fields = new ArrayList<>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		boolean fieldStart = true;
+		boolean empty = true;
+
+		int c;
+		while ((c = reader.read()) != -1) {
+			empty = false;
+			if (quoted) {
+				if (c == QUOTE) {
+					int following = reader.read();
+					if (following == QUOTE) {
+						field.append(QUOTE);
+					} else {
+						quoted = false;
+						if (following != -1) {
+							reader.unread(following);
+						}
+					}
+				} else {
+					if (c == '\n') {
+						line++;
+					}
+					field.append((char) c);
+				}
+			} else if (c == QUOTE && fieldStart) {
+				quoted = true;
+				fieldStart = false;
+			} else if (c == delimiter) {
+				fields.add(field.toString());
+				field.setLength(0);
+				fieldStart = true;
+			} else if (c == '\n') {
+				line++;
+				fields.add(field.toString());
+				return fields;
+			} else if (c != '\r') {
+				field.append((char) c);
+				fieldStart = false;
+			}
+		}
+		if (empty) {
+			return null;
+		}
+		if (quoted) {
+			throw new MalformedCsvException("Quoted field starting in line " + recordLine + " is not terminated");
+		}
+		fields.add(field.toString());
+		return fields;
+	}
+
+	/**
+	 * @return the line in which the record last returned by {@link #next()} started
+	 */
+	public int getRecordLine() {
+		return recordLine;
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	private void skipByteOrderMark() throws IOException {
+		if (started) {
+			return;
+		}
+		started = true;
+		int first = reader.read();
+		if (first != -1 && first != BYTE_ORDER_MARK) {
+			reader.unread(first);
+		}
+	}
+
+	public static class MalformedCsvException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public MalformedCsvException(String message) {
+			super(message);
+		}
+	}
+}
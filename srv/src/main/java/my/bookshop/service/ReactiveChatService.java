@@ -0,0 +1,189 @@
+package my.bookshop.service;
+
+import cds.gen.catalogservice.ChatContext;
+import cds.gen.catalogservice.ChatResult;
+import com.sap.cds.services.request.RequestContext;
+import com.sap.cds.services.request.UserInfo;
+import com.sap.cds.services.runtime.CdsRuntime;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.segment.TextSegment;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import my.bookshop.rag.AiUsageTracker;
+import my.bookshop.rag.ChatLatencyGuard;
+import my.bookshop.rag.ChatSession;
+import my.bookshop.rag.LatencyBudget;
+import my.bookshop.rag.RagPromptBuilder;
+import my.bookshop.rag.ReactiveRagAiClient;
+import my.bookshop.rag.ReactiveRagAiClient.AiReply;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Answers chat requests as a non-blocking pipeline: embedding the query and generating the reply wait on the model
+ * without holding a thread.
+ * <p>
+ * Session, database and usage steps are blocking and run on the bounded elastic scheduler in a request context of the
+ * calling user, so they never run on an event-loop thread and their concurrency stays bounded. Prompt building,
+ * latency budget and degradation behave as in {@link CatalogBusinessService#handleChat}.
+ */
+@Service
+public class ReactiveChatService {
+
+	private static final Logger logger = LoggerFactory.getLogger(ReactiveChatService.class);
+
+	private final CatalogBusinessService catalogService;
+	private final RagPromptBuilder ragPromptBuilder;
+	private final ReactiveRagAiClient aiClient;
+	private final ChatLatencyGuard chatLatencyGuard;
+	private final AiUsageTracker usageTracker;
+	private final CdsRuntime runtime;
+
+	public ReactiveChatService(CatalogBusinessService catalogService, RagPromptBuilder ragPromptBuilder,
+			@Qualifier("openAiClient") ReactiveRagAiClient aiClient, ChatLatencyGuard chatLatencyGuard,
+			AiUsageTracker usageTracker, CdsRuntime runtime) {
+		this.catalogService = catalogService;
+		this.ragPromptBuilder = ragPromptBuilder;
+		this.aiClient = aiClient;
+		this.chatLatencyGuard = chatLatencyGuard;
+		this.usageTracker = usageTracker;
+		this.runtime = runtime;
+	}
+
+	/**
+	 * Must be called on the request thread, which knows the authenticated user.
+	 */
+	public Mono<ChatResult> chat(String message, String history, String conversationId) {
+		if (message == null || message.isBlank()) {
+			return Mono.just(catalogService.emptyChatMessageResult());
+		}
+		LatencyBudget budget = chatLatencyGuard.startBudget();
+		UserInfo user = currentUser();
+
+		return blocking(user, () -> catalogService.openSession(user, conversationId, history))
+				.flatMap(session -> {
+					List<Map<String, Object>> historyTurns = session.history();
+					String queryText = ragPromptBuilder.buildQueryText(message, historyTurns);
+					return embedMessage(user, session, message, queryText)
+							.flatMap(messageVector -> {
+								Optional<String> faqAnswer = messageVector.flatMap(catalogService::faqAnswer);
+								if (faqAnswer.isPresent()) {
+									// a stored answer needs no retrieval
+									return blocking(user, () -> catalogService.completeChat(session, message,
+											faqAnswer.get(), List.of()));
+								}
+								return retrieve(user, session, message, queryText, messageVector.orElse(null))
+										.flatMap(contexts -> answer(user, session, message, historyTurns, contexts,
+												budget));
+							});
+				});
+	}
+
+	/**
+	 * Embeds the message without history for the FAQ lookup, see {@link CatalogBusinessService#faqAnswer}.
+	 *
+	 * @return the embedding, empty if there are no FAQ answers
+	 */
+	private Mono<Optional<double[]>> embedMessage(UserInfo user, ChatSession session, String message,
+			String queryText) {
+		if (!catalogService.hasFaq()) {
+			return Mono.just(Optional.empty());
+		}
+		Optional<ChatSession.Retrieval> cached = session.cachedRetrieval(message);
+		if (cached.isPresent() && CatalogBusinessService.isQueryText(message, queryText)) {
+			return Mono.just(Optional.of(cached.get().vector()));
+		}
+		return aiClient.embedReactive(message.trim())
+				.flatMap(reply -> blocking(user, () -> {
+					recordUsage(reply);
+					return Optional.of(reply.content());
+				}));
+	}
+
+	private Mono<List<TextSegment>> retrieve(UserInfo user, ChatSession session, String message,
+			String queryText, double[] messageVector) {
+		Optional<ChatSession.Retrieval> cached = session.cachedRetrieval(message);
+		if (cached.isPresent()) {
+			return Mono.just(cached.get().contexts());
+		}
+		if (messageVector != null && CatalogBusinessService.isQueryText(message, queryText)) {
+			return blocking(user, () -> catalogService.search(session, message, messageVector));
+		}
+		return aiClient.embedReactive(queryText)
+				.flatMap(reply -> blocking(user, () -> {
+					recordUsage(reply);
+					return catalogService.search(session, message, reply.content());
+				}));
+	}
+
+	private Mono<ChatResult> answer(UserInfo user, ChatSession session, String message,
+			List<Map<String, Object>> historyTurns, List<TextSegment> contexts, LatencyBudget budget) {
+		// checked after retrieval, which may have used up the budget
+		Optional<Duration> modelTime = chatLatencyGuard.modelTime(budget);
+		if (modelTime.isEmpty()) {
+			chatLatencyGuard.recordBudgetExhausted(ChatContext.CDS_NAME, budget);
+			return retrievalOnly(user, session, contexts);
+		}
+		List<ChatMessage> messages = ragPromptBuilder.buildMessages(historyTurns, message, contexts);
+		return aiClient.chatReactive(messages)
+				.timeout(modelTime.get())
+				.map(Optional::of)
+				.onErrorResume(e -> {
+					logger.warn("Chat model failed or did not answer within {} ms; answering without the model",
+							modelTime.get().toMillis(), e);
+					chatLatencyGuard.recordDegraded(ChatContext.CDS_NAME,
+							e instanceof TimeoutException ? ChatLatencyGuard.REASON_TIMEOUT
+									: ChatLatencyGuard.REASON_ERROR);
+					return Mono.just(Optional.empty());
+				})
+				.flatMap(reply -> reply.isEmpty()
+						? blocking(user, () -> catalogService.retrievalOnlyResult(contexts, session))
+						: blocking(user, () -> {
+							recordUsage(reply.get());
+							String raw = reply.get().content();
+							if (raw == null || raw.isBlank()) {
+								chatLatencyGuard.recordDegraded(ChatContext.CDS_NAME, ChatLatencyGuard.REASON_EMPTY);
+								return catalogService.retrievalOnlyResult(contexts, session);
+							}
+							return catalogService.completeChat(session, message, raw, contexts);
+						}));
+	}
+
+	private Mono<ChatResult> retrievalOnly(UserInfo user, ChatSession session, List<TextSegment> contexts) {
+		return blocking(user, () -> catalogService.retrievalOnlyResult(contexts, session));
+	}
+
+	private void recordUsage(AiReply<?> reply) {
+		if (reply.usage() != null) {
+			usageTracker.recordUsage(reply.model(), reply.usage());
+		}
+	}
+
+	/**
+	 * Runs blocking work off the event loop, as the given user.
+	 */
+	private <T> Mono<T> blocking(UserInfo user, Supplier<T> work) {
+		return Mono.fromCallable(() -> runtime.requestContext().user(user).run(context -> {
+			return work.get();
+		})).subscribeOn(Schedulers.boundedElastic());
+	}
+
+	private UserInfo currentUser() {
+		RequestContext current = RequestContext.getCurrent(runtime);
+		if (current != null) {
+			return current.getUserInfo();
+		}
+		// opening a request context resolves the user from the authenticated request
+		return runtime.requestContext().run(context -> {
+			return context.getUserInfo();
+		});
+	}
+}
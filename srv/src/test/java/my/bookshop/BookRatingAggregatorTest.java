@@ -0,0 +1,125 @@
+package my.bookshop;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sap.cds.services.runtime.CdsRuntime;
+import com.sap.cds.services.runtime.CdsRuntimeConfigurer;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import my.bookshop.rag.TenantContexts;
+import my.bookshop.repository.bookshop.BookshopBooksRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class BookRatingAggregatorTest {
+
+	private final CdsRuntime runtime = CdsRuntimeConfigurer.create().complete();
+	private final StubBooksRepository books = new StubBooksRepository();
+	// flushed explicitly by the tests
+	private final BookRatingAggregator aggregator = new BookRatingAggregator(books, runtime,
+			new TenantContexts(runtime), Duration.ofHours(1));
+
+	@AfterEach
+	void stop() {
+		books.averages.clear();
+		aggregator.shutdown();
+	}
+
+	@Test
+	void coalescesReviewsOfABookIntoOneWrite() {
+		books.averages.put("book-1", 3.25);
+		books.averages.put("book-2", 5.0);
+
+		aggregator.reviewAdded("book-1");
+		aggregator.reviewAdded("book-1");
+		aggregator.reviewAdded("book-2");
+		aggregator.reviewAdded("book-1");
+		aggregator.flush();
+
+		assertEquals(List.of(Set.of("book-1", "book-2")), books.lookups);
+		assertEquals(List.of(Map.of("book-1", new BigDecimal("3.3"), "book-2", new BigDecimal("5.0"))),
+				books.updates);
+
+		aggregator.flush();
+		assertEquals(1, books.updates.size());
+	}
+
+	@Test
+	void updatesTheOldAndTheNewBookOfAChangedReview() {
+		books.averages.put("book-1", 2.0);
+		books.averages.put("book-2", 4.0);
+
+		aggregator.reviewChanged("book-1", 3, "book-1", 3);
+		aggregator.flush();
+		assertTrue(books.updates.isEmpty());
+
+		aggregator.reviewChanged("book-1", 3, "book-2", 3);
+		aggregator.flush();
+
+		assertEquals(List.of(Map.of("book-1", new BigDecimal("2.0"), "book-2", new BigDecimal("4.0"))),
+				books.updates);
+	}
+
+	@Test
+	void resetsTheRatingOnceTheLastReviewIsRemoved() {
+		aggregator.reviewRemoved("book-1");
+		aggregator.flush();
+
+		assertEquals(List.of(Map.of("book-1", BigDecimal.ZERO)), books.updates);
+	}
+
+	@Test
+	void retriesTheBooksOfAFailedWrite() {
+		books.averages.put("book-1", 4.0);
+		books.failures = 1;
+
+		aggregator.reviewAdded("book-1");
+		aggregator.flush();
+		assertTrue(books.updates.isEmpty());
+
+		aggregator.flush();
+		assertEquals(List.of(Map.of("book-1", new BigDecimal("4.0"))), books.updates);
+	}
+
+	@Test
+	void flushesPendingRatingsOnShutdown() {
+		books.averages.put("book-1", 1.0);
+
+		aggregator.reviewAdded("book-1");
+		aggregator.shutdown();
+
+		assertEquals(List.of(Map.of("book-1", new BigDecimal("1.0"))), books.updates);
+	}
+
+	private static class StubBooksRepository extends BookshopBooksRepository {
+
+		private final Map<String, Double> averages = new HashMap<>();
+		private final List<Set<String>> lookups = new ArrayList<>();
+		private final List<Map<String, BigDecimal>> updates = new ArrayList<>();
+		private int failures;
+
+		@Override
+		public Map<String, Double> findAverageRatings(Collection<String> bookIds) {
+			lookups.add(Set.copyOf(bookIds));
+			Map<String, Double> found = new HashMap<>(averages);
+			found.keySet().retainAll(bookIds);
+			return found;
+		}
+
+		@Override
+		public void updateBookRatings(Map<String, BigDecimal> ratings) {
+			if (failures > 0) {
+				failures--;
+				throw new IllegalStateException("database unavailable");
+			}
+			updates.add(Map.copyOf(ratings));
+		}
+	}
+}
@@ -34,4 +34,10 @@ class RatingCalculatorTest {
 		});
 	}
 
+	@Test
+	void getAvgRatingFromAggregate() {
+		assertEquals(3.4, RatingCalculator.getAvgRating(17, 5).doubleValue());
+		assertEquals(BigDecimal.ZERO, RatingCalculator.getAvgRating(0, 0));
+	}
+
 }
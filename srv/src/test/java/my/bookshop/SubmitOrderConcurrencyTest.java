@@ -0,0 +1,107 @@
+package my.bookshop;
+
+import static cds.gen.catalogservice.CatalogService_.BOOKS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import com.sap.cds.ql.Select;
+import com.sap.cds.ql.Update;
+import com.sap.cds.services.ServiceException;
+import com.sap.cds.services.persistence.PersistenceService;
+import com.sap.cds.services.runtime.CdsRuntime;
+
+import cds.gen.catalogservice.Books;
+import cds.gen.catalogservice.CatalogService;
+
+@SpringBootTest
+class SubmitOrderConcurrencyTest {
+
+	private static final String BOOK_ID = "4a519e61-3c3a-4bd9-ab12-d7e0c5329933";
+	private static final int STOCK = 50;
+	private static final int THREADS = 8;
+	private static final int ORDERS_PER_THREAD = 25;
+
+	@Autowired
+	private CatalogService catalogService;
+
+	@Autowired
+	private PersistenceService db;
+
+	@Autowired
+	private CdsRuntime runtime;
+
+	private Integer originalStock;
+
+	@BeforeEach
+	void setStock() {
+		originalStock = readStock();
+		db.run(Update.entity(BOOKS).byId(BOOK_ID).data(Books.STOCK, STOCK));
+	}
+
+	@AfterEach
+	void restoreStock() {
+		db.run(Update.entity(BOOKS).byId(BOOK_ID).data(Books.STOCK, originalStock));
+	}
+
+	@Test
+	void concurrentOrdersNeverOversell() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		CountDownLatch start = new CountDownLatch(1);
+		AtomicInteger accepted = new AtomicInteger();
+		AtomicInteger rejected = new AtomicInteger();
+		List<Future<?>> futures = new ArrayList<>();
+
+		for (int t = 0; t < THREADS; t++) {
+			futures.add(executor.submit(() -> {
+				start.await();
+				for (int i = 0; i < ORDERS_PER_THREAD; i++) {
+					runtime.requestContext().privilegedUser().run(ctx -> {
+						try {
+							catalogService.submitOrder(BOOK_ID, 1);
+							accepted.incrementAndGet();
+						} catch (ServiceException e) {
+							rejected.incrementAndGet();
+						}
+					});
+				}
+				return null;
+			}));
+		}
+		start.countDown();
+		for (Future<?> future : futures) {
+			future.get(60, TimeUnit.SECONDS);
+		}
+		executor.shutdown();
+
+		assertEquals(STOCK, accepted.get());
+		assertEquals(THREADS * ORDERS_PER_THREAD - STOCK, rejected.get());
+		assertEquals(0, readStock());
+	}
+
+	@Test
+	void rejectsNonPositiveQuantity() {
+		runtime.requestContext().privilegedUser().run(ctx -> {
+			assertThrows(ServiceException.class, () -> catalogService.submitOrder(BOOK_ID, 0));
+		});
+		assertEquals(STOCK, readStock());
+	}
+
+	private Integer readStock() {
+		return db.run(Select.from(BOOKS).columns(b -> b.stock()).byId(BOOK_ID)).single(Books.class).getStock();
+	}
+}
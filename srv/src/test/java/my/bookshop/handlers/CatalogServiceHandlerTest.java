@@ -6,8 +6,6 @@ import cds.gen.catalogservice.Books;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.sap.cds.services.request.FeatureTogglesInfo;
 import java.util.stream.Stream;
-import my.bookshop.repository.bookshop.BookContentChunkRepository;
-import my.bookshop.repository.bookshop.BookshopBooksRepository;
 import my.bookshop.service.CatalogBusinessService;
 import org.junit.jupiter.api.Test;
 
@@ -22,17 +20,9 @@ class CatalogServiceHandlerTest {
 		book2.setTitle("Book 2");
 		book2.setStock(200);
 
-		CatalogBusinessService service = new CatalogBusinessService(
-				null,
-				null,
-				FeatureTogglesInfo.create(),
-				null,
-				null,
-				null,
-				null,
-				new ObjectMapper(),
-				(BookshopBooksRepository) null,
-				(BookContentChunkRepository) null);
+		// discounts only depend on the feature toggles
+		CatalogBusinessService service = new CatalogBusinessService(null, null, FeatureTogglesInfo.create(), null,
+				null, null, null, null, new ObjectMapper(), null, null, null, null, null, null, null);
 
 		service.applyDiscounts(Stream.of(book1, book2));
 
@@ -0,0 +1,85 @@
+package my.bookshop.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import cds.gen.catalogservice.ChatResult;
+import com.sap.cds.services.ServiceException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.function.Supplier;
+import my.bookshop.handlers.ReactiveChatController.ChatRequest;
+import my.bookshop.service.ChatAdmissionController;
+import my.bookshop.service.ChatAdmissionProperties;
+import my.bookshop.service.ReactiveChatService;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+class ReactiveChatControllerTest {
+
+	private static final ChatRequest REQUEST = new ChatRequest("a book about whales?", null, null);
+
+	private final ChatAdmissionController admission = new ChatAdmissionController(singlePermit(),
+			new SimpleMeterRegistry());
+
+	@Test
+	void releasesPermitWhenThePipelineCannotBeBuilt() {
+		ReactiveChatController controller = controller(() -> {
+			throw new IllegalStateException("no request context");
+		});
+
+		Mono<ChatResult> reply = controller.chat(REQUEST, null);
+
+		assertThrows(IllegalStateException.class, () -> reply.block(Duration.ofSeconds(5)));
+		assertDoesNotThrow(() -> admission.tryAcquire("bob"));
+	}
+
+	@Test
+	void releasesPermitWhenTheReplyIsDone() {
+		ChatResult result = ChatResult.create();
+		result.setReply("Moby Dick");
+		ReactiveChatController controller = controller(() -> Mono.just(result));
+
+		assertEquals("Moby Dick", controller.chat(REQUEST, null).block(Duration.ofSeconds(5)).getReply());
+		assertDoesNotThrow(() -> admission.tryAcquire("bob"));
+	}
+
+	@Test
+	void releasesPermitWhenTheClientGoesAway() {
+		ReactiveChatController controller = controller(Mono::never);
+
+		controller.chat(REQUEST, null).subscribe().dispose();
+
+		assertDoesNotThrow(() -> admission.tryAcquire("bob"));
+	}
+
+	@Test
+	void rejectsWithoutCallingTheServiceWhenNoPermitIsFree() {
+		admission.tryAcquire("alice");
+		ReactiveChatController controller = controller(() -> {
+			throw new AssertionError("must not be called");
+		});
+
+		ServiceException rejection = assertThrows(ServiceException.class, () -> controller.chat(REQUEST, null));
+		assertEquals(429, rejection.getErrorStatus().getHttpStatus());
+	}
+
+	private ReactiveChatController controller(Supplier<Mono<ChatResult>> reply) {
+		return new ReactiveChatController(new ReactiveChatService(null, null, null, null, null, null) {
+
+			@Override
+			public Mono<ChatResult> chat(String message, String history, String conversationId) {
+				return reply.get();
+			}
+		}, admission);
+	}
+
+	private static ChatAdmissionProperties singlePermit() {
+		ChatAdmissionProperties properties = new ChatAdmissionProperties();
+		properties.setInitialLimit(1);
+		properties.setMinLimit(1);
+		properties.setMaxLimit(1);
+		return properties;
+	}
+}
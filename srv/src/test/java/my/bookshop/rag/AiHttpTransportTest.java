@@ -0,0 +1,90 @@
+package my.bookshop.rag;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+class AiHttpTransportTest {
+
+	private static final int DIMENSIONS = 1536;
+	private static final int INPUTS = 16;
+
+	private final AiHttpProperties properties = new AiHttpProperties();
+	private final EmbeddingProperties embeddingProperties = new EmbeddingProperties();
+	private HttpServer server;
+	private AiHttpTransport transport;
+
+	@AfterEach
+	void stop() {
+		if (transport != null) {
+			transport.close();
+		}
+		if (server != null) {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	void decodesEmbeddingResponsesLargerThanTheWebClientDefault() throws IOException {
+		byte[] body = embeddingResponse();
+		assertTrue(body.length > 256 * 1024);
+		String url = serve(body);
+		properties.setMetrics(false);
+		transport = new AiHttpTransport(properties, embeddingProperties);
+
+		JsonNode response = transport.webClient(url, "key").post().uri("/embeddings")
+				.retrieve()
+				.bodyToMono(JsonNode.class)
+				.block();
+
+		List<double[]> vectors = WebClientAiClient.parseEmbeddings(response);
+		assertEquals(INPUTS, vectors.size());
+		assertEquals(DIMENSIONS, vectors.get(0).length);
+	}
+
+	@Test
+	void sizesTheInMemoryLimitForTheLargestEmbeddingRequest() {
+		assertEquals(2048 * 32 * 1024, AiHttpTransport.maxInMemorySize(properties, embeddingProperties));
+
+		embeddingProperties.setMaxRequestInputs(4);
+		assertEquals(1024 * 1024, AiHttpTransport.maxInMemorySize(properties, embeddingProperties));
+
+		properties.setMaxInMemorySize(DataSize.ofMegabytes(10));
+		assertEquals(10 * 1024 * 1024, AiHttpTransport.maxInMemorySize(properties, embeddingProperties));
+	}
+
+	private String serve(byte[] body) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/v1/embeddings", exchange -> {
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/v1";
+	}
+
+	private static byte[] embeddingResponse() {
+		StringBuilder json = new StringBuilder("{\"data\": [");
+		for (int i = 0; i < INPUTS; i++) {
+			json.append(i == 0 ? "" : ",").append("{\"index\": ").append(i).append(", \"embedding\": [");
+			for (int d = 0; d < DIMENSIONS; d++) {
+				json.append(d == 0 ? "" : ",").append(-0.0123456789 * (d % 7 + 1));
+			}
+			json.append("]}");
+		}
+		return json.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,145 @@
+package my.bookshop.rag;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+
+class AiResilienceTest {
+
+	private final AiResilienceProperties properties = new AiResilienceProperties();
+	private final AiResilience resilience = new AiResilience(properties, new BlockingExecutors(false));
+	// circuit breakers are registered by name for the whole JVM
+	private final String model = "model-" + UUID.randomUUID();
+
+	@AfterEach
+	void shutdown() {
+		resilience.shutdown();
+	}
+
+	@Test
+	void stopsWaitingAfterTheTimeout() {
+		properties.setChatTimeout(Duration.ofMillis(200));
+
+		long start = System.nanoTime();
+		assertThrows(RuntimeException.class, () -> resilience.chat(model, () -> sleepAndReturn(5000, "late")));
+
+		assertTrue(Duration.ofNanos(System.nanoTime() - start).compareTo(Duration.ofSeconds(2)) < 0);
+	}
+
+	@Test
+	void retriesFailedEmbeddingsButNotRateLimitedOnes() {
+		properties.setRetryBackoff(Duration.ofMillis(1));
+		AtomicInteger calls = new AtomicInteger();
+
+		assertThrows(RuntimeException.class, () -> resilience.embedding(model, () -> true, () -> {
+			calls.incrementAndGet();
+			throw new IllegalStateException("connection reset");
+		}));
+		assertEquals(properties.getEmbeddingAttempts(), calls.get());
+
+		calls.set(0);
+		WebClientResponseException tooManyRequests = tooManyRequests();
+		RuntimeException thrown = assertThrows(RuntimeException.class,
+				() -> resilience.embedding(model, () -> true, () -> {
+					calls.incrementAndGet();
+					throw tooManyRequests;
+				}));
+		assertEquals(1, calls.get());
+		assertSame(tooManyRequests, thrown);
+	}
+
+	@Test
+	void rateLimitsDoNotOpenTheCircuit() {
+		AtomicInteger calls = new AtomicInteger();
+		for (int i = 0; i < 20; i++) {
+			assertThrows(WebClientResponseException.class, () -> resilience.chat(model, () -> {
+				throw tooManyRequests();
+			}));
+		}
+
+		assertEquals("ok", resilience.chat(model, () -> {
+			calls.incrementAndGet();
+			return "ok";
+		}));
+		assertEquals(1, calls.get());
+
+		for (int i = 0; i < 20; i++) {
+			assertThrows(RuntimeException.class, () -> resilience.chat(model, () -> {
+				throw new IllegalStateException("bad gateway");
+			}));
+		}
+		calls.set(0);
+		assertThrows(RuntimeException.class, () -> resilience.chat(model, () -> {
+			calls.incrementAndGet();
+			return "ok";
+		}));
+		assertEquals(0, calls.get(), "the open circuit rejects calls without sending them");
+	}
+
+	@Test
+	void hedgesSlowRequestsWithinTheBudget() {
+		properties.setHedging(true);
+		properties.setMinHedgeDelay(Duration.ofMillis(50));
+		properties.setHedgeMinSamples(20);
+		properties.setHedgeRatio(0.05);
+		// 20 fast requests measure the latency and earn one hedge
+		for (int i = 0; i < 20; i++) {
+			resilience.embedding(model, () -> true, () -> "fast");
+		}
+
+		AtomicInteger calls = new AtomicInteger();
+		Supplier<String> slowFirst = () -> calls.incrementAndGet() == 1 ? sleepAndReturn(5000, "slow") : "hedge";
+		long start = System.nanoTime();
+		assertEquals("hedge", resilience.embedding(model, () -> true, slowFirst));
+		assertTrue(Duration.ofNanos(System.nanoTime() - start).compareTo(Duration.ofSeconds(2)) < 0);
+		assertEquals(2, calls.get());
+
+		// the budget is spent, the next slow request is awaited
+		calls.set(0);
+		assertEquals("slow", resilience.embedding(model, () -> true, () -> {
+			calls.incrementAndGet();
+			return sleepAndReturn(300, "slow");
+		}));
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	void doesNotHedgeWithoutQuota() {
+		properties.setHedging(true);
+		properties.setMinHedgeDelay(Duration.ofMillis(50));
+		properties.setHedgeRatio(1);
+		for (int i = 0; i < properties.getHedgeMinSamples(); i++) {
+			resilience.embedding(model, () -> true, () -> "fast");
+		}
+
+		AtomicInteger calls = new AtomicInteger();
+		assertEquals("slow", resilience.embedding(model, () -> false, () -> {
+			calls.incrementAndGet();
+			return sleepAndReturn(300, "slow");
+		}));
+		assertEquals(1, calls.get());
+	}
+
+	private static WebClientResponseException tooManyRequests() {
+		return WebClientResponseException.create(429, "Too Many Requests", HttpHeaders.EMPTY, new byte[0], null);
+	}
+
+	private static String sleepAndReturn(long millis, String value) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return value;
+	}
+}
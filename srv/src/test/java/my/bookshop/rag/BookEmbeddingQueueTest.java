@@ -0,0 +1,103 @@
+package my.bookshop.rag;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sap.cds.services.runtime.CdsRuntime;
+import com.sap.cds.services.runtime.CdsRuntimeConfigurer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class BookEmbeddingQueueTest {
+
+	private final CdsRuntime runtime = CdsRuntimeConfigurer.create().complete();
+	private final StubEmbeddingService embeddingService = new StubEmbeddingService();
+	private final BookEmbeddingQueue queue = new BookEmbeddingQueue(embeddingService, runtime,
+			new TenantContexts(runtime), new BlockingExecutors(false));
+
+	@AfterEach
+	void stop() {
+		embeddingService.release.countDown();
+		queue.shutdown();
+	}
+
+	@Test
+	void reportsEveryBookInOrder() throws InterruptedException {
+		embeddingService.release.countDown();
+		RecordingListener listener = new RecordingListener();
+
+		queue.submit(List.of("book-1", "broken", "book-2"), listener);
+
+		assertTrue(listener.completed.await(5, TimeUnit.SECONDS));
+		assertEquals(List.of("book-1:true", "broken:false", "book-2:true"), listener.books);
+	}
+
+	@Test
+	void reportsRejectedBooksAsFailed() throws InterruptedException {
+		queue.shutdown();
+		RecordingListener listener = new RecordingListener();
+
+		queue.submit(List.of("book-1", "book-2"), listener);
+
+		assertTrue(listener.completed.await(0, TimeUnit.SECONDS));
+		assertEquals(List.of("book-1:false", "book-2:false"), listener.books);
+	}
+
+	@Test
+	void reportsBooksDroppedOnShutdownAsFailed() throws InterruptedException {
+		RecordingListener running = new RecordingListener();
+		RecordingListener queued = new RecordingListener();
+		queue.submit(List.of("book-1"), running);
+		queue.submit(List.of("book-2", "book-3"), queued);
+		assertTrue(embeddingService.started.await(5, TimeUnit.SECONDS));
+
+		queue.shutdown();
+
+		assertTrue(queued.completed.await(0, TimeUnit.SECONDS));
+		assertEquals(List.of("book-2:false", "book-3:false"), queued.books);
+	}
+
+	private static class StubEmbeddingService extends BookEmbeddingService {
+
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		StubEmbeddingService() {
+			super(null, null, null, null, null, null, null, null, null, null);
+		}
+
+		@Override
+		public void reindexBook(String bookId) {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			}
+			if (bookId.equals("broken")) {
+				throw new IllegalStateException("embedding failed");
+			}
+		}
+	}
+
+	private static class RecordingListener implements BookEmbeddingQueue.Listener {
+
+		final List<String> books = new CopyOnWriteArrayList<>();
+		final CountDownLatch completed = new CountDownLatch(1);
+
+		@Override
+		public void bookProcessed(String bookId, boolean success) {
+			books.add(bookId + ":" + success);
+		}
+
+		@Override
+		public void completed() {
+			completed.countDown();
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package my.bookshop.rag;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import cds.gen.my.bookshop.Books;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class BookTextChunkerTest {
+
+	@Test
+	void chunksStreamedBodyWithOverlap() {
+		BookTextChunker chunker = new BookTextChunker(100, 20);
+		Books book = Books.create();
+		book.setTitle("Title");
+
+		List<BookTextChunk> chunks = new ArrayList<>();
+		chunker.chunk(book, new SentenceReader(200), chunks::add);
+
+		assertEquals(BookChunkSource.TITLE, chunks.get(0).source());
+		List<BookTextChunk> body = chunks.subList(1, chunks.size());
+		assertTrue(body.size() > 20, "expected the body to be split, got " + body.size());
+		for (int i = 0; i < body.size(); i++) {
+			BookTextChunk chunk = body.get(i);
+			assertEquals(BookChunkSource.BODY, chunk.source());
+			assertEquals(i + 1, chunk.index());
+			assertTrue(chunk.text().length() <= 100);
+		}
+		assertTrue(body.get(body.size() - 1).text().endsWith("Sentence 199."));
+	}
+
+	@Test
+	void streamingMatchesInMemoryChunking() {
+		BookTextChunker chunker = new BookTextChunker(100, 20);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 50; i++) {
+			text.append("Sentence ").append(i).append(". ");
+		}
+		Books book = Books.create();
+		book.setFullText(text.toString());
+
+		List<BookTextChunk> streamed = new ArrayList<>();
+		chunker.chunk(book, new SentenceReader(50), streamed::add);
+
+		assertEquals(chunker.chunk(book), streamed);
+	}
+
+	/**
+	 * Produces "Sentence 0. Sentence 1. ..." without materializing the text.
+	 */
+	private static class SentenceReader extends Reader {
+
+		private final int sentences;
+		private int next;
+		private String current = "";
+		private int position;
+
+		SentenceReader(int sentences) {
+			this.sentences = sentences;
+		}
+
+		@Override
+		public int read(char[] buffer, int off, int len) {
+			if (position >= current.length()) {
+				if (next >= sentences) {
+					return -1;
+				}
+				current = "Sentence " + next++ + ". ";
+				position = 0;
+			}
+			int count = Math.min(len, current.length() - position);
+			current.getChars(position, position + count, buffer, off);
+			position += count;
+			return count;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package my.bookshop.rag;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import dev.langchain4j.data.message.ChatMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+class ChatLatencyGuardTest {
+
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	@Test
+	void returnsReplyWithinBudget() {
+		ChatLatencyGuard guard = guard(Duration.ofSeconds(5));
+
+		Optional<String> reply = guard.chat("chat", new FixedClient("hello", Duration.ZERO), List.of(),
+				guard.startBudget());
+
+		assertEquals(Optional.of("hello"), reply);
+		assertEquals(0, degraded(ChatLatencyGuard.REASON_TIMEOUT));
+	}
+
+	@Test
+	void stopsWaitingWhenBudgetIsUsedUp() {
+		ChatLatencyGuard guard = guard(Duration.ofMillis(300));
+
+		long start = System.nanoTime();
+		Optional<String> reply = guard.chat("chat", new FixedClient("late", Duration.ofSeconds(5)), List.of(),
+				guard.startBudget());
+
+		assertEquals(Optional.empty(), reply);
+		assertEquals(1, degraded(ChatLatencyGuard.REASON_TIMEOUT));
+		assertTrue(Duration.ofNanos(System.nanoTime() - start).compareTo(Duration.ofSeconds(2)) < 0);
+	}
+
+	@Test
+	void skipsModelWhenTooLittleBudgetIsLeft() {
+		ChatLatencyGuard guard = guard(Duration.ofMillis(100));
+
+		Optional<String> reply = guard.chat("chat", new FixedClient("hello", Duration.ZERO), List.of(),
+				guard.startBudget());
+
+		assertEquals(Optional.empty(), reply);
+		assertEquals(1, degraded(ChatLatencyGuard.REASON_BUDGET));
+	}
+
+	@Test
+	void blankReplyIsDegraded() {
+		ChatLatencyGuard guard = guard(Duration.ofSeconds(5));
+
+		Optional<String> reply = guard.chat("chat", new FixedClient(" ", Duration.ZERO), List.of(),
+				guard.startBudget());
+
+		assertEquals(Optional.empty(), reply);
+		assertEquals(1, degraded(ChatLatencyGuard.REASON_EMPTY));
+	}
+
+	@Test
+	void passesRemainingBudgetToTheCall() {
+		ChatLatencyGuard guard = guard(Duration.ofSeconds(1));
+		TimeLimitedClient client = new TimeLimitedClient(new AtomicReference<>());
+
+		Optional<String> reply = guard.chat("chat", client, List.of(), guard.startBudget());
+
+		assertEquals(Optional.empty(), reply);
+		assertTrue(client.timeout().get().compareTo(Duration.ofMillis(950)) <= 0);
+		assertTrue(client.timeout().get().compareTo(Duration.ofMillis(500)) > 0);
+		assertEquals(1, degraded(ChatLatencyGuard.REASON_TIMEOUT));
+	}
+
+	private ChatLatencyGuard guard(Duration budget) {
+		ChatLatencyProperties properties = new ChatLatencyProperties();
+		properties.setLatencyBudget(budget);
+		properties.setReplyReserve(Duration.ofMillis(50));
+		properties.setMinModelTime(Duration.ofMillis(100));
+		return new ChatLatencyGuard(properties, meterRegistry, null, new BlockingExecutors(false));
+	}
+
+	private double degraded(String reason) {
+		var counter = meterRegistry.find(ChatLatencyGuard.DEGRADED_METRIC).tag("reason", reason).counter();
+		return counter == null ? 0 : counter.count();
+	}
+
+	private record FixedClient(String reply, Duration delay) implements RagAiClient {
+
+		@Override
+		public double[] embed(String text) {
+			return new double[0];
+		}
+
+		@Override
+		public List<double[]> embed(List<String> texts) {
+			return List.of();
+		}
+
+		@Override
+		public String chat(List<ChatMessage> messages) {
+			try {
+				Thread.sleep(delay.toMillis());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return reply;
+		}
+	}
+
+	/**
+	 * Gives up when its timeout elapses, as the HTTP client does.
+	 */
+	private record TimeLimitedClient(AtomicReference<Duration> timeout) implements RagAiClient {
+
+		@Override
+		public double[] embed(String text) {
+			return new double[0];
+		}
+
+		@Override
+		public List<double[]> embed(List<String> texts) {
+			return List.of();
+		}
+
+		@Override
+		public String chat(List<ChatMessage> messages) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public String chat(List<ChatMessage> messages, Duration callTimeout) {
+			timeout.set(callTimeout);
+			throw new IllegalStateException(new TimeoutException("Did not observe any item within " + callTimeout));
+		}
+	}
+}
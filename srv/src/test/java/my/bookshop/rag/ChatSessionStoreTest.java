@@ -0,0 +1,154 @@
+package my.bookshop.rag;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import cds.gen.my.bookshop.ChatSessions;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sap.cds.services.request.UserInfo;
+import dev.langchain4j.data.segment.TextSegment;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import my.bookshop.repository.bookshop.ChatSessionRepository;
+import org.junit.jupiter.api.Test;
+
+class ChatSessionStoreTest {
+
+	private static final UserInfo ALICE = UserInfo.create().setName("alice").setTenant("t1");
+	private static final UserInfo BOB = UserInfo.create().setName("bob").setTenant("t1");
+
+	@Test
+	void evictsLeastRecentlyUsedSession() {
+		ChatSessionProperties properties = new ChatSessionProperties();
+		properties.setMaxSessions(2);
+		ChatSessionStore store = new ChatSessionStore(properties, null, new ObjectMapper());
+
+		ChatSession first = store.open(null, ALICE, null);
+		ChatSession second = store.open(null, ALICE, null);
+		assertSame(first, store.open(first.getId(), ALICE, null));
+		store.open(null, ALICE, null);
+
+		assertEquals(2, store.size());
+		assertSame(first, store.open(first.getId(), ALICE, null), "recently used session must survive");
+		assertNotEquals(second.getId(), store.open(second.getId(), ALICE, null).getId());
+	}
+
+	@Test
+	void seedsNewSessionFromLegacyHistoryOnly() {
+		ChatSessionStore store = new ChatSessionStore(new ChatSessionProperties(), null, new ObjectMapper());
+		List<Map<String, Object>> legacy = List.of(Map.of("role", "user", "content", "Hi"));
+
+		ChatSession session = store.open(null, ALICE, () -> legacy);
+		session.appendTurn("Any fantasy books?", "Here are some.");
+		ChatSession again = store.open(session.getId(), ALICE, () -> {
+			throw new AssertionError("history must not be parsed for known sessions");
+		});
+
+		assertEquals(3, again.history().size());
+	}
+
+	@Test
+	void replacesConversationIdsNotIssuedByTheServer() {
+		ChatSessionStore store = new ChatSessionStore(new ChatSessionProperties(), null, new ObjectMapper());
+		String unknown = "11111111-1111-1111-1111-111111111111";
+
+		ChatSession invalid = store.open("<script>", ALICE, null);
+		ChatSession guessed = store.open(unknown, ALICE, null);
+
+		assertNotEquals("<script>", invalid.getId());
+		assertNotEquals(unknown, guessed.getId());
+		assertTrue(guessed.history().isEmpty());
+	}
+
+	@Test
+	void doesNotContinueSessionOfAnotherUser() {
+		ChatSessionStore store = new ChatSessionStore(new ChatSessionProperties(), null, new ObjectMapper());
+		ChatSession alice = store.open(null, ALICE, null);
+		alice.appendTurn("Any fantasy books?", "Here are some.");
+
+		ChatSession bob = store.open(alice.getId(), BOB, null);
+
+		assertNotEquals(alice.getId(), bob.getId());
+		assertTrue(bob.history().isEmpty());
+		assertSame(alice, store.open(alice.getId(), ALICE, null));
+	}
+
+	@Test
+	void restoresPersistedSessionOfItsOwnerOnly() {
+		ChatSessionProperties properties = new ChatSessionProperties();
+		properties.setPersist(true);
+		StubRepository repository = new StubRepository();
+		ObjectMapper objectMapper = new ObjectMapper();
+		ChatSession saved = new ChatSessionStore(properties, repository, objectMapper).open(null, ALICE, null);
+		saved.appendTurn("Any fantasy books?", "Here are some.");
+		new ChatSessionStore(properties, repository, objectMapper).save(saved);
+
+		ChatSessionStore restarted = new ChatSessionStore(properties, repository, objectMapper);
+		ChatSession foreign = restarted.open(saved.getId(), BOB, null);
+		ChatSession restored = restarted.open(saved.getId(), ALICE, null);
+
+		assertNotEquals(saved.getId(), foreign.getId());
+		assertEquals(saved.getId(), restored.getId());
+		assertEquals(saved.history(), restored.history());
+	}
+
+	@Test
+	void deletesExpiredPersistedSessionsOncePerInterval() {
+		ChatSessionProperties properties = new ChatSessionProperties();
+		properties.setPersist(true);
+		StubRepository repository = new StubRepository();
+		ChatSessionStore store = new ChatSessionStore(properties, repository, new ObjectMapper());
+		ChatSession session = store.open(null, ALICE, null);
+
+		store.save(session);
+		store.save(session);
+		store.save(store.open(null, UserInfo.create().setName("carol").setTenant("t2"), null));
+
+		assertEquals(2, repository.cleanups);
+		assertTrue(repository.cutoff.isBefore(Instant.now().minus(properties.getPersistedTtl()).plusSeconds(1)));
+	}
+
+	@Test
+	void cachesRetrievalUnderTheMessage() {
+		ChatSession session = new ChatSession("id", "t1/alice", 20, 4, 10);
+		List<TextSegment> contexts = List.of(TextSegment.from("Dune"));
+
+		session.cacheRetrieval("Any fantasy books?", new double[] { 1 }, contexts);
+		session.appendTurn("Any fantasy books?", "Here are some.");
+
+		assertEquals(contexts, session.cachedRetrieval("  any FANTASY   books? ").orElseThrow().contexts());
+		assertTrue(session.cachedRetrieval("Any science fiction?").isEmpty());
+	}
+
+	private static class StubRepository extends ChatSessionRepository {
+
+		private final Map<String, ChatSessions> rows = new HashMap<>();
+		private int cleanups;
+		private Instant cutoff;
+
+		@Override
+		public Optional<ChatSessions> find(String sessionId, Instant modifiedAfter) {
+			return Optional.ofNullable(rows.get(sessionId));
+		}
+
+		@Override
+		public void saveTurns(String sessionId, String owner, String turns) {
+			ChatSessions session = ChatSessions.create();
+			session.setOwner(owner);
+			session.setTurns(turns);
+			rows.put(sessionId, session);
+		}
+
+		@Override
+		public long deleteModifiedBefore(Instant cutoff) {
+			this.cutoff = cutoff;
+			cleanups++;
+			return 0;
+		}
+	}
+}
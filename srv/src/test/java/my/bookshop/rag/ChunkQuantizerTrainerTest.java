@@ -0,0 +1,165 @@
+package my.bookshop.rag;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import cds.gen.my.bookshop.ChunkQuantizers;
+import com.sap.cds.services.runtime.CdsRuntime;
+import com.sap.cds.services.runtime.CdsRuntimeConfigurer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import my.bookshop.repository.bookshop.BookContentChunkRepository;
+import my.bookshop.repository.bookshop.BookContentChunkRepository.ChunkVector;
+import my.bookshop.repository.bookshop.ChunkQuantizerRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class ChunkQuantizerTrainerTest {
+
+	private final CdsRuntime runtime = CdsRuntimeConfigurer.create().complete();
+	private final PqProperties properties = new PqProperties();
+	private final StubQuantizerRepository quantizers = new StubQuantizerRepository();
+	private final StubChunkRepository chunks = new StubChunkRepository();
+	private final StubPqChunkIndex pqChunkIndex = new StubPqChunkIndex(runtime);
+	private final ChunkQuantizerTrainer trainer = new ChunkQuantizerTrainer(quantizers, chunks,
+			new StubGenerations(), pqChunkIndex, properties, runtime, new TenantContexts(runtime),
+			new BlockingExecutors(false));
+
+	@AfterEach
+	void stop() {
+		trainer.stop();
+		pqChunkIndex.stop();
+	}
+
+	@Test
+	void trainsEncodesAndMarksTheCodebookReady() throws InterruptedException {
+		chunks.stored = vectors(40, 8);
+		properties.setSubQuantizers(4);
+		properties.setBits(3);
+		properties.setBatchSize(16);
+
+		trainer.start();
+		awaitStatus("READY 40");
+
+		assertEquals(List.of("TRAINING", "CODEBOOK 40", "ENCODING 16", "ENCODING 32", "ENCODING 40", "READY 40"),
+				quantizers.statuses);
+		assertEquals(40, chunks.codes.size());
+		assertTrue(chunks.codes.values().stream().allMatch(code -> code.length == 4));
+		// once when the training starts, and once when the codebook is ready
+		assertEquals(2, pqChunkIndex.invalidations.get());
+	}
+
+	@Test
+	void marksTheCodebookFailedWhenTheTrainingFails() throws InterruptedException {
+		chunks.stored = vectors(40, 6);
+		properties.setSubQuantizers(4);
+
+		trainer.start();
+		awaitStatus("FAILED Dimension 6 is not divisible into 4 sub-quantizers");
+
+		assertEquals(List.of("TRAINING", "FAILED Dimension 6 is not divisible into 4 sub-quantizers"),
+				quantizers.statuses);
+		assertEquals(1, pqChunkIndex.invalidations.get());
+	}
+
+	private void awaitStatus(String status) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!quantizers.statuses.contains(status)) {
+			assertTrue(System.nanoTime() < deadline, "timed out, statuses " + quantizers.statuses);
+			Thread.sleep(5);
+		}
+	}
+
+	private static List<ChunkVector> vectors(int count, int dimension) {
+		Random random = new Random(7);
+		List<ChunkVector> vectors = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			float[] vector = new float[dimension];
+			for (int d = 0; d < dimension; d++) {
+				vector[d] = (float) random.nextGaussian();
+			}
+			vectors.add(new ChunkVector(String.format("chunk-%03d", i), "book-" + i / 10, i % 10,
+					BookChunkSource.BODY, vector));
+		}
+		return vectors;
+	}
+
+	private static class StubQuantizerRepository extends ChunkQuantizerRepository {
+
+		final List<String> statuses = new CopyOnWriteArrayList<>();
+
+		@Override
+		public ChunkQuantizers startTraining(int generation) {
+			statuses.add(STATUS_TRAINING);
+			return ChunkQuantizers.create();
+		}
+
+		@Override
+		public void storeCodebook(int generation, ProductQuantizer quantizer, int trainingChunks) {
+			statuses.add("CODEBOOK " + trainingChunks);
+		}
+
+		@Override
+		public void updateProgress(int generation, String status, int encodedChunks) {
+			statuses.add(status + " " + encodedChunks);
+		}
+
+		@Override
+		public void markFailed(int generation, String message) {
+			statuses.add(STATUS_FAILED + " " + message);
+		}
+	}
+
+	private static class StubChunkRepository extends BookContentChunkRepository {
+
+		volatile List<ChunkVector> stored = List.of();
+		final Map<String, byte[]> codes = new HashMap<>();
+
+		@Override
+		public List<ChunkVector> findChunkVectors(int generation, String afterId, int limit, boolean withoutCode) {
+			return stored.stream()
+					.filter(chunk -> afterId == null || chunk.chunkId().compareTo(afterId) > 0)
+					.limit(limit)
+					.toList();
+		}
+
+		@Override
+		public synchronized void updateCodes(Map<String, byte[]> codes) {
+			this.codes.putAll(codes);
+		}
+	}
+
+	private static class StubPqChunkIndex extends PqChunkIndex {
+
+		final AtomicInteger invalidations = new AtomicInteger();
+
+		StubPqChunkIndex(CdsRuntime runtime) {
+			super(null, null, null, null, new PqProperties(), runtime, new SimpleMeterRegistry(),
+					new BlockingExecutors(false));
+		}
+
+		@Override
+		public void invalidate() {
+			invalidations.incrementAndGet();
+		}
+	}
+
+	private static class StubGenerations extends EmbeddingGenerations {
+
+		StubGenerations() {
+			super(null, null, null, null, null, null, null, null, null, 0.95);
+		}
+
+		@Override
+		public int activeGeneration() {
+			return 1;
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package my.bookshop.rag;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class EmbeddingBatcherTest {
+
+	@Test
+	void splitsBatchesByTokensAndInputs() {
+		List<List<Integer>> batches = new ArrayList<>();
+		List<Integer> tokens = new ArrayList<>();
+		EmbeddingBatcher batcher = new EmbeddingBatcher(String::length, 10, 3, (chunks, batchTokens) -> {
+			batches.add(chunks.stream().map(BookTextChunk::index).toList());
+			tokens.add(batchTokens);
+		});
+
+		List<String> texts = List.of("aaaa", "bbbb", "cccc", "d", "e", "f", "g", "hhhhhhhhhhhh");
+		for (int i = 0; i < texts.size(); i++) {
+			batcher.add(new BookTextChunk(i, BookChunkSource.BODY, texts.get(i)));
+		}
+		batcher.flush();
+
+		// a chunk above the token limit still gets its own batch
+		assertEquals(List.of(List.of(0, 1), List.of(2, 3, 4), List.of(5, 6), List.of(7)), batches);
+		assertEquals(List.of(8, 6, 2, 12), tokens);
+	}
+}
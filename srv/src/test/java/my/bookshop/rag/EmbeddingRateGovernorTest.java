@@ -0,0 +1,120 @@
+package my.bookshop.rag;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+
+class EmbeddingRateGovernorTest {
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	@Test
+	void spacesRequestsOnceTheTokenQuotaIsUsed() {
+		EmbeddingProperties properties = new EmbeddingProperties();
+		properties.setTokensPerMinute(6000); // 100 tokens per second
+		EmbeddingRateGovernor governor = new EmbeddingRateGovernor(properties, new RagTokenCounter("gpt-4o-mini"), 0);
+
+		assertEquals(0, governor.reserve(6000, 0));
+		assertEquals(2.0, seconds(governor.reserve(200, 0)), 1e-6);
+		// the next caller queues behind the previous reservation
+		assertEquals(4.0, seconds(governor.reserve(200, 0)), 1e-6);
+		assertEquals(0, governor.reserve(100, 10 * SECOND));
+	}
+
+	@Test
+	void pauseDelaysAllCallers() {
+		EmbeddingRateGovernor governor = new EmbeddingRateGovernor(new EmbeddingProperties(),
+				new RagTokenCounter("gpt-4o-mini"), 0);
+
+		governor.pause(Duration.ofSeconds(3), 0);
+
+		assertEquals(2.0, seconds(governor.reserve(10, SECOND)), 1e-6);
+		assertTrue(governor.reserve(10, 4 * SECOND) <= 0);
+	}
+
+	@Test
+	void reservesOptionalRequestsOnlyFromAvailableQuota() {
+		EmbeddingProperties properties = new EmbeddingProperties();
+		properties.setTokensPerMinute(6000);
+		EmbeddingRateGovernor governor = new EmbeddingRateGovernor(properties, new RagTokenCounter("gpt-4o-mini"), 0);
+
+		assertTrue(governor.tryReserve(5000, 0));
+		assertFalse(governor.tryReserve(2000, 0));
+		// the refused request took nothing
+		assertEquals(0, governor.reserve(1000, 0));
+
+		governor.pause(Duration.ofSeconds(3), 0);
+		assertFalse(governor.tryReserve(10, 2 * SECOND));
+		assertTrue(governor.tryReserve(10, 4 * SECOND));
+	}
+
+	@Test
+	void readsRetryHintFromErrorMessage() {
+		RuntimeException seconds = new RuntimeException(new IllegalStateException(
+				"Rate limit reached for text-embedding-3-small on tokens per min. Please try again in 1.5s."));
+		RuntimeException millis = new RuntimeException("Please try again in 120ms.");
+
+		assertEquals(Optional.of(Duration.ofMillis(1500)), EmbeddingRateGovernor.retryHint(seconds));
+		assertEquals(Optional.of(Duration.ofMillis(120)), EmbeddingRateGovernor.retryHint(millis));
+		assertEquals(Optional.empty(), EmbeddingRateGovernor.retryHint(new RuntimeException("Bad request")));
+	}
+
+	@Test
+	void prefersRetryAfterHeaderOverErrorBody() {
+		HttpHeaders headers = new HttpHeaders();
+		headers.set(HttpHeaders.RETRY_AFTER, "3");
+		headers.set("x-ratelimit-reset-requests", "20ms");
+
+		RuntimeException wrapped = new RuntimeException(rateLimited(headers, "Please try again in 1.5s."));
+		assertEquals(Optional.of(Duration.ofSeconds(3)), EmbeddingRateGovernor.retryHint(wrapped));
+
+		String past = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now().minusMinutes(1));
+		headers.set(HttpHeaders.RETRY_AFTER, past);
+		assertEquals(Optional.of(Duration.ZERO), EmbeddingRateGovernor.headerHint(headers));
+	}
+
+	@Test
+	void readsResetHeaderOfTheExhaustedLimit() {
+		HttpHeaders headers = new HttpHeaders();
+		headers.set("x-ratelimit-remaining-requests", "499");
+		headers.set("x-ratelimit-reset-requests", "6m0s");
+		headers.set("x-ratelimit-remaining-tokens", "0");
+		headers.set("x-ratelimit-reset-tokens", "1.5s");
+
+		assertEquals(Optional.of(Duration.ofMillis(1500)),
+				EmbeddingRateGovernor.retryHint(rateLimited(headers, "Please try again in 20s.")));
+
+		headers.remove("x-ratelimit-remaining-requests");
+		headers.remove("x-ratelimit-remaining-tokens");
+		assertEquals(Optional.of(Duration.ofMinutes(6)), EmbeddingRateGovernor.headerHint(headers));
+	}
+
+	@Test
+	void fallsBackToErrorBodyWithoutUsableHeaders() {
+		HttpHeaders headers = new HttpHeaders();
+		headers.set("x-ratelimit-reset-tokens", "soon");
+
+		assertEquals(Optional.of(Duration.ofMillis(120)),
+				EmbeddingRateGovernor.retryHint(rateLimited(headers, "Please try again in 120ms.")));
+		assertEquals(Optional.empty(), EmbeddingRateGovernor.retryHint(rateLimited(headers, "Rate limit reached")));
+	}
+
+	private static WebClientResponseException rateLimited(HttpHeaders headers, String body) {
+		return WebClientResponseException.create(429, "Too Many Requests", headers,
+				body.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+	}
+
+	private static double seconds(long nanos) {
+		return nanos / (double) SECOND;
+	}
+}
@@ -0,0 +1,309 @@
+package my.bookshop.rag;
+
+import static my.bookshop.repository.bookshop.EmbeddingRebuildJobRepository.RETRY_DONE;
+import static my.bookshop.repository.bookshop.EmbeddingRebuildJobRepository.RETRY_FAILED;
+import static my.bookshop.repository.bookshop.EmbeddingRebuildJobRepository.RETRY_PENDING;
+import static my.bookshop.repository.bookshop.EmbeddingRebuildJobRepository.STATUS_COMPLETED;
+import static my.bookshop.repository.bookshop.EmbeddingRebuildJobRepository.STATUS_INTERRUPTED;
+import static my.bookshop.repository.bookshop.EmbeddingRebuildJobRepository.STATUS_RUNNING;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import cds.gen.my.bookshop.Books;
+import cds.gen.my.bookshop.EmbeddingRebuildJobs;
+import cds.gen.my.bookshop.EmbeddingRebuildRetries;
+import com.sap.cds.services.runtime.CdsRuntime;
+import com.sap.cds.services.runtime.CdsRuntimeConfigurer;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import my.bookshop.rag.BookEmbeddingService.FailedBatch;
+import my.bookshop.rag.BookEmbeddingService.IndexResult;
+import my.bookshop.rag.EmbeddingGenerations.Validation;
+import my.bookshop.rag.EmbeddingRebuildRunner.RunStart;
+import my.bookshop.repository.bookshop.BookshopBooksRepository;
+import my.bookshop.repository.bookshop.EmbeddingRebuildJobRepository;
+import org.junit.jupiter.api.Test;
+
+class EmbeddingRebuildRunnerTest {
+
+	@Test
+	void ratesCountOnlyProgressOfCurrentRun() {
+		Instant start = Instant.parse("2026-01-01T10:00:00Z");
+		EmbeddingRebuildJobs job = EmbeddingRebuildJobs.create();
+		job.setTotalBooks(1000);
+		job.setBooksProcessed(400);
+		job.setTokensEmbedded(900_000L);
+
+		// resumed after 300 books and 600k tokens, 10 minutes ago
+		Instant now = start.plus(Duration.ofMinutes(10));
+		EmbeddingRebuildRunner.updateRates(job, new RunStart(start, 300, 600_000L), now);
+
+		assertEquals(new BigDecimal("10.00"), job.getBooksPerMinute());
+		assertEquals(30_000, job.getTokensPerMinute());
+		assertEquals(now.plus(Duration.ofMinutes(60)), job.getEstimatedCompletion());
+		assertEquals(now, job.getLastCheckpointAt());
+	}
+
+	@Test
+	void noEstimateWithoutProgress() {
+		Instant start = Instant.parse("2026-01-01T10:00:00Z");
+		EmbeddingRebuildJobs job = EmbeddingRebuildJobs.create();
+		job.setTotalBooks(10);
+		job.setBooksProcessed(0);
+
+		EmbeddingRebuildRunner.updateRates(job, new RunStart(start, 0, 0L), start.plusSeconds(30));
+
+		assertEquals(new BigDecimal("0.00"), job.getBooksPerMinute());
+		assertNull(job.getEstimatedCompletion());
+	}
+
+	@Test
+	void resumesInterruptedJobAfterItsCheckpoint() throws InterruptedException {
+		EmbeddingRebuildJobs job = EmbeddingRebuildJobs.create();
+		job.setId("job");
+		job.setGeneration(7);
+		job.setStatus(STATUS_INTERRUPTED);
+		job.setTotalBooks(4);
+		job.setBooksProcessed(2);
+		job.setChunksEmbedded(20);
+		job.setLastBookId("b2");
+		Harness harness = new Harness(job);
+
+		EmbeddingRebuildJobs started = harness.runner.start();
+		harness.awaitRun();
+
+		assertEquals("job", started.getId());
+		assertEquals(List.of("b3@7", "b4@7"), harness.embeddings.indexed);
+		assertEquals(0, harness.generations.builds);
+		assertEquals(List.of(STATUS_RUNNING), harness.jobs.statusUpdates);
+		assertEquals(STATUS_COMPLETED, harness.jobs.lastCheckpoint.getStatus());
+		assertEquals(4, harness.jobs.lastCheckpoint.getBooksProcessed());
+		assertEquals(40, harness.jobs.lastCheckpoint.getChunksEmbedded());
+		assertEquals("b4", harness.jobs.lastCheckpoint.getLastBookId());
+		assertEquals(List.of(7), harness.generations.activated);
+	}
+
+	@Test
+	void retriesFailedBatchesUntilTheySucceedOrUseUpTheirAttempts() throws InterruptedException {
+		Harness harness = new Harness(null);
+		harness.embeddings.failures.put("b1", new FailedBatch(3, 2, "timeout"));
+		harness.embeddings.failures.put("b3", new FailedBatch(0, 1, "rate limited"));
+		// b1 fails once more and then succeeds, b3 fails on every attempt
+		harness.embeddings.retryOutcomes.addAll(List.of(false, false, true, false, false));
+
+		harness.runner.start();
+		harness.awaitRun();
+
+		assertEquals(List.of("b1:3+2", "b3:0+1", "b1:3+2", "b3:0+1", "b3:0+1"), harness.embeddings.retried);
+		EmbeddingRebuildRetries b1 = harness.jobs.retry("b1");
+		assertEquals(RETRY_DONE, b1.getStatus());
+		assertEquals(2, b1.getAttempts());
+		EmbeddingRebuildRetries b3 = harness.jobs.retry("b3");
+		assertEquals(RETRY_FAILED, b3.getStatus());
+		assertEquals(3, b3.getAttempts());
+		assertEquals("rate limited", b3.getLastError());
+
+		EmbeddingRebuildJobs checkpoint = harness.jobs.lastCheckpoint;
+		assertEquals(STATUS_COMPLETED, checkpoint.getStatus());
+		assertEquals(2, checkpoint.getBatchesFailed());
+		assertEquals(1, checkpoint.getBatchesRecovered());
+		// 10 chunks per book and 2 recovered chunks of b1
+		assertEquals(42, checkpoint.getChunksEmbedded());
+		assertEquals(1, harness.generations.builds);
+	}
+
+	/**
+	 * Runs a rebuild over the books b1 to b4 against in-memory stubs.
+	 */
+	private static class Harness {
+
+		private final JobsStub jobs;
+		private final EmbeddingServiceStub embeddings = new EmbeddingServiceStub();
+		private final GenerationsStub generations = new GenerationsStub();
+		private final ExecutorsStub executors = new ExecutorsStub();
+		private final EmbeddingRebuildRunner runner;
+
+		Harness(EmbeddingRebuildJobs unfinished) {
+			CdsRuntime runtime = CdsRuntimeConfigurer.create().complete();
+			jobs = new JobsStub(unfinished);
+			runner = new EmbeddingRebuildRunner(jobs, new BooksStub(), embeddings, generations, runtime,
+					new TenantContexts(runtime), executors, 3, Duration.ZERO, Duration.ofMinutes(10));
+		}
+
+		void awaitRun() throws InterruptedException {
+			executors.executor.shutdown();
+			assertTrue(executors.executor.awaitTermination(10, TimeUnit.SECONDS));
+		}
+	}
+
+	private static class JobsStub extends EmbeddingRebuildJobRepository {
+
+		private final EmbeddingRebuildJobs unfinished;
+		private final List<EmbeddingRebuildRetries> retries = new ArrayList<>();
+		private final List<String> statusUpdates = new ArrayList<>();
+		private EmbeddingRebuildJobs lastCheckpoint;
+
+		JobsStub(EmbeddingRebuildJobs unfinished) {
+			this.unfinished = unfinished;
+		}
+
+		@Override
+		public Optional<EmbeddingRebuildJobs> findLatestUnfinished() {
+			return Optional.ofNullable(unfinished);
+		}
+
+		@Override
+		public EmbeddingRebuildJobs createJob(int generation, int totalBooks) {
+			EmbeddingRebuildJobs job = EmbeddingRebuildJobs.create();
+			job.setId("new");
+			job.setGeneration(generation);
+			job.setStatus(STATUS_RUNNING);
+			job.setTotalBooks(totalBooks);
+			return job;
+		}
+
+		@Override
+		public void updateJob(EmbeddingRebuildJobs job) {
+			lastCheckpoint = job;
+		}
+
+		@Override
+		public void updateStatus(String jobId, String status, String message) {
+			statusUpdates.add(status);
+		}
+
+		@Override
+		public void addRetry(String jobId, String bookId, int firstChunk, int chunkCount, String error) {
+			EmbeddingRebuildRetries retry = EmbeddingRebuildRetries.create();
+			retry.setId(UUID.randomUUID().toString());
+			retry.setBookId(bookId);
+			retry.setFirstChunk(firstChunk);
+			retry.setChunkCount(chunkCount);
+			retry.setAttempts(0);
+			retry.setStatus(RETRY_PENDING);
+			retries.add(retry);
+		}
+
+		@Override
+		public List<EmbeddingRebuildRetries> findRetries(String jobId, String status) {
+			return retries.stream().filter(retry -> status.equals(retry.getStatus())).toList();
+		}
+
+		@Override
+		public void updateRetry(EmbeddingRebuildRetries retry) {
+		}
+
+		EmbeddingRebuildRetries retry(String bookId) {
+			return retries.stream().filter(retry -> bookId.equals(retry.getBookId())).findFirst().orElseThrow();
+		}
+	}
+
+	private static class BooksStub extends BookshopBooksRepository {
+
+		private static final List<String> IDS = List.of("b1", "b2", "b3", "b4");
+
+		@Override
+		public int countBooks() {
+			return IDS.size();
+		}
+
+		@Override
+		public List<Books> findTextHeaderPage(String afterId, int limit) {
+			return IDS.stream()
+					.filter(id -> afterId == null || id.compareTo(afterId) > 0)
+					.limit(limit)
+					.map(id -> {
+						Books book = Books.create();
+						book.setId(id);
+						return book;
+					})
+					.toList();
+		}
+	}
+
+	private static class EmbeddingServiceStub extends BookEmbeddingService {
+
+		private final Map<String, FailedBatch> failures = new HashMap<>();
+		private final Deque<Boolean> retryOutcomes = new ArrayDeque<>();
+		private final List<String> indexed = new ArrayList<>();
+		private final List<String> retried = new ArrayList<>();
+
+		EmbeddingServiceStub() {
+			super(null, null, null, null, null, null, null, null, null, null);
+		}
+
+		@Override
+		public IndexResult indexBook(Books book, int generation) {
+			indexed.add(book.getId() + "@" + generation);
+			FailedBatch failure = failures.get(book.getId());
+			return new IndexResult(10, 100, failure == null ? List.of() : List.of(failure));
+		}
+
+		@Override
+		public IndexResult retryBatch(String bookId, int generation, int firstChunk, int chunkCount) {
+			retried.add(bookId + ":" + firstChunk + "+" + chunkCount);
+			if (retryOutcomes.removeFirst()) {
+				return new IndexResult(chunkCount, 20, List.of());
+			}
+			return new IndexResult(0, 0, List.of(failures.get(bookId)));
+		}
+	}
+
+	private static class GenerationsStub extends EmbeddingGenerations {
+
+		private final List<Integer> activated = new ArrayList<>();
+		private int builds;
+
+		GenerationsStub() {
+			super(null, null, null, null, null, null, null, null, null, 0.95);
+		}
+
+		@Override
+		public boolean isBuilding(int generation) {
+			return true;
+		}
+
+		@Override
+		public int startBuild() {
+			builds++;
+			return 8;
+		}
+
+		@Override
+		public Validation activate(int generation) {
+			activated.add(generation);
+			return new Validation(generation, 4, 4, 40, true);
+		}
+
+		@Override
+		public void collectGarbage() {
+		}
+	}
+
+	private static class ExecutorsStub extends BlockingExecutors {
+
+		private ExecutorService executor;
+
+		ExecutorsStub() {
+			super(false);
+		}
+
+		@Override
+		public ExecutorService serial(String name) {
+			executor = super.serial(name);
+			return executor;
+		}
+	}
+}
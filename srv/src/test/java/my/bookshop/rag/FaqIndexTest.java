@@ -0,0 +1,117 @@
+package my.bookshop.rag;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.langchain4j.data.message.ChatMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FaqIndexTest {
+
+	private static final Map<String, double[]> VECTORS = Map.of(
+			"Who wrote Dune?", new double[] { 1, 0, 0 },
+			"What is Emma about?", new double[] { 0, 1, 0 },
+			"Is Dracula scary?", new double[] { 0, 0, 1 });
+
+	@TempDir
+	Path directory;
+
+	private final List<String> embedded = new ArrayList<>();
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	@Test
+	void answersCloseQuestionsFromTrainingData() throws IOException {
+		FaqIndex index = index(write("""
+				{"instruction": "...", "input": "CONTEXT: Dune ...\\n\\nQUESTION: Who wrote Dune?", "output": "{\\"reply\\": \\"Frank Herbert.\\", \\"vectorSearch\\": false}"}
+				{"question": "What is Emma about?", "answer": {"reply": "Matchmaking.", "vectorSearch": false}}
+				"""));
+
+		index.reloadIfChanged();
+
+		assertEquals(2, index.size());
+		FaqIndex.Answer answer = index.lookup(new double[] { 0.98, 0.1, 0 }).orElseThrow();
+		assertEquals("Who wrote Dune?", answer.question());
+		assertEquals("{\"reply\": \"Frank Herbert.\", \"vectorSearch\": false}", answer.response());
+		assertTrue(index.lookup(new double[] { 0.7, 0.7, 0 }).isEmpty());
+		assertEquals(1, meterRegistry.counter(FaqIndex.LOOKUP_METRIC, "result", "hit").count());
+		assertEquals(1, meterRegistry.counter(FaqIndex.LOOKUP_METRIC, "result", "miss").count());
+	}
+
+	@Test
+	void reloadsChangedFileAndEmbedsOnlyNewQuestions() throws IOException {
+		Path file = write("""
+				{"question": "Who wrote Dune?", "answer": "Frank Herbert."}
+				""");
+		FaqIndex index = index(file);
+		index.reloadIfChanged();
+		index.reloadIfChanged();
+		assertEquals(List.of("Who wrote Dune?"), embedded);
+
+		Files.writeString(file, """
+				{"question": "Who wrote Dune?", "answer": "Frank Herbert."}
+				{"question": "Is Dracula scary?", "answer": "Quite."}
+				{"question": "What is Emma about?", "answer": "Matchmaking.", "embedding": [0, 2, 0]}
+				""");
+		Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 1000));
+		index.reloadIfChanged();
+
+		assertEquals(3, index.size());
+		assertEquals(List.of("Who wrote Dune?", "Is Dracula scary?"), embedded);
+		assertEquals("Quite.", index.lookup(new double[] { 0, 0, 3 }).orElseThrow().response());
+		assertEquals("Matchmaking.", index.lookup(new double[] { 0, 1, 0 }).orElseThrow().response());
+	}
+
+	@Test
+	void keepsIndexWhenFileIsGone() throws IOException {
+		Path file = write("""
+				{"question": "Who wrote Dune?", "answer": "Frank Herbert."}
+				""");
+		FaqIndex index = index(file);
+		index.reloadIfChanged();
+
+		Files.delete(file);
+		index.reloadIfChanged();
+
+		assertEquals(1, index.size());
+	}
+
+	private FaqIndex index(Path file) {
+		FaqProperties properties = new FaqProperties();
+		properties.setFile(file.toString());
+		return new FaqIndex(properties, new StubClient(), new EmbeddingProperties(), null, meterRegistry,
+				new ObjectMapper());
+	}
+
+	private Path write(String content) throws IOException {
+		return Files.writeString(directory.resolve("faq.jsonl"), content);
+	}
+
+	private class StubClient implements RagAiClient {
+
+		@Override
+		public double[] embed(String text) {
+			return embed(List.of(text)).get(0);
+		}
+
+		@Override
+		public List<double[]> embed(List<String> texts) {
+			embedded.addAll(texts);
+			return texts.stream().map(VECTORS::get).toList();
+		}
+
+		@Override
+		public String chat(List<ChatMessage> messages) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,345 @@
+package my.bookshop.rag;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sap.cds.services.runtime.CdsRuntime;
+import com.sap.cds.services.runtime.CdsRuntimeConfigurer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import my.bookshop.rag.IvfChunkIndex.Clusters;
+import my.bookshop.repository.bookshop.BookContentChunkRepository;
+import my.bookshop.repository.bookshop.BookContentChunkRepository.ChunkPersistRequest;
+import my.bookshop.repository.bookshop.BookContentChunkRepository.ChunkVector;
+import my.bookshop.repository.bookshop.EmbeddingGenerationRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class IvfChunkIndexTest {
+
+	private final IvfProperties properties = new IvfProperties();
+	private final CdsRuntime runtime = CdsRuntimeConfigurer.create().complete();
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private final StubChunkRepository chunks = new StubChunkRepository();
+	private final CountingExactSearch exactSearch = new CountingExactSearch(chunks);
+	private final IvfChunkIndex index = new IvfChunkIndex(chunks, new StubGenerationRepository(), exactSearch,
+			properties, runtime, meterRegistry, new BlockingExecutors(false));
+
+	@AfterEach
+	void stop() {
+		index.stop();
+	}
+
+	@Test
+	void searchesExactlyUntilTheIndexOfTheTenantIsTrained() throws InterruptedException {
+		chunks.stored = clusteredChunks(new Random(7));
+		properties.setLists(4);
+		properties.setBatchSize(64);
+		double[] query = toDoubles(chunks.stored.get(42).vector());
+
+		assertEquals(List.of("exact"), chunkIds(asTenant("t1", () -> index.search(query, 1, 0.0, null))));
+		await(() -> index.size() == chunks.stored.size());
+
+		assertEquals(List.of("chunk-0-42"), chunkIds(asTenant("t1", () -> index.search(query, 1, 0.0, null))));
+		assertEquals(1, exactSearch.calls.get());
+		assertEquals(4, chunks.pages.get(), "200 chunks are read in pages of 64");
+		// the index of another tenant is trained on its own
+		assertEquals(List.of("exact"), chunkIds(asTenant("t2", () -> index.search(query, 1, 0.0, null))));
+	}
+
+	@Test
+	void dropsMatchesWhoseChunkNoLongerExists() throws InterruptedException {
+		chunks.stored = clusteredChunks(new Random(7));
+		properties.setLists(4);
+		double[] query = toDoubles(chunks.stored.get(42).vector());
+		asTenant("t1", () -> index.search(query, 1, 0.0, null));
+		await(() -> index.size() == chunks.stored.size());
+
+		chunks.deleted = Set.of("chunk-0-42");
+		List<BookChunkMatch> found = asTenant("t1", () -> index.search(query, 3, 0.0, null));
+
+		assertEquals(2, found.size());
+		assertTrue(found.stream().noneMatch(match -> match.chunkId().equals("chunk-0-42")));
+		assertTrue(found.stream().allMatch(match -> match.text().equals("text of " + match.chunkId())));
+	}
+
+	@Test
+	void replaysChangesMadeDuringRetrainingOnTheNewIndex() throws InterruptedException {
+		chunks.stored = clusteredChunks(new Random(7));
+		properties.setLists(4);
+		properties.setRefreshInterval(Duration.ZERO);
+		double[] query = toDoubles(chunks.stored.get(42).vector());
+		asTenant("t1", () -> index.search(query, 1, 0.0, null));
+		await(() -> index.size() == chunks.stored.size());
+
+		// the next search starts a retraining that waits until the changes are made
+		chunks.gate = new CountDownLatch(1);
+		asTenant("t1", () -> index.search(query, 1, 0.0, null));
+		await(() -> chunks.waiting);
+		properties.setRefreshInterval(Duration.ofHours(1));
+		double[] vector = { 1, 1, 1, 1 };
+		asTenant("t1", () -> {
+			index.added("book-9", 1, List.of("new"),
+					List.of(new ChunkPersistRequest(new BookTextChunk(0, BookChunkSource.BODY, "new"), vector)));
+			index.removed("book-1", 1);
+			return null;
+		});
+		chunks.gate.countDown();
+		await(() -> meterRegistry.counter(IvfChunkIndex.RETRAINING_METRIC, "reason", "refresh").count() == 1);
+
+		assertEquals(List.of("new"), chunkIds(asTenant("t1", () -> index.search(vector, 1, 0.0, null))));
+		assertEquals(chunks.stored.size() - 50 + 1, index.size());
+		assertTrue(asTenant("t1", () -> index.search(query, 1000, -1.0, Set.of("book-1"))).isEmpty());
+	}
+
+	@Test
+	void probingAllListsFindsTheExactMatches() {
+		List<ChunkVector> chunks = clusteredChunks(new Random(7));
+		properties.setLists(4);
+		Clusters clusters = Clusters.train(1, chunks, properties, new Random(1));
+		float[] query = chunks.get(42).vector();
+
+		List<BookChunkMatch> exact = exactSearch(chunks, query, 10);
+		List<BookChunkMatch> found = clusters.search(query, 4, 10, 0.0, null);
+
+		assertEquals(4, clusters.lists());
+		assertEquals(chunks.size(), clusters.size());
+		assertEquals(exact.stream().map(BookChunkMatch::chunkId).toList(),
+				found.stream().map(BookChunkMatch::chunkId).toList());
+	}
+
+	@Test
+	void probingTheNearestListFindsNeighboursInTheSameCluster() {
+		List<ChunkVector> chunks = clusteredChunks(new Random(7));
+		properties.setLists(4);
+		Clusters clusters = Clusters.train(1, chunks, properties, new Random(1));
+		float[] query = chunks.get(42).vector();
+
+		List<BookChunkMatch> found = clusters.search(query, 1, 10, 0.0, null);
+
+		assertEquals(10, found.size());
+		assertEquals(chunks.get(42).chunkId(), found.get(0).chunkId());
+		assertEquals(1.0, found.get(0).similarity(), 1e-5);
+		assertTrue(found.stream().allMatch(match -> match.bookId().equals(chunks.get(42).bookId())));
+	}
+
+	@Test
+	void restrictsSearchToBooksAndThreshold() {
+		List<ChunkVector> chunks = clusteredChunks(new Random(7));
+		properties.setLists(4);
+		Clusters clusters = Clusters.train(1, chunks, properties, new Random(1));
+
+		List<BookChunkMatch> found = clusters.search(chunks.get(0).vector(), 4, 1000, 0.5, Set.of("book-1"));
+
+		assertTrue(found.stream().allMatch(match -> match.bookId().equals("book-1")));
+		assertTrue(found.stream().allMatch(match -> match.similarity() >= 0.5));
+	}
+
+	@Test
+	void appendsAndRemovesChunks() {
+		List<ChunkVector> chunks = clusteredChunks(new Random(7));
+		properties.setLists(4);
+		Clusters clusters = Clusters.train(1, chunks, properties, new Random(1));
+		float[] vector = VectorMath.normalize(new float[] { 1, 1, 1, 1 });
+
+		clusters.add(new ChunkVector("new", "book-9", 0, BookChunkSource.BODY, vector));
+		assertEquals("new", clusters.search(vector, 1, 1, 0.0, null).get(0).chunkId());
+
+		clusters.remove("book-9", 0, Integer.MAX_VALUE);
+		assertEquals(chunks.size(), clusters.size());
+		assertTrue(clusters.search(vector, 4, 1000, 0.0, Set.of("book-9")).isEmpty());
+	}
+
+	@Test
+	void removesChunkRangeOfBook() {
+		List<ChunkVector> chunks = clusteredChunks(new Random(7));
+		properties.setLists(4);
+		Clusters clusters = Clusters.train(1, chunks, properties, new Random(1));
+
+		clusters.remove("book-0", 10, 19);
+
+		List<BookChunkMatch> remaining = clusters.search(chunks.get(0).vector(), 4, 1000, -1.0, Set.of("book-0"));
+		assertEquals(40, remaining.size());
+		assertTrue(remaining.stream().noneMatch(match -> match.chunkIndex() >= 10 && match.chunkIndex() <= 19));
+	}
+
+	@Test
+	void appendedChunksFarFromTheCentroidsAreDrift() {
+		List<ChunkVector> chunks = clusteredChunks(new Random(7));
+		properties.setLists(4);
+		properties.setMaxGrowth(10);
+		Clusters clusters = Clusters.train(1, chunks, properties, new Random(1));
+		assertEquals(Optional.empty(), clusters.retrainingReason(properties));
+
+		Random random = new Random(3);
+		for (int i = 0; i < 100; i++) {
+			clusters.add(new ChunkVector("drift-" + i, "book-8", i, BookChunkSource.BODY, randomVector(random)));
+		}
+
+		assertEquals(Optional.of("drift"), clusters.retrainingReason(properties));
+	}
+
+	@Test
+	void growthBeyondTheTrainedSizeRetrains() {
+		List<ChunkVector> chunks = clusteredChunks(new Random(7));
+		properties.setLists(4);
+		properties.setMaxGrowth(1.1);
+		Clusters clusters = Clusters.train(1, chunks, properties, new Random(1));
+
+		for (int i = 0; i < 30; i++) {
+			clusters.add(new ChunkVector("more-" + i, "book-0", 100 + i, BookChunkSource.BODY, chunks.get(i).vector()));
+		}
+
+		assertEquals(Optional.of("growth"), clusters.retrainingReason(properties));
+	}
+
+	@Test
+	void emptyIndexFindsNothingAndRetrainsOnceChunksAreAdded() {
+		Clusters clusters = Clusters.train(1, List.of(), properties, new Random(1));
+
+		assertEquals(List.of(), clusters.search(new float[] { 1, 0 }, 4, 10, 0.0, null));
+		clusters.add(new ChunkVector("first", "book-0", 0, BookChunkSource.BODY, new float[] { 1, 0 }));
+
+		assertEquals(Optional.of("growth"), clusters.retrainingReason(properties));
+	}
+
+	private <T> T asTenant(String tenant, Supplier<T> work) {
+		return runtime.requestContext().systemUser(tenant).run(context -> {
+			return work.get();
+		});
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!condition.getAsBoolean()) {
+			assertTrue(System.nanoTime() < deadline, "timed out");
+			Thread.sleep(5);
+		}
+	}
+
+	private static List<String> chunkIds(List<BookChunkMatch> matches) {
+		return matches.stream().map(BookChunkMatch::chunkId).toList();
+	}
+
+	private static double[] toDoubles(float[] vector) {
+		double[] values = new double[vector.length];
+		for (int i = 0; i < vector.length; i++) {
+			values[i] = vector[i];
+		}
+		return values;
+	}
+
+	/**
+	 * 4 books with 50 chunks each, scattered around one direction per book.
+	 */
+	private static List<ChunkVector> clusteredChunks(Random random) {
+		float[][] directions = { { 1, 0, 0, 0 }, { 0, 1, 0, 0 }, { 0, 0, 1, 0 }, { 0, 0, 0, 1 } };
+		List<ChunkVector> chunks = new ArrayList<>();
+		for (int book = 0; book < directions.length; book++) {
+			for (int i = 0; i < 50; i++) {
+				float[] vector = new float[4];
+				for (int d = 0; d < 4; d++) {
+					vector[d] = directions[book][d] + (float) (random.nextGaussian() * 0.05);
+				}
+				chunks.add(new ChunkVector("chunk-" + book + "-" + i, "book-" + book, i, BookChunkSource.BODY,
+						VectorMath.normalize(vector)));
+			}
+		}
+		return chunks;
+	}
+
+	private static float[] randomVector(Random random) {
+		float[] vector = new float[4];
+		for (int d = 0; d < 4; d++) {
+			vector[d] = (float) random.nextGaussian();
+		}
+		return VectorMath.normalize(vector);
+	}
+
+	private static List<BookChunkMatch> exactSearch(List<ChunkVector> chunks, float[] query, int limit) {
+		return chunks.stream()
+				.map(chunk -> {
+					double similarity = 0;
+					for (int d = 0; d < query.length; d++) {
+						similarity += chunk.vector()[d] * query[d];
+					}
+					return new BookChunkMatch(chunk.chunkId(), chunk.bookId(), chunk.chunkIndex(), chunk.source(),
+							null, similarity);
+				})
+				.sorted((a, b) -> Double.compare(b.similarity(), a.similarity()))
+				.limit(limit)
+				.toList();
+	}
+
+	private static class StubChunkRepository extends BookContentChunkRepository {
+
+		volatile List<ChunkVector> stored = List.of();
+		volatile Set<String> deleted = Set.of();
+		volatile CountDownLatch gate;
+		volatile boolean waiting;
+		final AtomicInteger pages = new AtomicInteger();
+
+		@Override
+		public List<ChunkVector> findChunkVectors(int generation, String afterId, int limit, boolean withoutCode) {
+			if (gate != null && afterId == null) {
+				waiting = true;
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			pages.incrementAndGet();
+			return stored.stream()
+					.sorted((a, b) -> a.chunkId().compareTo(b.chunkId()))
+					.filter(chunk -> afterId == null || chunk.chunkId().compareTo(afterId) > 0)
+					.limit(limit)
+					.toList();
+		}
+
+		@Override
+		public Map<String, String> findTexts(Collection<String> chunkIds) {
+			return chunkIds.stream()
+					.filter(chunkId -> !deleted.contains(chunkId))
+					.collect(Collectors.toMap(Function.identity(), chunkId -> "text of " + chunkId));
+		}
+	}
+
+	private static class CountingExactSearch extends ExactChunkSearch {
+
+		final AtomicInteger calls = new AtomicInteger();
+
+		CountingExactSearch(BookContentChunkRepository chunkRepository) {
+			super(chunkRepository);
+		}
+
+		@Override
+		public List<BookChunkMatch> search(double[] vector, int limit, double minSimilarity,
+				Collection<String> bookIds) {
+			calls.incrementAndGet();
+			return List.of(new BookChunkMatch("exact", "book-0", 0, BookChunkSource.BODY, "exact", 1.0));
+		}
+	}
+
+	private static class StubGenerationRepository extends EmbeddingGenerationRepository {
+
+		@Override
+		public Optional<Integer> findActiveId() {
+			return Optional.of(1);
+		}
+	}
+}
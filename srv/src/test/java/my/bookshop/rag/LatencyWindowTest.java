@@ -0,0 +1,42 @@
+package my.bookshop.rag;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Duration;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+
+class LatencyWindowTest {
+
+	@Test
+	void percentileOfRecentSamples() {
+		LatencyWindow window = new LatencyWindow(100);
+		for (int i = 1; i <= 100; i++) {
+			window.record(Duration.ofMillis(i));
+		}
+
+		assertEquals(Optional.of(Duration.ofMillis(95)), window.percentile(0.95, 20));
+		assertEquals(Optional.of(Duration.ofMillis(50)), window.percentile(0.5, 20));
+	}
+
+	@Test
+	void oldSamplesAreReplaced() {
+		LatencyWindow window = new LatencyWindow(10);
+		for (int i = 0; i < 10; i++) {
+			window.record(Duration.ofSeconds(10));
+		}
+		for (int i = 0; i < 10; i++) {
+			window.record(Duration.ofMillis(100));
+		}
+
+		assertEquals(Optional.of(Duration.ofMillis(100)), window.percentile(0.95, 10));
+	}
+
+	@Test
+	void noPercentileWithoutEnoughSamples() {
+		LatencyWindow window = new LatencyWindow(10);
+		window.record(Duration.ofMillis(5));
+
+		assertEquals(Optional.empty(), window.percentile(0.95, 2));
+	}
+}
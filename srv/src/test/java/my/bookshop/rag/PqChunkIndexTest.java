@@ -0,0 +1,249 @@
+package my.bookshop.rag;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sap.cds.services.changeset.ChangeSetContext;
+import com.sap.cds.services.runtime.CdsRuntime;
+import com.sap.cds.services.runtime.CdsRuntimeConfigurer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import my.bookshop.rag.PqChunkIndex.Codes;
+import my.bookshop.repository.bookshop.BookContentChunkRepository;
+import my.bookshop.repository.bookshop.BookContentChunkRepository.ChunkCode;
+import my.bookshop.repository.bookshop.BookContentChunkRepository.ChunkPersistRequest;
+import my.bookshop.repository.bookshop.BookContentChunkRepository.ChunkVector;
+import my.bookshop.repository.bookshop.ChunkQuantizerRepository;
+import my.bookshop.repository.bookshop.EmbeddingGenerationRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class PqChunkIndexTest {
+
+	private static final List<float[]> VECTORS = clusteredVectors(new Random(7));
+	private static final ProductQuantizer QUANTIZER = ProductQuantizer.train(VECTORS, 4, 4, 10, 1, 2);
+
+	private final CdsRuntime runtime = CdsRuntimeConfigurer.create().complete();
+	private final StubChunkRepository chunks = new StubChunkRepository();
+	private final StubQuantizerRepository quantizers = new StubQuantizerRepository();
+	private final CountingExactSearch exactSearch = new CountingExactSearch(chunks);
+	private final PqChunkIndex index = new PqChunkIndex(chunks, quantizers, new StubGenerationRepository(),
+			exactSearch, new PqProperties(), runtime, new SimpleMeterRegistry(), new BlockingExecutors(false));
+
+	@AfterEach
+	void stop() {
+		index.stop();
+	}
+
+	@Test
+	void candidatesAreTheBestCodesOfTheGivenBooks() {
+		Codes codes = codes();
+		float[] query = VECTORS.get(42);
+
+		List<String> best = codes.candidates(query, 5, -1.0, null);
+		List<String> ofBook = codes.candidates(query, 1000, -1.0, Set.of("book-2"));
+
+		assertEquals(5, best.size());
+		assertEquals("chunk-042", best.get(0));
+		assertEquals(50, ofBook.size());
+		assertTrue(ofBook.stream().allMatch(chunkId -> bookOf(chunkId).equals("book-2")));
+		assertTrue(codes.candidates(query, 1000, 0.5, null).stream()
+				.allMatch(chunkId -> bookOf(chunkId).equals("book-0")));
+	}
+
+	@Test
+	void removesTheChunkRangeOfABook() {
+		Codes codes = codes();
+
+		codes.remove("book-0", 10, 19);
+
+		List<String> remaining = codes.candidates(VECTORS.get(0), 1000, -1.0, Set.of("book-0"));
+		assertEquals(VECTORS.size() - 10, codes.size());
+		assertEquals(40, remaining.size());
+		assertTrue(remaining.stream().noneMatch(chunkId -> chunkId.matches("chunk-01\\d")));
+	}
+
+	@Test
+	void searchesExactlyUntilTheCodebookIsReadyAndLoaded() throws InterruptedException {
+		double[] query = toDoubles(VECTORS.get(42));
+
+		assertEquals(List.of("exact"), chunkIds(asTenant("t1", () -> index.search(query, 3, 0.0, null))));
+		await(() -> quantizers.lookups.get() == 1 && index.size() == 0);
+		// without codebook the loaded index is empty, and searches stay exact
+		assertEquals(List.of("exact"), chunkIds(asTenant("t1", () -> index.search(query, 3, 0.0, null))));
+
+		quantizers.codebook = QUANTIZER;
+		asTenant("t1", () -> {
+			index.invalidate();
+			return null;
+		});
+		assertEquals(List.of("exact"), chunkIds(asTenant("t1", () -> index.search(query, 3, 0.0, null))));
+		await(() -> index.size() == VECTORS.size());
+
+		assertEquals(List.of("rescored"), chunkIds(asTenant("t1", () -> index.search(query, 3, 0.0, null))));
+		assertEquals(3, exactSearch.calls.get());
+		assertTrue(chunks.rescored.contains("chunk-042"));
+	}
+
+	@Test
+	void persistsCodesOfAddedChunksInAChangeSetOfTheirOwn() throws InterruptedException {
+		quantizers.codebook = QUANTIZER;
+		double[] vector = toDoubles(VECTORS.get(7));
+		asTenant("t1", () -> index.search(vector, 3, 0.0, null));
+		await(() -> index.size() == VECTORS.size());
+
+		asTenant("t1", () -> {
+			index.added("book-9", 1, List.of("chunk-new"),
+					List.of(new ChunkPersistRequest(new BookTextChunk(0, BookChunkSource.BODY, "new"), vector)));
+			return null;
+		});
+
+		assertEquals(VECTORS.size() + 1, index.size());
+		assertEquals(Set.of("chunk-new"), chunks.persisted.keySet());
+		assertTrue(chunks.persistedInChangeSet);
+	}
+
+	private static Codes codes() {
+		Codes codes = new Codes(1, QUANTIZER);
+		chunkCodes().forEach(codes::add);
+		return codes;
+	}
+
+	/**
+	 * @return the codes of the vectors, with chunk IDs in the order of the vectors
+	 */
+	private static List<ChunkCode> chunkCodes() {
+		List<ChunkCode> codes = new ArrayList<>();
+		for (int i = 0; i < VECTORS.size(); i++) {
+			codes.add(new ChunkCode(String.format("chunk-%03d", i), "book-" + i / 50, i % 50,
+					QUANTIZER.encode(VECTORS.get(i))));
+		}
+		return codes;
+	}
+
+	private static String bookOf(String chunkId) {
+		return "book-" + Integer.parseInt(chunkId.substring("chunk-".length())) / 50;
+	}
+
+	private <T> T asTenant(String tenant, Supplier<T> work) {
+		return runtime.requestContext().systemUser(tenant).run(context -> {
+			return work.get();
+		});
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!condition.getAsBoolean()) {
+			assertTrue(System.nanoTime() < deadline, "timed out");
+			Thread.sleep(5);
+		}
+	}
+
+	private static List<String> chunkIds(List<BookChunkMatch> matches) {
+		return matches.stream().map(BookChunkMatch::chunkId).toList();
+	}
+
+	private static double[] toDoubles(float[] vector) {
+		double[] values = new double[vector.length];
+		for (int i = 0; i < vector.length; i++) {
+			values[i] = vector[i];
+		}
+		return values;
+	}
+
+	/**
+	 * 4 books with 50 normalized vectors each, scattered around one direction per book.
+	 */
+	private static List<float[]> clusteredVectors(Random random) {
+		List<float[]> vectors = new ArrayList<>();
+		for (int book = 0; book < 4; book++) {
+			for (int i = 0; i < 50; i++) {
+				float[] vector = new float[8];
+				for (int d = 0; d < 8; d++) {
+					vector[d] = (d / 2 == book ? 1 : 0) + (float) (random.nextGaussian() * 0.05);
+				}
+				vectors.add(VectorMath.normalize(vector));
+			}
+		}
+		return vectors;
+	}
+
+	private static class StubChunkRepository extends BookContentChunkRepository {
+
+		volatile List<String> rescored = List.of();
+		volatile Map<String, byte[]> persisted = Map.of();
+		volatile boolean persistedInChangeSet;
+
+		@Override
+		public List<ChunkCode> findChunkCodes(int generation, String afterId, int limit) {
+			return chunkCodes().stream()
+					.filter(code -> afterId == null || code.chunkId().compareTo(afterId) > 0)
+					.limit(limit)
+					.toList();
+		}
+
+		@Override
+		public List<ChunkVector> findChunkVectors(int generation, String afterId, int limit, boolean withoutCode) {
+			return List.of();
+		}
+
+		@Override
+		public void updateCodes(Map<String, byte[]> codes) {
+			persisted = Map.copyOf(codes);
+			persistedInChangeSet = ChangeSetContext.getCurrent() != null;
+		}
+
+		@Override
+		public List<BookChunkMatch> findSimilarChunksByIds(double[] vector, int limit, double minSimilarity,
+				Collection<String> chunkIds) {
+			rescored = List.copyOf(chunkIds);
+			return List.of(new BookChunkMatch("rescored", "book-0", 0, BookChunkSource.BODY, "rescored", 1.0));
+		}
+	}
+
+	private static class StubQuantizerRepository extends ChunkQuantizerRepository {
+
+		final AtomicInteger lookups = new AtomicInteger();
+		volatile ProductQuantizer codebook;
+
+		@Override
+		public Optional<ProductQuantizer> findCodebook(int generation) {
+			lookups.incrementAndGet();
+			return Optional.ofNullable(codebook);
+		}
+	}
+
+	private static class CountingExactSearch extends ExactChunkSearch {
+
+		final AtomicInteger calls = new AtomicInteger();
+
+		CountingExactSearch(BookContentChunkRepository chunkRepository) {
+			super(chunkRepository);
+		}
+
+		@Override
+		public List<BookChunkMatch> search(double[] vector, int limit, double minSimilarity,
+				Collection<String> bookIds) {
+			calls.incrementAndGet();
+			return List.of(new BookChunkMatch("exact", "book-0", 0, BookChunkSource.BODY, "exact", 1.0));
+		}
+	}
+
+	private static class StubGenerationRepository extends EmbeddingGenerationRepository {
+
+		@Override
+		public Optional<Integer> findActiveId() {
+			return Optional.of(1);
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package my.bookshop.rag;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class ProductQuantizerTest {
+
+	@Test
+	void encodesVectorsCloseToTheirOriginal() {
+		List<float[]> vectors = randomVectors(new Random(7), 500, 16);
+		ProductQuantizer quantizer = ProductQuantizer.train(vectors, 4, 6, 10, 1, 2);
+
+		double error = 0;
+		double norm = 0;
+		for (float[] vector : vectors) {
+			byte[] code = quantizer.encode(vector);
+			float[] decoded = quantizer.decode(code, 0);
+			assertEquals(4, code.length);
+			for (int d = 0; d < vector.length; d++) {
+				error += (vector[d] - decoded[d]) * (vector[d] - decoded[d]);
+				norm += vector[d] * vector[d];
+			}
+		}
+
+		assertTrue(error / norm < 0.5, "relative squared error " + error / norm);
+	}
+
+	@Test
+	void scoreIsTheInnerProductWithTheDecodedVector() {
+		List<float[]> vectors = randomVectors(new Random(7), 300, 12);
+		ProductQuantizer quantizer = ProductQuantizer.train(vectors, 3, 4, 10, 1, 2);
+		float[] query = randomVectors(new Random(3), 1, 12).get(0);
+		float[] table = quantizer.innerProductTable(query);
+
+		byte[] codes = new byte[6];
+		System.arraycopy(quantizer.encode(vectors.get(0)), 0, codes, 0, 3);
+		System.arraycopy(quantizer.encode(vectors.get(1)), 0, codes, 3, 3);
+
+		for (int i = 0; i < 2; i++) {
+			float[] decoded = quantizer.decode(codes, i * 3);
+			double expected = 0;
+			for (int d = 0; d < query.length; d++) {
+				expected += query[d] * decoded[d];
+			}
+			assertEquals(expected, quantizer.score(table, codes, i * 3), 1e-5);
+		}
+	}
+
+	@Test
+	void rankingByScoreFindsTheNearestVector() {
+		List<float[]> vectors = randomVectors(new Random(7), 200, 16);
+		ProductQuantizer quantizer = ProductQuantizer.train(vectors, 8, 8, 15, 1, 2);
+		byte[] codes = new byte[vectors.size() * 8];
+		for (int i = 0; i < vectors.size(); i++) {
+			System.arraycopy(quantizer.encode(vectors.get(i)), 0, codes, i * 8, 8);
+		}
+
+		float[] table = quantizer.innerProductTable(vectors.get(42));
+		int best = 0;
+		for (int i = 1; i < vectors.size(); i++) {
+			if (quantizer.score(table, codes, i * 8) > quantizer.score(table, codes, best * 8)) {
+				best = i;
+			}
+		}
+
+		assertEquals(42, best);
+	}
+
+	@Test
+	void codebookSurvivesTheRoundTripThroughBytes() {
+		List<float[]> vectors = randomVectors(new Random(7), 100, 8);
+		ProductQuantizer quantizer = ProductQuantizer.train(vectors, 2, 3, 5, 1, 2);
+
+		ProductQuantizer restored = ProductQuantizer.fromBytes(8, 2, 3, quantizer.toBytes());
+
+		for (float[] vector : vectors) {
+			assertArrayEquals(quantizer.encode(vector), restored.encode(vector));
+		}
+		assertArrayEquals(quantizer.innerProductTable(vectors.get(0)), restored.innerProductTable(vectors.get(0)));
+	}
+
+	@Test
+	void trainsWithFewerVectorsThanCentroids() {
+		List<float[]> vectors = randomVectors(new Random(7), 5, 4);
+		ProductQuantizer quantizer = ProductQuantizer.train(vectors, 2, 8, 5, 1, 2);
+
+		for (float[] vector : vectors) {
+			assertArrayEquals(vector, quantizer.decode(quantizer.encode(vector), 0));
+		}
+	}
+
+	@Test
+	void rejectsInvalidParameters() {
+		List<float[]> vectors = randomVectors(new Random(7), 10, 6);
+
+		assertThrows(IllegalArgumentException.class, () -> ProductQuantizer.train(vectors, 4, 8, 5, 1, 2));
+		assertThrows(IllegalArgumentException.class, () -> ProductQuantizer.train(vectors, 2, 9, 5, 1, 2));
+		assertThrows(IllegalArgumentException.class, () -> ProductQuantizer.train(List.of(), 2, 8, 5, 1, 2));
+		ProductQuantizer quantizer = ProductQuantizer.train(vectors, 2, 2, 5, 1, 2);
+		assertThrows(IllegalArgumentException.class, () -> quantizer.encode(new float[4]));
+		assertThrows(IllegalArgumentException.class, () -> ProductQuantizer.fromBytes(6, 2, 2, new byte[8]));
+	}
+
+	private static List<float[]> randomVectors(Random random, int count, int dimension) {
+		List<float[]> vectors = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			float[] vector = new float[dimension];
+			for (int d = 0; d < dimension; d++) {
+				vector[d] = (float) random.nextGaussian();
+			}
+			vectors.add(VectorMath.normalize(vector));
+		}
+		return vectors;
+	}
+}
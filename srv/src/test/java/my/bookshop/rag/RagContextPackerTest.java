@@ -0,0 +1,60 @@
+package my.bookshop.rag;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.segment.TextSegment;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class RagContextPackerTest {
+
+	private final RagTokenCounter tokenCounter = new RagTokenCounter("gpt-4o-mini");
+
+	@Test
+	void dropsOverlapWithAdjacentChunks() {
+		RagContextPacker packer = new RagContextPacker(new RagPromptProperties(), tokenCounter);
+		String shared = "The storm rolled over the harbour and the ships strained at their moorings.";
+		String previous = "It was a quiet evening in the village. " + shared;
+		String current = shared + " Nobody slept that night.";
+
+		assertEquals("Nobody slept that night.", packer.dropOverlap(current, previous, null));
+		assertEquals("It was a quiet evening in the village.", packer.dropOverlap(previous, null, current));
+	}
+
+	@Test
+	void staysWithinPromptBudget() {
+		RagPromptProperties properties = new RagPromptProperties();
+		properties.setMaxPromptTokens(300);
+		properties.setMaxHistoryTokens(60);
+		RagContextPacker packer = new RagContextPacker(properties, tokenCounter);
+
+		String longText = "This sentence describes the plot in some detail. ".repeat(200);
+		List<TextSegment> context = List.of(
+				segment("b1", 0, longText, 0.5),
+				segment("b2", 0, longText, 0.9));
+		List<Map<String, Object>> history = List.of(
+				Map.of("role", "user", "content", longText),
+				Map.of("role", "assistant", "content", "Short answer."));
+
+		RagContextPacker.PackedPrompt packed = packer.pack("system", history, "question?", context);
+
+		int used = packed.context().stream().mapToInt(tokenCounter::count).sum()
+				+ packed.history().stream().mapToInt(t -> tokenCounter.count(t.content())).sum();
+		assertTrue(used <= 300, "packed prompt exceeds budget: " + used);
+		assertTrue(packed.context().get(0).startsWith("b2 - "), "highest scoring chunk must come first");
+		assertEquals("Short answer.", packed.history().get(packed.history().size() - 1).content());
+	}
+
+	private TextSegment segment(String bookId, int chunkIndex, String chunk, double similarity) {
+		Metadata metadata = new Metadata();
+		metadata.put("bookId", bookId);
+		metadata.put("title", bookId);
+		metadata.put("chunkIndex", chunkIndex);
+		metadata.put("similarity", similarity);
+		metadata.put("chunk", chunk);
+		return TextSegment.from(bookId + " - " + chunk, metadata);
+	}
+}
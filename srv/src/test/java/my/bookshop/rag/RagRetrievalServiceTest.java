@@ -0,0 +1,172 @@
+package my.bookshop.rag;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import cds.gen.my.bookshop.Books;
+import com.sap.cds.services.runtime.CdsRuntime;
+import com.sap.cds.services.runtime.CdsRuntimeConfigurer;
+import dev.langchain4j.data.segment.TextSegment;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import my.bookshop.rag.RetrievalProperties.BookRanking;
+import my.bookshop.rag.RetrievalProperties.Mode;
+import my.bookshop.repository.bookshop.BookContentChunkRepository;
+import my.bookshop.repository.bookshop.BookshopBooksRepository;
+import org.junit.jupiter.api.Test;
+
+class RagRetrievalServiceTest {
+
+	private final StubChunkRepository chunks = new StubChunkRepository();
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	@Test
+	void twoStageSearchesOnlyChunksOfTopBooks() {
+		chunks.books = List.of("dune", "hyperion");
+		RagRetrievalService service = service(Mode.TWO_STAGE);
+
+		List<TextSegment> segments = service.similaritySearch(new double[] { 1, 0 });
+
+		assertEquals(List.of("dune", "hyperion"), chunks.searchedBooks);
+		assertEquals(0, chunks.flatSearches);
+		assertEquals(1, segments.size());
+		assertEquals(1, meterRegistry.get("rag.retrieval.search").tag("mode", "two-stage").tag("backend", "exact").timer().count());
+	}
+
+	@Test
+	void searchTimeIncludesTheRankingOfTheBooks() {
+		chunks.books = List.of("dune");
+		chunks.rankingMillis = 50;
+		RagRetrievalService service = service(Mode.TWO_STAGE);
+
+		service.similaritySearch(new double[] { 1, 0 });
+
+		Timer search = meterRegistry.get("rag.retrieval.search").tag("mode", "two-stage").timer();
+		Timer ranking = meterRegistry.get("rag.retrieval.candidates").tag("ranking", "summary").timer();
+		assertEquals(1, ranking.count());
+		assertTrue(ranking.totalTime(TimeUnit.MILLISECONDS) >= 50);
+		assertTrue(search.totalTime(TimeUnit.MILLISECONDS) >= ranking.totalTime(TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	void twoStageFallsBackToFlatSearchWithoutBookVectors() {
+		chunks.books = List.of();
+		RagRetrievalService service = service(Mode.TWO_STAGE);
+
+		service.similaritySearch(new double[] { 1, 0 });
+
+		assertNull(chunks.searchedBooks);
+		assertEquals(1, chunks.flatSearches);
+	}
+
+	@Test
+	void flatModeSearchesAllChunks() {
+		chunks.books = List.of("dune");
+		RagRetrievalService service = service(Mode.FLAT);
+
+		service.similaritySearch(new double[] { 1, 0 });
+
+		assertNull(chunks.searchedBooks);
+		assertEquals(1, chunks.flatSearches);
+	}
+
+	@Test
+	void searchesWithTheBackendOfTheTenant() {
+		CdsRuntime runtime = CdsRuntimeConfigurer.create().complete();
+		RetrievalProperties properties = new RetrievalProperties();
+		properties.setTenantBackends(Map.of("t1", IvfChunkIndex.NAME));
+		ChunkSearchBackend ivf = new ChunkSearchBackend() {
+
+			@Override
+			public String name() {
+				return IvfChunkIndex.NAME;
+			}
+
+			@Override
+			public List<BookChunkMatch> search(double[] vector, int limit, double minSimilarity,
+					Collection<String> bookIds) {
+				return List.of(match("ivf"));
+			}
+		};
+		RagRetrievalService service = new RagRetrievalService(null, new StubBooksRepository(), chunks,
+				List.of(new ExactChunkSearch(chunks), ivf), null, properties, runtime, meterRegistry, null);
+
+		assertEquals("ivf", chunkIdAsTenant(runtime, "t1", service));
+		assertEquals("flat", chunkIdAsTenant(runtime, "t2", service));
+		assertEquals(1, meterRegistry.get("rag.retrieval.search").tag("backend", "ivf").timer().count());
+		assertEquals(1, meterRegistry.get("rag.retrieval.search").tag("backend", "exact").timer().count());
+	}
+
+	@Test
+	void recallIsShareOfExactTopKFound() {
+		List<BookChunkMatch> exact = List.of(match("a"), match("b"), match("c"), match("d"));
+		List<BookChunkMatch> approximate = List.of(match("a"), match("c"), match("x"), match("b"));
+
+		assertEquals(2.0 / 3, RagRetrievalService.recall(exact, approximate, 3), 1e-9);
+		assertEquals(0.75, RagRetrievalService.recall(exact, approximate, 10), 1e-9);
+		assertEquals(1.0, RagRetrievalService.recall(List.of(), approximate, 3), 1e-9);
+	}
+
+	private RagRetrievalService service(Mode mode) {
+		RetrievalProperties properties = new RetrievalProperties();
+		properties.setMode(mode);
+		properties.setBookRanking(BookRanking.SUMMARY);
+		return new RagRetrievalService(null, new StubBooksRepository(), chunks, List.of(new ExactChunkSearch(chunks)),
+				null, properties, null, meterRegistry, null);
+	}
+
+	private static String chunkIdAsTenant(CdsRuntime runtime, String tenant, RagRetrievalService service) {
+		return runtime.requestContext().systemUser(tenant).run(context -> {
+			return service.similaritySearch(new double[] { 1, 0 }).get(0).metadata().getString("chunkId");
+		});
+	}
+
+	private static BookChunkMatch match(String chunkId) {
+		return new BookChunkMatch(chunkId, "dune", 0, BookChunkSource.BODY, "text " + chunkId, 0.8);
+	}
+
+	private static class StubChunkRepository extends BookContentChunkRepository {
+
+		List<String> books = List.of();
+		List<String> searchedBooks;
+		int flatSearches;
+		long rankingMillis;
+
+		@Override
+		public List<BookChunkMatch> findSimilarChunks(double[] vector, int limit, double minSimilarity) {
+			flatSearches++;
+			return List.of(match("flat"));
+		}
+
+		@Override
+		public List<BookChunkMatch> findSimilarChunksOfBooks(double[] vector, int limit, double minSimilarity,
+				Collection<String> bookIds) {
+			searchedBooks = new ArrayList<>(bookIds);
+			return List.of(match("two-stage"));
+		}
+
+		@Override
+		public List<String> findSimilarBooks(double[] vector, int limit, Collection<BookChunkSource> sources) {
+			try {
+				Thread.sleep(rankingMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return books;
+		}
+	}
+
+	private static class StubBooksRepository extends BookshopBooksRepository {
+
+		@Override
+		public Map<String, Books> findSummariesByIds(Collection<String> ids) {
+			return Map.of();
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package my.bookshop.rag;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import my.bookshop.rag.SimilarBooksIndex.Neighbour;
+import my.bookshop.rag.SimilarBooksIndex.TenantIndex;
+import my.bookshop.repository.bookshop.BookCentroidRepository.Centroid;
+import org.junit.jupiter.api.Test;
+
+class SimilarBooksIndexTest {
+
+	@Test
+	void ordersNeighboursBySimilarityWithoutTheBookItself() {
+		TenantIndex index = index();
+
+		List<Neighbour> neighbours = index.neighbours("dune", 2);
+
+		assertEquals(List.of("foundation", "emma"), neighbours.stream().map(Neighbour::bookId).toList());
+		assertEquals(0.8, neighbours.get(0).similarity(), 1e-6);
+	}
+
+	@Test
+	void recomputesNeighboursAfterChanges() {
+		TenantIndex index = index();
+		index.neighbours("dune", 2);
+
+		index.put("hyperion", VectorMath.normalize(new float[] { 1, 0.1f }));
+		assertEquals("hyperion", index.neighbours("dune", 2).get(0).bookId());
+
+		index.remove("hyperion");
+		assertEquals("foundation", index.neighbours("dune", 2).get(0).bookId());
+	}
+
+	@Test
+	void changesDuringAComputationDoNotLeaveOutdatedNeighbours() throws InterruptedException {
+		TenantIndex index = index();
+		AtomicBoolean done = new AtomicBoolean();
+		Thread reader = new Thread(() -> {
+			while (!done.get()) {
+				index.neighbours("dune", 2);
+			}
+		});
+		reader.start();
+		try {
+			for (int i = 0; i < 2000; i++) {
+				String closest = "book-" + i;
+				index.put(closest, VectorMath.normalize(new float[] { 1, 0.001f }));
+				assertEquals(closest, index.neighbours("dune", 2).get(0).bookId());
+				index.remove(closest);
+			}
+		} finally {
+			done.set(true);
+			reader.join();
+		}
+	}
+
+	@Test
+	void booksWithoutCentroidHaveNoNeighbours() {
+		assertEquals(List.of(), index().neighbours("unknown", 2));
+	}
+
+	@Test
+	void mergesCentroidsWeightedByChunkCount() {
+		Centroid merged = new Centroid(3, new float[] { 1, 0 }).merge(new Centroid(1, new float[] { 0, 4 }));
+
+		assertEquals(4, merged.chunkCount());
+		assertArrayEquals(new float[] { 0.75f, 1 }, merged.mean());
+	}
+
+	private static TenantIndex index() {
+		TenantIndex index = new TenantIndex(1);
+		index.put("dune", VectorMath.normalize(new float[] { 1, 0 }));
+		index.put("foundation", VectorMath.normalize(new float[] { 0.8f, 0.6f }));
+		index.put("emma", VectorMath.normalize(new float[] { 0, 1 }));
+		return index;
+	}
+}
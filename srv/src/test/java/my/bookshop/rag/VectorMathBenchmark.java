@@ -0,0 +1,113 @@
+package my.bookshop.rag;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the scalar and SIMD kernels on 1536-dimensional embeddings, per pair and for a scan of {@code rows}
+ * vectors as done by the in-memory indexes. Run with the {@code benchmark} profile.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@State(Scope.Thread)
+public class VectorMathBenchmark {
+
+	private static final int DIMENSION = 1536;
+
+	@Param({ "scalar", "simd" })
+	private String kernels;
+
+	@Param({ "10000" })
+	private int rows;
+
+	private VectorKernels implementation;
+	private float[] query;
+	private float[] matrix;
+	private byte[] queryInt8;
+	private byte[] vectorInt8;
+	private long[] queryBits;
+	private long[] vectorBits;
+
+	@Setup
+	public void setUp() {
+		implementation = ScalarVectorKernels.NAME.equals(kernels) ? VectorMath.SCALAR : VectorMath.load();
+		if (!implementation.name().startsWith(kernels)) {
+			throw new IllegalStateException("Kernels '" + kernels + "' are not available");
+		}
+		Random random = new Random(42);
+		query = VectorMath.normalize(randomFloats(random, DIMENSION));
+		matrix = new float[rows * DIMENSION];
+		for (int row = 0; row < rows; row++) {
+			System.arraycopy(VectorMath.normalize(randomFloats(random, DIMENSION)), 0, matrix, row * DIMENSION,
+					DIMENSION);
+		}
+		queryInt8 = new byte[DIMENSION];
+		vectorInt8 = new byte[DIMENSION];
+		random.nextBytes(queryInt8);
+		random.nextBytes(vectorInt8);
+		queryBits = random.longs(DIMENSION / Long.SIZE).toArray();
+		vectorBits = random.longs(DIMENSION / Long.SIZE).toArray();
+	}
+
+	@Benchmark
+	public double dot() {
+		return implementation.dot(query, 0, matrix, 0, DIMENSION);
+	}
+
+	@Benchmark
+	public double cosine() {
+		return implementation.cosine(query, 0, matrix, 0, DIMENSION);
+	}
+
+	@Benchmark
+	public double squaredDistance() {
+		return implementation.squaredDistance(query, 0, matrix, 0, DIMENSION);
+	}
+
+	@Benchmark
+	public int dotInt8() {
+		return implementation.dot(queryInt8, 0, vectorInt8, 0, DIMENSION);
+	}
+
+	@Benchmark
+	public int hamming() {
+		return implementation.hamming(queryBits, 0, vectorBits, 0, queryBits.length);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public int scan() {
+		int best = 0;
+		double bestScore = Double.NEGATIVE_INFINITY;
+		for (int row = 0; row < rows; row++) {
+			double score = implementation.dot(matrix, row * DIMENSION, query, 0, DIMENSION);
+			if (score > bestScore) {
+				bestScore = score;
+				best = row;
+			}
+		}
+		return best;
+	}
+
+	private static float[] randomFloats(Random random, int dimension) {
+		float[] vector = new float[dimension];
+		for (int i = 0; i < dimension; i++) {
+			vector[i] = (float) random.nextGaussian();
+		}
+		return vector;
+	}
+}
@@ -0,0 +1,89 @@
+package my.bookshop.rag;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class VectorMathTest {
+
+	@Test
+	void computesSimilaritiesAndDistances() {
+		float[] a = { 1, 2, 3 };
+		float[] b = { 4, -5, 6 };
+
+		assertEquals(12.0, VectorMath.dot(a, b), 1e-6);
+		assertEquals(12.0 / Math.sqrt(14 * 77), VectorMath.cosine(a, b), 1e-6);
+		assertEquals(9 + 49 + 9, VectorMath.squaredDistance(a, b), 1e-6);
+		assertEquals(0.0, VectorMath.cosine(a, new float[3]), 0.0);
+		assertEquals(4 - 10 + 18, VectorMath.dot(new byte[] { 1, 2, 3 }, new byte[] { 4, -5, 6 }));
+		assertEquals(3, VectorMath.hamming(new long[] { 0b1011, -1 }, new long[] { 0b0001, -1L >>> 1 }));
+	}
+
+	@Test
+	void normalizesToUnitLength() {
+		assertArrayEquals(new float[] { 0.6f, 0.8f }, VectorMath.normalize(new float[] { 3, 4 }), 1e-6f);
+		assertArrayEquals(new float[] { 0.6f, 0.8f }, VectorMath.normalize(new double[] { 3, 4 }), 1e-6f);
+		assertArrayEquals(new float[2], VectorMath.normalize(new float[2]));
+
+		double[] vector = { 3, 4 };
+		assertArrayEquals(new double[] { 0.6, 0.8 }, VectorMath.scaleToUnitLength(vector), 1e-12);
+		assertEquals(0.6, vector[0], 1e-12);
+	}
+
+	@Test
+	void rejectsVectorsOfDifferentDimensions() {
+		assertThrows(IllegalArgumentException.class, () -> VectorMath.dot(new float[2], new float[3]));
+	}
+
+	@Test
+	void fallsBackToScalarKernelsWithoutTheModule() {
+		// runs in the surefire execution scalar-vector-kernels, which starts the JVM without the module
+		assumeTrue(ModuleLayer.boot().findModule(VectorMath.VECTOR_MODULE).isEmpty(),
+				"jdk.incubator.vector is enabled");
+
+		assertSame(VectorMath.SCALAR, VectorMath.load());
+		assertEquals(VectorMath.SCALAR.name(), VectorMath.kernels());
+		assertEquals(12.0, VectorMath.dot(new float[] { 1, 2, 3 }, new float[] { 4, -5, 6 }), 1e-6);
+	}
+
+	@Test
+	void simdKernelsMatchScalarKernels() {
+		VectorKernels simd = VectorMath.load();
+		assumeTrue(simd != VectorMath.SCALAR, "jdk.incubator.vector is not enabled");
+		VectorKernels scalar = VectorMath.SCALAR;
+		Random random = new Random(7);
+
+		// lengths around the vector sizes, and offsets, exercise the remainder loops
+		for (int length : new int[] { 0, 1, 7, 8, 15, 16, 17, 63, 64, 65, 1536 }) {
+			float[] a = randomFloats(random, length + 3);
+			float[] b = randomFloats(random, length + 5);
+			assertEquals(scalar.dot(a, 3, b, 5, length), simd.dot(a, 3, b, 5, length), 1e-3);
+			assertEquals(scalar.cosine(a, 3, b, 5, length), simd.cosine(a, 3, b, 5, length), 1e-5);
+			assertEquals(scalar.squaredDistance(a, 3, b, 5, length), simd.squaredDistance(a, 3, b, 5, length),
+					1e-3);
+
+			byte[] x = new byte[length + 1];
+			byte[] y = new byte[length + 2];
+			random.nextBytes(x);
+			random.nextBytes(y);
+			assertEquals(scalar.dot(x, 1, y, 2, length), simd.dot(x, 1, y, 2, length));
+
+			long[] u = random.longs(length + 1).toArray();
+			long[] v = random.longs(length).toArray();
+			assertEquals(scalar.hamming(u, 1, v, 0, length), simd.hamming(u, 1, v, 0, length));
+		}
+	}
+
+	private static float[] randomFloats(Random random, int length) {
+		float[] vector = new float[length];
+		for (int i = 0; i < length; i++) {
+			vector[i] = (float) random.nextGaussian();
+		}
+		return vector;
+	}
+}
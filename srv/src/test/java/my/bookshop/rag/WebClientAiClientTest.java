@@ -0,0 +1,69 @@
+package my.bookshop.rag;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.output.TokenUsage;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class WebClientAiClientTest {
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	@Test
+	void convertsMessagesToOpenAiRoles() {
+		List<Map<String, String>> messages = WebClientAiClient.toOpenAiMessages(List.of(
+				SystemMessage.from("Be helpful."),
+				UserMessage.from("Which book?"),
+				AiMessage.from("{\"reply\":\"Dune\"}")));
+
+		assertEquals(List.of(
+				Map.of("role", "system", "content", "Be helpful."),
+				Map.of("role", "user", "content", "Which book?"),
+				Map.of("role", "assistant", "content", "{\"reply\":\"Dune\"}")), messages);
+	}
+
+	@Test
+	void ordersEmbeddingsByIndex() throws Exception {
+		JsonNode response = objectMapper.readTree("""
+				{"data": [
+				  {"index": 1, "embedding": [0.5, 0.25]},
+				  {"index": 0, "embedding": [1.0, -1.0]}
+				]}""");
+
+		List<double[]> vectors = WebClientAiClient.parseEmbeddings(response);
+
+		assertEquals(2, vectors.size());
+		assertArrayEquals(new double[] { 1.0, -1.0 }, vectors.get(0));
+		assertArrayEquals(new double[] { 0.5, 0.25 }, vectors.get(1));
+	}
+
+	@Test
+	void readsReplyAndUsage() throws Exception {
+		JsonNode response = objectMapper.readTree("""
+				{"choices": [{"message": {"role": "assistant", "content": "hello"}}],
+				 "usage": {"prompt_tokens": 12, "completion_tokens": 3, "total_tokens": 15}}""");
+
+		assertEquals("hello", WebClientAiClient.parseChat(response));
+		TokenUsage usage = WebClientAiClient.parseUsage(response);
+		assertEquals(12, usage.inputTokenCount());
+		assertEquals(3, usage.outputTokenCount());
+		assertEquals(15, usage.totalTokenCount());
+	}
+
+	@Test
+	void missingContentAndUsageAreEmpty() throws Exception {
+		JsonNode response = objectMapper.readTree("{\"choices\": []}");
+
+		assertEquals("", WebClientAiClient.parseChat(response));
+		assertNull(WebClientAiClient.parseUsage(response));
+	}
+}
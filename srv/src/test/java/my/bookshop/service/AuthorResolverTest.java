@@ -0,0 +1,76 @@
+package my.bookshop.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import cds.gen.my.bookshop.Authors;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import my.bookshop.repository.bookshop.AuthorsRepository;
+import org.junit.jupiter.api.Test;
+
+class AuthorResolverTest {
+
+	private final AuthorsStub repository = new AuthorsStub(Map.of("jane austen", "a1"));
+	private final List<Authors> created = new ArrayList<>();
+	private final AuthorResolver resolver = new AuthorResolver(repository, created::add);
+
+	@Test
+	void resolvesExistingAuthorsByNameIgnoringCase() {
+		assertEquals("a1", resolver.resolve("Jane Austen"));
+		assertEquals("a1", resolver.resolve("  JANE AUSTEN "));
+
+		assertEquals(List.of(), created);
+		assertEquals(1, repository.lookups.size());
+	}
+
+	@Test
+	void createsUnknownAuthorsOnce() {
+		String id = resolver.resolve("Mary Shelley");
+		assertEquals(id, resolver.resolve("mary shelley"));
+
+		assertEquals(1, created.size());
+		assertEquals("Mary Shelley", created.get(0).getName());
+		assertEquals(id, created.get(0).getId());
+		assertEquals(List.of("Mary Shelley"), repository.lookups);
+	}
+
+	@Test
+	void addedAuthorsReuseTheIdOfAnExistingAuthor() {
+		Authors existing = Authors.create();
+		existing.setName("Jane Austen");
+		assertEquals("a1", resolver.add(existing).getId());
+
+		Authors unknown = Authors.create();
+		unknown.setName("Mary Shelley");
+		String id = resolver.add(unknown).getId();
+		assertNotNull(id);
+		assertEquals(id, resolver.resolve("Mary Shelley"));
+
+		Authors withId = Authors.create();
+		withId.setId("a2");
+		withId.setName("Jane Austen");
+		assertEquals("a2", resolver.add(withId).getId());
+		assertEquals("a2", resolver.resolve("Jane Austen"));
+
+		assertEquals(List.of(), created);
+	}
+
+	private static class AuthorsStub extends AuthorsRepository {
+
+		private final Map<String, String> idsByName;
+		private final List<String> lookups = new ArrayList<>();
+
+		AuthorsStub(Map<String, String> idsByName) {
+			this.idsByName = idsByName;
+		}
+
+		@Override
+		public Optional<String> findIdByName(String name) {
+			lookups.add(name);
+			return Optional.ofNullable(idsByName.get(name.trim().toLowerCase()));
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package my.bookshop.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sap.cds.services.ServiceException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+class ChatAdmissionControllerTest {
+
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	@Test
+	void rejectsWhenQueueIsFull() {
+		ChatAdmissionProperties properties = singlePermit();
+		properties.setMaxQueued(0);
+		ChatAdmissionController controller = new ChatAdmissionController(properties, meterRegistry);
+
+		controller.acquire("alice");
+		ServiceException rejection = assertThrows(ServiceException.class, () -> controller.acquire("bob"));
+
+		assertEquals(429, rejection.getErrorStatus().getHttpStatus());
+		assertEquals(1, meterRegistry.counter(ChatAdmissionController.REJECTED_METRIC).count());
+	}
+
+	@Test
+	void rejectsAfterWaitingTooLong() {
+		ChatAdmissionProperties properties = singlePermit();
+		properties.setMaxWait(Duration.ofMillis(50));
+		ChatAdmissionController controller = new ChatAdmissionController(properties, meterRegistry);
+
+		controller.acquire("alice");
+
+		assertThrows(ServiceException.class, () -> controller.acquire("bob"));
+		assertEquals(0, controller.queued());
+		assertEquals(1, controller.inFlight());
+	}
+
+	@Test
+	void servesWaitingUsersInTurn() throws InterruptedException {
+		ChatAdmissionController controller = new ChatAdmissionController(singlePermit(), meterRegistry);
+		BlockingQueue<String> admitted = new LinkedBlockingQueue<>();
+		controller.acquire("holder");
+
+		waitInQueue(controller, "alice", "alice-1", admitted);
+		waitInQueue(controller, "alice", "alice-2", admitted);
+		waitInQueue(controller, "bob", "bob-1", admitted);
+
+		for (String expected : new String[] { "alice-1", "bob-1", "alice-2" }) {
+			controller.release(Duration.ofMillis(10), false);
+			assertEquals(expected, admitted.poll(5, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test
+	void limitShrinksOnOverloadAndGrowsWhenUsedUp() {
+		ChatAdmissionProperties properties = new ChatAdmissionProperties();
+		properties.setInitialLimit(4);
+		ChatAdmissionController controller = new ChatAdmissionController(properties, meterRegistry);
+
+		controller.acquire("alice");
+		controller.release(Duration.ofNanos(1), true);
+		assertEquals(3.6, controller.limit(), 1e-9);
+
+		controller.acquire("alice");
+		controller.release(Duration.ofMillis(10), false);
+		assertEquals(3.6, controller.limit(), 1e-9);
+
+		for (int i = 0; i < 3; i++) {
+			controller.acquire("alice");
+		}
+		controller.release(Duration.ofMillis(10), false);
+		assertEquals(3.6 + 1 / 3.6, controller.limit(), 1e-9);
+
+		controller.release(Duration.ofNanos(1), true);
+		assertEquals((3.6 + 1 / 3.6) * 0.9, controller.limit(), 1e-9);
+	}
+
+	@Test
+	void limitShrinksOncePerLatencyWindow() {
+		ChatAdmissionProperties properties = new ChatAdmissionProperties();
+		properties.setInitialLimit(10);
+		ChatAdmissionController controller = new ChatAdmissionController(properties, meterRegistry);
+		for (int i = 0; i < 4; i++) {
+			controller.acquire("alice");
+		}
+
+		// all three were running when the first one shrank the limit
+		for (int i = 0; i < 3; i++) {
+			controller.release(Duration.ofSeconds(1), true);
+		}
+		assertEquals(9, controller.limit(), 1e-9);
+
+		controller.release(Duration.ofNanos(1), false);
+		// degraded again, and started after the decrease
+		controller.acquire("alice");
+		controller.release(Duration.ofNanos(1), true);
+		assertEquals(8.1, controller.limit(), 1e-9);
+	}
+
+	@Test
+	void keysAnonymousCallersBySessionOrAddress() {
+		ChatAdmissionProperties properties = new ChatAdmissionProperties();
+		ChatAdmissionController controller = new ChatAdmissionController(properties, meterRegistry);
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setRemoteAddr("10.0.0.1");
+		RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+		try {
+			assertEquals("alice", controller.callerKey("alice"));
+			assertEquals("address:10.0.0.1", controller.callerKey(null));
+
+			// without trusted proxies, the header could be set by anyone
+			request.addHeader("X-Forwarded-For", "198.51.100.1, 203.0.113.7");
+			assertEquals("address:10.0.0.1", controller.callerKey(null));
+
+			properties.setTrustedProxies(1);
+			assertEquals("address:203.0.113.7", controller.callerKey(null));
+			properties.setTrustedProxies(3);
+			assertEquals("address:198.51.100.1", controller.callerKey(null));
+
+			String session = request.getSession().getId();
+			assertEquals("session:" + session, controller.callerKey(null));
+		} finally {
+			RequestContextHolder.resetRequestAttributes();
+		}
+		assertEquals("anonymous", controller.callerKey(null));
+	}
+
+	@Test
+	void propagatesInterruptsWhileWaiting() throws InterruptedException {
+		ChatAdmissionController controller = new ChatAdmissionController(singlePermit(), meterRegistry);
+		controller.acquire("alice");
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		AtomicBoolean interrupted = new AtomicBoolean();
+		Thread thread = new Thread(() -> {
+			try {
+				controller.acquire("bob");
+			} catch (RuntimeException e) {
+				failure.set(e);
+				interrupted.set(Thread.currentThread().isInterrupted());
+			}
+		});
+		thread.start();
+		while (controller.queued() == 0) {
+			Thread.sleep(5);
+		}
+
+		thread.interrupt();
+		thread.join(5000);
+
+		assertInstanceOf(IllegalStateException.class, failure.get());
+		assertTrue(interrupted.get());
+		assertEquals(0, controller.queued());
+		assertEquals(1, controller.inFlight());
+		assertEquals(0, meterRegistry.counter(ChatAdmissionController.REJECTED_METRIC).count());
+	}
+
+	private static ChatAdmissionProperties singlePermit() {
+		ChatAdmissionProperties properties = new ChatAdmissionProperties();
+		properties.setInitialLimit(1);
+		properties.setMinLimit(1);
+		properties.setMaxLimit(1);
+		properties.setMaxWait(Duration.ofSeconds(5));
+		return properties;
+	}
+
+	private static void waitInQueue(ChatAdmissionController controller, String user, String name,
+			BlockingQueue<String> admitted) throws InterruptedException {
+		int queued = controller.queued();
+		Thread thread = new Thread(() -> {
+			controller.acquire(user);
+			admitted.add(name);
+		});
+		thread.setDaemon(true);
+		thread.start();
+		while (controller.queued() == queued) {
+			Thread.sleep(5);
+		}
+	}
+}
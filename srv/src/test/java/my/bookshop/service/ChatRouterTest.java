@@ -0,0 +1,57 @@
+package my.bookshop.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.Optional;
+import my.bookshop.service.CatalogBusinessService.ChatPayload;
+import my.bookshop.service.ChatRouter.Route;
+import org.junit.jupiter.api.Test;
+
+class ChatRouterTest {
+
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private final ChatRouter router = new ChatRouter(new ChatRoutingProperties(), meterRegistry);
+
+	@Test
+	void sendsCatalogQuestionsToRetrieval() {
+		assertEquals(Route.RAG, router.route("Can you recommend a fantasy novel?"));
+		assertEquals(Route.RAG, router.route("Is it IN STOCK?"));
+		assertEquals(Route.RAG, router.route("What is \"Wuthering Heights\" about?"));
+	}
+
+	@Test
+	void sendsOtherQuestionsToPreferredPath() {
+		assertEquals(Route.RAFT, router.route("Hi, who are you?"));
+		// terms only match whole words
+		assertEquals(Route.RAFT, router.route("Any findings on gothic fiction?"));
+	}
+
+	@Test
+	void keepsConfidentWellFormedAnswers() {
+		assertEquals(Optional.empty(), router.escalation(Route.RAFT, new ChatPayload("Hello!", false, true, 0.9)));
+		assertEquals(Optional.empty(), router.escalation(Route.RAG, new ChatPayload("Try Dune.", true, true, null)));
+	}
+
+	@Test
+	void escalatesWeakAnswers() {
+		assertEquals(Optional.of(ChatRouter.REASON_UNAVAILABLE), router.escalation(Route.RAG, null));
+		assertEquals(Optional.of(ChatRouter.REASON_MALFORMED),
+				router.escalation(Route.RAFT, new ChatPayload("plain text", false, false, null)));
+		assertEquals(Optional.of(ChatRouter.REASON_LOW_CONFIDENCE),
+				router.escalation(Route.RAFT, new ChatPayload("Maybe Dune.", false, true, 0.2)));
+		assertEquals(Optional.of(ChatRouter.REASON_LOW_CONFIDENCE),
+				router.escalation(Route.RAG, new ChatPayload("I\u2019m not sure which book you mean.", false, true, null)));
+		assertEquals(Optional.of(ChatRouter.REASON_NEEDS_CATALOG),
+				router.escalation(Route.RAFT, new ChatPayload("I searched for books.", true, true, 0.8)));
+	}
+
+	@Test
+	void countsRoutingDecisions() {
+		router.record(Route.RAFT, Route.RAG, ChatRouter.REASON_MALFORMED);
+
+		assertEquals(1, meterRegistry.find(ChatRouter.ROUTED_METRIC)
+				.tags("route", "raft", "answered-by", "rag", "escalation", "malformed")
+				.counter().count());
+	}
+}
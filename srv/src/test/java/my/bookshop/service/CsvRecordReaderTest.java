@@ -0,0 +1,51 @@
+package my.bookshop.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import cds.gen.my.bookshop.Books;
+import java.io.IOException;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class CsvRecordReaderTest {
+
+	@Test
+	void readsQuotedFields() throws IOException {
+		String csv = "\uFEFFID;title\r\n"
+				+ "1;\"Semi;colon\"\r\n"
+				+ "2;\"Two\nlines and \"\"quotes\"\"\"\n"
+				+ "3;";
+		try (CsvRecordReader reader = new CsvRecordReader(new StringReader(csv), ';')) {
+			assertEquals(List.of("ID", "title"), reader.next());
+			assertEquals(List.of("1", "Semi;colon"), reader.next());
+			assertEquals(List.of("2", "Two\nlines and \"quotes\""), reader.next());
+			assertEquals(3, reader.getRecordLine());
+			assertEquals(List.of("3", ""), reader.next());
+			assertEquals(5, reader.getRecordLine());
+			assertNull(reader.next());
+		}
+	}
+
+	@Test
+	void rejectsUnterminatedQuote() throws IOException {
+		try (CsvRecordReader reader = new CsvRecordReader(new StringReader("1;\"open"), ';')) {
+			assertThrows(CsvRecordReader.MalformedCsvException.class, reader::next);
+		}
+	}
+
+	@Test
+	void convertsRecordToBook() {
+		Books book = BookImportService.toBook(List.of("b1", "Title", "Descr", "a1", "12", "9.95", "EUR", "11", "Text"));
+		assertEquals("b1", book.getId());
+		assertEquals(12, book.getStock());
+		assertEquals(new BigDecimal("9.95"), book.getPrice());
+
+		assertThrows(IllegalArgumentException.class,
+				() -> BookImportService.toBook(List.of("b1", "Title", "Descr", "a1", "twelve", "9.95", "EUR", "11", "Text")));
+		assertThrows(IllegalArgumentException.class, () -> BookImportService.toBook(List.of("b1", "Title")));
+	}
+}
@@ -0,0 +1,65 @@
+package my.bookshop.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import cds.gen.my.bookshop.Authors;
+import cds.gen.my.bookshop.Books;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import my.bookshop.repository.bookshop.AuthorsRepository;
+import org.junit.jupiter.api.Test;
+
+class NdjsonImportTest {
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	@Test
+	void convertsAuthor() throws IOException {
+		Authors author = BookImportService.toAuthor(objectMapper
+				.readTree("{\"type\":\"author\",\"name\":\"Jane Austen\",\"dateOfBirth\":\"1775-12-16\"}"));
+		assertEquals("Jane Austen", author.getName());
+		assertEquals(LocalDate.of(1775, 12, 16), author.getDateOfBirth());
+		assertNull(author.getId());
+
+		assertThrows(IllegalArgumentException.class,
+				() -> BookImportService.toAuthor(objectMapper.readTree("{\"type\":\"author\"}")));
+	}
+
+	@Test
+	void convertsBookWithAuthorName() throws IOException {
+		List<Authors> created = new ArrayList<>();
+		AuthorResolver authors = new AuthorResolver(new AuthorsStub(), created::add);
+
+		Books book = BookImportService.toBook(objectMapper.readTree(
+				"{\"title\":\"Emma\",\"author\":\"Jane Austen\",\"stock\":3,\"price\":\"7.50\"}"), authors);
+		assertEquals("Emma", book.getTitle());
+		assertEquals(3, book.getStock());
+		assertEquals(new BigDecimal("7.50"), book.getPrice());
+		assertEquals(created.get(0).getId(), book.getAuthorId());
+
+		Books withId = BookImportService.toBook(objectMapper.readTree(
+				"{\"ID\":\"b1\",\"title\":\"Emma\",\"author_ID\":\"a1\",\"author\":\"Jane Austen\"}"), authors);
+		assertEquals("b1", withId.getId());
+		assertEquals("a1", withId.getAuthorId());
+
+		assertThrows(IllegalArgumentException.class,
+				() -> BookImportService.toBook(objectMapper.readTree("{\"author\":\"Jane Austen\"}"), authors));
+		assertThrows(IllegalArgumentException.class,
+				() -> BookImportService.toBook(objectMapper.readTree("{\"title\":\"Emma\",\"stock\":\"x\"}"), authors));
+	}
+
+	private static class AuthorsStub extends AuthorsRepository {
+
+		@Override
+		public Optional<String> findIdByName(String name) {
+			return Optional.empty();
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package my.bookshop.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import cds.gen.catalogservice.ChatResult;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sap.cds.services.request.UserInfo;
+import com.sap.cds.services.runtime.CdsRuntime;
+import com.sap.cds.services.runtime.CdsRuntimeConfigurer;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.segment.TextSegment;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import my.bookshop.rag.BlockingExecutors;
+import my.bookshop.rag.ChatLatencyGuard;
+import my.bookshop.rag.ChatLatencyProperties;
+import my.bookshop.rag.ChatSession;
+import my.bookshop.rag.ChatSessionProperties;
+import my.bookshop.rag.ChatSessionStore;
+import my.bookshop.rag.RagPromptBuilder;
+import my.bookshop.rag.RagPromptProperties;
+import my.bookshop.rag.RagTokenCounter;
+import my.bookshop.rag.ReactiveRagAiClient;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+class ReactiveChatServiceTest {
+
+	private static final List<TextSegment> CONTEXTS = List.of(TextSegment.from("A book about whales"));
+
+	private final CdsRuntime runtime = CdsRuntimeConfigurer.create().complete();
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private final ChatLatencyProperties latencyProperties = new ChatLatencyProperties();
+	private final ChatLatencyGuard guard = new ChatLatencyGuard(latencyProperties, meterRegistry, runtime,
+			new BlockingExecutors(false));
+	private final CatalogStub catalog = new CatalogStub();
+	private final ModelStub model = new ModelStub();
+	private final ReactiveChatService service = new ReactiveChatService(catalog,
+			new RagPromptBuilder(new RagPromptProperties(), new RagTokenCounter("gpt-4o-mini")), model, guard, null,
+			runtime);
+
+	@Test
+	void answersWithTheModelReply() {
+		model.reply = Mono.just(new ReactiveRagAiClient.AiReply<>("{\"reply\":\"Moby Dick\"}", "chat", null));
+
+		ChatResult result = service.chat("a book about whales?", null, null).block(Duration.ofSeconds(5));
+
+		assertEquals("{\"reply\":\"Moby Dick\"}", result.getReply());
+		assertEquals(List.of("a book about whales?"), model.embedded);
+		assertEquals(List.of("a book about whales?"), catalog.searches);
+	}
+
+	@Test
+	void answersFromTheFaqWithoutRetrievalOrModel() {
+		catalog.faqAnswer = Optional.of("{\"reply\":\"Try Moby Dick\"}");
+
+		ChatResult result = service.chat(" a book about whales? ", null, null).block(Duration.ofSeconds(5));
+
+		assertEquals("{\"reply\":\"Try Moby Dick\"}", result.getReply());
+		assertEquals(List.of("a book about whales?"), model.embedded);
+		assertEquals(List.of(), catalog.searches);
+		assertEquals(0, model.chats.get());
+	}
+
+	@Test
+	void retrievesWithTheMessageEmbeddingAfterAnFaqMiss() {
+		catalog.faqAnswer = Optional.empty();
+		model.reply = Mono.just(new ReactiveRagAiClient.AiReply<>("{\"reply\":\"Moby Dick\"}", "chat", null));
+
+		service.chat("a book about whales?", null, null).block(Duration.ofSeconds(5));
+
+		// without history the message is the query text, so it is embedded once
+		assertEquals(List.of("a book about whales?"), model.embedded);
+		assertEquals(List.of("a book about whales?"), catalog.searches);
+		assertEquals(1, model.chats.get());
+	}
+
+	@Test
+	void answersFromRetrievalWhenTheModelDoesNotAnswerInTime() {
+		latencyProperties.setLatencyBudget(Duration.ofMillis(400));
+		latencyProperties.setReplyReserve(Duration.ofMillis(50));
+		latencyProperties.setMinModelTime(Duration.ofMillis(100));
+		model.reply = Mono.never();
+
+		ChatResult result = service.chat("a book about whales?", null, null).block(Duration.ofSeconds(5));
+
+		assertTrue(result.getDegraded());
+		assertEquals(1, degraded(ChatLatencyGuard.REASON_TIMEOUT));
+	}
+
+	@Test
+	void skipsTheModelWhenRetrievalUsedUpTheBudget() {
+		latencyProperties.setLatencyBudget(Duration.ofMillis(200));
+		latencyProperties.setReplyReserve(Duration.ofMillis(50));
+		latencyProperties.setMinModelTime(Duration.ofMillis(100));
+		catalog.searchTime = Duration.ofMillis(250);
+
+		ChatResult result = service.chat("a book about whales?", null, null).block(Duration.ofSeconds(5));
+
+		assertTrue(result.getDegraded());
+		assertEquals(0, model.chats.get());
+		assertEquals(1, degraded(ChatLatencyGuard.REASON_BUDGET));
+	}
+
+	private double degraded(String reason) {
+		var counter = meterRegistry.find("rag.chat.degraded").tag("reason", reason).counter();
+		return counter == null ? 0 : counter.count();
+	}
+
+	private static ChatResult result(String reply, boolean degraded) {
+		ChatResult result = ChatResult.create();
+		result.setReply(reply);
+		result.setDegraded(degraded);
+		return result;
+	}
+
+	private static class CatalogStub extends CatalogBusinessService {
+
+		private final ChatSessionStore sessions = new ChatSessionStore(new ChatSessionProperties(), null,
+				new ObjectMapper());
+		private final List<String> searches = new CopyOnWriteArrayList<>();
+		// null without FAQ answers, empty for a miss
+		private Optional<String> faqAnswer;
+		private Duration searchTime = Duration.ZERO;
+
+		CatalogStub() {
+			super(null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null);
+		}
+
+		@Override
+		ChatSession openSession(UserInfo user, String conversationId, String history) {
+			return sessions.open(conversationId, user, null);
+		}
+
+		@Override
+		List<TextSegment> search(ChatSession session, String message, double[] vector) {
+			try {
+				Thread.sleep(searchTime.toMillis());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			searches.add(message);
+			session.cacheRetrieval(message, vector, CONTEXTS);
+			return CONTEXTS;
+		}
+
+		@Override
+		boolean hasFaq() {
+			return faqAnswer != null;
+		}
+
+		@Override
+		Optional<String> faqAnswer(double[] messageVector) {
+			return faqAnswer;
+		}
+
+		@Override
+		ChatResult completeChat(ChatSession session, String message, String raw, List<TextSegment> contexts) {
+			return result(raw, false);
+		}
+
+		@Override
+		ChatResult retrievalOnlyResult(List<TextSegment> contexts, ChatSession session) {
+			return result("unavailable", true);
+		}
+	}
+
+	private static class ModelStub implements ReactiveRagAiClient {
+
+		private final List<String> embedded = new CopyOnWriteArrayList<>();
+		private final AtomicInteger chats = new AtomicInteger();
+		private Mono<AiReply<String>> reply = Mono.empty();
+
+		@Override
+		public Mono<AiReply<double[]>> embedReactive(String text) {
+			embedded.add(text);
+			return Mono.just(new AiReply<>(new double[] { 1, 0 }, "embedding", null));
+		}
+
+		@Override
+		public Mono<AiReply<String>> chatReactive(List<ChatMessage> messages) {
+			chats.incrementAndGet();
+			return reply;
+		}
+	}
+}